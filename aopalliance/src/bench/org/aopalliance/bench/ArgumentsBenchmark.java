@@ -0,0 +1,146 @@
+
+package org.aopalliance.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.aopalliance.intercept.PrimitiveInvocation;
+import org.aopalliance.intercept.support.InterceptedMethod;
+import org.aopalliance.intercept.support.MethodInvocationFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the interception of an argument-free method with the one
+ * of a method that takes several (mostly primitive) arguments.
+ *
+ * <p>The interceptor either only proceeds, reads an argument through
+ * the typed accessors of {@link PrimitiveInvocation}, or reads it
+ * through {@link MethodInvocation#getArguments()}, which boxes all
+ * the arguments. Run with the GC profiler to see the allocation rate
+ * of each combination. */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(2)
+public class ArgumentsBenchmark {
+
+   /**
+    * The intercepted service. */
+   public static class Service {
+      public int noArguments() {
+         return 42;
+      }
+
+      public long manyArguments(int a, long b, double c, boolean d,
+                                String e, Object f) {
+         return d?a+b:(long)c;
+      }
+   }
+
+   /**
+    * Reads the first argument with a typed accessor, when the
+    * invocation allows it. */
+   static final class TypedReader implements MethodInterceptor {
+      int sum;
+
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         if(invocation instanceof PrimitiveInvocation
+            && invocation.getMethod().getParameterCount()>0) {
+            sum+=((PrimitiveInvocation)invocation).getIntArgument(0);
+         }
+         return invocation.proceed();
+      }
+   }
+
+   /**
+    * Reads the first argument from the arguments array. */
+   static final class BoxedReader implements MethodInterceptor {
+      int sum;
+
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         Object[] arguments=invocation.getArguments();
+         if(arguments.length>0) {
+            sum+=((Integer)arguments[0]).intValue();
+         }
+         return invocation.proceed();
+      }
+   }
+
+   @Param({"passThrough","typed","boxed"})
+   String interceptor;
+
+   Service service=new Service();
+
+   String text="text";
+
+   MethodHandle noArguments;
+
+   MethodHandle manyArguments;
+
+   InterceptedMethod noArgumentsDispatcher;
+
+   InterceptedMethod manyArgumentsDispatcher;
+
+   Object[] arguments={Integer.valueOf(1),Long.valueOf(2L),
+                       Double.valueOf(3.0),Boolean.TRUE,"text",null};
+
+   @Setup
+   public void setUp() throws NoSuchMethodException {
+      MethodInterceptor[] chain={createInterceptor()};
+      Method none=Service.class.getMethod("noArguments");
+      Method many=Service.class.getMethod(
+         "manyArguments",int.class,long.class,double.class,
+         boolean.class,String.class,Object.class);
+      noArguments=MethodInvocationFactory.createInvoker(none,chain);
+      manyArguments=MethodInvocationFactory.createInvoker(many,chain);
+      noArgumentsDispatcher=InterceptedMethod.create(none,chain);
+      manyArgumentsDispatcher=InterceptedMethod.create(many,chain);
+   }
+
+   private MethodInterceptor createInterceptor() {
+      if(interceptor.equals("typed")) {
+         return new TypedReader();
+      } else if(interceptor.equals("boxed")) {
+         return new BoxedReader();
+      }
+      return new PassThrough();
+   }
+
+   @Benchmark
+   public int noArguments() throws Throwable {
+      return (int)noArguments.invokeExact(service);
+   }
+
+   @Benchmark
+   public long manyArguments() throws Throwable {
+      return (long)manyArguments.invokeExact(service,1,2L,3.0,true,text,
+                                             (Object)null);
+   }
+
+   @Benchmark
+   public Object noArgumentsDispatcher() throws Throwable {
+      return noArgumentsDispatcher.invoke(service,null);
+   }
+
+   @Benchmark
+   public Object manyArgumentsDispatcher() throws Throwable {
+      return manyArgumentsDispatcher.invoke(service,arguments);
+   }
+
+}
@@ -0,0 +1,133 @@
+
+package org.aopalliance.bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.aopalliance.intercept.support.InterceptedMethod;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the effect of the polymorphism of the call sites of the
+ * engine: the same dispatch loop calls intercepted methods whose
+ * interceptors and targets have 1 (monomorphic), 2 (bimorphic) or 4
+ * (megamorphic) different classes.
+ *
+ * <p>Each benchmark invocation makes {@link #CALLS} calls, cycling
+ * through the intercepted methods. */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(2)
+public class CallSiteBenchmark {
+
+   static final int CALLS=64;
+
+   /**
+    * The intercepted services. */
+   public interface Service {
+      int getValue();
+   }
+
+   public static class ServiceA implements Service {
+      public int getValue() {
+         return 1;
+      }
+   }
+
+   public static class ServiceB implements Service {
+      public int getValue() {
+         return 2;
+      }
+   }
+
+   public static class ServiceC implements Service {
+      public int getValue() {
+         return 3;
+      }
+   }
+
+   public static class ServiceD implements Service {
+      public int getValue() {
+         return 4;
+      }
+   }
+
+   static class InterceptorA implements MethodInterceptor {
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         return invocation.proceed();
+      }
+   }
+
+   static class InterceptorB extends InterceptorA {
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         return invocation.proceed();
+      }
+   }
+
+   static class InterceptorC extends InterceptorA {
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         return invocation.proceed();
+      }
+   }
+
+   static class InterceptorD extends InterceptorA {
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         return invocation.proceed();
+      }
+   }
+
+   @Param({"1","2","4"})
+   int shapes;
+
+   Service[] targets;
+
+   InterceptedMethod[] methods;
+
+   @Setup
+   public void setUp() throws NoSuchMethodException {
+      Service[] services={new ServiceA(),new ServiceB(),new ServiceC(),
+                          new ServiceD()};
+      MethodInterceptor[] interceptors={new InterceptorA(),
+                                        new InterceptorB(),
+                                        new InterceptorC(),
+                                        new InterceptorD()};
+      targets=new Service[CALLS];
+      methods=new InterceptedMethod[CALLS];
+      for(int i=0;i<CALLS;i++) {
+         int shape=i%shapes;
+         targets[i]=services[shape];
+         Method method=services[shape].getClass().getMethod("getValue");
+         methods[i]=InterceptedMethod.create(
+            method,new MethodInterceptor[] {interceptors[shape],
+                                            new PassThrough()});
+      }
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(CALLS)
+   public int dispatch() throws Throwable {
+      int sum=0;
+      for(int i=0;i<CALLS;i++) {
+         sum+=((Integer)methods[i].invoke(targets[i],null)).intValue();
+      }
+      return sum;
+   }
+
+}
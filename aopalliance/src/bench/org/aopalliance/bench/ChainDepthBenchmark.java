@@ -0,0 +1,86 @@
+
+package org.aopalliance.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.support.InterceptedMethod;
+import org.aopalliance.intercept.support.MethodInvocationFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how the cost of a method interception grows with the
+ * number of interceptors, for each interception engine: the
+ * generated invocations, the array-based dispatcher and its pooled
+ * mode.
+ *
+ * <p>The entry points are held in instance fields (they depend on the
+ * depth parameter), so the JIT does not treat them as constants as it
+ * does in {@link EmptyChainBenchmark}. */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(2)
+public class ChainDepthBenchmark {
+
+   /**
+    * The intercepted service. */
+   public static class Service {
+      private int value=42;
+
+      public int getValue() {
+         return value;
+      }
+   }
+
+   @Param({"0","1","2","4","8"})
+   int depth;
+
+   Service service=new Service();
+
+   MethodHandle generated;
+
+   InterceptedMethod dispatcher;
+
+   InterceptedMethod pooled;
+
+   @Setup
+   public void setUp() throws NoSuchMethodException {
+      Method method=Service.class.getMethod("getValue");
+      MethodInterceptor[] chain=PassThrough.chain(depth);
+      generated=MethodInvocationFactory.createInvoker(method,chain);
+      dispatcher=InterceptedMethod.create(method,chain);
+      pooled=InterceptedMethod.createPooled(method,chain);
+   }
+
+   @Benchmark
+   public int generated() throws Throwable {
+      return (int)generated.invokeExact(service);
+   }
+
+   @Benchmark
+   public Object dispatcher() throws Throwable {
+      return dispatcher.invoke(service,null);
+   }
+
+   @Benchmark
+   public Object pooled() throws Throwable {
+      return pooled.invoke(service,null);
+   }
+
+}
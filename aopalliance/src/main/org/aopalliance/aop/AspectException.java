@@ -8,26 +8,39 @@ import java.io.StringWriter;
  * Superclass for all AOP infrastructure exceptions.
  * Unchecked, as such exceptions are fatal and end user
  * code shouldn't be forced to catch them.
- * 
+ * <p>
+ * The nested exception is kept as the native cause of this
+ * exception. The message and the stack trace are only rendered
+ * when they are first asked for, and then cached, so that wrapping
+ * an exception costs nothing when it is never logged.
+ * <p>
+ * A stackless exception does not fill in its stack trace, which is
+ * the most expensive part of its construction. The exceptions built
+ * with the constructors that do not take a <code>stackless</code>
+ * flag are stackless when the
+ * <code>org.aopalliance.aop.AspectException.stackless</code> system
+ * property is <code>true</code>.
+ *
  * @author Rod Johnson
  * @author Bob Lee
  */
 public class AspectException extends RuntimeException {
-	
-	private String message;
-	
-	private String stackTrace;
-	
-	private Throwable t;
+
+	private static final boolean STACKLESS =
+		Boolean.getBoolean("org.aopalliance.aop.AspectException.stackless");
+
+	private final String s;
+
+	private transient volatile String message;
+
+	private transient volatile String stackTrace;
 
 	/**
 	 * Constructor for AspectException.
 	 * @param s
 	 */
 	public AspectException(String s) {
-		super(s);
-		this.message = s;
-		this.stackTrace = s;
+		this(s, null, STACKLESS);
 	}
 
 	/**
@@ -36,40 +49,60 @@ public class AspectException extends RuntimeException {
 	 * @param t
 	 */
 	public AspectException(String s, Throwable t) {
-		super(s + "; nested exception is " + t.getMessage());
-		this.t = t;
-		StringWriter out = new StringWriter();
-		t.printStackTrace(new PrintWriter(out));
-		this.stackTrace = out.toString();
+		this(s, t, STACKLESS);
 	}
-	
+
 	/**
-	 * Return the root cause of this exception.
-	 * May be null
-	 * @return Throwable
+	 * Constructor for AspectException.
+	 * @param s
+	 * @param t the nested exception (may be null)
+	 * @param stackless true not to fill in the stack trace
 	 */
-	public Throwable getCause() {
-		return t;
+	public AspectException(String s, Throwable t, boolean stackless) {
+		super(null, t, true, !stackless);
+		this.s = s;
 	}
 
 	public String toString() {
 		return this.getMessage();
 	}
 
+	/**
+	 * Return the message of this exception, followed by the message
+	 * of the nested exception, if any.
+	 */
 	public String getMessage() {
-		return this.message;
+		String message = this.message;
+		if (message == null) {
+			Throwable t = getCause();
+			message = t == null ? this.s
+				: this.s + "; nested exception is " + t.getMessage();
+			this.message = message;
+		}
+		return message;
 	}
 
 	public void printStackTrace() {
-		System.err.print(this.stackTrace);
+		System.err.print(getStackTraceString());
 	}
 
 	public void printStackTrace(PrintStream out) {
-		printStackTrace(new PrintWriter(out));
+		out.print(getStackTraceString());
 	}
 
 	public void printStackTrace(PrintWriter out) {
-		out.print(this.stackTrace);
+		out.print(getStackTraceString());
+	}
+
+	private String getStackTraceString() {
+		String stackTrace = this.stackTrace;
+		if (stackTrace == null) {
+			StringWriter out = new StringWriter();
+			super.printStackTrace(new PrintWriter(out));
+			stackTrace = out.toString();
+			this.stackTrace = stackTrace;
+		}
+		return stackTrace;
 	}
 
 }
@@ -25,6 +25,12 @@ public interface Instrumentation {
    int ADD_AFTER_CODE=4;
    /** Metadata adding instrumentation type. */
    int ADD_METADATA=5;
+   /** Around code adding instrumentation type. */
+   int ADD_AROUND_CODE=6;
+   /** Field adding instrumentation type. */
+   int ADD_FIELD=7;
+   /** Method adding instrumentation type. */
+   int ADD_METHOD=8;
 
    /**
     * Returns the location of this instrumentation. */
@@ -35,7 +41,7 @@ public interface Instrumentation {
     *
     * @return ADD_INTERFACE | SET_SUPERCLASS | ADD_CLASS |
     * ADD_AFTER_CODE | ADD_BEFORE_CODE | ADD_AROUND_CODE |
-    * ADD_METADATA */
+    * ADD_METADATA | ADD_FIELD | ADD_METHOD */
    int getType();
 
 }
@@ -0,0 +1,53 @@
+
+package org.aopalliance.instrument.support;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * The Java agent that gives access to the instrumentation of the JVM,
+ * for the {@link BytecodeInstrumentor}s.
+ *
+ * <p>The agent is started by the <code>-javaagent</code> option of
+ * the JVM (or attached to a running JVM), with a jar whose manifest
+ * has the following entries:
+ *
+ * <pre>
+ * Premain-Class: org.aopalliance.instrument.support.Agent
+ * Agent-Class: org.aopalliance.instrument.support.Agent
+ * Can-Retransform-Classes: true
+ * </pre> */
+
+public final class Agent {
+
+   private static volatile Instrumentation instrumentation;
+
+   private Agent() {
+   }
+
+   /**
+    * Starts the agent before the main method. */
+   public static void premain(String arguments,
+                              Instrumentation instrumentation) {
+      Agent.instrumentation=instrumentation;
+   }
+
+   /**
+    * Starts the agent in a running JVM. */
+   public static void agentmain(String arguments,
+                                Instrumentation instrumentation) {
+      Agent.instrumentation=instrumentation;
+   }
+
+   /**
+    * Gets the instrumentation of the JVM.
+    *
+    * @throws IllegalStateException if the agent is not started */
+   public static Instrumentation getInstrumentation() {
+      Instrumentation current=instrumentation;
+      if(current==null) {
+         throw new IllegalStateException("agent not started");
+      }
+      return current;
+   }
+
+}
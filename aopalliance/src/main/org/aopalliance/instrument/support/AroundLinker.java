@@ -0,0 +1,142 @@
+
+package org.aopalliance.instrument.support;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.support.MethodInvocationFactory;
+
+/**
+ * Links the around code woven by a {@link BytecodeInstrumentor}.
+ *
+ * <p>A method with around code is split in two: its original body is
+ * moved into a private synthetic method, and the method itself
+ * becomes an <code>invokedynamic</code> instruction whose bootstrap
+ * method is {@link #link link}. The call site is linked once, to the
+ * entry point that {@link MethodInvocationFactory} generates for the
+ * moved method and the interceptors: after linking, the woven method
+ * calls its interceptors without any lookup.
+ *
+ * <p>The invocations that the interceptors receive return the woven
+ * method itself from {@link
+ * org.aopalliance.intercept.MethodInvocation#getMethod()} (with its
+ * annotations); the moved method, whose name is the original name
+ * followed by <code>$around$</code> and an index, is only called at
+ * the end of the chain.
+ *
+ * <p>The woven code refers to its interceptors by the identifier of
+ * their chain. A chain is only registered while its instrumentation
+ * is applied: it is released when the instrumentation is undone, and
+ * the identifiers are not reused. */
+
+public final class AroundLinker {
+
+   static final String BOOTSTRAP_DESCRIPTOR=
+      "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+      +"Ljava/lang/invoke/MethodType;Ljava/lang/String;Ljava/lang/String;)"
+      +"Ljava/lang/invoke/CallSite;";
+
+   private static final AtomicInteger ids=new AtomicInteger();
+
+   private static final ConcurrentMap<Integer,MethodInterceptor[]> chains=
+      new ConcurrentHashMap<Integer,MethodInterceptor[]>();
+
+   private AroundLinker() {
+   }
+
+   /**
+    * Allocates the identifier of a chain of interceptors (the chain
+    * is registered later). */
+   static int newChain() {
+      return ids.getAndIncrement();
+   }
+
+   /**
+    * Registers a chain of interceptors, for the woven code to refer
+    * to it. */
+   static void register(int id, MethodInterceptor[] chain) {
+      chains.put(Integer.valueOf(id),chain);
+   }
+
+   /**
+    * Releases a chain of interceptors, once no class is woven with
+    * it. */
+   static void release(int id) {
+      chains.remove(Integer.valueOf(id));
+   }
+
+   /**
+    * Gets the number of registered chains. */
+   static int chainCount() {
+      return chains.size();
+   }
+
+   private static MethodInterceptor[] chain(String ids) {
+      List<MethodInterceptor> chain=new ArrayList<MethodInterceptor>();
+      for(String id : ids.split(",")) {
+         MethodInterceptor[] interceptors=
+            chains.get(Integer.valueOf(id));
+         if(interceptors==null) {
+            throw new IllegalStateException(
+               "interceptor chain "+id+" released");
+         }
+         chain.addAll(Arrays.asList(interceptors));
+      }
+      return chain.toArray(new MethodInterceptor[chain.size()]);
+   }
+
+   /**
+    * Links a woven method to its interceptors (this method is only
+    * called by the JVM).
+    *
+    * @param lookup the lookup of the woven class
+    * @param name the name of the woven method
+    * @param type the type of the woven method (with the target as
+    * first parameter for an instance method)
+    * @param method the name of the method that holds the original
+    * body
+    * @param ids the identifiers of the interceptor chains, separated
+    * by commas
+    * @return a call site bound to the interceptors */
+   public static CallSite link(MethodHandles.Lookup lookup, String name,
+                               MethodType type, String method, String ids)
+      throws NoSuchMethodException {
+      Method moved=find(lookup.lookupClass(),method,type);
+      Method woven=find(lookup.lookupClass(),name,type);
+      return new ConstantCallSite(
+         MethodInvocationFactory.createInvoker(woven,moved,chain(ids))
+         .asType(type));
+   }
+
+   /**
+    * Finds a declared method by its name and its call site type. */
+   private static Method find(Class<?> type, String name,
+                              MethodType callType)
+      throws NoSuchMethodException {
+      for(Method candidate : type.getDeclaredMethods()) {
+         if(!candidate.getName().equals(name)
+            || candidate.getReturnType()!=callType.returnType()) {
+            continue;
+         }
+         MethodType parameters=Modifier.isStatic(candidate.getModifiers())
+            ?callType:callType.dropParameterTypes(0,1);
+         if(Arrays.equals(candidate.getParameterTypes(),
+                          parameters.parameterArray())) {
+            return candidate;
+         }
+      }
+      throw new NoSuchMethodException(type.getName()+"."+name+callType);
+   }
+
+}
@@ -0,0 +1,655 @@
+
+package org.aopalliance.instrument.support;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.invoke.MethodHandles;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aopalliance.instrument.Instrumentation;
+import org.aopalliance.instrument.InstrumentationError;
+import org.aopalliance.instrument.Instrumentor;
+import org.aopalliance.instrument.UndoNotSupportedException;
+import org.aopalliance.reflect.ClassLocator;
+import org.aopalliance.reflect.Code;
+import org.aopalliance.reflect.CodeLocator;
+import org.aopalliance.reflect.Locator;
+
+/**
+ * An instrumentor that weaves the instrumentations into the bytecode
+ * of the classes, when they are loaded (or retransformed).
+ *
+ * <p>This instrumentor is a {@link ClassFileTransformer}: it records
+ * the instrumentations of each class, and applies them to the class
+ * file when the class is loaded. The woven code is plain bytecode:
+ * the before and after code are inlined calls to static methods (see
+ * {@link CallCode}), and the around code is linked once to its
+ * interceptors (see {@link InterceptorCode} and {@link
+ * AroundLinker}), so that an advised method is not called through a
+ * proxy.
+ *
+ * <p>The classes are located with {@link NamedClassLocator}s, and the
+ * method bodies with {@link MethodBodyLocator}s (the caller-side
+ * locators are not supported).
+ *
+ * <p>The instrumentations of a class that is already loaded are
+ * applied by retransforming it. Since the JVM does not allow a
+ * retransformation to change the members or the hierarchy of a class,
+ * only the before and after code can be added to a loaded class: the
+ * other instrumentations raise an {@link InstrumentationError} if
+ * their class is loaded. The JVM must have been started with an
+ * agent (see {@link Agent}) that can retransform classes.
+ *
+ * <p>Each instrumentation that is added to a loaded class
+ * retransforms it, which deoptimizes its compiled code. Many
+ * instrumentations should rather be added in a transaction (see
+ * {@link #begin()}), that retransforms all their classes at once.
+ *
+ * <p>The instrumentations of a class are kept as layers over its
+ * original class file: undoing instrumentations weaves their classes
+ * again from the original class files and the remaining
+ * instrumentations, and only retransforms these classes.
+ *
+ * <p>The woven class files can be kept across the runs of the JVM in
+ * a {@link WovenClassCache} (see {@link #setCache(WovenClassCache)}).
+ *
+ * @see Instrumentor */
+
+public class BytecodeInstrumentor implements Instrumentor,
+                                             ClassFileTransformer {
+
+   private final java.lang.instrument.Instrumentation instrumentation;
+
+   /** the edits of the classes, by internal name (the lists are
+    * copied on write) */
+   private final ConcurrentMap<String,List<ClassEdit>> plans=
+      new ConcurrentHashMap<String,List<ClassEdit>>();
+
+   /** the internal names of the created classes */
+   private final ConcurrentMap<String,Boolean> created=
+      new ConcurrentHashMap<String,Boolean>();
+
+   /** the last weaving error of the classes, by internal name */
+   private final ConcurrentMap<String,Throwable> errors=
+      new ConcurrentHashMap<String,Throwable>();
+
+   /** the pipeline that weaves classes ahead of their loading (can be
+    * null) */
+   private volatile WeavingPipeline pipeline;
+
+   /** the cache of the woven class files (can be null) */
+   private volatile WovenClassCache cache;
+
+   /**
+    * Creates an instrumentor and registers it as a transformer.
+    *
+    * @param instrumentation the instrumentation of the JVM (see {@link
+    * Agent#getInstrumentation()}), or null to weave class files
+    * offline with {@link #transform(String,byte[],ClassLoader)} */
+   public BytecodeInstrumentor(
+      java.lang.instrument.Instrumentation instrumentation) {
+      this.instrumentation=instrumentation;
+      if(instrumentation!=null) {
+         instrumentation.addTransformer(this,true);
+      }
+   }
+
+   /**
+    * Unregisters this instrumentor: the classes that are loaded
+    * afterwards are not woven any longer. */
+   public void uninstall() {
+      if(instrumentation!=null) {
+         instrumentation.removeTransformer(this);
+      }
+   }
+
+   public byte[] transform(ClassLoader loader, String className,
+                           Class<?> classBeingRedefined,
+                           ProtectionDomain protectionDomain,
+                           byte[] classfileBuffer) {
+      if(className==null) {
+         return null;
+      }
+      List<ClassEdit> plan=plans.get(className);
+      if(plan==null) {
+         return null;
+      }
+      try {
+         byte[] woven=null;
+         WeavingPipeline current=pipeline;
+         if(current!=null && classBeingRedefined==null) {
+            woven=current.take(className,classfileBuffer,plan,loader);
+         }
+         if(woven==null) {
+            woven=weave(classfileBuffer,plan,loader);
+         }
+         errors.remove(className);
+         return woven;
+      } catch(Throwable e) {
+         // the JVM ignores the errors of the transformers
+         errors.put(className,e);
+         return null;
+      }
+   }
+
+   /**
+    * Gets the instrumentations of a class.
+    *
+    * @param internalName the internal name of the class
+    * @return the instrumentations (an immutable list that is replaced
+    * when they change), or null */
+   List<ClassEdit> planOf(String internalName) {
+      return plans.get(internalName);
+   }
+
+   void setPipeline(WeavingPipeline pipeline) {
+      this.pipeline=pipeline;
+   }
+
+   /**
+    * Sets the cache of the woven class files, that is looked up
+    * before weaving a class, and updated afterwards.
+    *
+    * @param cache the cache, or null to weave all the classes */
+   public void setCache(WovenClassCache cache) {
+      this.cache=cache;
+   }
+
+   /**
+    * Weaves a class file, or gets it from the cache.
+    *
+    * @throws InstrumentationError if an instrumentation cannot be
+    * applied */
+   byte[] weave(byte[] bytes, List<ClassEdit> plan, ClassLoader loader) {
+      WovenClassCache current=cache;
+      byte[] key=current==null?null:WovenClassCache.keyOf(bytes,plan);
+      if(key!=null) {
+         byte[] woven=current.get(key);
+         if(woven!=null) {
+            return woven;
+         }
+      }
+      byte[] woven=Weaver.weave(bytes,plan,loader);
+      if(key!=null) {
+         current.put(key,woven);
+      }
+      return woven;
+   }
+
+   /**
+    * Weaves a class file offline.
+    *
+    * @param className the binary name of the class
+    * @param bytes the class file
+    * @param loader the loader of the mixins (null for the system class
+    * loader)
+    * @return the woven class file (the given one if the class has no
+    * instrumentation)
+    * @throws InstrumentationError if an instrumentation cannot be
+    * applied */
+   public byte[] transform(String className, byte[] bytes,
+                           ClassLoader loader) {
+      List<ClassEdit> plan=plans.get(Descriptors.internalName(className));
+      return plan==null?bytes:weave(bytes,plan,loader);
+   }
+
+   /**
+    * Gets the error that prevented a class from being woven when it
+    * was last loaded or retransformed.
+    *
+    * @param className the binary name of the class
+    * @return the error, or null if the class was woven */
+   public Throwable getError(String className) {
+      return errors.get(Descriptors.internalName(className));
+   }
+
+   public ClassLocator createClass(String name) {
+      String internalName=Descriptors.internalName(name);
+      if(created.putIfAbsent(internalName,Boolean.TRUE)!=null) {
+         throw new InstrumentationError(
+            null,new IllegalStateException("class already created: "+name));
+      }
+      return new NamedClassLocator(name);
+   }
+
+   /**
+    * Gets the class file of a class that was created by {@link
+    * #createClass(String)}, with its instrumentations (the class
+    * extends <code>java.lang.Object</code> and has a public
+    * constructor with no parameter).
+    *
+    * @param name the binary name of the class
+    * @throws IllegalArgumentException if the class was not
+    * created */
+   public byte[] getClassBytes(String name) {
+      String internalName=Descriptors.internalName(name);
+      if(!created.containsKey(internalName)) {
+         throw new IllegalArgumentException("class not created: "+name);
+      }
+      ClassFile file=ClassFile.create(internalName,"java/lang/Object");
+      ClassFile.Member constructor=new ClassFile.Member(
+         ClassFile.ACC_PUBLIC,file.pool.addUtf8("<init>"),
+         file.pool.addUtf8("()V"));
+      Snippet code=new Snippet(file.pool)
+         .load("Ljava/lang/Object;",0)
+         .invokeSpecial("java/lang/Object","<init>","()V")
+         .returnValue("V");
+      constructor.attributes.add(
+         CodeAttribute.create(code.maxStack,1,code.toByteArray())
+         .toAttribute(file));
+      file.methods.add(constructor);
+      List<ClassEdit> plan=plans.get(internalName);
+      if(plan!=null) {
+         Weaver.weave(file,plan,null);
+      }
+      return file.toByteArray();
+   }
+
+   /**
+    * Defines a class that was created by {@link #createClass(String)}.
+    *
+    * @param name the binary name of the class
+    * @param lookup a lookup with the package access in the package of
+    * the class
+    * @return the defined class */
+   public Class<?> defineClass(String name, MethodHandles.Lookup lookup)
+      throws IllegalAccessException {
+      return lookup.defineClass(getClassBytes(name));
+   }
+
+   /**
+    * Gets the internal name of the class of a location.
+    *
+    * @return the name, or null if the locator is not supported by the
+    * instrumentation */
+   private static String classNameOf(int type, Locator location) {
+      boolean code=type==Instrumentation.ADD_BEFORE_CODE
+         || type==Instrumentation.ADD_AFTER_CODE
+         || type==Instrumentation.ADD_AROUND_CODE;
+      if(!code && location instanceof NamedClassLocator) {
+         return Descriptors.internalName(
+            ((NamedClassLocator)location).getClassName());
+      }
+      if(code && location instanceof MethodBodyLocator) {
+         return Descriptors.internalName(
+            ((MethodBodyLocator)location).getClassName());
+      }
+      return null;
+   }
+
+   /**
+    * Creates an instrumentation, checking its locator and its code. */
+   ClassEdit edit(int type, Locator location, String name, String[] types,
+                  String[] names, Code code, Instrumentation before,
+                  Instrumentation after) {
+      String className=classNameOf(type,location);
+      boolean around=type==Instrumentation.ADD_AROUND_CODE;
+      String error=null;
+      if(className==null) {
+         error="unsupported locator: "+location;
+      } else if(around && !(code instanceof InterceptorCode)) {
+         error="unsupported code: "+code;
+      } else if(around && name!=null && !name.equals("proceed")) {
+         error="unsupported proceed method: "+name;
+      }
+      if(error!=null) {
+         throw new InstrumentationError(
+            new ClassEdit(type,location,className,name,types,names,code,-1,
+                          before,after),
+            new IllegalArgumentException(error));
+      }
+      int chain=around?AroundLinker.newChain():-1;
+      return new ClassEdit(type,location,className,name,types,names,code,
+                           chain,before,after);
+   }
+
+   /**
+    * Records an instrumentation, and retransforms its class if it is
+    * loaded.
+    *
+    * @throws InstrumentationError if the class is loaded and cannot be
+    * retransformed with the instrumentation (it is then forgotten) */
+   Instrumentation apply(ClassEdit edit) {
+      apply(Collections.singletonList(edit));
+      return edit;
+   }
+
+   /**
+    * Records instrumentations, and retransforms their loaded classes
+    * in a single pass.
+    *
+    * @throws InstrumentationError if the ordering constraints of a
+    * class are cyclic, or if a loaded class cannot be retransformed
+    * with the instrumentations (they are then all forgotten) */
+   synchronized void apply(List<ClassEdit> edits) {
+      Map<String,ClassEdit> names=byClass(edits);
+      List<Class<?>> loaded=loadedClasses(names);
+      for(Class<?> type : loaded) {
+         ClassEdit edit=names.get(type.getName());
+         if(edit.isStructural()) {
+            throw new InstrumentationError(
+               edit,new IllegalStateException(
+                  "class already loaded: "+type.getName()));
+         }
+      }
+      Map<String,List<ClassEdit>> updated=
+         new LinkedHashMap<String,List<ClassEdit>>();
+      for(ClassEdit edit : edits) {
+         List<ClassEdit> plan=updated.get(edit.className);
+         if(plan==null) {
+            List<ClassEdit> current=plans.get(edit.className);
+            plan=current==null?new ArrayList<ClassEdit>()
+               :new ArrayList<ClassEdit>(current);
+            updated.put(edit.className,plan);
+         }
+         plan.add(edit);
+      }
+      for(List<ClassEdit> plan : updated.values()) {
+         Weaver.order(plan);
+      }
+      for(ClassEdit edit : edits) {
+         if(edit.chain>=0) {
+            AroundLinker.register(
+               edit.chain,((InterceptorCode)edit.code).getInterceptors());
+         }
+      }
+      try {
+         update(updated,loaded,names);
+      } catch(InstrumentationError e) {
+         release(edits);
+         throw e;
+      }
+   }
+
+   /**
+    * Forgets instrumentations, and retransforms their loaded classes
+    * in a single pass (from their original class files and their
+    * remaining instrumentations).
+    *
+    * @throws UndoNotSupportedException if an instrumentation is not
+    * applied, or if it is structural and its class is loaded (none of
+    * the instrumentations is then forgotten)
+    * @throws InstrumentationError if a class cannot be retransformed
+    * (none of the instrumentations is then forgotten) */
+   synchronized void remove(List<ClassEdit> edits)
+      throws UndoNotSupportedException {
+      Map<String,List<ClassEdit>> updated=
+         new LinkedHashMap<String,List<ClassEdit>>();
+      for(ClassEdit edit : edits) {
+         List<ClassEdit> plan=updated.get(edit.className);
+         if(plan==null) {
+            List<ClassEdit> current=plans.get(edit.className);
+            plan=current==null?new ArrayList<ClassEdit>()
+               :new ArrayList<ClassEdit>(current);
+            updated.put(edit.className,plan);
+         }
+         if(!plan.remove(edit)) {
+            throw new UndoNotSupportedException(edit);
+         }
+      }
+      Map<String,ClassEdit> names=byClass(edits);
+      List<Class<?>> loaded=loadedClasses(names);
+      for(Class<?> type : loaded) {
+         ClassEdit edit=names.get(type.getName());
+         if(edit.isStructural()) {
+            throw new UndoNotSupportedException(edit);
+         }
+      }
+      update(updated,loaded,names);
+      release(edits);
+   }
+
+   /**
+    * Releases the interceptor chains of instrumentations that are not
+    * (or no longer) woven. */
+   private static void release(List<ClassEdit> edits) {
+      for(ClassEdit edit : edits) {
+         if(edit.chain>=0) {
+            AroundLinker.release(edit.chain);
+         }
+      }
+   }
+
+   /**
+    * Installs new plans, and retransforms the loaded classes with
+    * them, restoring the previous plans if it fails. */
+   private void update(Map<String,List<ClassEdit>> updated,
+                       List<Class<?>> loaded, Map<String,ClassEdit> names) {
+      // the previous plans (null for the classes that had none)
+      Map<String,List<ClassEdit>> previous=
+         new HashMap<String,List<ClassEdit>>();
+      for(Map.Entry<String,List<ClassEdit>> plan : updated.entrySet()) {
+         List<ClassEdit> edits=plan.getValue();
+         previous.put(plan.getKey(),
+                      edits.isEmpty()?plans.remove(plan.getKey())
+                      :plans.put(plan.getKey(),
+                                 Collections.unmodifiableList(edits)));
+      }
+      try {
+         retransform(loaded,names);
+      } catch(InstrumentationError e) {
+         for(Map.Entry<String,List<ClassEdit>> plan : previous.entrySet()) {
+            if(plan.getValue()==null) {
+               plans.remove(plan.getKey());
+            } else {
+               plans.put(plan.getKey(),plan.getValue());
+            }
+         }
+         try {
+            retransform(loaded,names);
+         } catch(InstrumentationError ignored) {
+            // the classes were already woven with the previous plans
+         }
+         throw e;
+      }
+   }
+
+   /**
+    * Gets the binary names of the classes of instrumentations, with
+    * one of their instrumentations (a structural one if any). */
+   private static Map<String,ClassEdit> byClass(List<ClassEdit> edits) {
+      Map<String,ClassEdit> names=new HashMap<String,ClassEdit>();
+      for(ClassEdit edit : edits) {
+         String name=edit.className.replace('/','.');
+         ClassEdit first=names.get(name);
+         if(first==null || !first.isStructural() && edit.isStructural()) {
+            names.put(name,edit);
+         }
+      }
+      return names;
+   }
+
+   /**
+    * Finds the loaded classes of the given names (in every class
+    * loader), with a single scan of the loaded classes. */
+   private List<Class<?>> loadedClasses(Map<String,ClassEdit> names) {
+      List<Class<?>> loaded=new ArrayList<Class<?>>();
+      if(instrumentation!=null) {
+         for(Class<?> type : instrumentation.getAllLoadedClasses()) {
+            if(names.containsKey(type.getName())) {
+               loaded.add(type);
+            }
+         }
+      }
+      return loaded;
+   }
+
+   /**
+    * Retransforms classes in a single pass.
+    *
+    * @param names the instrumentations to blame for the errors, by
+    * class name
+    * @throws InstrumentationError if a class cannot be
+    * retransformed */
+   private void retransform(List<Class<?>> loaded,
+                            Map<String,ClassEdit> names) {
+      if(loaded.isEmpty()) {
+         return;
+      }
+      for(Class<?> type : loaded) {
+         errors.remove(Descriptors.internalName(type.getName()));
+      }
+      ClassEdit blamed=names.get(loaded.get(0).getName());
+      try {
+         instrumentation.retransformClasses(
+            loaded.toArray(new Class<?>[loaded.size()]));
+      } catch(UnmodifiableClassException e) {
+         throw new InstrumentationError(blamed,e);
+      } catch(RuntimeException e) {
+         throw new InstrumentationError(blamed,e);
+      } catch(LinkageError e) {
+         throw new InstrumentationError(blamed,e);
+      }
+      for(Class<?> type : loaded) {
+         String name=type.getName();
+         Throwable error=errors.get(Descriptors.internalName(name));
+         if(error instanceof InstrumentationError) {
+            throw (InstrumentationError)error;
+         } else if(error!=null) {
+            throw new InstrumentationError(names.get(name),error);
+         }
+      }
+   }
+
+   /**
+    * Begins a transaction, that collects instrumentations and applies
+    * them all at once when it is committed.
+    *
+    * @see InstrumentationTransaction */
+   public InstrumentationTransaction begin() {
+      return new InstrumentationTransaction(this);
+   }
+
+   static String[] types(String typeName) {
+      return new String[] {typeName};
+   }
+
+   public Instrumentation addInterface(ClassLocator location,
+                                       String newInterfaceName) {
+      return apply(edit(Instrumentation.ADD_INTERFACE,location,
+                        newInterfaceName,null,null,null,null,null));
+   }
+
+   /**
+    * {@inheritDoc}
+    *
+    * <p>The calls of the constructors of the previous superclass that
+    * initialize the object are redirected to the constructors of the
+    * new superclass, which must have the same parameters. */
+   public Instrumentation setSuperClass(ClassLocator location,
+                                        String newSuperClassName) {
+      return apply(edit(Instrumentation.SET_SUPERCLASS,location,
+                        newSuperClassName,null,null,null,null,null));
+   }
+
+   /**
+    * {@inheritDoc}
+    *
+    * <p>The class file of the mixin is read from the loader of the
+    * instrumented class. The mixin should directly extend
+    * <code>Object</code>: its constructors and its static initializer
+    * are not introduced (the introduced fields have their default
+    * values), and its methods cannot use <code>invokedynamic</code>
+    * (e.g. lambdas). */
+   public Instrumentation addClass(ClassLocator location, String className) {
+      return apply(edit(Instrumentation.ADD_CLASS,location,className,
+                        null,null,null,null,null));
+   }
+
+   /**
+    * {@inheritDoc}
+    *
+    * <p>The added method is a public instance method, whose body is a
+    * {@link CallCode} that receives the current object and the
+    * parameters (its return type is the one of the added method). */
+   public Instrumentation addMethod(ClassLocator location, String name,
+                                    String[] parameterTypeNames,
+                                    String[] parameterNames, Code body) {
+      return apply(edit(Instrumentation.ADD_METHOD,location,name,
+                        parameterTypeNames.clone(),
+                        parameterNames==null?null:parameterNames.clone(),
+                        body,null,null));
+   }
+
+   /**
+    * {@inheritDoc}
+    *
+    * <p>The added field is a public instance field. The initializer is
+    * either null or a {@link CallCode} that returns the initial value,
+    * which is called at the beginning of the constructors. */
+   public Instrumentation addField(ClassLocator location, String name,
+                                   String typeName, Code initializator) {
+      return apply(edit(Instrumentation.ADD_FIELD,location,name,
+                        types(typeName),null,initializator,null,null));
+   }
+
+   /**
+    * {@inheritDoc}
+    *
+    * <p>The before code is a {@link CallCode}. */
+   public Instrumentation addBeforeCode(CodeLocator location,
+                                        Code beforeCode,
+                                        Instrumentation before,
+                                        Instrumentation after) {
+      return apply(edit(Instrumentation.ADD_BEFORE_CODE,location,null,
+                        null,null,beforeCode,before,after));
+   }
+
+   /**
+    * {@inheritDoc}
+    *
+    * <p>The after code is a {@link CallCode}, which is called when the
+    * method returns normally. */
+   public Instrumentation addAfterCode(CodeLocator location,
+                                       Code afterCode,
+                                       Instrumentation before,
+                                       Instrumentation after) {
+      return apply(edit(Instrumentation.ADD_AFTER_CODE,location,null,
+                        null,null,afterCode,before,after));
+   }
+
+   /**
+    * {@inheritDoc}
+    *
+    * <p>The around code is an {@link InterceptorCode}, whose proceed
+    * method is {@link org.aopalliance.intercept.Joinpoint#proceed()}
+    * (the <code>proceedMethodName</code> must be null or
+    * <code>"proceed"</code>). Around code cannot be added to the
+    * constructors, nor to the classes compiled for Java 6 or
+    * earlier. */
+   public Instrumentation addAroundCode(CodeLocator location,
+                                        Code aroundCode,
+                                        String proceedMethodName,
+                                        Instrumentation before,
+                                        Instrumentation after) {
+      return apply(edit(Instrumentation.ADD_AROUND_CODE,location,
+                        proceedMethodName,null,null,aroundCode,before,after));
+   }
+
+   /**
+    * {@inheritDoc}
+    *
+    * <p>The class of the instrumentation is retransformed from its
+    * original class file and its remaining instrumentations (if it is
+    * loaded), so that the undone code leaves no overhead. The
+    * structural instrumentations (all but the before and after code)
+    * cannot be undone once their class is loaded.
+    *
+    * @see InstrumentationTransaction#revert() */
+   public void undo(Instrumentation instrumentation)
+      throws UndoNotSupportedException {
+      if(!(instrumentation instanceof ClassEdit)) {
+         throw new UndoNotSupportedException(instrumentation);
+      }
+      remove(Collections.singletonList((ClassEdit)instrumentation));
+   }
+
+}
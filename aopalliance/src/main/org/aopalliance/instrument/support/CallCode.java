@@ -0,0 +1,132 @@
+
+package org.aopalliance.instrument.support;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import org.aopalliance.reflect.Class;
+import org.aopalliance.reflect.Code;
+import org.aopalliance.reflect.CodeLocator;
+import org.aopalliance.reflect.Field;
+
+/**
+ * A code that consists in a call to a public static method.
+ *
+ * <p>The woven code only contains the call, so that the advice
+ * itself is ordinary Java code that the JIT can inline in the
+ * instrumented method. Depending on the instrumentation, the called
+ * method must have one of the following signatures:
+ *
+ * <ul>
+ * <li>before or after code: <code>static void m()</code> or
+ * <code>static void m(Object target)</code>, where
+ * <code>target</code> is the current object (null in static methods,
+ * and in the before code of the constructors, since the object is
+ * not initialized yet),
+ * <li>field initializer: <code>static T m()</code>, where
+ * <code>T</code> is the type of the field,
+ * <li>method body: <code>static R m(Object target, P1 p1, ...)</code>,
+ * where <code>P1...</code> and <code>R</code> are the parameter types
+ * and the return type of the added method (the type of the target
+ * parameter can also be the instrumented class).
+ * </ul>
+ *
+ * <p>Only the locator of the whole code is supported: the other
+ * locators throw an {@link UnsupportedOperationException}.
+ *
+ * @see BytecodeInstrumentor */
+
+public final class CallCode implements Code {
+
+   private final String className;
+
+   private final String methodName;
+
+   private final String descriptor;
+
+   /**
+    * Creates a code that calls a static method, without loading its
+    * class.
+    *
+    * @param className the binary name of the class that declares the
+    * method
+    * @param methodName the name of the method
+    * @param descriptor the descriptor of the method
+    * (e.g. <code>(Ljava/lang/Object;)V</code>) */
+   public CallCode(String className, String methodName, String descriptor) {
+      if(className==null || methodName==null || descriptor==null) {
+         throw new NullPointerException();
+      }
+      this.className=className.replace('/','.');
+      this.methodName=methodName;
+      this.descriptor=descriptor;
+   }
+
+   /**
+    * Creates a code that calls a static method.
+    *
+    * @throws IllegalArgumentException if the method is not public and
+    * static */
+   public CallCode(Method method) {
+      this(method.getDeclaringClass().getName(),method.getName(),
+           descriptorOf(method));
+   }
+
+   private static String descriptorOf(Method method) {
+      int modifiers=method.getModifiers();
+      if(!Modifier.isStatic(modifiers) || !Modifier.isPublic(modifiers)) {
+         throw new IllegalArgumentException(
+            "not a public static method: "+method);
+      }
+      return MethodType.methodType(method.getReturnType(),
+                                   method.getParameterTypes())
+         .toMethodDescriptorString();
+   }
+
+   /**
+    * Gets the binary name of the class of the called method. */
+   public String getClassName() {
+      return className;
+   }
+
+   public String getMethodName() {
+      return methodName;
+   }
+
+   public String getDescriptor() {
+      return descriptor;
+   }
+
+   /**
+    * Returns the locator of the body of the called method. */
+   public CodeLocator getLocator() {
+      return new MethodBodyLocator(className,methodName,descriptor);
+   }
+
+   public CodeLocator getCallLocator(
+      org.aopalliance.reflect.Method calleeMethod) {
+      throw new UnsupportedOperationException();
+   }
+
+   public CodeLocator getReadLocator(Field readField) {
+      throw new UnsupportedOperationException();
+   }
+
+   public CodeLocator getWriteLocator(Field writtenField) {
+      throw new UnsupportedOperationException();
+   }
+
+   public CodeLocator getThrowLocator(Class exceptionType) {
+      throw new UnsupportedOperationException();
+   }
+
+   public CodeLocator getCatchLocator(Class exceptionType) {
+      throw new UnsupportedOperationException();
+   }
+
+   public String toString() {
+      return "call of "+className+"."+methodName+descriptor;
+   }
+
+}
@@ -0,0 +1,97 @@
+
+package org.aopalliance.instrument.support;
+
+import org.aopalliance.instrument.Instrumentation;
+import org.aopalliance.reflect.Code;
+import org.aopalliance.reflect.Locator;
+
+/**
+ * An instrumentation of a {@link BytecodeInstrumentor}: the
+ * description of an edit of a class, that is applied each time the
+ * class is transformed. */
+
+final class ClassEdit implements Instrumentation {
+
+   private final int type;
+
+   private final Locator location;
+
+   /** the internal name of the edited class */
+   final String className;
+
+   /** the name of the added member, interface, superclass or mixin */
+   final String name;
+
+   /** the type of the added field, or the parameter types of the
+    * added method */
+   final String[] types;
+
+   /** the parameter names of the added method */
+   final String[] names;
+
+   final Code code;
+
+   /** the identifier of the interceptors of an around code (see
+    * {@link AroundLinker}), or -1 */
+   final int chain;
+
+   /** the instrumentations whose code must run before and after this
+    * one (can be null) */
+   final Instrumentation before;
+   final Instrumentation after;
+
+   ClassEdit(int type, Locator location, String className, String name,
+             String[] types, String[] names, Code code, int chain,
+             Instrumentation before, Instrumentation after) {
+      this.type=type;
+      this.location=location;
+      this.className=className;
+      this.name=name;
+      this.types=types;
+      this.names=names;
+      this.code=code;
+      this.chain=chain;
+      this.before=before;
+      this.after=after;
+   }
+
+   public Locator getLocation() {
+      return location;
+   }
+
+   public int getType() {
+      return type;
+   }
+
+   /**
+    * Tells if this edit changes the structure of the class (its
+    * members or its hierarchy), which is only possible when the class
+    * is loaded. */
+   boolean isStructural() {
+      return type!=ADD_BEFORE_CODE && type!=ADD_AFTER_CODE;
+   }
+
+   public String toString() {
+      switch(type) {
+         case ADD_INTERFACE:
+            return "interface "+name+" added to "+location;
+         case SET_SUPERCLASS:
+            return "superclass "+name+" set to "+location;
+         case ADD_CLASS:
+            return "mixin "+name+" added to "+location;
+         case ADD_BEFORE_CODE:
+            return code+" added before "+location;
+         case ADD_AFTER_CODE:
+            return code+" added after "+location;
+         case ADD_AROUND_CODE:
+            return code+" added around "+location;
+         case ADD_FIELD:
+            return "field "+name+" added to "+location;
+         case ADD_METHOD:
+            return "method "+name+" added to "+location;
+         default:
+            return "instrumentation "+type+" of "+location;
+      }
+   }
+
+}
@@ -0,0 +1,358 @@
+
+package org.aopalliance.instrument.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed class file, that can be modified and written back.
+ *
+ * <p>Only the structure of the class is parsed (the constant pool,
+ * the members and the attributes); the attributes are kept as raw
+ * bytes, and the code of a method is only parsed when it is edited
+ * (see {@link CodeAttribute}). */
+
+final class ClassFile {
+
+   static final int ACC_PUBLIC=0x0001;
+   static final int ACC_PRIVATE=0x0002;
+   static final int ACC_PROTECTED=0x0004;
+   static final int ACC_STATIC=0x0008;
+   static final int ACC_FINAL=0x0010;
+   static final int ACC_SYNCHRONIZED=0x0020;
+   static final int ACC_SUPER=0x0020;
+   static final int ACC_BRIDGE=0x0040;
+   static final int ACC_VARARGS=0x0080;
+   static final int ACC_NATIVE=0x0100;
+   static final int ACC_INTERFACE=0x0200;
+   static final int ACC_ABSTRACT=0x0400;
+   static final int ACC_SYNTHETIC=0x1000;
+
+   /**
+    * An attribute, kept as raw bytes. */
+   static final class Attribute {
+
+      final int name;
+
+      final byte[] info;
+
+      Attribute(int name, byte[] info) {
+         this.name=name;
+         this.info=info;
+      }
+
+   }
+
+   /**
+    * A field or a method. */
+   static final class Member {
+
+      int access;
+
+      int name;
+
+      int descriptor;
+
+      final List<Attribute> attributes=new ArrayList<Attribute>();
+
+      Member(int access, int name, int descriptor) {
+         this.access=access;
+         this.name=name;
+         this.descriptor=descriptor;
+      }
+
+   }
+
+   final int minorVersion;
+
+   final int majorVersion;
+
+   final ConstantPool pool;
+
+   int access;
+
+   int thisClass;
+
+   int superClass;
+
+   final List<Integer> interfaces=new ArrayList<Integer>();
+
+   final List<Member> fields=new ArrayList<Member>();
+
+   final List<Member> methods=new ArrayList<Member>();
+
+   final List<Attribute> attributes=new ArrayList<Attribute>();
+
+   private ClassFile(int minorVersion, int majorVersion, ConstantPool pool) {
+      this.minorVersion=minorVersion;
+      this.majorVersion=majorVersion;
+      this.pool=pool;
+   }
+
+   /**
+    * Creates an empty class (with no constructor).
+    *
+    * @param name the internal name of the class
+    * @param superName the internal name of its superclass */
+   static ClassFile create(String name, String superName) {
+      ClassFile file=new ClassFile(0,52,new ConstantPool());
+      file.access=ACC_PUBLIC|ACC_SUPER;
+      file.thisClass=file.pool.addClass(name);
+      file.superClass=file.pool.addClass(superName);
+      return file;
+   }
+
+   /**
+    * Parses a class file.
+    *
+    * @throws IOException if the class file is malformed */
+   static ClassFile parse(byte[] bytes) throws IOException {
+      DataInputStream in=new DataInputStream(new ByteArrayInputStream(bytes));
+      if(in.readInt()!=0xCAFEBABE) {
+         throw new IOException("not a class file");
+      }
+      int minor=in.readUnsignedShort();
+      int major=in.readUnsignedShort();
+      ClassFile file=new ClassFile(minor,major,ConstantPool.read(in));
+      file.access=in.readUnsignedShort();
+      file.thisClass=in.readUnsignedShort();
+      file.superClass=in.readUnsignedShort();
+      int count=in.readUnsignedShort();
+      for(int i=0;i<count;i++) {
+         file.interfaces.add(Integer.valueOf(in.readUnsignedShort()));
+      }
+      readMembers(in,file.fields);
+      readMembers(in,file.methods);
+      readAttributes(in,file.attributes);
+      return file;
+   }
+
+   private static void readMembers(DataInputStream in, List<Member> members)
+      throws IOException {
+      int count=in.readUnsignedShort();
+      for(int i=0;i<count;i++) {
+         Member member=new Member(in.readUnsignedShort(),
+                                  in.readUnsignedShort(),
+                                  in.readUnsignedShort());
+         readAttributes(in,member.attributes);
+         members.add(member);
+      }
+   }
+
+   private static void readAttributes(DataInputStream in,
+                                      List<Attribute> attributes)
+      throws IOException {
+      int count=in.readUnsignedShort();
+      for(int i=0;i<count;i++) {
+         int name=in.readUnsignedShort();
+         byte[] info=new byte[in.readInt()];
+         in.readFully(info);
+         attributes.add(new Attribute(name,info));
+      }
+   }
+
+   /**
+    * Writes the class file. */
+   byte[] toByteArray() {
+      ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+      DataOutputStream out=new DataOutputStream(bytes);
+      try {
+         out.writeInt(0xCAFEBABE);
+         out.writeShort(minorVersion);
+         out.writeShort(majorVersion);
+         pool.write(out);
+         out.writeShort(access);
+         out.writeShort(thisClass);
+         out.writeShort(superClass);
+         out.writeShort(interfaces.size());
+         for(Integer index : interfaces) {
+            out.writeShort(index.intValue());
+         }
+         writeMembers(out,fields);
+         writeMembers(out,methods);
+         writeAttributes(out,attributes);
+      } catch(IOException e) {
+         throw new IllegalStateException(e);
+      }
+      return bytes.toByteArray();
+   }
+
+   private static void writeMembers(DataOutputStream out,
+                                    List<Member> members)
+      throws IOException {
+      out.writeShort(members.size());
+      for(Member member : members) {
+         out.writeShort(member.access);
+         out.writeShort(member.name);
+         out.writeShort(member.descriptor);
+         writeAttributes(out,member.attributes);
+      }
+   }
+
+   static void writeAttributes(DataOutputStream out,
+                               List<Attribute> attributes)
+      throws IOException {
+      out.writeShort(attributes.size());
+      for(Attribute attribute : attributes) {
+         out.writeShort(attribute.name);
+         out.writeInt(attribute.info.length);
+         out.write(attribute.info);
+      }
+   }
+
+   /**
+    * Gets the internal name of the class. */
+   String getName() {
+      return pool.className(thisClass);
+   }
+
+   /**
+    * Gets the internal name of the superclass (null for
+    * <code>java/lang/Object</code>). */
+   String getSuperName() {
+      return superClass==0?null:pool.className(superClass);
+   }
+
+   boolean isInterface() {
+      return (access&ACC_INTERFACE)!=0;
+   }
+
+   String nameOf(Member member) {
+      return pool.utf8(member.name);
+   }
+
+   String descriptorOf(Member member) {
+      return pool.utf8(member.descriptor);
+   }
+
+   /**
+    * Finds a method.
+    *
+    * @return the method, or null */
+   Member findMethod(String name, String descriptor) {
+      for(Member method : methods) {
+         if(nameOf(method).equals(name)
+            && descriptorOf(method).equals(descriptor)) {
+            return method;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Finds a field by its name.
+    *
+    * @return the field, or null */
+   Member findField(String name) {
+      for(Member field : fields) {
+         if(nameOf(field).equals(name)) {
+            return field;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Finds an attribute by its name.
+    *
+    * @return the attribute, or null */
+   Attribute findAttribute(List<Attribute> attributes, String name) {
+      for(Attribute attribute : attributes) {
+         if(pool.utf8(attribute.name).equals(name)) {
+            return attribute;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Adds an interface to the implemented ones (unless it is already
+    * implemented). */
+   void addInterface(String internalName) {
+      Integer index=Integer.valueOf(pool.addClass(internalName));
+      if(!interfaces.contains(index)) {
+         interfaces.add(index);
+      }
+   }
+
+   /**
+    * Adds a bootstrap method to the <code>BootstrapMethods</code>
+    * attribute (created if needed).
+    *
+    * @param handle the index of the method handle of the bootstrap
+    * method
+    * @param arguments the indexes of its static arguments
+    * @return the index of the bootstrap method */
+   int addBootstrapMethod(int handle, int[] arguments) {
+      Attribute existing=findAttribute(attributes,"BootstrapMethods");
+      ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+      DataOutputStream out=new DataOutputStream(bytes);
+      int count=0;
+      try {
+         if(existing!=null) {
+            count=((existing.info[0]&0xFF)<<8)|(existing.info[1]&0xFF);
+         }
+         out.writeShort(count+1);
+         if(existing!=null) {
+            out.write(existing.info,2,existing.info.length-2);
+         }
+         out.writeShort(handle);
+         out.writeShort(arguments.length);
+         for(int argument : arguments) {
+            out.writeShort(argument);
+         }
+      } catch(IOException e) {
+         throw new IllegalStateException(e);
+      }
+      Attribute updated=new Attribute(pool.addUtf8("BootstrapMethods"),
+                                      bytes.toByteArray());
+      if(existing!=null) {
+         attributes.set(attributes.indexOf(existing),updated);
+      } else {
+         attributes.add(updated);
+      }
+      return count;
+   }
+
+   /**
+    * Copies an entry of the pool of another class file into the pool
+    * of this class file, with the bootstrap methods of the
+    * dynamically-computed entries.
+    *
+    * @param from the other class file
+    * @param index the index of the entry in the other pool
+    * @param renames the internal names of the classes to rename while
+    * copying (can be empty)
+    * @return the index of the copy in this pool */
+   int copyConstant(ClassFile from, int index, Map<String,String> renames) {
+      ConstantPool.Entry entry=from.pool.get(index);
+      if(entry.tag!=ConstantPool.DYNAMIC
+         && entry.tag!=ConstantPool.INVOKE_DYNAMIC) {
+         return pool.copy(from.pool,index,renames);
+      }
+      byte[] methods=from.findAttribute(from.attributes,"BootstrapMethods")
+         .info;
+      int at=2;
+      for(int i=0;i<entry.first;i++) {
+         at+=4+2*CodeAttribute.readUnsignedShort(methods,at+2);
+      }
+      int handle=copyConstant(
+         from,CodeAttribute.readUnsignedShort(methods,at),renames);
+      int[] arguments=new int[CodeAttribute.readUnsignedShort(methods,at+2)];
+      for(int i=0;i<arguments.length;i++) {
+         arguments[i]=copyConstant(
+            from,CodeAttribute.readUnsignedShort(methods,at+4+i*2),renames);
+      }
+      ConstantPool.Entry nameAndType=from.pool.get(entry.second);
+      return pool.addDynamic(entry.tag,addBootstrapMethod(handle,arguments),
+                             from.pool.utf8(nameAndType.first),
+                             from.pool.utf8(nameAndType.second));
+   }
+
+}
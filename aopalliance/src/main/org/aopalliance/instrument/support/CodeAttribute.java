@@ -0,0 +1,594 @@
+
+package org.aopalliance.instrument.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parsed <code>Code</code> attribute of a method, that can be
+ * rewritten with inserted code, or copied into another class file.
+ *
+ * <p>The code is rewritten in two passes: the first one computes the
+ * new offset of each instruction (the inserted code is placed before
+ * the instruction at its offset, and the padding of the switches is
+ * recomputed), the second one writes the instructions with their
+ * branch offsets relocated. The exception table, the
+ * <code>StackMapTable</code> and the debug tables
+ * (<code>LineNumberTable</code>, <code>LocalVariableTable</code> and
+ * <code>LocalVariableTypeTable</code>) are relocated too; the other
+ * attributes of the code (e.g. type annotations) are dropped.
+ *
+ * <p>The inserted code must be straight-line code (no branch and no
+ * exception handler), that leaves the stack and the local variables
+ * as it found them, so that the frames of the original code still
+ * hold. */
+
+final class CodeAttribute {
+
+   /**
+    * Code to insert at an offset. */
+   static final class Insertion {
+
+      final byte[] code;
+
+      /** the additional stack size the code needs */
+      final int maxStack;
+
+      /** true if the branches to the offset skip the inserted code
+       * (for code inserted at the entry of a method) */
+      final boolean entry;
+
+      Insertion(byte[] code, int maxStack, boolean entry) {
+         this.code=code;
+         this.maxStack=maxStack;
+         this.entry=entry;
+      }
+
+   }
+
+   int maxStack;
+
+   int maxLocals;
+
+   byte[] code;
+
+   /** the exception table, as (start, end, handler, catch type)
+    * quadruples */
+   int[] handlers;
+
+   final List<ClassFile.Attribute> attributes;
+
+   private CodeAttribute(int maxStack, int maxLocals, byte[] code,
+                         int[] handlers, List<ClassFile.Attribute> attributes) {
+      this.maxStack=maxStack;
+      this.maxLocals=maxLocals;
+      this.code=code;
+      this.handlers=handlers;
+      this.attributes=attributes;
+   }
+
+   /**
+    * Creates the code of a new method.
+    *
+    * @param code straight-line code (that needs no stack map
+    * frame) */
+   static CodeAttribute create(int maxStack, int maxLocals, byte[] code) {
+      return new CodeAttribute(maxStack,maxLocals,code,new int[0],
+                               new ArrayList<ClassFile.Attribute>());
+   }
+
+   /**
+    * Parses a <code>Code</code> attribute. */
+   static CodeAttribute parse(ClassFile.Attribute attribute)
+      throws IOException {
+      DataInputStream in=new DataInputStream(
+         new ByteArrayInputStream(attribute.info));
+      int maxStack=in.readUnsignedShort();
+      int maxLocals=in.readUnsignedShort();
+      byte[] code=new byte[in.readInt()];
+      in.readFully(code);
+      int[] handlers=new int[in.readUnsignedShort()*4];
+      for(int i=0;i<handlers.length;i++) {
+         handlers[i]=in.readUnsignedShort();
+      }
+      List<ClassFile.Attribute> attributes=
+         new ArrayList<ClassFile.Attribute>();
+      int count=in.readUnsignedShort();
+      for(int i=0;i<count;i++) {
+         int name=in.readUnsignedShort();
+         byte[] info=new byte[in.readInt()];
+         in.readFully(info);
+         attributes.add(new ClassFile.Attribute(name,info));
+      }
+      return new CodeAttribute(maxStack,maxLocals,code,handlers,attributes);
+   }
+
+   /**
+    * Writes the attribute.
+    *
+    * @param file the class file of the method */
+   ClassFile.Attribute toAttribute(ClassFile file) {
+      ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+      DataOutputStream out=new DataOutputStream(bytes);
+      try {
+         out.writeShort(maxStack);
+         out.writeShort(maxLocals);
+         out.writeInt(code.length);
+         out.write(code);
+         out.writeShort(handlers.length/4);
+         for(int handler : handlers) {
+            out.writeShort(handler);
+         }
+         ClassFile.writeAttributes(out,attributes);
+      } catch(IOException e) {
+         throw new IllegalStateException(e);
+      }
+      return new ClassFile.Attribute(file.pool.addUtf8("Code"),
+                                     bytes.toByteArray());
+   }
+
+   /**
+    * Gets the length of the instruction at an offset. */
+   static int length(byte[] code, int offset) {
+      int opcode=code[offset]&0xFF;
+      switch(opcode) {
+         case 0xaa: {
+            int base=offset+1+padding(offset);
+            int low=readInt(code,base+4);
+            int high=readInt(code,base+8);
+            return base-offset+12+(high-low+1)*4;
+         }
+         case 0xab: {
+            int base=offset+1+padding(offset);
+            return base-offset+8+readInt(code,base+4)*8;
+         }
+         case 0xc4:
+            return (code[offset+1]&0xFF)==0x84?6:4;
+         default:
+            int length=LENGTHS[opcode];
+            if(length==0) {
+               throw new IllegalArgumentException(
+                  "bad opcode "+opcode+" at "+offset);
+            }
+            return length;
+      }
+   }
+
+   /** the lengths of the fixed-size instructions (0 for the others) */
+   private static final byte[] LENGTHS=new byte[256];
+
+   static {
+      String lengths=
+         // 0x00-0x0f: constants
+         "1111111111111111"
+         // 0x10-0x1f: bipush, sipush, ldc*, loads
+         +"2323322222111111"
+         // 0x20-0x2f: loads, array loads
+         +"1111111111111111"
+         // 0x30-0x3f: array loads, stores
+         +"1111112222211111"
+         // 0x40-0x7f: stores, stack and arithmetic
+         +"1111111111111111"
+         +"1111111111111111"
+         +"1111111111111111"
+         +"1111111111111111"
+         // 0x80-0x8f: arithmetic, iinc, conversions
+         +"1111311111111111"
+         // 0x90-0x9f: conversions, comparisons, if*
+         +"1111111113333333"
+         // 0xa0-0xaf: if*, goto, jsr, ret, switches, returns
+         +"3333333332001111"
+         // 0xb0-0xbf: returns, fields, invokes, new, arrays, athrow
+         +"1133333335532311"
+         // 0xc0-0xc9: checkcast, instanceof, monitors, wide,
+         // multianewarray, ifnull, ifnonnull, goto_w, jsr_w
+         +"3311043355";
+      for(int i=0;i<lengths.length();i++) {
+         LENGTHS[i]=(byte)(lengths.charAt(i)-'0');
+      }
+   }
+
+   private static int padding(int offset) {
+      return 3-(offset&3);
+   }
+
+   static int readInt(byte[] code, int offset) {
+      return ((code[offset]&0xFF)<<24)|((code[offset+1]&0xFF)<<16)
+         |((code[offset+2]&0xFF)<<8)|(code[offset+3]&0xFF);
+   }
+
+   static int readShort(byte[] code, int offset) {
+      return (short)(((code[offset]&0xFF)<<8)|(code[offset+1]&0xFF));
+   }
+
+   static int readUnsignedShort(byte[] code, int offset) {
+      return ((code[offset]&0xFF)<<8)|(code[offset+1]&0xFF);
+   }
+
+   private static void writeInt(byte[] code, int offset, int value) {
+      code[offset]=(byte)(value>>>24);
+      code[offset+1]=(byte)(value>>>16);
+      code[offset+2]=(byte)(value>>>8);
+      code[offset+3]=(byte)value;
+   }
+
+   private static void writeShort(byte[] code, int offset, int value) {
+      code[offset]=(byte)(value>>>8);
+      code[offset+1]=(byte)value;
+   }
+
+   private static boolean isShortBranch(int opcode) {
+      return opcode>=0x99 && opcode<=0xa8 || opcode==0xc6 || opcode==0xc7;
+   }
+
+   private static boolean hasConstant(int opcode) {
+      switch(opcode) {
+         case 0x13: case 0x14:
+         case 0xb2: case 0xb3: case 0xb4: case 0xb5:
+         case 0xb6: case 0xb7: case 0xb8: case 0xb9: case 0xba:
+         case 0xbb: case 0xbd: case 0xc0: case 0xc1: case 0xc5:
+            return true;
+         default:
+            return false;
+      }
+   }
+
+   /**
+    * Gets the offsets of the instructions, in order. */
+   int[] offsets() {
+      int[] offsets=new int[code.length];
+      int count=0;
+      for(int offset=0;offset<code.length;offset+=length(code,offset)) {
+         offsets[count++]=offset;
+      }
+      int[] result=new int[count];
+      System.arraycopy(offsets,0,result,0,count);
+      return result;
+   }
+
+   /**
+    * Rewrites the code with inserted code.
+    *
+    * @param file the class file of the method (whose pool holds the
+    * constants of the inserted code)
+    * @param insertions the code to insert, by offset (each offset must
+    * be the offset of an instruction) */
+   void insert(ClassFile file, Map<Integer,Insertion> insertions) {
+      rewrite(file,file,insertions,null);
+      int extra=0;
+      for(Insertion insertion : insertions.values()) {
+         extra=Math.max(extra,insertion.maxStack);
+      }
+      maxStack+=extra;
+   }
+
+   /**
+    * Copies the code into another class file, with its constants.
+    *
+    * @param from the class file of the method
+    * @param to the class file the method is copied into
+    * @param renames the internal names of the classes to rename */
+   CodeAttribute copy(ClassFile from, ClassFile to,
+                      Map<String,String> renames) {
+      CodeAttribute copy=new CodeAttribute(
+         maxStack,maxLocals,code,handlers.clone(),
+         new ArrayList<ClassFile.Attribute>(attributes));
+      copy.rewrite(from,to,Collections.<Integer,Insertion>emptyMap(),
+                   renames);
+      return copy;
+   }
+
+   /**
+    * The new offsets of the instructions. */
+   private static final class Relocation {
+
+      final int[] start;
+
+      final int[] position;
+
+      final Insertion[] insertions;
+
+      Relocation(int length, Map<Integer,Insertion> insertions) {
+         start=new int[length+1];
+         position=new int[length+1];
+         this.insertions=new Insertion[length+1];
+         for(Map.Entry<Integer,Insertion> entry : insertions.entrySet()) {
+            this.insertions[entry.getKey().intValue()]=entry.getValue();
+         }
+      }
+
+      /** the new offset of a branch target */
+      int target(int offset) {
+         Insertion insertion=insertions[offset];
+         return insertion!=null && !insertion.entry
+            ?start[offset]:position[offset];
+      }
+
+      /** the new offset of the exclusive end of a range */
+      int end(int offset) {
+         return start[offset];
+      }
+
+   }
+
+   private void rewrite(ClassFile from, ClassFile to,
+                        Map<Integer,Insertion> insertions,
+                        Map<String,String> renames) {
+      int length=code.length;
+      Relocation relocation=new Relocation(length,insertions);
+      int[] constants=renames==null?null:new int[from.pool.size()];
+      // first pass: the new offsets
+      int current=0;
+      int offset=0;
+      while(offset<length) {
+         relocation.start[offset]=current;
+         Insertion insertion=relocation.insertions[offset];
+         if(insertion!=null) {
+            current+=insertion.code.length;
+         }
+         relocation.position[offset]=current;
+         int opcode=code[offset]&0xFF;
+         int size=length(code,offset);
+         if(opcode==0xaa || opcode==0xab) {
+            current+=size-padding(offset)+padding(current);
+         } else if(opcode==0x12 && constants!=null
+                   && constant(from,to,code[offset+1]&0xFF,constants,
+                               renames)>0xFF) {
+            current+=3;
+         } else {
+            current+=size;
+         }
+         offset+=size;
+      }
+      relocation.start[length]=relocation.position[length]=current;
+      // second pass: the instructions
+      byte[] rewritten=new byte[current];
+      offset=0;
+      while(offset<length) {
+         Insertion insertion=relocation.insertions[offset];
+         if(insertion!=null) {
+            System.arraycopy(insertion.code,0,rewritten,
+                             relocation.start[offset],insertion.code.length);
+         }
+         int position=relocation.position[offset];
+         int opcode=code[offset]&0xFF;
+         int size=length(code,offset);
+         if(isShortBranch(opcode)) {
+            int target=relocation.target(offset+readShort(code,offset+1));
+            int delta=target-position;
+            if(delta!=(short)delta) {
+               throw new IllegalStateException(
+                  "branch offset overflow at "+offset);
+            }
+            rewritten[position]=(byte)opcode;
+            writeShort(rewritten,position+1,delta);
+         } else if(opcode==0xc8 || opcode==0xc9) {
+            rewritten[position]=(byte)opcode;
+            writeInt(rewritten,position+1,relocation.target(
+                        offset+readInt(code,offset+1))-position);
+         } else if(opcode==0xaa || opcode==0xab) {
+            rewriteSwitch(offset,position,rewritten,relocation);
+         } else if(constants!=null && opcode==0x12) {
+            int index=constant(from,to,code[offset+1]&0xFF,constants,
+                               renames);
+            if(index>0xFF) {
+               rewritten[position]=0x13;
+               writeShort(rewritten,position+1,index);
+            } else {
+               rewritten[position]=0x12;
+               rewritten[position+1]=(byte)index;
+            }
+         } else {
+            System.arraycopy(code,offset,rewritten,position,size);
+            if(constants!=null && hasConstant(opcode)) {
+               writeShort(rewritten,position+1,constant(
+                             from,to,readUnsignedShort(code,offset+1),
+                             constants,renames));
+            }
+         }
+         offset+=size;
+      }
+      code=rewritten;
+      // exception table
+      for(int i=0;i<handlers.length;i+=4) {
+         handlers[i]=relocation.target(handlers[i]);
+         handlers[i+1]=relocation.end(handlers[i+1]);
+         handlers[i+2]=relocation.target(handlers[i+2]);
+         if(constants!=null && handlers[i+3]!=0) {
+            handlers[i+3]=constant(from,to,handlers[i+3],constants,renames);
+         }
+      }
+      // attributes
+      List<ClassFile.Attribute> relocated=new ArrayList<ClassFile.Attribute>();
+      for(ClassFile.Attribute attribute : attributes) {
+         String name=from.pool.utf8(attribute.name);
+         byte[] info;
+         if(name.equals("StackMapTable")) {
+            info=rewriteFrames(attribute.info,relocation,from,to,constants,
+                               renames);
+         } else if(name.equals("LineNumberTable")) {
+            info=rewriteLines(attribute.info,relocation);
+         } else if(name.equals("LocalVariableTable")
+                   || name.equals("LocalVariableTypeTable")) {
+            info=rewriteLocals(attribute.info,relocation,from,to,constants,
+                               renames);
+         } else {
+            continue;
+         }
+         relocated.add(new ClassFile.Attribute(to.pool.addUtf8(name),info));
+      }
+      attributes.clear();
+      attributes.addAll(relocated);
+   }
+
+   private static int constant(ClassFile from, ClassFile to, int index,
+                               int[] constants, Map<String,String> renames) {
+      if(constants[index]==0) {
+         constants[index]=to.copyConstant(from,index,renames);
+      }
+      return constants[index];
+   }
+
+   private void rewriteSwitch(int offset, int position, byte[] rewritten,
+                              Relocation relocation) {
+      int opcode=code[offset]&0xFF;
+      int base=offset+1+padding(offset);
+      int newBase=position+1+padding(position);
+      rewritten[position]=(byte)opcode;
+      writeInt(rewritten,newBase,relocation.target(
+                  offset+readInt(code,base))-position);
+      if(opcode==0xaa) {
+         int low=readInt(code,base+4);
+         int high=readInt(code,base+8);
+         writeInt(rewritten,newBase+4,low);
+         writeInt(rewritten,newBase+8,high);
+         for(int i=0;i<high-low+1;i++) {
+            writeInt(rewritten,newBase+12+i*4,relocation.target(
+                        offset+readInt(code,base+12+i*4))-position);
+         }
+      } else {
+         int pairs=readInt(code,base+4);
+         writeInt(rewritten,newBase+4,pairs);
+         for(int i=0;i<pairs;i++) {
+            writeInt(rewritten,newBase+8+i*8,readInt(code,base+8+i*8));
+            writeInt(rewritten,newBase+12+i*8,relocation.target(
+                        offset+readInt(code,base+12+i*8))-position);
+         }
+      }
+   }
+
+   private static byte[] rewriteLines(byte[] info, Relocation relocation) {
+      byte[] rewritten=info.clone();
+      int count=readUnsignedShort(info,0);
+      for(int i=0;i<count;i++) {
+         int at=2+i*4;
+         writeShort(rewritten,at,relocation.target(readUnsignedShort(info,at)));
+      }
+      return rewritten;
+   }
+
+   private static byte[] rewriteLocals(byte[] info, Relocation relocation,
+                                       ClassFile from, ClassFile to,
+                                       int[] constants,
+                                       Map<String,String> renames) {
+      byte[] rewritten=info.clone();
+      int count=readUnsignedShort(info,0);
+      for(int i=0;i<count;i++) {
+         int at=2+i*10;
+         int start=readUnsignedShort(info,at);
+         int end=start+readUnsignedShort(info,at+2);
+         int newStart=start==0?0:relocation.target(start);
+         writeShort(rewritten,at,newStart);
+         writeShort(rewritten,at+2,relocation.end(end)-newStart);
+         if(constants!=null) {
+            writeShort(rewritten,at+4,constant(
+                          from,to,readUnsignedShort(info,at+4),constants,
+                          renames));
+            writeShort(rewritten,at+6,constant(
+                          from,to,readUnsignedShort(info,at+6),constants,
+                          renames));
+         }
+      }
+      return rewritten;
+   }
+
+   /**
+    * Relocates the frames of a <code>StackMapTable</code> (and the
+    * offsets of the uninitialized types), changing their encoding
+    * when their offset delta no longer fits in their frame type. */
+   private static byte[] rewriteFrames(byte[] info, Relocation relocation,
+                                       ClassFile from, ClassFile to,
+                                       int[] constants,
+                                       Map<String,String> renames) {
+      ByteArrayOutputStream bytes=new ByteArrayOutputStream(info.length+16);
+      DataOutputStream out=new DataOutputStream(bytes);
+      try {
+         int count=readUnsignedShort(info,0);
+         out.writeShort(count);
+         int at=2;
+         int previous=-1;
+         int newPrevious=-1;
+         for(int i=0;i<count;i++) {
+            int type=info[at++]&0xFF;
+            int delta;
+            if(type<64) {
+               delta=type;
+            } else if(type<128) {
+               delta=type-64;
+            } else {
+               delta=readUnsignedShort(info,at);
+               at+=2;
+            }
+            int offset=previous+1+delta;
+            previous=offset;
+            int newOffset=relocation.target(offset);
+            int newDelta=newOffset-newPrevious-1;
+            newPrevious=newOffset;
+            if(type<64 || type==251) {
+               if(newDelta<64) {
+                  out.writeByte(newDelta);
+               } else {
+                  out.writeByte(251);
+                  out.writeShort(newDelta);
+               }
+            } else if(type<128 || type==247) {
+               if(newDelta<64) {
+                  out.writeByte(64+newDelta);
+               } else {
+                  out.writeByte(247);
+                  out.writeShort(newDelta);
+               }
+               at=rewriteTypes(info,at,1,out,relocation,from,to,constants,
+                               renames);
+            } else {
+               out.writeByte(type);
+               out.writeShort(newDelta);
+               if(type>=252 && type<=254) {
+                  at=rewriteTypes(info,at,type-251,out,relocation,from,to,
+                                  constants,renames);
+               } else if(type==255) {
+                  for(int j=0;j<2;j++) {
+                     int types=readUnsignedShort(info,at);
+                     out.writeShort(types);
+                     at=rewriteTypes(info,at+2,types,out,relocation,from,to,
+                                     constants,renames);
+                  }
+               }
+            }
+         }
+      } catch(IOException e) {
+         throw new IllegalStateException(e);
+      }
+      return bytes.toByteArray();
+   }
+
+   private static int rewriteTypes(byte[] info, int at, int count,
+                                   DataOutputStream out, Relocation relocation,
+                                   ClassFile from, ClassFile to,
+                                   int[] constants,
+                                   Map<String,String> renames)
+      throws IOException {
+      for(int i=0;i<count;i++) {
+         int tag=info[at++]&0xFF;
+         out.writeByte(tag);
+         if(tag==7) {
+            int index=readUnsignedShort(info,at);
+            out.writeShort(constants==null?index
+                           :constant(from,to,index,constants,renames));
+            at+=2;
+         } else if(tag==8) {
+            out.writeShort(relocation.position[readUnsignedShort(info,at)]);
+            at+=2;
+         }
+      }
+      return at;
+   }
+
+}
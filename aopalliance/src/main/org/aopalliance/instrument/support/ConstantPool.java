@@ -0,0 +1,331 @@
+
+package org.aopalliance.instrument.support;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The constant pool of a class file.
+ *
+ * <p>The entries are parsed into a compact form (a tag, two indexes
+ * or a value), so that entries can be looked up, added (without
+ * duplicates), and copied from the pool of another class file. */
+
+final class ConstantPool {
+
+   static final int UTF8=1;
+   static final int INTEGER=3;
+   static final int FLOAT=4;
+   static final int LONG=5;
+   static final int DOUBLE=6;
+   static final int CLASS=7;
+   static final int STRING=8;
+   static final int FIELDREF=9;
+   static final int METHODREF=10;
+   static final int INTERFACE_METHODREF=11;
+   static final int NAME_AND_TYPE=12;
+   static final int METHOD_HANDLE=15;
+   static final int METHOD_TYPE=16;
+   static final int DYNAMIC=17;
+   static final int INVOKE_DYNAMIC=18;
+   static final int MODULE=19;
+   static final int PACKAGE=20;
+
+   /**
+    * An entry of the pool. */
+   static final class Entry {
+
+      final int tag;
+
+      /** the indexes of the referenced entries (or the kind of a
+       * method handle in <code>first</code>) */
+      final int first;
+      final int second;
+
+      /** the value of the numeric entries */
+      final long value;
+
+      /** the value of the UTF8 entries */
+      final String string;
+
+      Entry(int tag, int first, int second, long value, String string) {
+         this.tag=tag;
+         this.first=first;
+         this.second=second;
+         this.value=value;
+         this.string=string;
+      }
+
+      String key() {
+         return tag==UTF8?"U"+string:tag+":"+first+":"+second+":"+value;
+      }
+
+   }
+
+   /** the entries, indexed from 1 (null after long and double
+    * entries) */
+   private final List<Entry> entries=new ArrayList<Entry>();
+
+   private Map<String,Integer> indexes;
+
+   ConstantPool() {
+      entries.add(null);
+   }
+
+   /**
+    * Reads a pool. */
+   static ConstantPool read(DataInputStream in) throws IOException {
+      ConstantPool pool=new ConstantPool();
+      int count=in.readUnsignedShort();
+      for(int i=1;i<count;i++) {
+         int tag=in.readUnsignedByte();
+         Entry entry;
+         switch(tag) {
+            case UTF8:
+               entry=new Entry(tag,0,0,0,in.readUTF());
+               break;
+            case INTEGER:
+            case FLOAT:
+               entry=new Entry(tag,0,0,in.readInt(),null);
+               break;
+            case LONG:
+            case DOUBLE:
+               entry=new Entry(tag,0,0,in.readLong(),null);
+               break;
+            case CLASS:
+            case STRING:
+            case METHOD_TYPE:
+            case MODULE:
+            case PACKAGE:
+               entry=new Entry(tag,in.readUnsignedShort(),0,0,null);
+               break;
+            case METHOD_HANDLE:
+               entry=new Entry(tag,in.readUnsignedByte(),
+                               in.readUnsignedShort(),0,null);
+               break;
+            case FIELDREF:
+            case METHODREF:
+            case INTERFACE_METHODREF:
+            case NAME_AND_TYPE:
+            case DYNAMIC:
+            case INVOKE_DYNAMIC:
+               entry=new Entry(tag,in.readUnsignedShort(),
+                               in.readUnsignedShort(),0,null);
+               break;
+            default:
+               throw new IOException("bad constant pool tag "+tag);
+         }
+         pool.entries.add(entry);
+         if(tag==LONG || tag==DOUBLE) {
+            pool.entries.add(null);
+            i++;
+         }
+      }
+      return pool;
+   }
+
+   /**
+    * Writes the pool. */
+   void write(DataOutputStream out) throws IOException {
+      out.writeShort(entries.size());
+      for(int i=1;i<entries.size();i++) {
+         Entry entry=entries.get(i);
+         if(entry==null) {
+            continue;
+         }
+         out.writeByte(entry.tag);
+         switch(entry.tag) {
+            case UTF8:
+               out.writeUTF(entry.string);
+               break;
+            case INTEGER:
+            case FLOAT:
+               out.writeInt((int)entry.value);
+               break;
+            case LONG:
+            case DOUBLE:
+               out.writeLong(entry.value);
+               break;
+            case CLASS:
+            case STRING:
+            case METHOD_TYPE:
+            case MODULE:
+            case PACKAGE:
+               out.writeShort(entry.first);
+               break;
+            case METHOD_HANDLE:
+               out.writeByte(entry.first);
+               out.writeShort(entry.second);
+               break;
+            default:
+               out.writeShort(entry.first);
+               out.writeShort(entry.second);
+         }
+      }
+   }
+
+   /**
+    * Gets the number of slots of the pool (including the unused slot
+    * 0). */
+   int size() {
+      return entries.size();
+   }
+
+   Entry get(int index) {
+      return entries.get(index);
+   }
+
+   /**
+    * Gets the string of a UTF8 entry. */
+   String utf8(int index) {
+      return entries.get(index).string;
+   }
+
+   /**
+    * Gets the internal name of a class entry. */
+   String className(int index) {
+      return utf8(entries.get(index).first);
+   }
+
+   private int add(Entry entry) {
+      if(indexes==null) {
+         indexes=new HashMap<String,Integer>();
+         for(int i=entries.size()-1;i>0;i--) {
+            Entry existing=entries.get(i);
+            if(existing!=null) {
+               indexes.put(existing.key(),Integer.valueOf(i));
+            }
+         }
+      }
+      String key=entry.key();
+      Integer index=indexes.get(key);
+      if(index!=null) {
+         return index.intValue();
+      }
+      int added=entries.size();
+      if(added+(entry.tag==LONG || entry.tag==DOUBLE?2:1)>0xFFFF) {
+         throw new IllegalStateException("constant pool overflow");
+      }
+      entries.add(entry);
+      if(entry.tag==LONG || entry.tag==DOUBLE) {
+         entries.add(null);
+      }
+      indexes.put(key,Integer.valueOf(added));
+      return added;
+   }
+
+   int addUtf8(String value) {
+      return add(new Entry(UTF8,0,0,0,value));
+   }
+
+   int addClass(String internalName) {
+      return add(new Entry(CLASS,addUtf8(internalName),0,0,null));
+   }
+
+   int addString(String value) {
+      return add(new Entry(STRING,addUtf8(value),0,0,null));
+   }
+
+   int addInteger(int value) {
+      return add(new Entry(INTEGER,0,0,value,null));
+   }
+
+   int addNameAndType(String name, String descriptor) {
+      return add(new Entry(NAME_AND_TYPE,addUtf8(name),addUtf8(descriptor),
+                           0,null));
+   }
+
+   int addFieldref(String owner, String name, String descriptor) {
+      return add(new Entry(FIELDREF,addClass(owner),
+                           addNameAndType(name,descriptor),0,null));
+   }
+
+   int addMethodref(String owner, String name, String descriptor,
+                    boolean isInterface) {
+      return add(new Entry(isInterface?INTERFACE_METHODREF:METHODREF,
+                           addClass(owner),
+                           addNameAndType(name,descriptor),0,null));
+   }
+
+   /**
+    * Adds a method handle entry.
+    *
+    * @param kind the reference kind (e.g. 6 for
+    * <code>REF_invokeStatic</code>)
+    * @param reference the index of the referenced member entry */
+   int addMethodHandle(int kind, int reference) {
+      return add(new Entry(METHOD_HANDLE,kind,reference,0,null));
+   }
+
+   /**
+    * Adds an <code>invokedynamic</code> entry.
+    *
+    * @param bootstrap the index of the bootstrap method in the
+    * <code>BootstrapMethods</code> attribute */
+   int addInvokeDynamic(int bootstrap, String name, String descriptor) {
+      return addDynamic(INVOKE_DYNAMIC,bootstrap,name,descriptor);
+   }
+
+   /**
+    * Adds a dynamically-computed entry.
+    *
+    * @param tag {@link #DYNAMIC} or {@link #INVOKE_DYNAMIC}
+    * @param bootstrap the index of the bootstrap method in the
+    * <code>BootstrapMethods</code> attribute */
+   int addDynamic(int tag, int bootstrap, String name, String descriptor) {
+      return add(new Entry(tag,bootstrap,addNameAndType(name,descriptor),
+                           0,null));
+   }
+
+   /**
+    * Copies an entry of another pool (with the entries it refers to)
+    * into this pool. The dynamically-computed entries are not
+    * supported, since they refer to the bootstrap methods of their
+    * class file (see {@link ClassFile#copyConstant}).
+    *
+    * @param from the other pool
+    * @param index the index of the entry in the other pool
+    * @param renames the internal names of the classes to rename while
+    * copying (can be empty)
+    * @return the index of the copy in this pool */
+   int copy(ConstantPool from, int index, Map<String,String> renames) {
+      Entry entry=from.get(index);
+      switch(entry.tag) {
+         case UTF8:
+            return addUtf8(entry.string);
+         case INTEGER:
+         case FLOAT:
+         case LONG:
+         case DOUBLE:
+            return add(entry);
+         case CLASS: {
+            String name=from.utf8(entry.first);
+            String renamed=renames.get(name);
+            return addClass(renamed!=null?renamed:name);
+         }
+         case STRING:
+         case METHOD_TYPE:
+            return add(new Entry(entry.tag,copy(from,entry.first,renames),
+                                 0,0,null));
+         case METHOD_HANDLE:
+            return add(new Entry(entry.tag,entry.first,
+                                 copy(from,entry.second,renames),0,null));
+         case FIELDREF:
+         case METHODREF:
+         case INTERFACE_METHODREF:
+         case NAME_AND_TYPE:
+            return add(new Entry(entry.tag,copy(from,entry.first,renames),
+                                 copy(from,entry.second,renames),0,null));
+         default:
+            // dynamic constants refer to bootstrap methods
+            throw new IllegalArgumentException(
+               "cannot copy constant of tag "+entry.tag);
+      }
+   }
+
+}
@@ -0,0 +1,111 @@
+
+package org.aopalliance.instrument.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts type names into descriptors, and splits method
+ * descriptors. */
+
+final class Descriptors {
+
+   private Descriptors() {
+   }
+
+   /**
+    * Gets the internal name of a class.
+    *
+    * @param className a binary class name
+    * (e.g. <code>java.util.Map$Entry</code>) or an internal name */
+   static String internalName(String className) {
+      return className.replace('.','/');
+   }
+
+   /**
+    * Gets the descriptor of a type.
+    *
+    * @param typeName a primitive type name, a class name or an array
+    * type name (e.g. <code>int</code>, <code>java.lang.String</code>
+    * or <code>java.lang.String[][]</code>) */
+   static String ofType(String typeName) {
+      String name=typeName.trim();
+      StringBuilder descriptor=new StringBuilder();
+      while(name.endsWith("[]")) {
+         descriptor.append('[');
+         name=name.substring(0,name.length()-2).trim();
+      }
+      if(name.equals("void")) {
+         descriptor.append('V');
+      } else if(name.equals("boolean")) {
+         descriptor.append('Z');
+      } else if(name.equals("byte")) {
+         descriptor.append('B');
+      } else if(name.equals("char")) {
+         descriptor.append('C');
+      } else if(name.equals("short")) {
+         descriptor.append('S');
+      } else if(name.equals("int")) {
+         descriptor.append('I');
+      } else if(name.equals("long")) {
+         descriptor.append('J');
+      } else if(name.equals("float")) {
+         descriptor.append('F');
+      } else if(name.equals("double")) {
+         descriptor.append('D');
+      } else {
+         descriptor.append('L').append(internalName(name)).append(';');
+      }
+      return descriptor.toString();
+   }
+
+   /**
+    * Gets the descriptors of the parameters of a method. */
+   static List<String> parameters(String methodDescriptor) {
+      List<String> parameters=new ArrayList<String>();
+      int index=1;
+      while(methodDescriptor.charAt(index)!=')') {
+         int end=index;
+         while(methodDescriptor.charAt(end)=='[') {
+            end++;
+         }
+         if(methodDescriptor.charAt(end)=='L') {
+            end=methodDescriptor.indexOf(';',end);
+         }
+         parameters.add(methodDescriptor.substring(index,end+1));
+         index=end+1;
+      }
+      return parameters;
+   }
+
+   /**
+    * Gets the descriptor of the return type of a method. */
+   static String returnType(String methodDescriptor) {
+      return methodDescriptor.substring(methodDescriptor.indexOf(')')+1);
+   }
+
+   /**
+    * Gets the number of stack (or local variable) slots of a value
+    * (0 for <code>void</code>). */
+   static int size(String descriptor) {
+      char sort=descriptor.charAt(0);
+      return sort=='V'?0:sort=='J' || sort=='D'?2:1;
+   }
+
+   /**
+    * Gets the number of slots of the parameters of a method (not
+    * counting the receiver). */
+   static int parameterSize(String methodDescriptor) {
+      int size=0;
+      for(String parameter : parameters(methodDescriptor)) {
+         size+=size(parameter);
+      }
+      return size;
+   }
+
+   static boolean isReference(String descriptor) {
+      char sort=descriptor.charAt(0);
+      return sort=='L' || sort=='[';
+   }
+
+}
@@ -0,0 +1,205 @@
+
+package org.aopalliance.instrument.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.aopalliance.instrument.Instrumentation;
+import org.aopalliance.instrument.InstrumentationError;
+import org.aopalliance.instrument.Instrumentor;
+import org.aopalliance.instrument.UndoNotSupportedException;
+import org.aopalliance.reflect.ClassLocator;
+import org.aopalliance.reflect.Code;
+import org.aopalliance.reflect.CodeLocator;
+
+/**
+ * A set of instrumentations that are applied at once by a {@link
+ * BytecodeInstrumentor}.
+ *
+ * <p>A transaction is an instrumentor that only collects the
+ * instrumentations (checking their locators and their code): they
+ * are applied when the transaction is committed. The loaded classes
+ * of all the instrumentations are then retransformed in a single
+ * pass, instead of once per instrumentation, so that their compiled
+ * code is only deoptimized once.
+ *
+ * <p>The instrumentations of a transaction can be used as the
+ * ordering arguments of the other ones (the ordering constraints are
+ * resolved when the transaction is committed). The transaction is
+ * atomic: if an instrumentation cannot be applied, none of them
+ * is.
+ *
+ * <p>A committed transaction can be reverted as a whole, for
+ * instance to remove some diagnostic advice: its classes are then
+ * woven again without its instrumentations, in a single pass.
+ *
+ * <p>A transaction is meant to be used by a single thread.
+ *
+ * @see BytecodeInstrumentor#begin() */
+
+public final class InstrumentationTransaction implements Instrumentor {
+
+   private final BytecodeInstrumentor instrumentor;
+
+   private List<ClassEdit> edits=new ArrayList<ClassEdit>();
+
+   /** the instrumentations once they are committed */
+   private List<ClassEdit> committed;
+
+   InstrumentationTransaction(BytecodeInstrumentor instrumentor) {
+      this.instrumentor=instrumentor;
+   }
+
+   private Instrumentation add(ClassEdit edit) {
+      if(edits==null) {
+         throw new IllegalStateException("transaction ended");
+      }
+      edits.add(edit);
+      return edit;
+   }
+
+   /**
+    * Gets the number of instrumentations of this transaction. */
+   public int size() {
+      return edits==null?0:edits.size();
+   }
+
+   /**
+    * Applies the instrumentations, retransforming their loaded
+    * classes in a single pass, and ends this transaction.
+    *
+    * @throws InstrumentationError if an instrumentation cannot be
+    * applied (no instrumentation is then applied, and the transaction
+    * is ended) */
+   public void commit() {
+      if(edits==null) {
+         throw new IllegalStateException("transaction ended");
+      }
+      List<ClassEdit> applied=edits;
+      edits=null;
+      if(!applied.isEmpty()) {
+         instrumentor.apply(applied);
+      }
+      committed=applied;
+   }
+
+   /**
+    * Undoes all the instrumentations of this committed transaction,
+    * retransforming their loaded classes in a single pass.
+    *
+    * @throws IllegalStateException if the transaction is not
+    * committed, or already reverted
+    * @throws UndoNotSupportedException if an instrumentation cannot be
+    * undone (see {@link BytecodeInstrumentor#undo(Instrumentation)}):
+    * none of them is then undone */
+   public void revert() throws UndoNotSupportedException {
+      if(committed==null) {
+         throw new IllegalStateException("transaction not committed");
+      }
+      if(!committed.isEmpty()) {
+         instrumentor.remove(committed);
+      }
+      committed=null;
+   }
+
+   /**
+    * Forgets the instrumentations, and ends this transaction. */
+   public void rollback() {
+      edits=null;
+   }
+
+   /**
+    * Creates a class (at once, not when the transaction is
+    * committed).
+    *
+    * @see BytecodeInstrumentor#createClass(String) */
+   public ClassLocator createClass(String name) {
+      return instrumentor.createClass(name);
+   }
+
+   public Instrumentation addInterface(ClassLocator location,
+                                       String newInterfaceName) {
+      return add(instrumentor.edit(Instrumentation.ADD_INTERFACE,location,
+                                   newInterfaceName,null,null,null,null,
+                                   null));
+   }
+
+   public Instrumentation setSuperClass(ClassLocator location,
+                                        String newSuperClassName) {
+      return add(instrumentor.edit(Instrumentation.SET_SUPERCLASS,location,
+                                   newSuperClassName,null,null,null,null,
+                                   null));
+   }
+
+   public Instrumentation addClass(ClassLocator location, String className) {
+      return add(instrumentor.edit(Instrumentation.ADD_CLASS,location,
+                                   className,null,null,null,null,null));
+   }
+
+   public Instrumentation addMethod(ClassLocator location, String name,
+                                    String[] parameterTypeNames,
+                                    String[] parameterNames, Code body) {
+      return add(instrumentor.edit(
+                    Instrumentation.ADD_METHOD,location,name,
+                    parameterTypeNames.clone(),
+                    parameterNames==null?null:parameterNames.clone(),
+                    body,null,null));
+   }
+
+   public Instrumentation addField(ClassLocator location, String name,
+                                   String typeName, Code initializator) {
+      return add(instrumentor.edit(
+                    Instrumentation.ADD_FIELD,location,name,
+                    BytecodeInstrumentor.types(typeName),null,initializator,
+                    null,null));
+   }
+
+   public Instrumentation addBeforeCode(CodeLocator location,
+                                        Code beforeCode,
+                                        Instrumentation before,
+                                        Instrumentation after) {
+      return add(instrumentor.edit(Instrumentation.ADD_BEFORE_CODE,location,
+                                   null,null,null,beforeCode,before,after));
+   }
+
+   public Instrumentation addAfterCode(CodeLocator location,
+                                       Code afterCode,
+                                       Instrumentation before,
+                                       Instrumentation after) {
+      return add(instrumentor.edit(Instrumentation.ADD_AFTER_CODE,location,
+                                   null,null,null,afterCode,before,after));
+   }
+
+   public Instrumentation addAroundCode(CodeLocator location,
+                                        Code aroundCode,
+                                        String proceedMethodName,
+                                        Instrumentation before,
+                                        Instrumentation after) {
+      return add(instrumentor.edit(Instrumentation.ADD_AROUND_CODE,location,
+                                   proceedMethodName,null,null,aroundCode,
+                                   before,after));
+   }
+
+   /**
+    * Removes an instrumentation from this transaction before it is
+    * committed, or undoes it once it is committed.
+    *
+    * @throws UndoNotSupportedException if the instrumentation is not
+    * part of this transaction, or cannot be undone */
+   public void undo(Instrumentation instrumentation)
+      throws UndoNotSupportedException {
+      if(edits!=null) {
+         if(!edits.remove(instrumentation)) {
+            throw new UndoNotSupportedException(instrumentation);
+         }
+      } else if(committed!=null && committed.contains(instrumentation)) {
+         instrumentor.undo(instrumentation);
+         List<ClassEdit> remaining=new ArrayList<ClassEdit>(committed);
+         remaining.remove(instrumentation);
+         committed=remaining;
+      } else {
+         throw new UndoNotSupportedException(instrumentation);
+      }
+   }
+
+}
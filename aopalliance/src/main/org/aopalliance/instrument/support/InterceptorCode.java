@@ -0,0 +1,71 @@
+
+package org.aopalliance.instrument.support;
+
+import java.util.Arrays;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.reflect.Class;
+import org.aopalliance.reflect.Code;
+import org.aopalliance.reflect.CodeLocator;
+import org.aopalliance.reflect.Field;
+import org.aopalliance.reflect.Method;
+
+/**
+ * An around code that runs a chain of method interceptors.
+ *
+ * <p>The proceed method of this code is
+ * {@link org.aopalliance.intercept.Joinpoint#proceed()}: when the
+ * innermost interceptor proceeds, the original body of the method is
+ * executed.
+ *
+ * <p>The locators of this code are not supported: they throw an
+ * {@link UnsupportedOperationException}.
+ *
+ * @see BytecodeInstrumentor#addAroundCode */
+
+public final class InterceptorCode implements Code {
+
+   private final MethodInterceptor[] interceptors;
+
+   /**
+    * Creates an around code.
+    *
+    * @param interceptors the interceptors, from the outermost to the
+    * innermost one */
+   public InterceptorCode(MethodInterceptor[] interceptors) {
+      this.interceptors=interceptors.clone();
+   }
+
+   MethodInterceptor[] getInterceptors() {
+      return interceptors;
+   }
+
+   public CodeLocator getLocator() {
+      throw new UnsupportedOperationException();
+   }
+
+   public CodeLocator getCallLocator(Method calleeMethod) {
+      throw new UnsupportedOperationException();
+   }
+
+   public CodeLocator getReadLocator(Field readField) {
+      throw new UnsupportedOperationException();
+   }
+
+   public CodeLocator getWriteLocator(Field writtenField) {
+      throw new UnsupportedOperationException();
+   }
+
+   public CodeLocator getThrowLocator(Class exceptionType) {
+      throw new UnsupportedOperationException();
+   }
+
+   public CodeLocator getCatchLocator(Class exceptionType) {
+      throw new UnsupportedOperationException();
+   }
+
+   public String toString() {
+      return "interceptors "+Arrays.asList(interceptors);
+   }
+
+}
@@ -0,0 +1,106 @@
+
+package org.aopalliance.instrument.support;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import org.aopalliance.reflect.CodeLocator;
+
+/**
+ * Locates the bodies of methods (or constructors) of a class, at
+ * callee side.
+ *
+ * @see BytecodeInstrumentor */
+
+public final class MethodBodyLocator implements CodeLocator {
+
+   private final String className;
+
+   private final String methodName;
+
+   private final String descriptor;
+
+   /**
+    * Creates a locator.
+    *
+    * @param className the binary name of the class that declares the
+    * methods
+    * @param methodName the name of the methods (<code>&lt;init&gt;</code>
+    * for the constructors)
+    * @param descriptor the descriptor of the method
+    * (e.g. <code>(I)Ljava/lang/String;</code>), or null to locate all
+    * the methods of the given name */
+   public MethodBodyLocator(String className, String methodName,
+                            String descriptor) {
+      if(className==null || methodName==null) {
+         throw new NullPointerException();
+      }
+      this.className=className.replace('/','.');
+      this.methodName=methodName;
+      this.descriptor=descriptor;
+   }
+
+   /**
+    * Creates a locator for the body of a method. */
+   public MethodBodyLocator(Method method) {
+      this(method.getDeclaringClass().getName(),method.getName(),
+           MethodType.methodType(method.getReturnType(),
+                                 method.getParameterTypes())
+           .toMethodDescriptorString());
+   }
+
+   /**
+    * Creates a locator for the body of a constructor. */
+   public MethodBodyLocator(Constructor<?> constructor) {
+      this(constructor.getDeclaringClass().getName(),"<init>",
+           MethodType.methodType(void.class,constructor.getParameterTypes())
+           .toMethodDescriptorString());
+   }
+
+   /**
+    * Gets the binary name of the class that declares the located
+    * methods. */
+   public String getClassName() {
+      return className;
+   }
+
+   public String getMethodName() {
+      return methodName;
+   }
+
+   /**
+    * Gets the descriptor of the located method.
+    *
+    * @return the descriptor, or null if all the methods of the name
+    * are located */
+   public String getDescriptor() {
+      return descriptor;
+   }
+
+   boolean matches(String name, String descriptor) {
+      return methodName.equals(name)
+         && (this.descriptor==null || this.descriptor.equals(descriptor));
+   }
+
+   public boolean equals(Object other) {
+      if(!(other instanceof MethodBodyLocator)) {
+         return false;
+      }
+      MethodBodyLocator locator=(MethodBodyLocator)other;
+      return locator.className.equals(className)
+         && locator.methodName.equals(methodName)
+         && (descriptor==null?locator.descriptor==null
+             :descriptor.equals(locator.descriptor));
+   }
+
+   public int hashCode() {
+      return className.hashCode()*31+methodName.hashCode();
+   }
+
+   public String toString() {
+      return "body of "+className+"."+methodName
+         +(descriptor==null?"":descriptor);
+   }
+
+}
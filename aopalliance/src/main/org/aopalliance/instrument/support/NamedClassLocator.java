@@ -0,0 +1,46 @@
+
+package org.aopalliance.instrument.support;
+
+import org.aopalliance.reflect.ClassLocator;
+
+/**
+ * Locates a class by its name, in every class loader.
+ *
+ * @see BytecodeInstrumentor */
+
+public final class NamedClassLocator implements ClassLocator {
+
+   private final String className;
+
+   /**
+    * Creates a locator.
+    *
+    * @param className the binary name of the class
+    * (e.g. <code>com.acme.Order$Line</code>) */
+   public NamedClassLocator(String className) {
+      if(className==null) {
+         throw new NullPointerException("className");
+      }
+      this.className=className.replace('/','.');
+   }
+
+   /**
+    * Gets the binary name of the located class. */
+   public String getClassName() {
+      return className;
+   }
+
+   public boolean equals(Object other) {
+      return other instanceof NamedClassLocator
+         && ((NamedClassLocator)other).className.equals(className);
+   }
+
+   public int hashCode() {
+      return className.hashCode();
+   }
+
+   public String toString() {
+      return "class "+className;
+   }
+
+}
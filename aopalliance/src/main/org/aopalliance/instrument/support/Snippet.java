@@ -0,0 +1,168 @@
+
+package org.aopalliance.instrument.support;
+
+import java.util.Arrays;
+
+/**
+ * Writes straight-line bytecode (the inserted code and the bodies of
+ * the generated methods), keeping track of the stack size it
+ * needs. */
+
+final class Snippet {
+
+   static final int ACONST_NULL=0x01;
+   static final int ILOAD=0x15;
+   static final int LLOAD=0x16;
+   static final int FLOAD=0x17;
+   static final int DLOAD=0x18;
+   static final int ALOAD=0x19;
+   static final int IRETURN=0xac;
+   static final int LRETURN=0xad;
+   static final int FRETURN=0xae;
+   static final int DRETURN=0xaf;
+   static final int ARETURN=0xb0;
+   static final int RETURN=0xb1;
+   static final int PUTSTATIC=0xb3;
+   static final int PUTFIELD=0xb5;
+   static final int INVOKESPECIAL=0xb7;
+   static final int INVOKESTATIC=0xb8;
+   static final int INVOKEDYNAMIC=0xba;
+
+   private final ConstantPool pool;
+
+   private byte[] code=new byte[16];
+   private int length;
+
+   private int stack;
+
+   int maxStack;
+
+   Snippet(ConstantPool pool) {
+      this.pool=pool;
+   }
+
+   private void u1(int value) {
+      if(length==code.length) {
+         code=Arrays.copyOf(code,length*2);
+      }
+      code[length++]=(byte)value;
+   }
+
+   private void u2(int value) {
+      u1(value>>>8);
+      u1(value);
+   }
+
+   private void push(int size) {
+      stack+=size;
+      if(stack>maxStack) {
+         maxStack=stack;
+      }
+   }
+
+   Snippet aconstNull() {
+      u1(ACONST_NULL);
+      push(1);
+      return this;
+   }
+
+   /**
+    * Loads a local variable.
+    *
+    * @param descriptor the type of the variable */
+   Snippet load(String descriptor, int slot) {
+      int opcode;
+      switch(descriptor.charAt(0)) {
+         case 'J': opcode=LLOAD; break;
+         case 'F': opcode=FLOAD; break;
+         case 'D': opcode=DLOAD; break;
+         case 'L': case '[': opcode=ALOAD; break;
+         default: opcode=ILOAD;
+      }
+      if(slot<=0xFF) {
+         u1(opcode);
+         u1(slot);
+      } else {
+         u1(0xc4);
+         u1(opcode);
+         u2(slot);
+      }
+      push(Descriptors.size(descriptor));
+      return this;
+   }
+
+   /**
+    * Loads the parameters of a method.
+    *
+    * @param slot the slot of the first parameter */
+   Snippet loadParameters(String methodDescriptor, int slot) {
+      for(String parameter : Descriptors.parameters(methodDescriptor)) {
+         load(parameter,slot);
+         slot+=Descriptors.size(parameter);
+      }
+      return this;
+   }
+
+   private void invoked(String descriptor, int receiver) {
+      stack-=Descriptors.parameterSize(descriptor)+receiver;
+      push(Descriptors.size(Descriptors.returnType(descriptor)));
+   }
+
+   Snippet invokeStatic(String owner, String name, String descriptor) {
+      u1(INVOKESTATIC);
+      u2(pool.addMethodref(owner,name,descriptor,false));
+      invoked(descriptor,0);
+      return this;
+   }
+
+   Snippet invokeSpecial(String owner, String name, String descriptor) {
+      u1(INVOKESPECIAL);
+      u2(pool.addMethodref(owner,name,descriptor,false));
+      invoked(descriptor,1);
+      return this;
+   }
+
+   /**
+    * @param index the index of the <code>invokedynamic</code> entry */
+   Snippet invokeDynamic(int index, String descriptor) {
+      u1(INVOKEDYNAMIC);
+      u2(index);
+      u2(0);
+      invoked(descriptor,0);
+      return this;
+   }
+
+   Snippet putField(String owner, String name, String descriptor) {
+      u1(PUTFIELD);
+      u2(pool.addFieldref(owner,name,descriptor));
+      stack-=1+Descriptors.size(descriptor);
+      return this;
+   }
+
+   /**
+    * Returns a value.
+    *
+    * @param descriptor the type of the value (<code>V</code> for
+    * none) */
+   Snippet returnValue(String descriptor) {
+      switch(descriptor.charAt(0)) {
+         case 'V': u1(RETURN); break;
+         case 'J': u1(LRETURN); break;
+         case 'F': u1(FRETURN); break;
+         case 'D': u1(DRETURN); break;
+         case 'L': case '[': u1(ARETURN); break;
+         default: u1(IRETURN);
+      }
+      stack=0;
+      return this;
+   }
+
+   boolean isEmpty() {
+      return length==0;
+   }
+
+   byte[] toByteArray() {
+      return Arrays.copyOf(code,length);
+   }
+
+}
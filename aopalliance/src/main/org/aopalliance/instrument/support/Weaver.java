@@ -0,0 +1,666 @@
+
+package org.aopalliance.instrument.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.aopalliance.instrument.Instrumentation;
+import org.aopalliance.instrument.InstrumentationError;
+
+/**
+ * Applies the edits of a class to its original bytecode.
+ *
+ * <p>Weaving is a pure function of the original class file and of the
+ * edits, so that a class can be transformed again (when it is
+ * retransformed) with the same result. The edits are applied in the
+ * order given by their ordering constraints (see {@link
+ * #order(List)}); the code of the before and after edits of a method
+ * runs in this order.
+ *
+ * <p>The after code is only executed when the method returns
+ * normally, not when it throws an exception. */
+
+final class Weaver {
+
+   /** the version of the woven bytecode, that must be increased when
+    * a change of the weaver changes the woven class files (it is part
+    * of the keys of the {@link WovenClassCache}) */
+   static final int VERSION=1;
+
+   private static final String OBJECT_PARAMETER="(Ljava/lang/Object;)V";
+
+   private Weaver() {
+   }
+
+   /**
+    * Sorts edits according to their <code>before</code> and
+    * <code>after</code> constraints, keeping the given order between
+    * the edits that are not constrained (the constraints that refer
+    * to other edits are ignored).
+    *
+    * @throws InstrumentationError if the constraints are cyclic */
+   static List<ClassEdit> order(List<ClassEdit> edits) {
+      int count=edits.size();
+      Map<Instrumentation,Integer> indexes=
+         new HashMap<Instrumentation,Integer>();
+      for(int i=0;i<count;i++) {
+         indexes.put(edits.get(i),Integer.valueOf(i));
+      }
+      // predecessors[i] counts the edits that must come before edit i
+      List<List<Integer>> successors=new ArrayList<List<Integer>>();
+      int[] predecessors=new int[count];
+      for(int i=0;i<count;i++) {
+         successors.add(new ArrayList<Integer>(1));
+      }
+      boolean constrained=false;
+      for(int i=0;i<count;i++) {
+         ClassEdit edit=edits.get(i);
+         Integer before=edit.before==null?null:indexes.get(edit.before);
+         if(before!=null) {
+            successors.get(before.intValue()).add(Integer.valueOf(i));
+            predecessors[i]++;
+            constrained=true;
+         }
+         Integer after=edit.after==null?null:indexes.get(edit.after);
+         if(after!=null) {
+            successors.get(i).add(after);
+            predecessors[after.intValue()]++;
+            constrained=true;
+         }
+      }
+      if(!constrained) {
+         return edits;
+      }
+      List<ClassEdit> ordered=new ArrayList<ClassEdit>(count);
+      boolean[] done=new boolean[count];
+      while(ordered.size()<count) {
+         int next=-1;
+         for(int i=0;i<count;i++) {
+            if(!done[i] && predecessors[i]==0) {
+               next=i;
+               break;
+            }
+         }
+         if(next<0) {
+            for(int i=0;i<count;i++) {
+               if(!done[i]) {
+                  throw new InstrumentationError(
+                     edits.get(i),new IllegalStateException(
+                        "cyclic ordering constraints"));
+               }
+            }
+         }
+         done[next]=true;
+         ordered.add(edits.get(next));
+         for(Integer successor : successors.get(next)) {
+            predecessors[successor.intValue()]--;
+         }
+      }
+      return ordered;
+   }
+
+   /**
+    * Weaves a class.
+    *
+    * @param bytes the original class file
+    * @param edits the edits of the class
+    * @param loader the loader of the class (used to read the
+    * mixins), or null for the system class loader
+    * @return the woven class file
+    * @throws InstrumentationError if an edit cannot be applied */
+   static byte[] weave(byte[] bytes, List<ClassEdit> edits,
+                       ClassLoader loader) {
+      ClassFile file;
+      try {
+         file=ClassFile.parse(bytes);
+      } catch(IOException e) {
+         throw new InstrumentationError(edits.get(0),e);
+      }
+      weave(file,edits,loader);
+      return file.toByteArray();
+   }
+
+   static void weave(ClassFile file, List<ClassEdit> edits,
+                     ClassLoader loader) {
+      List<ClassEdit> ordered=order(edits);
+      List<ClassEdit> initializers=new ArrayList<ClassEdit>();
+      for(ClassEdit edit : ordered) {
+         try {
+            switch(edit.getType()) {
+               case Instrumentation.ADD_INTERFACE:
+                  file.addInterface(Descriptors.internalName(edit.name));
+                  break;
+               case Instrumentation.SET_SUPERCLASS:
+                  setSuperClass(file,Descriptors.internalName(edit.name));
+                  break;
+               case Instrumentation.ADD_CLASS:
+                  addClass(file,edit.name,loader);
+                  break;
+               case Instrumentation.ADD_FIELD:
+                  if(addField(file,edit)) {
+                     initializers.add(edit);
+                  }
+                  break;
+               case Instrumentation.ADD_METHOD:
+                  addMethod(file,edit);
+                  break;
+               default:
+            }
+         } catch(InstrumentationError e) {
+            throw e;
+         } catch(Exception e) {
+            throw new InstrumentationError(edit,e);
+         }
+      }
+      insertCode(file,ordered,initializers);
+      addAroundCode(file,ordered);
+   }
+
+   private static CodeAttribute codeOf(ClassFile file, ClassFile.Member method)
+      throws IOException {
+      ClassFile.Attribute code=file.findAttribute(method.attributes,"Code");
+      return code==null?null:CodeAttribute.parse(code);
+   }
+
+   private static void setCode(ClassFile file, ClassFile.Member method,
+                               CodeAttribute code) {
+      ClassFile.Attribute attribute=code.toAttribute(file);
+      for(int i=0;i<method.attributes.size();i++) {
+         if(file.pool.utf8(method.attributes.get(i).name).equals("Code")) {
+            method.attributes.set(i,attribute);
+            return;
+         }
+      }
+      method.attributes.add(attribute);
+   }
+
+   /**
+    * Finds the call of the constructor that initializes the object
+    * in the code of a constructor (the one that is not preceded by a
+    * pending <code>new</code>).
+    *
+    * @return the offset of the <code>invokespecial</code>
+    * instruction, or -1 */
+   private static int findInitialization(ClassFile file, CodeAttribute code) {
+      int pending=0;
+      for(int offset : code.offsets()) {
+         int opcode=code.code[offset]&0xFF;
+         if(opcode==0xbb) {
+            pending++;
+         } else if(opcode==0xb7) {
+            ConstantPool.Entry method=file.pool.get(
+               CodeAttribute.readUnsignedShort(code.code,offset+1));
+            String name=file.pool.utf8(
+               file.pool.get(method.second).first);
+            if(name.equals("<init>")) {
+               if(pending==0) {
+                  return offset;
+               }
+               pending--;
+            }
+         }
+      }
+      return -1;
+   }
+
+   private static String initializedClass(ClassFile file, CodeAttribute code,
+                                          int offset) {
+      ConstantPool.Entry method=file.pool.get(
+         CodeAttribute.readUnsignedShort(code.code,offset+1));
+      return file.pool.className(method.first);
+   }
+
+   private static void setSuperClass(ClassFile file, String superName)
+      throws IOException {
+      String previous=file.getSuperName();
+      file.superClass=file.pool.addClass(superName);
+      for(ClassFile.Member method : file.methods) {
+         if(!file.nameOf(method).equals("<init>")) {
+            continue;
+         }
+         CodeAttribute code=codeOf(file,method);
+         int offset=findInitialization(file,code);
+         if(offset>=0 && initializedClass(file,code,offset).equals(previous)) {
+            ConstantPool.Entry init=file.pool.get(
+               CodeAttribute.readUnsignedShort(code.code,offset+1));
+            ConstantPool.Entry nameAndType=file.pool.get(init.second);
+            int index=file.pool.addMethodref(
+               superName,"<init>",file.pool.utf8(nameAndType.second),false);
+            code.code[offset+1]=(byte)(index>>>8);
+            code.code[offset+2]=(byte)index;
+            setCode(file,method,code);
+         }
+      }
+   }
+
+   private static void addClass(ClassFile file, String mixinName,
+                                ClassLoader loader)
+      throws IOException {
+      String internalName=Descriptors.internalName(mixinName);
+      ClassLoader resources=loader!=null?loader
+         :ClassLoader.getSystemClassLoader();
+      InputStream in=resources.getResourceAsStream(internalName+".class");
+      if(in==null) {
+         throw new IOException("class file not found: "+mixinName);
+      }
+      ClassFile mixin;
+      try {
+         ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+         byte[] buffer=new byte[4096];
+         int read;
+         while((read=in.read(buffer))>=0) {
+            bytes.write(buffer,0,read);
+         }
+         mixin=ClassFile.parse(bytes.toByteArray());
+      } finally {
+         in.close();
+      }
+      Map<String,String> renames=
+         Collections.singletonMap(internalName,file.getName());
+      for(Integer index : mixin.interfaces) {
+         file.addInterface(mixin.pool.className(index.intValue()));
+      }
+      for(ClassFile.Member field : mixin.fields) {
+         if(file.findField(mixin.nameOf(field))!=null) {
+            throw new IllegalStateException(
+               "field already exists: "+mixin.nameOf(field));
+         }
+         file.fields.add(copyMember(mixin,file,field,renames));
+      }
+      for(ClassFile.Member method : mixin.methods) {
+         String name=mixin.nameOf(method);
+         if(name.equals("<init>") || name.equals("<clinit>")) {
+            continue;
+         }
+         if(file.findMethod(name,mixin.descriptorOf(method))!=null) {
+            throw new IllegalStateException(
+               "method already exists: "+name+mixin.descriptorOf(method));
+         }
+         file.methods.add(copyMember(mixin,file,method,renames));
+      }
+   }
+
+   private static ClassFile.Member copyMember(ClassFile from, ClassFile to,
+                                              ClassFile.Member member,
+                                              Map<String,String> renames)
+      throws IOException {
+      ClassFile.Member copy=new ClassFile.Member(
+         member.access,to.pool.addUtf8(from.nameOf(member)),
+         to.pool.addUtf8(from.descriptorOf(member)));
+      for(ClassFile.Attribute attribute : member.attributes) {
+         String name=from.pool.utf8(attribute.name);
+         if(name.equals("Code")) {
+            copy.attributes.add(CodeAttribute.parse(attribute)
+                                .copy(from,to,renames).toAttribute(to));
+         } else if(name.equals("Exceptions")) {
+            byte[] info=attribute.info.clone();
+            int count=CodeAttribute.readUnsignedShort(info,0);
+            for(int i=0;i<count;i++) {
+               int index=to.pool.copy(
+                  from.pool,CodeAttribute.readUnsignedShort(info,2+i*2),
+                  renames);
+               info[2+i*2]=(byte)(index>>>8);
+               info[3+i*2]=(byte)index;
+            }
+            copy.attributes.add(
+               new ClassFile.Attribute(to.pool.addUtf8(name),info));
+         } else if(name.equals("Signature")) {
+            int index=to.pool.copy(
+               from.pool,CodeAttribute.readUnsignedShort(attribute.info,0),
+               renames);
+            copy.attributes.add(new ClassFile.Attribute(
+                                   to.pool.addUtf8(name),
+                                   new byte[] {(byte)(index>>>8),
+                                               (byte)index}));
+         }
+      }
+      return copy;
+   }
+
+   private static CallCode callOf(ClassEdit edit) {
+      if(!(edit.code instanceof CallCode)) {
+         throw new IllegalArgumentException("unsupported code: "+edit.code);
+      }
+      return (CallCode)edit.code;
+   }
+
+   /**
+    * Adds a field.
+    *
+    * @return true if the field has an initializer */
+   private static boolean addField(ClassFile file, ClassEdit edit) {
+      if(file.isInterface()) {
+         throw new IllegalArgumentException("cannot add a field to "
+                                            +"an interface");
+      }
+      if(file.findField(edit.name)!=null) {
+         throw new IllegalStateException("field already exists: "+edit.name);
+      }
+      String descriptor=Descriptors.ofType(edit.types[0]);
+      if(edit.code!=null) {
+         CallCode initializer=callOf(edit);
+         String returned=Descriptors.returnType(initializer.getDescriptor());
+         if(!initializer.getDescriptor().startsWith("()")
+            || !(returned.equals(descriptor)
+                 || Descriptors.isReference(returned)
+                 && Descriptors.isReference(descriptor))) {
+            throw new IllegalArgumentException(
+               "bad initializer for a field of type "+edit.types[0]);
+         }
+      }
+      file.fields.add(new ClassFile.Member(
+                         ClassFile.ACC_PUBLIC,file.pool.addUtf8(edit.name),
+                         file.pool.addUtf8(descriptor)));
+      return edit.code!=null;
+   }
+
+   private static void addMethod(ClassFile file, ClassEdit edit)
+      throws IOException {
+      CallCode body=callOf(edit);
+      List<String> parameters=Descriptors.parameters(body.getDescriptor());
+      StringBuilder descriptor=new StringBuilder("(");
+      for(int i=0;i<edit.types.length;i++) {
+         String parameter=Descriptors.ofType(edit.types[i]);
+         if(i+1>=parameters.size() || !parameters.get(i+1).equals(parameter)) {
+            throw new IllegalArgumentException(
+               "the parameters of "+body+" do not match");
+         }
+         descriptor.append(parameter);
+      }
+      if(parameters.size()!=edit.types.length+1
+         || !Descriptors.isReference(parameters.get(0))) {
+         throw new IllegalArgumentException(
+            "the parameters of "+body+" do not match");
+      }
+      String returned=Descriptors.returnType(body.getDescriptor());
+      descriptor.append(')').append(returned);
+      String methodDescriptor=descriptor.toString();
+      if(file.findMethod(edit.name,methodDescriptor)!=null) {
+         throw new IllegalStateException(
+            "method already exists: "+edit.name+methodDescriptor);
+      }
+      Snippet code=new Snippet(file.pool)
+         .load("Ljava/lang/Object;",0)
+         .loadParameters(methodDescriptor,1)
+         .invokeStatic(Descriptors.internalName(body.getClassName()),
+                       body.getMethodName(),body.getDescriptor())
+         .returnValue(returned);
+      ClassFile.Member method=new ClassFile.Member(
+         ClassFile.ACC_PUBLIC,file.pool.addUtf8(edit.name),
+         file.pool.addUtf8(methodDescriptor));
+      method.attributes.add(
+         CodeAttribute.create(code.maxStack,
+                              1+Descriptors.parameterSize(methodDescriptor),
+                              code.toByteArray()).toAttribute(file));
+      if(edit.names!=null) {
+         ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+         DataOutputStream out=new DataOutputStream(bytes);
+         out.writeByte(edit.names.length);
+         for(String name : edit.names) {
+            out.writeShort(file.pool.addUtf8(name));
+            out.writeShort(0);
+         }
+         method.attributes.add(new ClassFile.Attribute(
+                                  file.pool.addUtf8("MethodParameters"),
+                                  bytes.toByteArray()));
+      }
+      file.methods.add(method);
+   }
+
+   /**
+    * Writes the call of a before or after code.
+    *
+    * @param target true if the current object can be passed */
+   private static void writeCall(ClassFile file, Snippet snippet,
+                                 ClassEdit edit, boolean target) {
+      CallCode call=callOf(edit);
+      String descriptor=call.getDescriptor();
+      if(descriptor.equals(OBJECT_PARAMETER)) {
+         if(target) {
+            snippet.load("Ljava/lang/Object;",0);
+         } else {
+            snippet.aconstNull();
+         }
+      } else if(!descriptor.equals("()V")) {
+         throw new IllegalArgumentException(
+            "advice must be ()V or "+OBJECT_PARAMETER+": "+call);
+      }
+      snippet.invokeStatic(Descriptors.internalName(call.getClassName()),
+                           call.getMethodName(),descriptor);
+   }
+
+   /**
+    * Tells if an edit locates a method (the locators of all the
+    * methods of a name ignore the methods without code). */
+   private static boolean locates(ClassFile file, ClassEdit edit,
+                                  ClassFile.Member method) {
+      MethodBodyLocator locator=(MethodBodyLocator)edit.getLocation();
+      return locator.matches(file.nameOf(method),file.descriptorOf(method))
+         && (locator.getDescriptor()!=null
+             || file.findAttribute(method.attributes,"Code")!=null);
+   }
+
+   private static List<ClassEdit> editsOf(ClassFile file,
+                                          ClassFile.Member method,
+                                          List<ClassEdit> edits, int type) {
+      List<ClassEdit> matching=null;
+      for(ClassEdit edit : edits) {
+         if(edit.getType()==type && locates(file,edit,method)) {
+            if(matching==null) {
+               matching=new ArrayList<ClassEdit>();
+            }
+            matching.add(edit);
+         }
+      }
+      return matching==null?Collections.<ClassEdit>emptyList():matching;
+   }
+
+   private static void checkMatched(ClassFile file, List<ClassEdit> edits,
+                                    int type) {
+      for(ClassEdit edit : edits) {
+         if(edit.getType()!=type) {
+            continue;
+         }
+         boolean matched=false;
+         for(ClassFile.Member method : file.methods) {
+            if(locates(file,edit,method)) {
+               matched=true;
+               break;
+            }
+         }
+         if(!matched) {
+            throw new InstrumentationError(
+               edit,new NoSuchMethodException(edit.getLocation().toString()));
+         }
+      }
+   }
+
+   /**
+    * Inserts the field initializers, the before code and the after
+    * code. */
+   private static void insertCode(ClassFile file, List<ClassEdit> edits,
+                                  List<ClassEdit> initializers) {
+      checkMatched(file,edits,Instrumentation.ADD_BEFORE_CODE);
+      checkMatched(file,edits,Instrumentation.ADD_AFTER_CODE);
+      for(ClassFile.Member method : file.methods) {
+         String name=file.nameOf(method);
+         boolean constructor=name.equals("<init>");
+         List<ClassEdit> befores=editsOf(
+            file,method,edits,Instrumentation.ADD_BEFORE_CODE);
+         List<ClassEdit> afters=editsOf(
+            file,method,edits,Instrumentation.ADD_AFTER_CODE);
+         if(befores.isEmpty() && afters.isEmpty()
+            && (!constructor || initializers.isEmpty())) {
+            continue;
+         }
+         ClassEdit first=!befores.isEmpty()?befores.get(0)
+            :!afters.isEmpty()?afters.get(0):initializers.get(0);
+         try {
+            CodeAttribute code=codeOf(file,method);
+            if(code==null) {
+               throw new IllegalArgumentException(
+                  "no code in "+name+file.descriptorOf(method));
+            }
+            boolean target=(method.access&ClassFile.ACC_STATIC)==0;
+            Snippet entry=new Snippet(file.pool);
+            if(constructor && !initializers.isEmpty()) {
+               int offset=findInitialization(file,code);
+               if(offset<0
+                  || !initializedClass(file,code,offset).equals(
+                     file.getName())) {
+                  writeInitializers(file,entry,initializers);
+               }
+            }
+            for(ClassEdit before : befores) {
+               writeCall(file,entry,before,target && !constructor);
+            }
+            Snippet exit=new Snippet(file.pool);
+            for(ClassEdit after : afters) {
+               writeCall(file,exit,after,target);
+            }
+            Map<Integer,CodeAttribute.Insertion> insertions=
+               new LinkedHashMap<Integer,CodeAttribute.Insertion>();
+            if(!exit.isEmpty()) {
+               CodeAttribute.Insertion insertion=new CodeAttribute.Insertion(
+                  exit.toByteArray(),exit.maxStack,false);
+               for(int offset : code.offsets()) {
+                  int opcode=code.code[offset]&0xFF;
+                  if(opcode>=Snippet.IRETURN && opcode<=Snippet.RETURN) {
+                     insertions.put(Integer.valueOf(offset),insertion);
+                  }
+               }
+            }
+            if(!entry.isEmpty()) {
+               CodeAttribute.Insertion existing=insertions.get(0);
+               byte[] bytes=entry.toByteArray();
+               int maxStack=entry.maxStack;
+               if(existing!=null) {
+                  // the method starts with a return
+                  byte[] both=new byte[bytes.length+existing.code.length];
+                  System.arraycopy(bytes,0,both,0,bytes.length);
+                  System.arraycopy(existing.code,0,both,bytes.length,
+                                   existing.code.length);
+                  bytes=both;
+                  maxStack=Math.max(maxStack,existing.maxStack);
+               }
+               insertions.put(Integer.valueOf(0),new CodeAttribute.Insertion(
+                                 bytes,maxStack,true));
+            }
+            if(!insertions.isEmpty()) {
+               code.insert(file,insertions);
+               setCode(file,method,code);
+            }
+         } catch(InstrumentationError e) {
+            throw e;
+         } catch(Exception e) {
+            throw new InstrumentationError(first,e);
+         }
+      }
+   }
+
+   private static void writeInitializers(ClassFile file, Snippet snippet,
+                                         List<ClassEdit> initializers) {
+      for(ClassEdit field : initializers) {
+         CallCode initializer=callOf(field);
+         // the fields of the class can be set before the superclass
+         // constructor is called
+         snippet.load("Ljava/lang/Object;",0)
+            .invokeStatic(Descriptors.internalName(initializer.getClassName()),
+                          initializer.getMethodName(),
+                          initializer.getDescriptor())
+            .putField(file.getName(),field.name,
+                      Descriptors.ofType(field.types[0]));
+      }
+   }
+
+   /**
+    * Moves the bodies of the methods with around code into private
+    * methods, and replaces them with an <code>invokedynamic</code>
+    * instruction linked by {@link AroundLinker}. */
+   private static void addAroundCode(ClassFile file, List<ClassEdit> edits) {
+      checkMatched(file,edits,Instrumentation.ADD_AROUND_CODE);
+      int count=file.methods.size();
+      for(int i=0;i<count;i++) {
+         ClassFile.Member method=file.methods.get(i);
+         List<ClassEdit> arounds=editsOf(
+            file,method,edits,Instrumentation.ADD_AROUND_CODE);
+         if(arounds.isEmpty()) {
+            continue;
+         }
+         String name=file.nameOf(method);
+         String descriptor=file.descriptorOf(method);
+         if(file.majorVersion<51 || name.startsWith("<")
+            || file.findAttribute(method.attributes,"Code")==null) {
+            throw new InstrumentationError(
+               arounds.get(0),new IllegalArgumentException(
+                  "cannot add around code to "+name+descriptor
+                  +" (class file version "+file.majorVersion+")"));
+         }
+         StringBuilder ids=new StringBuilder();
+         for(ClassEdit around : arounds) {
+            if(ids.length()>0) {
+               ids.append(',');
+            }
+            ids.append(around.chain);
+         }
+         String moved=name+"$around$"+i;
+         boolean isStatic=(method.access&ClassFile.ACC_STATIC)!=0;
+         // the original method keeps its code and its exceptions, the
+         // wrapper gets the other attributes (e.g. the annotations)
+         ClassFile.Member wrapper=new ClassFile.Member(
+            method.access&~(ClassFile.ACC_SYNCHRONIZED|ClassFile.ACC_NATIVE
+                            |ClassFile.ACC_ABSTRACT),
+            method.name,method.descriptor);
+         List<ClassFile.Attribute> kept=new ArrayList<ClassFile.Attribute>();
+         for(ClassFile.Attribute attribute : method.attributes) {
+            String attributeName=file.pool.utf8(attribute.name);
+            if(attributeName.equals("Code")) {
+               kept.add(attribute);
+            } else {
+               if(attributeName.equals("Exceptions")) {
+                  kept.add(attribute);
+               }
+               wrapper.attributes.add(attribute);
+            }
+         }
+         method.attributes.clear();
+         method.attributes.addAll(kept);
+         method.access=method.access&(ClassFile.ACC_STATIC
+                                      |ClassFile.ACC_SYNCHRONIZED|0x0800)
+            |ClassFile.ACC_PRIVATE|ClassFile.ACC_SYNTHETIC;
+         method.name=file.pool.addUtf8(moved);
+         int bootstrap=file.addBootstrapMethod(
+            file.pool.addMethodHandle(
+               6,file.pool.addMethodref(
+                  "org/aopalliance/instrument/support/AroundLinker","link",
+                  AroundLinker.BOOTSTRAP_DESCRIPTOR,false)),
+            new int[] {file.pool.addString(moved),
+                       file.pool.addString(ids.toString())});
+         String type=isStatic?descriptor
+            :"(L"+file.getName()+";"+descriptor.substring(1);
+         Snippet code=new Snippet(file.pool);
+         if(!isStatic) {
+            code.load("Ljava/lang/Object;",0);
+         }
+         code.loadParameters(descriptor,isStatic?0:1)
+            .invokeDynamic(file.pool.addInvokeDynamic(bootstrap,name,type),
+                           type)
+            .returnValue(Descriptors.returnType(descriptor));
+         wrapper.attributes.add(
+            CodeAttribute.create(
+               code.maxStack,
+               (isStatic?0:1)+Descriptors.parameterSize(descriptor),
+               code.toByteArray()).toAttribute(file));
+         file.methods.add(wrapper);
+      }
+   }
+
+}
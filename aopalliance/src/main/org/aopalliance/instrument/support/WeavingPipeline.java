@@ -0,0 +1,383 @@
+
+package org.aopalliance.instrument.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Weaves the classes of a {@link BytecodeInstrumentor} ahead of their
+ * loading, in parallel.
+ *
+ * <p>A pipeline scans jars (or class directories) on a fork/join
+ * pool: the class files that have instrumentations are read and
+ * woven speculatively, and the results are kept until the classes are
+ * loaded. The class loading threads then only pick up the woven class
+ * files, instead of weaving them serially.
+ *
+ * <p>A speculative result is only used if the class file that is
+ * loaded is the one that was woven (the same bytes), and if the
+ * instrumentations of the class did not change meanwhile. Otherwise,
+ * and for the classes that are loaded before they are scanned, the
+ * class is woven by the loading thread as usual.
+ *
+ * <p>The woven class files are kept per class loader, and removed when
+ * they are picked up. Those that are not picked up (the classes that
+ * are never loaded, or that were loaded before they were scanned) are
+ * forgotten when their loader is reclaimed, or when {@link
+ * #release(ClassLoader)} tells that the loader is done.
+ *
+ * @see BytecodeInstrumentor */
+
+public final class WeavingPipeline {
+
+   /** the number of class files below which a scan is not split */
+   private static final int THRESHOLD=32;
+
+   /**
+    * A class file woven ahead of its loading. */
+   private static final class Woven {
+
+      final byte[] original;
+
+      final List<ClassEdit> plan;
+
+      final byte[] bytes;
+
+      Woven(byte[] original, List<ClassEdit> plan, byte[] bytes) {
+         this.original=original;
+         this.plan=plan;
+         this.bytes=bytes;
+      }
+
+   }
+
+   private final BytecodeInstrumentor instrumentor;
+
+   private final ForkJoinPool pool;
+
+   /** the woven class files that were not picked up, by loader and
+    * by internal name (guarded by itself) */
+   private final Map<ClassLoader,ConcurrentMap<String,Woven>> results=
+      new WeakHashMap<ClassLoader,ConcurrentMap<String,Woven>>();
+
+   private final AtomicLong woven=new AtomicLong();
+   private final AtomicLong hits=new AtomicLong();
+   private final AtomicLong misses=new AtomicLong();
+
+   /**
+    * Creates a pipeline that runs on the common fork/join pool, and
+    * attaches it to an instrumentor. */
+   public WeavingPipeline(BytecodeInstrumentor instrumentor) {
+      this(instrumentor,ForkJoinPool.commonPool());
+   }
+
+   /**
+    * Creates a pipeline, and attaches it to an instrumentor (replacing
+    * its previous pipeline, if any).
+    *
+    * @param pool the pool that runs the scans */
+   public WeavingPipeline(BytecodeInstrumentor instrumentor,
+                          ForkJoinPool pool) {
+      this.instrumentor=instrumentor;
+      this.pool=pool;
+      instrumentor.setPipeline(this);
+   }
+
+   /**
+    * Starts to scan a jar or a class directory. The instrumentations
+    * of the classes should be added before: the classes that have
+    * none are skipped.
+    *
+    * @param file the jar file, or the root of the class directory
+    * @param loader the loader that will load the classes (to read the
+    * mixins), or null for the system class loader
+    * @return the scan, whose result is the number of woven classes */
+   public ForkJoinTask<Integer> prescan(File file, ClassLoader loader) {
+      if(loader==null) {
+         loader=ClassLoader.getSystemClassLoader();
+      }
+      return pool.submit(new Scan(file,loader));
+   }
+
+   /**
+    * Forgets the woven class files that a loader did not pick up,
+    * e.g. once an application has started. The classes that the loader
+    * loads afterwards are woven by their loading thread.
+    *
+    * @param loader the loader given to {@link #prescan(File,ClassLoader)}
+    * (null for the system class loader) */
+   public void release(ClassLoader loader) {
+      if(loader==null) {
+         loader=ClassLoader.getSystemClassLoader();
+      }
+      synchronized(results) {
+         results.remove(loader);
+      }
+   }
+
+   /**
+    * Gets the number of classes that were woven ahead of their
+    * loading. */
+   public long getWovenCount() {
+      return woven.get();
+   }
+
+   /**
+    * Gets the number of loaded classes whose woven class file was
+    * picked up. */
+   public long getHitCount() {
+      return hits.get();
+   }
+
+   /**
+    * Gets the number of loaded classes (with instrumentations) that
+    * were woven by their loading thread. */
+   public long getMissCount() {
+      return misses.get();
+   }
+
+   /**
+    * Gets the number of woven class files that were not picked up
+    * yet. */
+   public int getPendingCount() {
+      int count=0;
+      synchronized(results) {
+         for(ConcurrentMap<String,Woven> woven : results.values()) {
+            count+=woven.size();
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Detaches this pipeline from its instrumentor, and forgets the
+    * woven class files that were not picked up. */
+   public void close() {
+      instrumentor.setPipeline(null);
+      synchronized(results) {
+         results.clear();
+      }
+   }
+
+   /**
+    * Gets the woven class files of a loader.
+    *
+    * @param create whether to create them if there are none
+    * @return the woven class files, or null */
+   private ConcurrentMap<String,Woven> resultsOf(ClassLoader loader,
+                                                 boolean create) {
+      synchronized(results) {
+         ConcurrentMap<String,Woven> woven=results.get(loader);
+         if(woven==null && create) {
+            woven=new ConcurrentHashMap<String,Woven>();
+            results.put(loader,woven);
+         }
+         return woven;
+      }
+   }
+
+   /**
+    * Takes the woven class file of a loaded class.
+    *
+    * @param bytes the loaded class file
+    * @param plan the instrumentations of the class
+    * @param loader the loader of the class (null for the bootstrap
+    * loader)
+    * @return the woven class file, or null if it was not woven
+    * ahead (or not from the same class file and instrumentations) */
+   byte[] take(String internalName, byte[] bytes, List<ClassEdit> plan,
+               ClassLoader loader) {
+      ConcurrentMap<String,Woven> woven=
+         loader==null?null:resultsOf(loader,false);
+      Woven candidate=woven==null?null:woven.remove(internalName);
+      if(candidate!=null && candidate.plan==plan
+         && Arrays.equals(candidate.original,bytes)) {
+         hits.incrementAndGet();
+         return candidate.bytes;
+      }
+      misses.incrementAndGet();
+      return null;
+   }
+
+   private boolean weave(String internalName, byte[] bytes,
+                         ClassLoader loader) {
+      List<ClassEdit> plan=instrumentor.planOf(internalName);
+      ConcurrentMap<String,Woven> results=resultsOf(loader,true);
+      if(plan==null || results.containsKey(internalName)) {
+         return false;
+      }
+      byte[] result;
+      try {
+         result=instrumentor.weave(bytes,plan,loader);
+      } catch(Throwable e) {
+         // the loading thread will weave the class, and record the error
+         return false;
+      }
+      if(results.putIfAbsent(internalName,new Woven(bytes,plan,result))
+         !=null) {
+         return false;
+      }
+      woven.incrementAndGet();
+      return true;
+   }
+
+   /**
+    * Reads the class files of a scan. */
+   private abstract static class Source {
+
+      abstract byte[] read(String path) throws IOException;
+
+      static byte[] readFully(InputStream in) throws IOException {
+         try {
+            ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+            byte[] buffer=new byte[8192];
+            int read;
+            while((read=in.read(buffer))>=0) {
+               bytes.write(buffer,0,read);
+            }
+            return bytes.toByteArray();
+         } finally {
+            in.close();
+         }
+      }
+
+   }
+
+   private final class Scan extends RecursiveTask<Integer> {
+
+      private static final long serialVersionUID=1L;
+
+      private final File file;
+
+      private final ClassLoader loader;
+
+      Scan(File file, ClassLoader loader) {
+         this.file=file;
+         this.loader=loader;
+      }
+
+      protected Integer compute() {
+         List<String> paths=new ArrayList<String>();
+         try {
+            if(file.isDirectory()) {
+               list(file,"",paths);
+               return new Batch(new Source() {
+                     byte[] read(String path) throws IOException {
+                        return readFully(
+                           new FileInputStream(new File(file,path)));
+                     }
+                  },paths,0,paths.size(),loader).invoke();
+            }
+            final JarFile jar=new JarFile(file);
+            try {
+               Enumeration<JarEntry> entries=jar.entries();
+               while(entries.hasMoreElements()) {
+                  String path=entries.nextElement().getName();
+                  if(isInstrumented(path)) {
+                     paths.add(path);
+                  }
+               }
+               return new Batch(new Source() {
+                     byte[] read(String path) throws IOException {
+                        return readFully(
+                           jar.getInputStream(jar.getEntry(path)));
+                     }
+                  },paths,0,paths.size(),loader).invoke();
+            } finally {
+               jar.close();
+            }
+         } catch(IOException e) {
+            // the classes will be woven when they are loaded
+            return Integer.valueOf(0);
+         }
+      }
+
+      private void list(File directory, String prefix, List<String> paths) {
+         File[] files=directory.listFiles();
+         if(files==null) {
+            return;
+         }
+         for(File child : files) {
+            String path=prefix+child.getName();
+            if(child.isDirectory()) {
+               list(child,path+"/",paths);
+            } else if(isInstrumented(path)) {
+               paths.add(path);
+            }
+         }
+      }
+
+      private boolean isInstrumented(String path) {
+         return path.endsWith(".class") && instrumentor.planOf(
+            path.substring(0,path.length()-6))!=null;
+      }
+
+   }
+
+   private final class Batch extends RecursiveTask<Integer> {
+
+      private static final long serialVersionUID=1L;
+
+      private final Source source;
+
+      private final List<String> paths;
+
+      private final int start;
+
+      private final int end;
+
+      private final ClassLoader loader;
+
+      Batch(Source source, List<String> paths, int start, int end,
+            ClassLoader loader) {
+         this.source=source;
+         this.paths=paths;
+         this.start=start;
+         this.end=end;
+         this.loader=loader;
+      }
+
+      protected Integer compute() {
+         if(end-start>THRESHOLD) {
+            int middle=(start+end)>>>1;
+            Batch first=new Batch(source,paths,start,middle,loader);
+            first.fork();
+            int count=new Batch(source,paths,middle,end,loader).compute()
+               .intValue();
+            return Integer.valueOf(count+first.join().intValue());
+         }
+         int count=0;
+         for(int i=start;i<end;i++) {
+            String path=paths.get(i);
+            try {
+               if(weave(path.substring(0,path.length()-6),source.read(path),
+                        loader)) {
+                  count++;
+               }
+            } catch(IOException e) {
+               // woven when it is loaded
+            }
+         }
+         return Integer.valueOf(count);
+      }
+
+   }
+
+}
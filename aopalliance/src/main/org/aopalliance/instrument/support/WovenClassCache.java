@@ -0,0 +1,348 @@
+
+package org.aopalliance.instrument.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.aopalliance.instrument.Instrumentation;
+import org.aopalliance.instrument.InstrumentationError;
+
+/**
+ * Keeps the class files woven by a {@link BytecodeInstrumentor} in a
+ * memory-mapped file, so that they are not woven again when the JVM
+ * is restarted.
+ *
+ * <p>An entry of the cache is keyed by a SHA-256 hash of the original
+ * class file, of the instrumentations of the class (their types,
+ * locations and code, in the order in which they are woven, see
+ * {@link Weaver#order(List)}) and of the version of the weaver: a
+ * class is woven again as soon as one of them changes (the
+ * interceptors of an around code are identified by their
+ * registration order, see {@link AroundLinker}). The classes
+ * that have a mixin (see {@link
+ * org.aopalliance.instrument.Instrumentor#addClass}) are not cached,
+ * since their woven class file also depends on the class file of the
+ * mixin.
+ *
+ * <p>The file can be shared by the JVMs of a host: the entries are
+ * appended (and never changed afterwards) under an exclusive file
+ * lock, and each JVM reads the entries appended by the others when a
+ * class is missing from its index. The caches of a JVM that share a
+ * file also synchronize on a monitor of the file, since the file
+ * locks are held by the JVM, not by the caches. When the file is
+ * full, the new class files are not cached any longer; the file
+ * should then be deleted while no JVM uses it.
+ *
+ * <p>Each entry holds a CRC-32 checksum of its key and class file,
+ * that is checked when the entry is read: an entry that was only
+ * partly written to the disk before a crash is ignored, and its class
+ * is woven (and cached) again.
+ *
+ * @see BytecodeInstrumentor#setCache(WovenClassCache) */
+
+public final class WovenClassCache {
+
+   /** the default size of the file */
+   public static final int DEFAULT_CAPACITY=64<<20;
+
+   private static final int MAGIC=0x414f5057;
+   private static final int FORMAT=2;
+
+   /** the offsets of the header fields */
+   private static final int FORMAT_OFFSET=4;
+   private static final int END_OFFSET=8;
+   private static final int HEADER_SIZE=16;
+
+   private static final int KEY_SIZE=32;
+
+   /** the size of an entry without its class file (the key, and the
+    * length and checksum of the class file) */
+   private static final int ENTRY_HEADER_SIZE=KEY_SIZE+8;
+
+   /** the monitors of the files, by canonical path */
+   private static final ConcurrentMap<String,Object> monitors=
+      new ConcurrentHashMap<String,Object>();
+
+   private final RandomAccessFile file;
+
+   private final FileChannel channel;
+
+   private final MappedByteBuffer buffer;
+
+   /** the monitor of the file, held with the file locks */
+   private final Object monitor;
+
+   /** the offsets of the known entries, by key */
+   private final ConcurrentMap<ByteBuffer,Integer> index=
+      new ConcurrentHashMap<ByteBuffer,Integer>();
+
+   /** the end of the known entries (guarded by the monitor) */
+   private int scanned=HEADER_SIZE;
+
+   private final AtomicLong hits=new AtomicLong();
+   private final AtomicLong misses=new AtomicLong();
+
+   /**
+    * Opens a cache of the default capacity.
+    *
+    * @see #WovenClassCache(File,int) */
+   public WovenClassCache(File path) throws IOException {
+      this(path,DEFAULT_CAPACITY);
+   }
+
+   /**
+    * Opens a cache, creating its file if it does not exist.
+    *
+    * @param capacity the size of the file if it is created (the size
+    * of an existing file is kept)
+    * @throws IOException if the file cannot be mapped, or is not a
+    * cache file */
+   public WovenClassCache(File path, int capacity) throws IOException {
+      if(capacity<=HEADER_SIZE) {
+         throw new IllegalArgumentException("capacity too small: "+capacity);
+      }
+      Object created=new Object();
+      Object existing=monitors.putIfAbsent(path.getCanonicalPath(),created);
+      monitor=existing!=null?existing:created;
+      file=new RandomAccessFile(path,"rw");
+      channel=file.getChannel();
+      try {
+         synchronized(monitor) {
+            FileLock lock=channel.lock();
+            try {
+               long size=channel.size();
+               boolean empty=size==0;
+               if(empty) {
+                  size=capacity;
+               } else if(size<HEADER_SIZE || size>Integer.MAX_VALUE) {
+                  throw new IOException("not a cache file: "+path);
+               }
+               buffer=channel.map(FileChannel.MapMode.READ_WRITE,0,size);
+               if(empty) {
+                  buffer.putInt(0,MAGIC);
+                  buffer.putInt(FORMAT_OFFSET,FORMAT);
+                  buffer.putLong(END_OFFSET,HEADER_SIZE);
+               } else if(buffer.getInt(0)!=MAGIC) {
+                  throw new IOException("not a cache file: "+path);
+               } else if(buffer.getInt(FORMAT_OFFSET)!=FORMAT) {
+                  throw new IOException("unsupported cache format: "+path);
+               }
+            } finally {
+               lock.release();
+            }
+         }
+      } catch(IOException e) {
+         file.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Gets the number of classes whose woven class file was found in
+    * the cache. */
+   public long getHitCount() {
+      return hits.get();
+   }
+
+   /**
+    * Gets the number of classes that were woven because they were not
+    * in the cache. */
+   public long getMissCount() {
+      return misses.get();
+   }
+
+   /**
+    * Gets the number of bytes of the file that are used. */
+   public long getUsedSize() {
+      synchronized(monitor) {
+         return buffer.getLong(END_OFFSET);
+      }
+   }
+
+   /**
+    * Closes the file of this cache. It should be detached from its
+    * instrumentor before. */
+   public void close() throws IOException {
+      file.close();
+   }
+
+   /**
+    * Computes the key of a class.
+    *
+    * @param bytes the original class file
+    * @param plan the instrumentations of the class
+    * @return the key, or null if the woven class cannot be cached */
+   static byte[] keyOf(byte[] bytes, List<ClassEdit> plan) {
+      MessageDigest digest;
+      try {
+         digest=MessageDigest.getInstance("SHA-256");
+      } catch(NoSuchAlgorithmException e) {
+         return null;
+      }
+      List<ClassEdit> ordered;
+      try {
+         ordered=Weaver.order(plan);
+      } catch(InstrumentationError e) {
+         // the weaver reports it
+         return null;
+      }
+      StringBuilder configuration=new StringBuilder();
+      configuration.append(Weaver.VERSION);
+      for(ClassEdit edit : ordered) {
+         if(edit.getType()==Instrumentation.ADD_CLASS) {
+            return null;
+         }
+         configuration.append('\n').append(edit.getType())
+            .append(' ').append(edit.getLocation())
+            .append(' ').append(edit.name)
+            .append(' ').append(join(edit.types))
+            .append(' ').append(join(edit.names))
+            .append(' ').append(edit.code instanceof InterceptorCode
+                                ?"interceptors":String.valueOf(edit.code))
+            .append(' ').append(edit.chain);
+      }
+      configuration.append('\n');
+      digest.update(configuration.toString().getBytes(StandardCharsets.UTF_8));
+      digest.update(bytes);
+      return digest.digest();
+   }
+
+   private static String join(String[] values) {
+      if(values==null) {
+         return "-";
+      }
+      StringBuilder joined=new StringBuilder();
+      for(String value : values) {
+         joined.append(value).append(',');
+      }
+      return joined.toString();
+   }
+
+   /**
+    * Computes the checksum of an entry. The key is included, so that
+    * a zeroed length and checksum do not make an empty entry. */
+   private static int checksum(byte[] key, byte[] bytes) {
+      CRC32 crc=new CRC32();
+      crc.update(key,0,key.length);
+      crc.update(bytes,0,bytes.length);
+      return (int)crc.getValue();
+   }
+
+   /**
+    * Gets a woven class file.
+    *
+    * @return the class file, or null if it is not in the cache (or if
+    * its entry is corrupted) */
+   byte[] get(byte[] key) {
+      ByteBuffer wrapped=ByteBuffer.wrap(key);
+      Integer offset=index.get(wrapped);
+      if(offset==null) {
+         try {
+            synchronized(monitor) {
+               FileLock lock=channel.lock(0,HEADER_SIZE,true);
+               try {
+                  scan();
+               } finally {
+                  lock.release();
+               }
+            }
+         } catch(IOException e) {
+            // weaves the class
+         } catch(OverlappingFileLockException e) {
+            // weaves the class
+         }
+         offset=index.get(wrapped);
+         if(offset==null) {
+            misses.incrementAndGet();
+            return null;
+         }
+      }
+      ByteBuffer entry=buffer.duplicate();
+      int length=entry.getInt(offset.intValue()+KEY_SIZE);
+      int checksum=entry.getInt(offset.intValue()+KEY_SIZE+4);
+      byte[] bytes=new byte[length];
+      entry.position(offset.intValue()+ENTRY_HEADER_SIZE);
+      entry.get(bytes);
+      if(checksum(key,bytes)!=checksum) {
+         // put() appends another entry
+         index.remove(wrapped,offset);
+         misses.incrementAndGet();
+         return null;
+      }
+      hits.incrementAndGet();
+      return bytes;
+   }
+
+   /**
+    * Stores a woven class file, unless the file is full or another
+    * JVM stored it meanwhile. */
+   void put(byte[] key, byte[] bytes) {
+      int size=ENTRY_HEADER_SIZE+bytes.length;
+      try {
+         synchronized(monitor) {
+            FileLock lock=channel.lock(0,HEADER_SIZE,false);
+            try {
+               scan();
+               if(index.containsKey(ByteBuffer.wrap(key))
+                  || size>buffer.capacity()-scanned) {
+                  return;
+               }
+               ByteBuffer entry=buffer.duplicate();
+               entry.position(scanned);
+               entry.put(key);
+               entry.putInt(bytes.length);
+               entry.putInt(checksum(key,bytes));
+               entry.put(bytes);
+               // the entry is written before it is published
+               buffer.putLong(END_OFFSET,scanned+size);
+               index.put(ByteBuffer.wrap(key.clone()),Integer.valueOf(scanned));
+               scanned+=size;
+            } finally {
+               lock.release();
+            }
+         }
+      } catch(IOException e) {
+         // the class is not cached
+      } catch(OverlappingFileLockException e) {
+         // the class is not cached
+      }
+   }
+
+   /**
+    * Indexes the entries appended since the last scan (must be
+    * called with the monitor and a file lock held). */
+   private void scan() {
+      long end=buffer.getLong(END_OFFSET);
+      if(end>buffer.capacity()) {
+         // corrupted: only the known entries are used
+         return;
+      }
+      while(scanned+ENTRY_HEADER_SIZE<=end) {
+         int length=buffer.getInt(scanned+KEY_SIZE);
+         if(length<0 || length>end-scanned-ENTRY_HEADER_SIZE) {
+            return;
+         }
+         byte[] key=new byte[KEY_SIZE];
+         ByteBuffer entry=buffer.duplicate();
+         entry.position(scanned);
+         entry.get(key);
+         index.putIfAbsent(ByteBuffer.wrap(key),Integer.valueOf(scanned));
+         scanned+=ENTRY_HEADER_SIZE+length;
+      }
+   }
+
+}
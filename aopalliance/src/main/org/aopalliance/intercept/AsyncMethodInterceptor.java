@@ -0,0 +1,56 @@
+
+package org.aopalliance.intercept;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Intercepts calls to methods that return a {@link CompletionStage},
+ * without waiting for their completion.
+ *
+ * <p>A {@link MethodInterceptor} considers that the call is over when
+ * {@link Joinpoint#proceed()} returns: for an asynchronous method, its
+ * "after" treatments would run when the call is started, not when it
+ * completes. An asynchronous interceptor rather proceeds with {@link
+ * AsyncMethodInvocation#proceedAsync()} and chains its treatments to
+ * the returned stage. E.g. the following class traces the completion
+ * of the intercepted calls:
+ *
+ * <pre class=code>
+ * class TracingInterceptor implements AsyncMethodInterceptor {
+ *   public CompletionStage&lt;?&gt; invokeAsync(AsyncMethodInvocation i) {
+ *     return i.proceedAsync().whenComplete((ret,t) -&gt;
+ *        System.out.println("method "+i.getMethod()+" completed with "+
+ *                           (t==null?ret:t)));
+ *   }
+ * }
+ * </pre>
+ *
+ * <p>Synchronous and asynchronous interceptors can be mixed in the
+ * same chain: for a synchronous interceptor, the result of {@link
+ * Joinpoint#proceed()} is the stage returned by the rest of the
+ * chain.
+ *
+ * @see AsyncMethodInvocation */
+
+public interface AsyncMethodInterceptor extends Interceptor {
+
+   /**
+    * Implement this method to perform extra treatments before the
+    * invocation and when it completes. Polite implementations would
+    * certainly like to invoke {@link
+    * AsyncMethodInvocation#proceedAsync()}.
+    *
+    * <p>The implementations must not block the calling thread until
+    * the returned stage completes.
+    *
+    * @param invocation the method invocation joinpoint
+    * @return the stage returned by {@link
+    * AsyncMethodInvocation#proceedAsync()}, or a stage derived from
+    * it
+    * @throws Throwable if the interceptor fails before returning a
+    * stage (this is equivalent to returning a stage completed with
+    * this exception) */
+   CompletionStage<?> invokeAsync(AsyncMethodInvocation invocation)
+      throws Throwable;
+
+}
@@ -0,0 +1,29 @@
+
+package org.aopalliance.intercept;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * An invocation of a method that returns a {@link CompletionStage},
+ * given to asynchronous interceptors.
+ *
+ * <p>Unlike other joinpoints, an asynchronous invocation can be
+ * proceeded from any thread, and after the interceptor has returned
+ * (e.g. from a completion callback, to retry the call).
+ *
+ * @see AsyncMethodInterceptor */
+
+public interface AsyncMethodInvocation extends MethodInvocation {
+
+   /**
+    * Proceeds to the next interceptor in the chain, without waiting
+    * for the completion of the call.
+    *
+    * <p>The exceptions thrown by the next interceptors or by the
+    * target method, before a stage is returned, are not thrown but
+    * reported by the returned stage.
+    *
+    * @return the stage of the rest of the chain */
+   CompletionStage<?> proceedAsync();
+
+}
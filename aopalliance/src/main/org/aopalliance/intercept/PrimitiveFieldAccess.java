@@ -0,0 +1,201 @@
+
+package org.aopalliance.intercept;
+
+/**
+ * An optional extension of the field access interface that gives a
+ * typed access to the value to set.
+ *
+ * <p>{@link FieldAccess#getValueToSet()} boxes the value of a
+ * primitive field. Interceptors of primitive fields (e.g. counters)
+ * can test whether the field access implements this interface and use
+ * the typed methods instead, so that the implementation does not have
+ * to box the values. The <code>proceed<i>Type</i>()</code> methods
+ * return the value that has been read (for a read access) or written
+ * (for a write access) without boxing it when the next element of the
+ * chain is the field access itself.
+ *
+ * <p>The typed methods must be used with the exact type of the field
+ * (no widening conversion is performed).
+ *
+ * @see FieldAccess */
+
+public interface PrimitiveFieldAccess extends FieldAccess {
+
+   /**
+    * Changes the value that must be set to the field.
+    *
+    * @param value the new value (boxed if the field is primitive)
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the value does not match the field
+    * type */
+   void setValueToSet(Object value);
+
+   /**
+    * Gets the value that must be set to a <code>boolean</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a boolean field */
+   boolean getBooleanValueToSet();
+
+   /**
+    * Gets the value that must be set to a <code>byte</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a byte field */
+   byte getByteValueToSet();
+
+   /**
+    * Gets the value that must be set to a <code>char</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a char field */
+   char getCharValueToSet();
+
+   /**
+    * Gets the value that must be set to a <code>short</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a short field */
+   short getShortValueToSet();
+
+   /**
+    * Gets the value that must be set to an <code>int</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not an int field */
+   int getIntValueToSet();
+
+   /**
+    * Gets the value that must be set to a <code>long</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a long field */
+   long getLongValueToSet();
+
+   /**
+    * Gets the value that must be set to a <code>float</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a float field */
+   float getFloatValueToSet();
+
+   /**
+    * Gets the value that must be set to a <code>double</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a double field */
+   double getDoubleValueToSet();
+
+   /**
+    * Changes the value that must be set to a <code>boolean</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a boolean field */
+   void setBooleanValueToSet(boolean value);
+
+   /**
+    * Changes the value that must be set to a <code>byte</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a byte field */
+   void setByteValueToSet(byte value);
+
+   /**
+    * Changes the value that must be set to a <code>char</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a char field */
+   void setCharValueToSet(char value);
+
+   /**
+    * Changes the value that must be set to a <code>short</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a short field */
+   void setShortValueToSet(short value);
+
+   /**
+    * Changes the value that must be set to an <code>int</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not an int field */
+   void setIntValueToSet(int value);
+
+   /**
+    * Changes the value that must be set to a <code>long</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a long field */
+   void setLongValueToSet(long value);
+
+   /**
+    * Changes the value that must be set to a <code>float</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a float field */
+   void setFloatValueToSet(float value);
+
+   /**
+    * Changes the value that must be set to a <code>double</code> field.
+    *
+    * @throws IllegalStateException if this access is a read access
+    * @throws ClassCastException if the field is not a double field */
+   void setDoubleValueToSet(double value);
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a
+    * <code>boolean</code> field.
+    *
+    * @see Joinpoint#proceed() */
+   boolean proceedBoolean() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a
+    * <code>byte</code> field.
+    *
+    * @see Joinpoint#proceed() */
+   byte proceedByte() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a
+    * <code>char</code> field.
+    *
+    * @see Joinpoint#proceed() */
+   char proceedChar() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a
+    * <code>short</code> field.
+    *
+    * @see Joinpoint#proceed() */
+   short proceedShort() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for an
+    * <code>int</code> field.
+    *
+    * @see Joinpoint#proceed() */
+   int proceedInt() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a
+    * <code>long</code> field.
+    *
+    * @see Joinpoint#proceed() */
+   long proceedLong() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a
+    * <code>float</code> field.
+    *
+    * @see Joinpoint#proceed() */
+   float proceedFloat() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a
+    * <code>double</code> field.
+    *
+    * @see Joinpoint#proceed() */
+   double proceedDouble() throws Throwable;
+
+}
@@ -0,0 +1,202 @@
+
+package org.aopalliance.intercept;
+
+/**
+ * An optional extension of the invocation interface that gives an
+ * indexed and typed access to the arguments.
+ *
+ * <p>{@link Invocation#getArguments()} boxes all the primitive
+ * arguments of an invocation. Interceptors that only read (or write)
+ * some primitive arguments can test whether the invocation implements
+ * this interface and use the typed accessors instead, so that the
+ * implementation does not have to box the arguments nor to allocate an
+ * array. Similarly, the <code>proceed<i>Type</i>()</code> methods
+ * return the result of the joinpoint without boxing it when the next
+ * element of the chain is the joinpoint itself.
+ *
+ * <p>The typed accessors must be used with the exact type of the
+ * parameter (no widening conversion is performed).
+ *
+ * <p>The arguments accessed with this interface and the ones of the
+ * {@link Invocation#getArguments()} array are the same: a change made
+ * through any of the two views is seen by the other one.
+ *
+ * @see Invocation */
+
+public interface PrimitiveInvocation extends Invocation {
+
+   /**
+    * Gets the number of arguments of the invocation. */
+   int getArgumentCount();
+
+   /**
+    * Gets an argument (boxed if primitive).
+    *
+    * @param index the index of the argument
+    * @throws IndexOutOfBoundsException if the index is out of range */
+   Object getArgument(int index);
+
+   /**
+    * Sets an argument.
+    *
+    * @param index the index of the argument
+    * @param value the new value (boxed if the parameter is
+    * primitive)
+    * @throws IndexOutOfBoundsException if the index is out of range
+    * @throws ClassCastException if the value does not match the
+    * parameter type */
+   void setArgument(int index, Object value);
+
+   /**
+    * Gets a <code>boolean</code> argument.
+    *
+    * @throws ClassCastException if the argument is not a boolean */
+   boolean getBooleanArgument(int index);
+
+   /**
+    * Gets a <code>byte</code> argument.
+    *
+    * @throws ClassCastException if the argument is not a byte */
+   byte getByteArgument(int index);
+
+   /**
+    * Gets a <code>char</code> argument.
+    *
+    * @throws ClassCastException if the argument is not a char */
+   char getCharArgument(int index);
+
+   /**
+    * Gets a <code>short</code> argument.
+    *
+    * @throws ClassCastException if the argument is not a short */
+   short getShortArgument(int index);
+
+   /**
+    * Gets an <code>int</code> argument.
+    *
+    * @throws ClassCastException if the argument is not an int */
+   int getIntArgument(int index);
+
+   /**
+    * Gets a <code>long</code> argument.
+    *
+    * @throws ClassCastException if the argument is not a long */
+   long getLongArgument(int index);
+
+   /**
+    * Gets a <code>float</code> argument.
+    *
+    * @throws ClassCastException if the argument is not a float */
+   float getFloatArgument(int index);
+
+   /**
+    * Gets a <code>double</code> argument.
+    *
+    * @throws ClassCastException if the argument is not a double */
+   double getDoubleArgument(int index);
+
+   /**
+    * Sets a <code>boolean</code> argument.
+    *
+    * @throws ClassCastException if the parameter is not a boolean */
+   void setBooleanArgument(int index, boolean value);
+
+   /**
+    * Sets a <code>byte</code> argument.
+    *
+    * @throws ClassCastException if the parameter is not a byte */
+   void setByteArgument(int index, byte value);
+
+   /**
+    * Sets a <code>char</code> argument.
+    *
+    * @throws ClassCastException if the parameter is not a char */
+   void setCharArgument(int index, char value);
+
+   /**
+    * Sets a <code>short</code> argument.
+    *
+    * @throws ClassCastException if the parameter is not a short */
+   void setShortArgument(int index, short value);
+
+   /**
+    * Sets an <code>int</code> argument.
+    *
+    * @throws ClassCastException if the parameter is not an int */
+   void setIntArgument(int index, int value);
+
+   /**
+    * Sets a <code>long</code> argument.
+    *
+    * @throws ClassCastException if the parameter is not a long */
+   void setLongArgument(int index, long value);
+
+   /**
+    * Sets a <code>float</code> argument.
+    *
+    * @throws ClassCastException if the parameter is not a float */
+   void setFloatArgument(int index, float value);
+
+   /**
+    * Sets a <code>double</code> argument.
+    *
+    * @throws ClassCastException if the parameter is not a double */
+   void setDoubleArgument(int index, double value);
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a joinpoint
+    * that returns a <code>boolean</code>.
+    *
+    * @see Joinpoint#proceed() */
+   boolean proceedBoolean() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a joinpoint
+    * that returns a <code>byte</code>.
+    *
+    * @see Joinpoint#proceed() */
+   byte proceedByte() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a joinpoint
+    * that returns a <code>char</code>.
+    *
+    * @see Joinpoint#proceed() */
+   char proceedChar() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a joinpoint
+    * that returns a <code>short</code>.
+    *
+    * @see Joinpoint#proceed() */
+   short proceedShort() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a joinpoint
+    * that returns an <code>int</code>.
+    *
+    * @see Joinpoint#proceed() */
+   int proceedInt() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a joinpoint
+    * that returns a <code>long</code>.
+    *
+    * @see Joinpoint#proceed() */
+   long proceedLong() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a joinpoint
+    * that returns a <code>float</code>.
+    *
+    * @see Joinpoint#proceed() */
+   float proceedFloat() throws Throwable;
+
+   /**
+    * Proceeds to the next interceptor in the chain, for a joinpoint
+    * that returns a <code>double</code>.
+    *
+    * @see Joinpoint#proceed() */
+   double proceedDouble() throws Throwable;
+
+}
@@ -0,0 +1,146 @@
+
+package org.aopalliance.intercept.cache;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
+/**
+ * Maps the fields (of given objects) to the memoized results that were
+ * computed from their values.
+ *
+ * <p>Each key is a field and the object that holds it (compared by
+ * identity, null for a static field). The sets of dependent entries
+ * are only modified atomically with their mapping, so that a
+ * dependency that is recorded while the key is invalidated is either
+ * invalidated or kept, never lost. */
+
+final class FieldDependencies {
+
+   private final ConcurrentMap<Key,Set<MemoCache.Entry>> dependents=
+      new ConcurrentHashMap<Key,Set<MemoCache.Entry>>();
+
+   /**
+    * A field of a given object. */
+   static final class Key {
+
+      final Field field;
+
+      final Object holder;
+
+      Key(Field field, Object holder) {
+         this.field=field;
+         this.holder=holder;
+      }
+
+      public int hashCode() {
+         return field.hashCode()*31+System.identityHashCode(holder);
+      }
+
+      public boolean equals(Object o) {
+         if(!(o instanceof Key)) {
+            return false;
+         }
+         Key other=(Key)o;
+         return holder==other.holder && field.equals(other.field);
+      }
+
+   }
+
+   /**
+    * A recorded dependency, kept by its entry to forget it when the
+    * entry is removed. */
+   final class Dependency {
+
+      private final Key key;
+
+      Dependency(Key key) {
+         this.key=key;
+      }
+
+      /**
+       * Records that another entry depends on the same field. */
+      void copyTo(MemoCache.Entry entry) {
+         record(key,entry);
+      }
+
+      void forget(final MemoCache.Entry entry) {
+         dependents.computeIfPresent(
+            key,new BiFunction<Key,Set<MemoCache.Entry>,
+                               Set<MemoCache.Entry>>() {
+               public Set<MemoCache.Entry> apply(Key key,
+                                                 Set<MemoCache.Entry> set) {
+                  set.remove(entry);
+                  return set.isEmpty()?null:set;
+               }
+            });
+      }
+
+   }
+
+   /**
+    * Records that an entry depends on a field. */
+   void record(Key key, final MemoCache.Entry entry) {
+      final boolean[] added=new boolean[1];
+      dependents.compute(
+         key,new BiFunction<Key,Set<MemoCache.Entry>,
+                            Set<MemoCache.Entry>>() {
+            public Set<MemoCache.Entry> apply(Key key,
+                                              Set<MemoCache.Entry> set) {
+               if(set==null) {
+                  set=new HashSet<MemoCache.Entry>();
+               }
+               added[0]=set.add(entry);
+               return set;
+            }
+         });
+      if(added[0]) {
+         Dependency dependency=new Dependency(key);
+         if(!entry.addDependency(dependency)) {
+            // removed meanwhile
+            dependency.forget(entry);
+         }
+      }
+   }
+
+   /**
+    * Removes the entries that depend on a field from their caches.
+    *
+    * <p>The entries are flagged as invalidated atomically with the
+    * removal of their mapping, so that a dependency that is copied
+    * from them concurrently is either invalidated or sees the flag
+    * (see {@link MemoCache.Entry#copyDependencies}). */
+   void invalidate(Key key) {
+      final List<Set<MemoCache.Entry>> removed=
+         new ArrayList<Set<MemoCache.Entry>>(1);
+      dependents.computeIfPresent(
+         key,new BiFunction<Key,Set<MemoCache.Entry>,
+                            Set<MemoCache.Entry>>() {
+            public Set<MemoCache.Entry> apply(Key key,
+                                              Set<MemoCache.Entry> set) {
+               for(MemoCache.Entry entry : set) {
+                  entry.invalidated=true;
+               }
+               removed.add(set);
+               return null;
+            }
+         });
+      for(Set<MemoCache.Entry> set : removed) {
+         for(MemoCache.Entry entry : set) {
+            entry.cache.remove(entry);
+         }
+      }
+   }
+
+   /**
+    * Gets the number of fields on which entries depend. */
+   int size() {
+      return dependents.size();
+   }
+
+}
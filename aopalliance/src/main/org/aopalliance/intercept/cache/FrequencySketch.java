@@ -0,0 +1,89 @@
+
+package org.aopalliance.intercept.cache;
+
+/**
+ * An approximate counter of the frequencies of use of the cache
+ * entries (a count-min sketch of 4-bit counters).
+ *
+ * <p>Each hash is counted in 4 counters, picked by 4 hash functions
+ * in a table of <code>long</code>s (16 counters per long); its
+ * frequency is the minimum of these counters. When the number of
+ * increments reaches 10 times the size of the table, all the counters
+ * are halved, so that the frequencies follow the recent history.
+ *
+ * <p>Instances are not thread-safe: they are guarded by the policy
+ * lock of the cache. */
+
+final class FrequencySketch {
+
+   private static final long[] SEEDS={
+      0xc3a5c85c97cb3127L,0xb492b66fbe98f273L,
+      0x9ae16a3b2f90404fL,0xcbf29ce484222325L
+   };
+
+   private static final long HALF_MASK=0x7777777777777777L;
+
+   private final long[] table;
+
+   private final int mask;
+
+   private final int sampleSize;
+
+   private int size;
+
+   /**
+    * Creates a sketch for a given number of entries. */
+   FrequencySketch(long maximumSize) {
+      int length=16;
+      while(length<maximumSize && length<(1<<20)) {
+         length<<=1;
+      }
+      table=new long[length];
+      mask=length-1;
+      sampleSize=10*length;
+   }
+
+   private static long rehash(int hash, int i) {
+      long h=(hash+SEEDS[i])*SEEDS[i];
+      return h+(h>>>32);
+   }
+
+   /**
+    * Gets the estimated frequency of a hash (between 0 and 15). */
+   int frequency(int hash) {
+      int frequency=15;
+      for(int i=0;i<4;i++) {
+         long h=rehash(hash,i);
+         int offset=(int)((h>>>40)&15)<<2;
+         int count=(int)((table[(int)h&mask]>>>offset)&15);
+         frequency=Math.min(frequency,count);
+      }
+      return frequency;
+   }
+
+   /**
+    * Counts a use of a hash. */
+   void increment(int hash) {
+      boolean added=false;
+      for(int i=0;i<4;i++) {
+         long h=rehash(hash,i);
+         int index=(int)h&mask;
+         int offset=(int)((h>>>40)&15)<<2;
+         if(((table[index]>>>offset)&15)<15) {
+            table[index]+=1L<<offset;
+            added=true;
+         }
+      }
+      if(added && ++size==sampleSize) {
+         reset();
+      }
+   }
+
+   private void reset() {
+      for(int i=0;i<table.length;i++) {
+         table[i]=(table[i]>>>1)&HALF_MASK;
+      }
+      size/=2;
+   }
+
+}
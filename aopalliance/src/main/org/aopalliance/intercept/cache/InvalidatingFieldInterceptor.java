@@ -0,0 +1,72 @@
+
+package org.aopalliance.intercept.cache;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import org.aopalliance.intercept.FieldAccess;
+import org.aopalliance.intercept.FieldInterceptor;
+
+/**
+ * Invalidates the results memoized by {@link MemoizingInterceptor}s
+ * when the fields they were computed from are written.
+ *
+ * <p>This interceptor must be installed on the fields read by the
+ * memoized methods. While a result is being computed (i.e. during the
+ * <code>proceed()</code> of a cache miss), the reads of these fields
+ * are recorded as dependencies of the result, and of the results being
+ * computed by the enclosing memoized calls of the same thread (a
+ * memoized result that is found, or waited for, while computing
+ * another one also passes its dependencies to it). When
+ * such a field is written, only the results that depend on this field
+ * of this object are evicted; the results being computed are not
+ * memoized.
+ *
+ * <p>The invalidation takes place after the write, so that a result
+ * computed concurrently from the previous value is invalidated too.
+ * Outside of the computation of a memoized result, a read costs a
+ * thread local lookup.
+ *
+ * @see MemoizingInterceptor */
+
+public class InvalidatingFieldInterceptor implements FieldInterceptor {
+
+   private final FieldDependencies dependencies=new FieldDependencies();
+
+   public Object get(FieldAccess fieldRead) throws Throwable {
+      List<MemoCache.Entry> loading=MemoCache.loadingEntries();
+      if(!loading.isEmpty()) {
+         FieldDependencies.Key key=keyOf(fieldRead);
+         for(int i=0;i<loading.size();i++) {
+            dependencies.record(key,loading.get(i));
+         }
+      }
+      return fieldRead.proceed();
+   }
+
+   public Object set(FieldAccess fieldWrite) throws Throwable {
+      try {
+         return fieldWrite.proceed();
+      } finally {
+         dependencies.invalidate(keyOf(fieldWrite));
+      }
+   }
+
+   /**
+    * Gets the key of an accessed field: the object given for a static
+    * field is ignored, so that all its accesses share the same key. */
+   private static FieldDependencies.Key keyOf(FieldAccess access) {
+      Field field=access.getField();
+      return new FieldDependencies.Key(
+         field,Modifier.isStatic(field.getModifiers())?null:access.getThis());
+   }
+
+   /**
+    * Gets the number of fields (of distinct objects) on which memoized
+    * results currently depend. */
+   public int dependencyCount() {
+      return dependencies.size();
+   }
+
+}
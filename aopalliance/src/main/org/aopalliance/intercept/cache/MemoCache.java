@@ -0,0 +1,714 @@
+
+package org.aopalliance.intercept.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * The bounded concurrent cache of the memoized results.
+ *
+ * <p>The entries are kept in a segmented hash table with fixed-size
+ * bucket arrays (the cache is bounded), that is read without locks.
+ * A missing entry is inserted before its value is computed, in a
+ * loading state: the other threads that look for it wait for its
+ * value instead of computing it again (single-flight loading).
+ *
+ * <p>The eviction policy is W-TinyLFU: the new entries enter a small
+ * LRU window (1% of the maximum size); the entries evicted from the
+ * window compete with the least recently used entries of the main
+ * segmented LRU (probation and protected queues), and the one whose
+ * estimated frequency of use is the lowest is evicted. The policy
+ * is guarded by a lock; the reads are recorded in lossy striped
+ * buffers that are drained under this lock, so that the hits do not
+ * contend on it. The entries also expire a fixed time after they were
+ * loaded, in their load order. */
+
+final class MemoCache {
+
+   /** The value of an entry that is being loaded. */
+   static final Object LOADING=new Object();
+
+   /** The value of an entry whose load failed. */
+   static final Object FAILED=new Object();
+
+   /** The value of an entry whose value is null. */
+   static final Object NULL=new Object();
+
+   private static final int NONE=0;
+   private static final int WINDOW=1;
+   private static final int PROBATION=2;
+   private static final int PROTECTED=3;
+
+   private static final int BUFFER_SIZE=16;
+
+   private static final int STRIPES=stripes();
+
+   /**
+    * A cache entry: a key, a value and the links of the policy
+    * queues. */
+   static final class Entry {
+
+      final MemoCache cache;
+
+      final int hash;
+
+      final Signature signature;
+
+      final Object target;
+
+      final Object[] arguments;
+
+      volatile Entry next;
+
+      volatile Object value=LOADING;
+
+      volatile boolean removed;
+
+      /** set when a field the value depends on is written */
+      volatile boolean invalidated;
+
+      /** the thread that loads the value */
+      Thread loader;
+
+      Throwable failure;
+
+      long loadTime;
+
+      /** the field accesses the value depends on (guarded by this) */
+      private List<FieldDependencies.Dependency> dependencies;
+
+      // guarded by the policy lock
+      int queue;
+      Entry previousInQueue;
+      Entry nextInQueue;
+      Entry previousLoaded;
+      Entry nextLoaded;
+
+      Entry(MemoCache cache, int hash, Signature signature, Object target,
+            Object[] arguments) {
+         this.cache=cache;
+         this.hash=hash;
+         this.signature=signature;
+         this.target=target;
+         this.arguments=arguments;
+         this.loader=Thread.currentThread();
+      }
+
+      boolean matches(int hash, Signature signature,
+                      MethodInvocation invocation) {
+         return this.hash==hash && this.signature==signature
+            && target==invocation.getThis()
+            && signature.matches(arguments,invocation);
+      }
+
+      boolean sameKey(Entry other) {
+         return hash==other.hash && signature==other.signature
+            && target==other.target
+            && Arrays.equals(arguments,other.arguments);
+      }
+
+      /**
+       * Sets the loaded value and wakes up the waiting threads. */
+      synchronized void complete(Object result, long now) {
+         loadTime=now;
+         loader=null;
+         value=result==null?NULL:result;
+         notifyAll();
+      }
+
+      synchronized void fail(Throwable t) {
+         failure=t;
+         loader=null;
+         value=FAILED;
+         notifyAll();
+      }
+
+      /**
+       * Waits for the value of the entry.
+       *
+       * @return the value (null if the cached value is null)
+       * @throws Throwable the exception of the load */
+      Object await() throws Throwable {
+         if(loader==Thread.currentThread()) {
+            throw new IllegalStateException(
+               "recursive call of "+signature.method);
+         }
+         Object current;
+         synchronized(this) {
+            while((current=value)==LOADING) {
+               wait();
+            }
+         }
+         if(current==FAILED) {
+            throw failure;
+         }
+         return current==NULL?null:current;
+      }
+
+      /**
+       * Records that the value depends on a field access.
+       *
+       * @return false if the entry has already been removed */
+      synchronized boolean addDependency(
+         FieldDependencies.Dependency dependency) {
+         if(removed) {
+            return false;
+         }
+         if(dependencies==null) {
+            dependencies=new ArrayList<FieldDependencies.Dependency>(4);
+         }
+         dependencies.add(dependency);
+         return true;
+      }
+
+      /**
+       * Makes entries being loaded depend on the fields this entry
+       * depends on, since their values are computed from its value. If
+       * the dependencies of this entry are lost (it was removed), or
+       * if one of these fields was written, the loaded values are not
+       * memoized. */
+      void copyDependencies(List<Entry> loading) {
+         List<FieldDependencies.Dependency> copied;
+         synchronized(this) {
+            copied=removed?null:dependencies==null
+               ?Collections.<FieldDependencies.Dependency>emptyList()
+               :new ArrayList<FieldDependencies.Dependency>(dependencies);
+         }
+         boolean stale=copied==null;
+         if(!stale) {
+            for(FieldDependencies.Dependency dependency : copied) {
+               for(int i=0;i<loading.size();i++) {
+                  dependency.copyTo(loading.get(i));
+               }
+            }
+            // checked after the copy: a write is either seen here, or
+            // invalidates the copied dependencies
+            stale=invalidated;
+         }
+         if(stale) {
+            for(int i=0;i<loading.size();i++) {
+               Entry entry=loading.get(i);
+               entry.cache.remove(entry);
+            }
+         }
+      }
+
+      /**
+       * Forgets the dependencies of a removed entry. */
+      void forgetDependencies() {
+         List<FieldDependencies.Dependency> forgotten;
+         synchronized(this) {
+            forgotten=dependencies;
+            dependencies=null;
+         }
+         if(forgotten!=null) {
+            for(FieldDependencies.Dependency dependency : forgotten) {
+               dependency.forget(this);
+            }
+         }
+      }
+
+      public String toString() {
+         return signature.method.getName()+Arrays.toString(arguments);
+      }
+
+   }
+
+   /**
+    * A part of the hash table. */
+   private static final class Segment {
+
+      final AtomicReferenceArray<Entry> buckets;
+
+      Segment(int capacity) {
+         buckets=new AtomicReferenceArray<Entry>(capacity);
+      }
+
+      Entry find(int hash, Signature signature,
+                 MethodInvocation invocation) {
+         Entry entry=buckets.get(hash&(buckets.length()-1));
+         while(entry!=null) {
+            if(entry.matches(hash,signature,invocation)) {
+               return entry;
+            }
+            entry=entry.next;
+         }
+         return null;
+      }
+
+      /**
+       * Inserts an entry, unless an entry with the same key exists.
+       *
+       * @return the existing entry, or null if the entry was
+       * inserted */
+      synchronized Entry putIfAbsent(Entry created) {
+         int index=created.hash&(buckets.length()-1);
+         Entry head=buckets.get(index);
+         for(Entry entry=head;entry!=null;entry=entry.next) {
+            if(entry.sameKey(created)) {
+               return entry;
+            }
+         }
+         created.next=head;
+         buckets.set(index,created);
+         return null;
+      }
+
+      /**
+       * Removes an entry, and marks it as removed.
+       *
+       * @return true if the entry was in the segment */
+      synchronized boolean remove(Entry removed) {
+         int index=removed.hash&(buckets.length()-1);
+         Entry previous=null;
+         for(Entry entry=buckets.get(index);entry!=null;
+             entry=entry.next) {
+            if(entry==removed) {
+               removed.removed=true;
+               if(previous==null) {
+                  buckets.set(index,entry.next);
+               } else {
+                  previous.next=entry.next;
+               }
+               return true;
+            }
+            previous=entry;
+         }
+         return false;
+      }
+
+      /**
+       * Collects the entries of the segment that match a filter. */
+      synchronized void collect(Predicate<? super Entry> filter,
+                                List<Entry> matching) {
+         for(int i=0;i<buckets.length();i++) {
+            for(Entry entry=buckets.get(i);entry!=null;
+                entry=entry.next) {
+               if(filter.test(entry)) {
+                  matching.add(entry);
+               }
+            }
+         }
+      }
+
+   }
+
+   /**
+    * A lossy buffer of the entries that were read. */
+   private static final class ReadBuffer {
+
+      final AtomicReferenceArray<Entry> slots=
+         new AtomicReferenceArray<Entry>(BUFFER_SIZE);
+
+      final AtomicInteger writes=new AtomicInteger();
+
+      volatile int reads;
+
+      /**
+       * Records a read.
+       *
+       * @return false if the buffer is full (the read is then
+       * dropped) */
+      boolean offer(Entry entry) {
+         int index=writes.get();
+         if(index-reads>=BUFFER_SIZE) {
+            return false;
+         }
+         if(writes.compareAndSet(index,index+1)) {
+            slots.lazySet(index&(BUFFER_SIZE-1),entry);
+         }
+         return true;
+      }
+
+   }
+
+   /** The entries being loaded by each thread (innermost last). */
+   private static final ThreadLocal<List<Entry>> LOADS=
+      new ThreadLocal<List<Entry>>() {
+         protected List<Entry> initialValue() {
+            return new ArrayList<Entry>();
+         }
+      };
+
+   private final long maximumSize;
+
+   private final long expireNanos;
+
+   private final Segment[] segments;
+
+   private final int segmentShift;
+
+   private final ReadBuffer[] readBuffers;
+
+   private final ReentrantLock policyLock=new ReentrantLock();
+
+   final LongAdder hits=new LongAdder();
+
+   final LongAdder misses=new LongAdder();
+
+   // guarded by the policy lock
+   private final FrequencySketch sketch;
+   private final long windowMaximum;
+   private final long protectedMaximum;
+   private long size;
+   private long windowSize;
+   private long protectedSize;
+   private final Entry window=sentinel();
+   private final Entry probation=sentinel();
+   private final Entry protectedQueue=sentinel();
+   /** the entries in their load order, for the expiration */
+   private final Entry loaded=sentinel();
+
+   /**
+    * Creates an empty cache.
+    *
+    * @param maximumSize the maximum number of entries
+    * @param expireNanos the time after which a loaded entry expires,
+    * in nanoseconds (<code>Long.MAX_VALUE</code> for never) */
+   MemoCache(long maximumSize, long expireNanos) {
+      this.maximumSize=maximumSize;
+      this.expireNanos=expireNanos;
+      this.windowMaximum=Math.max(1,maximumSize/100);
+      this.protectedMaximum=(maximumSize-windowMaximum)*4/5;
+      this.sketch=new FrequencySketch(maximumSize);
+      int segmentCount=1;
+      while(segmentCount<2*STRIPES && segmentCount<maximumSize) {
+         segmentCount<<=1;
+      }
+      int capacity=1;
+      while(capacity<2*maximumSize/segmentCount
+            && capacity<(1<<22)/segmentCount) {
+         capacity<<=1;
+      }
+      segments=new Segment[segmentCount];
+      for(int i=0;i<segmentCount;i++) {
+         segments[i]=new Segment(capacity);
+      }
+      segmentShift=32-Integer.numberOfTrailingZeros(segmentCount);
+      readBuffers=new ReadBuffer[STRIPES];
+      for(int i=0;i<STRIPES;i++) {
+         readBuffers[i]=new ReadBuffer();
+      }
+   }
+
+   private static int stripes() {
+      int count=1;
+      while(count<Runtime.getRuntime().availableProcessors()) {
+         count<<=1;
+      }
+      return count;
+   }
+
+   private static Entry sentinel() {
+      Entry sentinel=new Entry(null,0,null,null,null);
+      sentinel.previousInQueue=sentinel.nextInQueue=sentinel;
+      sentinel.previousLoaded=sentinel.nextLoaded=sentinel;
+      return sentinel;
+   }
+
+   private Segment segmentOf(int hash) {
+      return segments.length==1?segments[0]:segments[hash>>>segmentShift];
+   }
+
+   /**
+    * Gets the memoized result of an invocation, or proceeds it (once
+    * for all the concurrent callers) and memoizes its result. */
+   Object get(Signature signature, MethodInvocation invocation)
+      throws Throwable {
+      int hash=signature.hash(invocation);
+      Segment segment=segmentOf(hash);
+      while(true) {
+         Entry entry=segment.find(hash,signature,invocation);
+         if(entry==null) {
+            Entry created=new Entry(this,hash,signature,
+                                    invocation.getThis(),
+                                    signature.key(invocation));
+            entry=segment.putIfAbsent(created);
+            if(entry==null) {
+               misses.increment();
+               return load(created,invocation);
+            }
+         }
+         Object value=entry.value;
+         if(value==LOADING || value==FAILED) {
+            misses.increment();
+            Object result=entry.await();
+            inheritDependencies(entry);
+            return result;
+         }
+         if(expireNanos!=Long.MAX_VALUE
+            && System.nanoTime()-entry.loadTime>=expireNanos) {
+            remove(entry);
+            continue;
+         }
+         hits.increment();
+         recordRead(entry);
+         inheritDependencies(entry);
+         return value==NULL?null:value;
+      }
+   }
+
+   private Object load(Entry entry, MethodInvocation invocation)
+      throws Throwable {
+      Object result;
+      List<Entry> stack=LOADS.get();
+      stack.add(entry);
+      try {
+         result=invocation.proceed();
+      } catch(Throwable t) {
+         segmentOf(entry.hash).remove(entry);
+         entry.forgetDependencies();
+         entry.fail(t);
+         throw t;
+      } finally {
+         stack.remove(stack.size()-1);
+      }
+      entry.complete(result,System.nanoTime());
+      policyLock.lock();
+      try {
+         drainReadBuffers();
+         if(!entry.removed) {
+            add(entry);
+            evict();
+         }
+      } finally {
+         policyLock.unlock();
+      }
+      return result;
+   }
+
+   /**
+    * Makes the entries being loaded by the current thread (the
+    * enclosing memoized calls) depend on the fields of a found
+    * entry. */
+   private static void inheritDependencies(Entry entry) {
+      List<Entry> loading=LOADS.get();
+      if(!loading.isEmpty()) {
+         entry.copyDependencies(loading);
+      }
+   }
+
+   /**
+    * Gets the entries being loaded by the current thread.
+    *
+    * @return the entries (innermost last), not to be modified */
+   static List<Entry> loadingEntries() {
+      return LOADS.get();
+   }
+
+   private void recordRead(Entry entry) {
+      int hash=(int)Thread.currentThread().getId()*0x9E3779B9;
+      ReadBuffer buffer=readBuffers[(hash^(hash>>>16))&(STRIPES-1)];
+      if(!buffer.offer(entry) && policyLock.tryLock()) {
+         try {
+            drainReadBuffers();
+         } finally {
+            policyLock.unlock();
+         }
+      }
+   }
+
+   /**
+    * Removes an entry from the cache.
+    *
+    * @return true if the entry was in the cache */
+   boolean remove(Entry entry) {
+      policyLock.lock();
+      try {
+         return removeEntry(entry);
+      } finally {
+         policyLock.unlock();
+      }
+   }
+
+   /**
+    * Removes the entries that match a filter (including the ones that
+    * are being loaded, whose values will then not be kept). */
+   void removeIf(Predicate<? super Entry> filter) {
+      List<Entry> matching=new ArrayList<Entry>();
+      policyLock.lock();
+      try {
+         for(Segment segment : segments) {
+            segment.collect(filter,matching);
+         }
+         for(Entry entry : matching) {
+            removeEntry(entry);
+         }
+      } finally {
+         policyLock.unlock();
+      }
+   }
+
+   /**
+    * Gets the number of entries (the ones being loaded are not
+    * counted). */
+   long size() {
+      policyLock.lock();
+      try {
+         drainReadBuffers();
+         expire();
+         return size;
+      } finally {
+         policyLock.unlock();
+      }
+   }
+
+   /**
+    * Performs the pending maintenance: records the buffered reads and
+    * removes the expired entries. */
+   void cleanUp() {
+      policyLock.lock();
+      try {
+         drainReadBuffers();
+         expire();
+      } finally {
+         policyLock.unlock();
+      }
+   }
+
+   // the methods below are called with the policy lock held
+
+   private boolean removeEntry(Entry entry) {
+      boolean present=segmentOf(entry.hash).remove(entry);
+      entry.forgetDependencies();
+      if(entry.queue!=NONE) {
+         unlink(entry);
+         if(entry.queue==WINDOW) {
+            windowSize--;
+         } else if(entry.queue==PROTECTED) {
+            protectedSize--;
+         }
+         entry.queue=NONE;
+         entry.previousLoaded.nextLoaded=entry.nextLoaded;
+         entry.nextLoaded.previousLoaded=entry.previousLoaded;
+         entry.previousLoaded=entry.nextLoaded=null;
+         size--;
+      }
+      return present;
+   }
+
+   private void drainReadBuffers() {
+      for(ReadBuffer buffer : readBuffers) {
+         int reads=buffer.reads;
+         int writes=buffer.writes.get();
+         while(reads!=writes) {
+            int index=reads&(BUFFER_SIZE-1);
+            Entry entry=buffer.slots.get(index);
+            if(entry==null) {
+               // not published yet
+               break;
+            }
+            buffer.slots.lazySet(index,null);
+            reads++;
+            onRead(entry);
+         }
+         buffer.reads=reads;
+      }
+   }
+
+   private void onRead(Entry entry) {
+      sketch.increment(entry.hash);
+      switch(entry.queue) {
+         case WINDOW:
+            moveToTail(entry,window);
+            break;
+         case PROBATION:
+            unlink(entry);
+            entry.queue=PROTECTED;
+            linkLast(entry,protectedQueue);
+            protectedSize++;
+            while(protectedSize>protectedMaximum) {
+               Entry demoted=protectedQueue.nextInQueue;
+               unlink(demoted);
+               demoted.queue=PROBATION;
+               linkLast(demoted,probation);
+               protectedSize--;
+            }
+            break;
+         case PROTECTED:
+            moveToTail(entry,protectedQueue);
+            break;
+         default:
+            // removed meanwhile
+      }
+   }
+
+   private void add(Entry entry) {
+      sketch.increment(entry.hash);
+      entry.queue=WINDOW;
+      linkLast(entry,window);
+      windowSize++;
+      entry.previousLoaded=loaded.previousLoaded;
+      entry.nextLoaded=loaded;
+      loaded.previousLoaded.nextLoaded=entry;
+      loaded.previousLoaded=entry;
+      size++;
+   }
+
+   private void evict() {
+      expire();
+      while(windowSize>windowMaximum) {
+         Entry candidate=window.nextInQueue;
+         unlink(candidate);
+         windowSize--;
+         candidate.queue=PROBATION;
+         linkLast(candidate,probation);
+      }
+      while(size>maximumSize) {
+         Entry victim=probation.nextInQueue;
+         if(victim==probation) {
+            victim=protectedQueue.nextInQueue;
+            removeEntry(victim);
+            continue;
+         }
+         Entry candidate=probation.previousInQueue;
+         if(candidate!=victim
+            && sketch.frequency(candidate.hash)
+               >sketch.frequency(victim.hash)) {
+            removeEntry(victim);
+         } else {
+            removeEntry(candidate);
+         }
+      }
+   }
+
+   private void expire() {
+      if(expireNanos==Long.MAX_VALUE) {
+         return;
+      }
+      long now=System.nanoTime();
+      Entry oldest=loaded.nextLoaded;
+      while(oldest!=loaded && now-oldest.loadTime>=expireNanos) {
+         removeEntry(oldest);
+         oldest=loaded.nextLoaded;
+      }
+   }
+
+   private static void unlink(Entry entry) {
+      entry.previousInQueue.nextInQueue=entry.nextInQueue;
+      entry.nextInQueue.previousInQueue=entry.previousInQueue;
+      entry.previousInQueue=entry.nextInQueue=null;
+   }
+
+   private static void linkLast(Entry entry, Entry queue) {
+      entry.previousInQueue=queue.previousInQueue;
+      entry.nextInQueue=queue;
+      queue.previousInQueue.nextInQueue=entry;
+      queue.previousInQueue=entry;
+   }
+
+   private static void moveToTail(Entry entry, Entry queue) {
+      unlink(entry);
+      linkLast(entry,queue);
+   }
+
+}
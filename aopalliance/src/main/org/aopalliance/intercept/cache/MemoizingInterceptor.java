@@ -0,0 +1,148 @@
+
+package org.aopalliance.intercept.cache;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Memoizes the results of the intercepted methods.
+ *
+ * <p>The results are keyed by the method, the target object (compared
+ * by identity) and the arguments (compared with their
+ * <code>equals</code> method). A cache hit does not proceed the
+ * invocation. The results of the invocations that throw an exception
+ * are not memoized.
+ *
+ * <p>The cache is bounded: when it is full, the entries are evicted
+ * according to their recency and their frequency of use (W-TinyLFU),
+ * so that the entries that are used once (e.g. by a scan) do not
+ * evict the frequently used ones. The entries can also expire a fixed
+ * time after they were computed.
+ *
+ * <p>The concurrent misses on the same key are coalesced: only one of
+ * the callers proceeds, and the other ones wait for its result (or its
+ * exception). A memoized method must therefore not call itself
+ * (directly or not) with the same arguments.
+ *
+ * <p>The key of an invocation is hashed and compared with the
+ * memoized keys without allocation: the primitive arguments are read
+ * through {@link org.aopalliance.intercept.PrimitiveInvocation} when
+ * the invocation implements it. A key is only built (and its
+ * primitive arguments boxed) on a miss.
+ *
+ * @see InvalidatingFieldInterceptor
+ * @see MemoCache */
+
+public class MemoizingInterceptor implements MethodInterceptor {
+
+   private final MemoCache cache;
+
+   private final ConcurrentMap<Method,Signature> signatures=
+      new ConcurrentHashMap<Method,Signature>();
+
+   /**
+    * Creates an interceptor whose results never expire.
+    *
+    * @param maximumSize the maximum number of memoized results */
+   public MemoizingInterceptor(long maximumSize) {
+      this(maximumSize,0,TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Creates an interceptor.
+    *
+    * @param maximumSize the maximum number of memoized results
+    * @param expireAfterWrite the time after which a result expires,
+    * or 0 for never
+    * @param unit the unit of <code>expireAfterWrite</code> */
+   public MemoizingInterceptor(long maximumSize, long expireAfterWrite,
+                               TimeUnit unit) {
+      if(maximumSize<=0) {
+         throw new IllegalArgumentException("maximumSize: "+maximumSize);
+      }
+      if(expireAfterWrite<0) {
+         throw new IllegalArgumentException(
+            "expireAfterWrite: "+expireAfterWrite);
+      }
+      this.cache=new MemoCache(
+         maximumSize,
+         expireAfterWrite==0?Long.MAX_VALUE:unit.toNanos(expireAfterWrite));
+   }
+
+   private Signature signatureOf(Method method) {
+      Signature signature=signatures.get(method);
+      if(signature==null) {
+         signature=new Signature(method);
+         Signature previous=signatures.putIfAbsent(method,signature);
+         if(previous!=null) {
+            signature=previous;
+         }
+      }
+      return signature;
+   }
+
+   public Object invoke(MethodInvocation invocation) throws Throwable {
+      return cache.get(signatureOf(invocation.getMethod()),invocation);
+   }
+
+   /**
+    * Forgets all the memoized results. */
+   public void invalidateAll() {
+      cache.removeIf(new Predicate<MemoCache.Entry>() {
+            public boolean test(MemoCache.Entry entry) {
+               return true;
+            }
+         });
+   }
+
+   /**
+    * Forgets the memoized results of a method.
+    *
+    * @param method the method */
+   public void invalidate(final Method method) {
+      final Signature signature=signatures.get(method);
+      if(signature==null) {
+         return;
+      }
+      cache.removeIf(new Predicate<MemoCache.Entry>() {
+            public boolean test(MemoCache.Entry entry) {
+               return entry.signature==signature;
+            }
+         });
+   }
+
+   /**
+    * Gets the number of memoized results. */
+   public long size() {
+      return cache.size();
+   }
+
+   /**
+    * Gets the number of invocations whose result was memoized. */
+   public long hitCount() {
+      return cache.hits.sum();
+   }
+
+   /**
+    * Gets the number of invocations whose result was not memoized
+    * (including the ones that waited for a concurrent load). */
+   public long missCount() {
+      return cache.misses.sum();
+   }
+
+   /**
+    * Removes the expired results and performs the pending maintenance
+    * of the cache. This is done as a side effect of the cache
+    * operations, but can also be run periodically when the cache is
+    * idle. */
+   public void cleanUp() {
+      cache.cleanUp();
+   }
+
+}
@@ -0,0 +1,182 @@
+
+package org.aopalliance.intercept.cache;
+
+import java.lang.reflect.Method;
+import java.util.Objects;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.aopalliance.intercept.PrimitiveInvocation;
+
+/**
+ * Hashes and compares the arguments of the invocations of a method,
+ * without allocating a key.
+ *
+ * <p>When the invocation is a {@link PrimitiveInvocation}, the
+ * primitive arguments are read with the typed accessors, so they are
+ * not boxed. The hashes of the typed and boxed arguments are the
+ * same, and so are their comparisons (the floating point arguments
+ * are compared as {@link Double#equals(Object)} does). The reference
+ * arguments are compared with their <code>equals</code> method. */
+
+final class Signature {
+
+   private static final int REFERENCE=0;
+   private static final int BOOLEAN=1;
+   private static final int BYTE=2;
+   private static final int CHAR=3;
+   private static final int SHORT=4;
+   private static final int INT=5;
+   private static final int LONG=6;
+   private static final int FLOAT=7;
+   private static final int DOUBLE=8;
+
+   final Method method;
+
+   private final int methodHash;
+
+   private final int[] sorts;
+
+   Signature(Method method) {
+      this.method=method;
+      this.methodHash=method.hashCode();
+      Class<?>[] types=method.getParameterTypes();
+      sorts=new int[types.length];
+      for(int i=0;i<types.length;i++) {
+         sorts[i]=sortOf(types[i]);
+      }
+   }
+
+   private static int sortOf(Class<?> type) {
+      if(type==boolean.class) {
+         return BOOLEAN;
+      } else if(type==byte.class) {
+         return BYTE;
+      } else if(type==char.class) {
+         return CHAR;
+      } else if(type==short.class) {
+         return SHORT;
+      } else if(type==int.class) {
+         return INT;
+      } else if(type==long.class) {
+         return LONG;
+      } else if(type==float.class) {
+         return FLOAT;
+      } else if(type==double.class) {
+         return DOUBLE;
+      }
+      return REFERENCE;
+   }
+
+   /**
+    * Hashes the key of an invocation (its method, its target object
+    * and its arguments). */
+   int hash(MethodInvocation invocation) {
+      int h=methodHash*31+System.identityHashCode(invocation.getThis());
+      if(invocation instanceof PrimitiveInvocation) {
+         PrimitiveInvocation typed=(PrimitiveInvocation)invocation;
+         for(int i=0;i<sorts.length;i++) {
+            h=31*h+hash(typed,i);
+         }
+      } else {
+         Object[] arguments=invocation.getArguments();
+         for(int i=0;i<sorts.length;i++) {
+            h=31*h+Objects.hashCode(arguments[i]);
+         }
+      }
+      return h^(h>>>16);
+   }
+
+   private int hash(PrimitiveInvocation invocation, int index) {
+      switch(sorts[index]) {
+         case BOOLEAN:
+            return Boolean.hashCode(invocation.getBooleanArgument(index));
+         case BYTE:
+            return Byte.hashCode(invocation.getByteArgument(index));
+         case CHAR:
+            return Character.hashCode(invocation.getCharArgument(index));
+         case SHORT:
+            return Short.hashCode(invocation.getShortArgument(index));
+         case INT:
+            return Integer.hashCode(invocation.getIntArgument(index));
+         case LONG:
+            return Long.hashCode(invocation.getLongArgument(index));
+         case FLOAT:
+            return Float.hashCode(invocation.getFloatArgument(index));
+         case DOUBLE:
+            return Double.hashCode(invocation.getDoubleArgument(index));
+         default:
+            return Objects.hashCode(invocation.getArgument(index));
+      }
+   }
+
+   /**
+    * Tells if the arguments of an invocation are equal to the
+    * (boxed) arguments of a key. */
+   boolean matches(Object[] key, MethodInvocation invocation) {
+      if(invocation instanceof PrimitiveInvocation) {
+         PrimitiveInvocation typed=(PrimitiveInvocation)invocation;
+         for(int i=0;i<sorts.length;i++) {
+            if(!matches(key[i],typed,i)) {
+               return false;
+            }
+         }
+         return true;
+      }
+      Object[] arguments=invocation.getArguments();
+      for(int i=0;i<sorts.length;i++) {
+         if(!Objects.equals(key[i],arguments[i])) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private boolean matches(Object value, PrimitiveInvocation invocation,
+                           int index) {
+      switch(sorts[index]) {
+         case BOOLEAN:
+            return ((Boolean)value).booleanValue()
+               ==invocation.getBooleanArgument(index);
+         case BYTE:
+            return ((Byte)value).byteValue()
+               ==invocation.getByteArgument(index);
+         case CHAR:
+            return ((Character)value).charValue()
+               ==invocation.getCharArgument(index);
+         case SHORT:
+            return ((Short)value).shortValue()
+               ==invocation.getShortArgument(index);
+         case INT:
+            return ((Integer)value).intValue()
+               ==invocation.getIntArgument(index);
+         case LONG:
+            return ((Long)value).longValue()
+               ==invocation.getLongArgument(index);
+         case FLOAT:
+            return Float.floatToIntBits(((Float)value).floatValue())
+               ==Float.floatToIntBits(invocation.getFloatArgument(index));
+         case DOUBLE:
+            return Double.doubleToLongBits(((Double)value).doubleValue())
+               ==Double.doubleToLongBits(
+                  invocation.getDoubleArgument(index));
+         default:
+            return Objects.equals(value,invocation.getArgument(index));
+      }
+   }
+
+   /**
+    * Copies the arguments of an invocation into a key (boxing the
+    * primitive ones). */
+   Object[] key(MethodInvocation invocation) {
+      if(invocation instanceof PrimitiveInvocation) {
+         PrimitiveInvocation typed=(PrimitiveInvocation)invocation;
+         Object[] key=new Object[sorts.length];
+         for(int i=0;i<key.length;i++) {
+            key[i]=typed.getArgument(i);
+         }
+         return key;
+      }
+      return invocation.getArguments().clone();
+   }
+
+}
@@ -0,0 +1,316 @@
+
+package org.aopalliance.intercept.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.aopalliance.intercept.PrimitiveInvocation;
+
+/**
+ * Coalesces the concurrent calls of a single-key method (e.g.
+ * <code>load(id)</code>) into calls of a bulk method (e.g.
+ * <code>loadAll(ids)</code>).
+ *
+ * <p>The calls are queued in a lock-free queue (one per method). The
+ * first caller that finds no call being dispatched becomes the
+ * dispatcher: it takes the queued calls (up to the maximum batch
+ * size), loads their results with the {@link BulkLoader} of the
+ * interceptor (once per distinct key and target object), and hands
+ * them to the waiting callers. It dispatches until its own call is
+ * done, then hands the dispatch over to the next queued caller.
+ *
+ * <p>The batching is natural: the calls that arrive while a batch is
+ * being loaded make the next batch. When the load is low, a call that
+ * finds the queue empty is dispatched at once, and a batch that only
+ * holds the call of the dispatcher simply proceeds, so that no latency
+ * is added. An optional window lets the dispatcher wait for a batch to
+ * fill, but only while the load is high (i.e. when the previous batch
+ * held several calls).
+ *
+ * <p>The calls that are loaded in bulk do not proceed: this
+ * interceptor should be the innermost one of the chain. The methods
+ * that do not take exactly one argument are proceeded as usual.
+ *
+ * @see BulkLoader */
+
+public class BatchingInterceptor implements MethodInterceptor {
+
+   private final BulkLoader loader;
+
+   private final int maxBatchSize;
+
+   private final long maxWait;
+
+   private final ConcurrentMap<Method,Batcher> batchers=
+      new ConcurrentHashMap<Method,Batcher>();
+
+   /**
+    * Creates an interceptor with natural batching.
+    *
+    * @param loader loads the results of a batch
+    * @param maxBatchSize the maximum number of calls of a batch */
+   public BatchingInterceptor(BulkLoader loader, int maxBatchSize) {
+      this(loader,maxBatchSize,0,TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Creates an interceptor whose dispatcher waits for the batches to
+    * fill when the load is high.
+    *
+    * @param loader loads the results of a batch
+    * @param maxBatchSize the maximum number of calls of a batch
+    * @param maxWait the maximum time a dispatcher waits for a batch to
+    * fill (0 for natural batching only)
+    * @param unit the unit of <code>maxWait</code> */
+   public BatchingInterceptor(BulkLoader loader, int maxBatchSize,
+                              long maxWait, TimeUnit unit) {
+      if(maxBatchSize<1 || maxWait<0) {
+         throw new IllegalArgumentException(
+            "batch size "+maxBatchSize+", wait "+maxWait);
+      }
+      this.loader=loader;
+      this.maxBatchSize=maxBatchSize;
+      this.maxWait=unit.toNanos(maxWait);
+   }
+
+   public Object invoke(MethodInvocation invocation) throws Throwable {
+      Method method=invocation.getMethod();
+      if(method.getParameterCount()!=1) {
+         return invocation.proceed();
+      }
+      Batcher batcher=batchers.get(method);
+      if(batcher==null) {
+         batcher=new Batcher();
+         Batcher previous=batchers.putIfAbsent(method,batcher);
+         if(previous!=null) {
+            batcher=previous;
+         }
+      }
+      return batcher.call(invocation);
+   }
+
+   private static Object keyOf(MethodInvocation invocation) {
+      if(invocation instanceof PrimitiveInvocation) {
+         return ((PrimitiveInvocation)invocation).getArgument(0);
+      }
+      return invocation.getArguments()[0];
+   }
+
+   /**
+    * A queued call. */
+   static final class Request {
+
+      final Object target;
+
+      final Object key;
+
+      final Thread thread;
+
+      Object result;
+
+      Throwable failure;
+
+      volatile boolean done;
+
+      Request(Object target, Object key, Thread thread) {
+         this.target=target;
+         this.key=key;
+         this.thread=thread;
+      }
+
+      void complete(Object result, Throwable failure) {
+         this.result=result;
+         this.failure=failure;
+         done=true;
+         if(thread!=Thread.currentThread()) {
+            LockSupport.unpark(thread);
+         }
+      }
+
+      Object get() throws Throwable {
+         if(failure!=null) {
+            throw failure;
+         }
+         return result;
+      }
+
+   }
+
+   /**
+    * The queue and the dispatcher of a method. */
+   final class Batcher {
+
+      private final ConcurrentLinkedQueue<Request> queue=
+         new ConcurrentLinkedQueue<Request>();
+
+      private final AtomicInteger pending=new AtomicInteger();
+
+      private final AtomicReference<Thread> dispatcher=
+         new AtomicReference<Thread>();
+
+      /** the size of the previous batch (accessed by the dispatcher
+       * only) */
+      private int lastBatchSize;
+
+      Object call(MethodInvocation invocation) throws Throwable {
+         Thread current=Thread.currentThread();
+         Request request=new Request(invocation.getThis(),
+                                     keyOf(invocation),current);
+         queue.offer(request);
+         if(pending.incrementAndGet()>=maxBatchSize && maxWait>0) {
+            Thread waiting=dispatcher.get();
+            if(waiting!=null) {
+               LockSupport.unpark(waiting);
+            }
+         }
+         boolean interrupted=false;
+         while(!request.done) {
+            if(dispatcher.get()==null
+               && dispatcher.compareAndSet(null,current)) {
+               try {
+                  dispatch(request,invocation);
+               } finally {
+                  dispatcher.set(null);
+               }
+               handOver();
+            } else {
+               LockSupport.park(this);
+               if(Thread.interrupted()) {
+                  interrupted=true;
+               }
+            }
+         }
+         if(interrupted) {
+            current.interrupt();
+         }
+         return request.get();
+      }
+
+      /**
+       * Dispatches batches until the call of the dispatcher is
+       * done. */
+      private void dispatch(Request own, MethodInvocation invocation) {
+         while(!own.done) {
+            if(maxWait>0 && lastBatchSize>1) {
+               linger();
+            }
+            List<Request> batch=new ArrayList<Request>(
+               Math.min(pending.get(),maxBatchSize));
+            Request request;
+            while(batch.size()<maxBatchSize
+                  && (request=queue.poll())!=null) {
+               batch.add(request);
+            }
+            pending.addAndGet(-batch.size());
+            lastBatchSize=batch.size();
+            if(batch.size()==1 && batch.get(0)==own) {
+               proceed(own,invocation);
+            } else if(!batch.isEmpty()) {
+               load(batch);
+            }
+         }
+      }
+
+      private void linger() {
+         long deadline=System.nanoTime()+maxWait;
+         while(pending.get()<maxBatchSize) {
+            long remaining=deadline-System.nanoTime();
+            if(remaining<=0) {
+               break;
+            }
+            LockSupport.parkNanos(this,remaining);
+         }
+      }
+
+      /**
+       * Wakes up the first queued caller, so that it dispatches its
+       * call (unless another caller already does). */
+      private void handOver() {
+         Request next=queue.peek();
+         if(next!=null) {
+            LockSupport.unpark(next.thread);
+         }
+      }
+
+   }
+
+   private static void proceed(Request own, MethodInvocation invocation) {
+      try {
+         own.complete(invocation.proceed(),null);
+      } catch(Throwable t) {
+         own.complete(null,t);
+      }
+   }
+
+   /**
+    * Loads the results of a batch, with one bulk call per target
+    * object. */
+   private void load(List<Request> batch) {
+      Map<Object,Map<Object,List<Request>>> targets=
+         new IdentityHashMap<Object,Map<Object,List<Request>>>();
+      for(Request request : batch) {
+         Map<Object,List<Request>> keys=targets.get(request.target);
+         if(keys==null) {
+            keys=new LinkedHashMap<Object,List<Request>>();
+            targets.put(request.target,keys);
+         }
+         List<Request> requests=keys.get(request.key);
+         if(requests==null) {
+            requests=new ArrayList<Request>(1);
+            keys.put(request.key,requests);
+         }
+         requests.add(request);
+      }
+      for(Map.Entry<Object,Map<Object,List<Request>>> entry :
+             targets.entrySet()) {
+         load(entry.getKey(),entry.getValue());
+      }
+   }
+
+   private void load(Object target, Map<Object,List<Request>> keys) {
+      Object results;
+      try {
+         results=loader.loadAll(target,new ArrayList<Object>(keys.keySet()));
+         if(results instanceof List) {
+            if(((List<?>)results).size()!=keys.size()) {
+               throw new IllegalStateException(
+                  ((List<?>)results).size()+" results for "+keys.size()
+                  +" keys");
+            }
+         } else if(!(results instanceof Map)) {
+            throw new IllegalStateException(
+               "not a list nor a map of results: "+results);
+         }
+      } catch(Throwable t) {
+         for(List<Request> requests : keys.values()) {
+            for(Request request : requests) {
+               request.complete(null,t);
+            }
+         }
+         return;
+      }
+      int index=0;
+      for(Map.Entry<Object,List<Request>> entry : keys.entrySet()) {
+         Object result=results instanceof List
+            ?((List<?>)results).get(index++)
+            :((Map<?,?>)results).get(entry.getKey());
+         for(Request request : entry.getValue()) {
+            request.complete(result,null);
+         }
+      }
+   }
+
+}
@@ -0,0 +1,26 @@
+
+package org.aopalliance.intercept.concurrent;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method that blocks its calling thread (e.g. on I/O), and
+ * that an {@link OffloadingInterceptor} runs on another thread.
+ *
+ * @see OffloadingInterceptor */
+
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Blocking {
+
+   /**
+    * The maximum number of concurrent executions of the method, or 0
+    * to use the default of the interceptor. */
+   int permits() default 0;
+
+}
@@ -0,0 +1,60 @@
+
+package org.aopalliance.intercept.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+import org.aopalliance.aop.AspectException;
+import org.aopalliance.intercept.support.TargetInvoker;
+
+/**
+ * Loads the results of several calls of a single-key method at once.
+ *
+ * <p>The loader is given the keys (the arguments) of the calls of a
+ * batch, and returns their results either as a <code>List</code> (in
+ * the order of the keys) or as a <code>Map</code> (from the keys to
+ * their results; a missing key gives a null result).
+ *
+ * @see BatchingInterceptor */
+
+public interface BulkLoader {
+
+   /**
+    * Loads the results of several keys.
+    *
+    * @param target the target object of the calls (null if the method
+    * is static)
+    * @param keys the distinct keys of the calls
+    * @return a list or a map of the results
+    * @throws Throwable the exception that all the calls of the batch
+    * throw */
+   Object loadAll(Object target, List<Object> keys) throws Throwable;
+
+   /**
+    * Returns a loader that calls a bulk method of the target object
+    * (e.g. <code>loadAll(Collection ids)</code> for
+    * <code>load(id)</code>).
+    *
+    * @param bulk a method that takes a list of keys (or one of its
+    * supertypes) and returns a list or a map of the results
+    * @throws AspectException if the bulk method does not have a
+    * suitable signature */
+   static BulkLoader forMethod(Method bulk) {
+      Class<?>[] parameters=bulk.getParameterTypes();
+      Class<?> result=bulk.getReturnType();
+      if(parameters.length!=1 || !parameters[0].isAssignableFrom(List.class)
+         || !(result.isAssignableFrom(List.class)
+              || result.isAssignableFrom(Map.class))) {
+         throw new AspectException("not a bulk method: "+bulk);
+      }
+      final TargetInvoker invoker=TargetInvoker.forMethod(bulk);
+      return new BulkLoader() {
+            public Object loadAll(Object target, List<Object> keys)
+               throws Throwable {
+               return invoker.invoke(target,new Object[] {keys});
+            }
+         };
+   }
+
+}
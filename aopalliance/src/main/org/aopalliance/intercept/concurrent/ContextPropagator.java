@@ -0,0 +1,93 @@
+
+package org.aopalliance.intercept.concurrent;
+
+/**
+ * Propagates a part of the context of a thread (e.g. a thread local)
+ * to the threads that run joinpoints on its behalf.
+ *
+ * <p>The context is captured on the calling thread, installed on the
+ * thread that runs the joinpoint, and the previous context of this
+ * thread is restored afterwards:
+ *
+ * <pre class=code>
+ * Object context=propagator.capture();       // calling thread
+ * ...
+ * Object previous=propagator.install(context); // running thread
+ * try {
+ *    ... // run the joinpoint
+ * } finally {
+ *    propagator.restore(previous);
+ * }
+ * </pre>
+ *
+ * @see OffloadingInterceptor */
+
+public interface ContextPropagator {
+
+   /**
+    * Propagates the context class loader. */
+   ContextPropagator CONTEXT_CLASS_LOADER=new ContextPropagator() {
+         public Object capture() {
+            return Thread.currentThread().getContextClassLoader();
+         }
+
+         public Object install(Object context) {
+            Thread thread=Thread.currentThread();
+            ClassLoader previous=thread.getContextClassLoader();
+            thread.setContextClassLoader((ClassLoader)context);
+            return previous;
+         }
+
+         public void restore(Object previous) {
+            Thread.currentThread().setContextClassLoader(
+               (ClassLoader)previous);
+         }
+      };
+
+   /**
+    * Captures the context of the current thread. */
+   Object capture();
+
+   /**
+    * Installs a captured context on the current thread.
+    *
+    * @param context the result of {@link #capture()}
+    * @return the previous context of the current thread */
+   Object install(Object context);
+
+   /**
+    * Restores the context of the current thread.
+    *
+    * @param previous the result of {@link #install(Object)} */
+   void restore(Object previous);
+
+   /**
+    * Returns a propagator of the value of a thread local.
+    *
+    * <p>The value is shared (not copied) by the calling and the
+    * running threads. */
+   static <T> ContextPropagator forThreadLocal(final ThreadLocal<T> local) {
+      return new ContextPropagator() {
+            public Object capture() {
+               return local.get();
+            }
+
+            @SuppressWarnings("unchecked")
+            public Object install(Object context) {
+               T previous=local.get();
+               local.set((T)context);
+               return previous;
+            }
+
+            @SuppressWarnings("unchecked")
+            public void restore(Object previous) {
+               if(previous==null) {
+                  local.remove();
+               } else {
+                  local.set((T)previous);
+               }
+            }
+         };
+   }
+
+}
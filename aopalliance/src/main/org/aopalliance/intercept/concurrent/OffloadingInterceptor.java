@@ -0,0 +1,324 @@
+
+package org.aopalliance.intercept.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import org.aopalliance.intercept.AsyncMethodInterceptor;
+import org.aopalliance.intercept.AsyncMethodInvocation;
+import org.aopalliance.intercept.Joinpoint;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.aopalliance.intercept.support.PooledJoinpoint;
+
+/**
+ * Runs the blocking methods on other threads (virtual threads when
+ * the runtime provides them).
+ *
+ * <p>The methods annotated with {@link Blocking} are proceeded by a
+ * task of the executor of the interceptor; the other methods are
+ * proceeded inline. Each method has its own semaphore that bounds its
+ * number of concurrent executions (see {@link Blocking#permits()}), so
+ * that a slow resource (e.g. a connection pool) is not flooded by the
+ * threads. The permit is taken before the call is submitted to the
+ * executor, so that the bound also limits the number of threads. The
+ * context of the caller is propagated to the running thread by the
+ * {@link ContextPropagator}s of the interceptor.
+ *
+ * <p>When used as a {@link MethodInterceptor}, the interceptor waits
+ * for a permit, then for the end of the offloaded call, and returns
+ * its result (or throws its exception, not wrapped). When used as an
+ * {@link AsyncMethodInterceptor} (for the methods that return a
+ * <code>CompletionStage</code>), it returns at once a stage that
+ * completes with the result of the call, or that fails with a {@link
+ * RejectedExecutionException} if no permit is available; the permit
+ * is held until the stage of the method completes.
+ *
+ * <p>Blocking methods that are called from an offloaded call are
+ * proceeded inline (on the same thread), after acquiring a permit.
+ *
+ * @see Blocking */
+
+public class OffloadingInterceptor
+   implements MethodInterceptor, AsyncMethodInterceptor {
+
+   /** The default maximum number of concurrent executions of a
+    * method. */
+   public static final int DEFAULT_PERMITS=64;
+
+   /** The semaphore of the methods that are not offloaded. */
+   private static final Semaphore INLINE=new Semaphore(0);
+
+   /** Set while a thread runs an offloaded call. */
+   private static final ThreadLocal<Task> current=new ThreadLocal<Task>();
+
+   private final Executor executor;
+
+   private final int permits;
+
+   private final ContextPropagator[] propagators;
+
+   private final ConcurrentMap<Method,Semaphore> semaphores=
+      new ConcurrentHashMap<Method,Semaphore>();
+
+   /**
+    * Creates an interceptor that runs the blocking methods on virtual
+    * threads (or on a shared pool of daemon threads, on runtimes that
+    * do not support virtual threads), with {@link #DEFAULT_PERMITS}
+    * permits per method, and that propagates the context class
+    * loader. */
+   public OffloadingInterceptor() {
+      this(VirtualThreads.executor(),DEFAULT_PERMITS,
+           ContextPropagator.CONTEXT_CLASS_LOADER);
+   }
+
+   /**
+    * Creates an interceptor.
+    *
+    * @param executor runs the blocking methods
+    * @param permits the default maximum number of concurrent executions
+    * of a method
+    * @param propagators propagate the context of the callers */
+   public OffloadingInterceptor(Executor executor, int permits,
+                                ContextPropagator... propagators) {
+      if(permits<=0) {
+         throw new IllegalArgumentException("permits: "+permits);
+      }
+      this.executor=executor;
+      this.permits=permits;
+      this.propagators=propagators.clone();
+   }
+
+   private Semaphore semaphoreOf(Method method) {
+      Semaphore semaphore=semaphores.get(method);
+      if(semaphore==null) {
+         Blocking blocking=method.getAnnotation(Blocking.class);
+         if(blocking==null) {
+            semaphore=INLINE;
+         } else {
+            semaphore=new Semaphore(
+               blocking.permits()>0?blocking.permits():permits);
+         }
+         Semaphore previous=semaphores.putIfAbsent(method,semaphore);
+         if(previous!=null) {
+            semaphore=previous;
+         }
+      }
+      return semaphore;
+   }
+
+   public Object invoke(MethodInvocation invocation) throws Throwable {
+      Semaphore semaphore=semaphoreOf(invocation.getMethod());
+      if(semaphore==INLINE) {
+         return invocation.proceed();
+      }
+      semaphore.acquire();
+      if(current.get()!=null) {
+         try {
+            return invocation.proceed();
+         } finally {
+            semaphore.release();
+         }
+      }
+      Task task=new Task(invocation,semaphore,false);
+      try {
+         executor.execute(task);
+      } catch(Throwable t) {
+         task.release();
+         throw t;
+      }
+      return task.await();
+   }
+
+   public CompletionStage<?> invokeAsync(AsyncMethodInvocation invocation)
+      throws Throwable {
+      Semaphore semaphore=semaphoreOf(invocation.getMethod());
+      if(semaphore==INLINE) {
+         return invocation.proceedAsync();
+      }
+      if(current.get()!=null) {
+         semaphore.acquire();
+         CompletionStage<?> stage;
+         try {
+            stage=invocation.proceedAsync();
+         } catch(Throwable t) {
+            semaphore.release();
+            throw t;
+         }
+         releaseOnCompletion(stage,semaphore);
+         return stage;
+      }
+      if(!semaphore.tryAcquire()) {
+         return CompletableFuture.failedFuture(
+            new RejectedExecutionException(
+               "no permit left for "+invocation.getMethod()));
+      }
+      if(invocation instanceof PooledJoinpoint) {
+         ((PooledJoinpoint)invocation).retain();
+      }
+      Task task=new Task(invocation,semaphore,true);
+      try {
+         executor.execute(task);
+      } catch(RuntimeException e) {
+         // e.g. a RejectedExecutionException
+         task.release();
+         task.result.completeExceptionally(e);
+      }
+      return task.result;
+   }
+
+   /**
+    * Releases a permit when a stage completes (or at once if there is
+    * no stage). */
+   private static void releaseOnCompletion(CompletionStage<?> stage,
+                                           final Semaphore semaphore) {
+      if(stage==null) {
+         semaphore.release();
+         return;
+      }
+      stage.whenComplete(new BiConsumer<Object,Throwable>() {
+            public void accept(Object value, Throwable failure) {
+               semaphore.release();
+            }
+         });
+   }
+
+   /**
+    * Proceeds a joinpoint on a thread of the executor, with a permit
+    * that was taken by the caller. */
+   private final class Task implements Runnable {
+
+      final CompletableFuture<Object> result=
+         new CompletableFuture<Object>();
+
+      private final Joinpoint joinpoint;
+
+      private final Semaphore semaphore;
+
+      private final boolean async;
+
+      private final Object[] contexts;
+
+      /** the thread that runs the task (guarded by this) */
+      private Thread worker;
+
+      private boolean done;
+
+      /** (guarded by this) */
+      private boolean released;
+
+      Task(Joinpoint joinpoint, Semaphore semaphore, boolean async) {
+         this.joinpoint=joinpoint;
+         this.semaphore=semaphore;
+         this.async=async;
+         this.contexts=new Object[propagators.length];
+         for(int i=0;i<propagators.length;i++) {
+            contexts[i]=propagators[i].capture();
+         }
+      }
+
+      public void run() {
+         synchronized(this) {
+            if(done) {
+               release();
+               return;
+            }
+            worker=Thread.currentThread();
+         }
+         Object[] previous=new Object[propagators.length];
+         int installed=0;
+         current.set(this);
+         try {
+            for(;installed<propagators.length;installed++) {
+               previous[installed]=
+                  propagators[installed].install(contexts[installed]);
+            }
+            if(async) {
+               complete(((AsyncMethodInvocation)joinpoint).proceedAsync());
+            } else {
+               try {
+                  result.complete(joinpoint.proceed());
+               } finally {
+                  release();
+               }
+            }
+         } catch(Throwable t) {
+            release();
+            result.completeExceptionally(t);
+         } finally {
+            while(installed>0) {
+               installed--;
+               propagators[installed].restore(previous[installed]);
+            }
+            current.remove();
+            synchronized(this) {
+               done=true;
+               worker=null;
+               // clear an interruption that targeted this task only
+               Thread.interrupted();
+            }
+         }
+      }
+
+      /**
+       * Releases the permit of the call (once). */
+      void release() {
+         synchronized(this) {
+            if(released) {
+               return;
+            }
+            released=true;
+         }
+         semaphore.release();
+      }
+
+      private void complete(CompletionStage<?> stage) {
+         stage.whenComplete(new BiConsumer<Object,Throwable>() {
+               public void accept(Object value, Throwable failure) {
+                  release();
+                  if(failure==null) {
+                     result.complete(value);
+                  } else {
+                     if(failure instanceof CompletionException
+                        && failure.getCause()!=null) {
+                        failure=failure.getCause();
+                     }
+                     result.completeExceptionally(failure);
+                  }
+               }
+            });
+      }
+
+      /**
+       * Waits for the end of the call.
+       *
+       * <p>If the calling thread is interrupted, the running thread
+       * is interrupted too. */
+      Object await() throws Throwable {
+         try {
+            return result.get();
+         } catch(ExecutionException e) {
+            throw e.getCause();
+         } catch(InterruptedException e) {
+            synchronized(this) {
+               if(worker!=null) {
+                  worker.interrupt();
+               }
+               done=true;
+            }
+            throw e;
+         }
+      }
+
+   }
+
+}
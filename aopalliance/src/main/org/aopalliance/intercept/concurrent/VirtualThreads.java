@@ -0,0 +1,50 @@
+
+package org.aopalliance.intercept.concurrent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives the default executor of the offloaded joinpoints.
+ *
+ * <p>On runtimes that provide virtual threads, the executor starts a
+ * new virtual thread per task. It is looked up by reflection, so that
+ * this package can still run on older runtimes, where the executor
+ * falls back to a cached pool of daemon platform threads. */
+
+final class VirtualThreads {
+
+   private VirtualThreads() {
+   }
+
+   private static final class Holder {
+      static final Executor EXECUTOR=create();
+   }
+
+   /**
+    * Gets the shared default executor. */
+   static Executor executor() {
+      return Holder.EXECUTOR;
+   }
+
+   private static Executor create() {
+      try {
+         return (Executor)Executors.class
+            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch(ReflectiveOperationException e) {
+         // no virtual threads (or not enabled): use platform threads
+      }
+      final AtomicInteger count=new AtomicInteger();
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+               Thread thread=new Thread(
+                  task,"offloaded-"+count.incrementAndGet());
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+   }
+
+}
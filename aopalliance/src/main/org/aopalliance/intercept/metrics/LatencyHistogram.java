@@ -0,0 +1,313 @@
+
+package org.aopalliance.intercept.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies, in nanoseconds.
+ *
+ * <p>The values are counted in log-linear buckets: the values below
+ * 64 have their own bucket, and each power of two above is split
+ * into 32 buckets of equal width, so that the relative error of the
+ * reported values is below 3.2% up to an hour. The longer latencies
+ * are counted in the last bucket (the maximum is still reported
+ * exactly).
+ *
+ * <p>The counters are only striped when the recorders contend: a
+ * histogram starts with a single set of counters, and doubles its
+ * stripes (up to the number of processors) each time a recorder
+ * detects a concurrent update, so that the threads of a busy method
+ * seldom share a cache line while the other methods keep a small
+ * footprint. {@link #record(long)} does not lock nor allocate (except
+ * when the stripes grow).
+ *
+ * <p>The histogram is read through interval snapshots (see {@link
+ * #snapshot()}): each snapshot holds the values recorded since the
+ * previous one. The recorders are not stopped while a snapshot is
+ * taken, so a value recorded concurrently is reported by this
+ * snapshot or by the next one.
+ *
+ * @see LatencyInterceptor */
+
+public final class LatencyHistogram {
+
+   private static final int SUB_BUCKET_BITS=5;
+
+   private static final int SUB_BUCKETS=1<<SUB_BUCKET_BITS;
+
+   /** The highest value that is counted in its own bucket. */
+   static final long HIGHEST_TRACKABLE=TimeUnit.HOURS.toNanos(1);
+
+   static final int BUCKETS=bucketOf(HIGHEST_TRACKABLE)+1;
+
+   private static final int MAX_STRIPES=maxStripes();
+
+   /** the stripes (a power of two, never shrunk) */
+   private volatile Stripe[] stripes={new Stripe()};
+
+   /** set while the stripes are grown */
+   private final AtomicBoolean growing=new AtomicBoolean();
+
+   /** The cumulated counts at the previous snapshot (guarded by
+    * this). */
+   private final long[] previousCounts=new long[BUCKETS];
+
+   private long previousSum;
+
+   private long previousTime=System.nanoTime();
+
+   /**
+    * The counters of a group of threads. */
+   private static final class Stripe {
+      final AtomicLongArray counts=new AtomicLongArray(BUCKETS);
+      final AtomicLong sum=new AtomicLong();
+      /** the maximum since the previous snapshot */
+      final AtomicLong max=new AtomicLong();
+   }
+
+   private static int maxStripes() {
+      int count=1;
+      while(count<Runtime.getRuntime().availableProcessors()) {
+         count<<=1;
+      }
+      return count;
+   }
+
+   /**
+    * Gets the index of the bucket of a value. */
+   static int bucketOf(long value) {
+      if(value<2*SUB_BUCKETS) {
+         return value<0?0:(int)value;
+      }
+      int shift=63-Long.numberOfLeadingZeros(value)-SUB_BUCKET_BITS;
+      return shift*SUB_BUCKETS+(int)(value>>>shift);
+   }
+
+   /**
+    * Gets the lowest value of a bucket. */
+   static long lowestValueOf(int bucket) {
+      if(bucket<2*SUB_BUCKETS) {
+         return bucket;
+      }
+      int shift=(bucket>>>SUB_BUCKET_BITS)-1;
+      return (long)(SUB_BUCKETS+(bucket&(SUB_BUCKETS-1)))<<shift;
+   }
+
+   /**
+    * Gets the highest value of a bucket. */
+   static long highestValueOf(int bucket) {
+      if(bucket<2*SUB_BUCKETS) {
+         return bucket;
+      }
+      int shift=(bucket>>>SUB_BUCKET_BITS)-1;
+      return lowestValueOf(bucket)+(1L<<shift)-1;
+   }
+
+   /**
+    * Doubles the stripes, unless they are at their maximum or are
+    * being grown by another thread. */
+   private void grow(Stripe[] current) {
+      if(current.length>=MAX_STRIPES || !growing.compareAndSet(false,true)) {
+         return;
+      }
+      try {
+         if(stripes==current) {
+            Stripe[] grown=Arrays.copyOf(current,current.length*2);
+            for(int i=current.length;i<grown.length;i++) {
+               grown[i]=new Stripe();
+            }
+            stripes=grown;
+         }
+      } finally {
+         growing.set(false);
+      }
+   }
+
+   /**
+    * Records a latency.
+    *
+    * @param nanos the latency, in nanoseconds (negative values are
+    * counted as 0) */
+   public void record(long nanos) {
+      if(nanos<0) {
+         nanos=0;
+      }
+      Stripe[] striped=stripes;
+      int hash=(int)Thread.currentThread().getId()*0x9E3779B9;
+      Stripe stripe=striped[(hash^(hash>>>16))&(striped.length-1)];
+      long sum=stripe.sum.get();
+      if(!stripe.sum.compareAndSet(sum,sum+nanos)) {
+         // contended: spread the next records over more stripes
+         grow(striped);
+         stripe.sum.getAndAdd(nanos);
+      }
+      stripe.counts.getAndIncrement(
+         bucketOf(Math.min(nanos,HIGHEST_TRACKABLE)));
+      AtomicLong max=stripe.max;
+      long current=max.get();
+      while(nanos>current && !max.compareAndSet(current,nanos)) {
+         current=max.get();
+      }
+   }
+
+   /**
+    * Takes a snapshot of the latencies recorded since the previous
+    * snapshot (or since the creation of the histogram).
+    *
+    * <p>Snapshots are meant to be taken periodically by a single
+    * reporter: concurrent calls are serialized. */
+   public synchronized Snapshot snapshot() {
+      long[] counts=new long[BUCKETS];
+      long sum=0;
+      long max=0;
+      for(Stripe stripe : stripes) {
+         max=Math.max(max,stripe.max.getAndSet(0));
+         sum+=stripe.sum.get();
+         for(int bucket=0;bucket<BUCKETS;bucket++) {
+            counts[bucket]+=stripe.counts.get(bucket);
+         }
+      }
+      long total=0;
+      int highest=-1;
+      for(int bucket=0;bucket<BUCKETS;bucket++) {
+         long cumulated=counts[bucket];
+         counts[bucket]=cumulated-previousCounts[bucket];
+         previousCounts[bucket]=cumulated;
+         if(counts[bucket]!=0) {
+            total+=counts[bucket];
+            highest=bucket;
+         }
+      }
+      long intervalSum=sum-previousSum;
+      previousSum=sum;
+      long now=System.nanoTime();
+      long start=previousTime;
+      previousTime=now;
+      if(highest>=0 && max<lowestValueOf(highest)) {
+         // the maximum was reset by the previous snapshot after the
+         // value was recorded
+         max=highestValueOf(highest);
+      }
+      return new Snapshot(counts,total,intervalSum,max,start,now);
+   }
+
+   /**
+    * The latencies recorded during an interval. */
+   public static final class Snapshot {
+
+      private final long[] counts;
+
+      private final long count;
+
+      private final long sum;
+
+      private final long max;
+
+      private final long startTime;
+
+      private final long endTime;
+
+      Snapshot(long[] counts, long count, long sum, long max,
+               long startTime, long endTime) {
+         this.counts=counts;
+         this.count=count;
+         this.sum=sum;
+         this.max=max;
+         this.startTime=startTime;
+         this.endTime=endTime;
+      }
+
+      /**
+       * Gets the number of recorded latencies. */
+      public long getCount() {
+         return count;
+      }
+
+      /**
+       * Gets the mean latency, in nanoseconds (0 if no latency was
+       * recorded). */
+      public double getMean() {
+         return count==0?0:(double)sum/count;
+      }
+
+      /**
+       * Gets the maximum latency, in nanoseconds. */
+      public long getMax() {
+         return max;
+      }
+
+      /**
+       * Gets the latency below which a given percentage of the
+       * latencies fall.
+       *
+       * @param percentile the percentage, between 0 and 100
+       * @return the latency, in nanoseconds (0 if no latency was
+       * recorded); it is the highest value of its bucket, but never
+       * above {@link #getMax()} */
+      public long getValueAtPercentile(double percentile) {
+         if(count==0) {
+            return 0;
+         }
+         long rank=(long)Math.ceil(
+            Math.min(Math.max(percentile,0),100)/100*count);
+         if(rank<1) {
+            rank=1;
+         }
+         long seen=0;
+         for(int bucket=0;bucket<counts.length;bucket++) {
+            seen+=counts[bucket];
+            if(seen>=rank) {
+               // the last bucket also counts the untracked latencies
+               return bucket==counts.length-1?max
+                  :Math.min(highestValueOf(bucket),max);
+            }
+         }
+         return max;
+      }
+
+      /**
+       * Gets the median latency, in nanoseconds. */
+      public long getP50() {
+         return getValueAtPercentile(50);
+      }
+
+      /**
+       * Gets the 99th percentile of the latencies, in nanoseconds. */
+      public long getP99() {
+         return getValueAtPercentile(99);
+      }
+
+      /**
+       * Gets the 99.9th percentile of the latencies, in
+       * nanoseconds. */
+      public long getP999() {
+         return getValueAtPercentile(99.9);
+      }
+
+      /**
+       * Gets the start of the interval (a {@link System#nanoTime()}
+       * value). */
+      public long getStartTime() {
+         return startTime;
+      }
+
+      /**
+       * Gets the end of the interval (a {@link System#nanoTime()}
+       * value). */
+      public long getEndTime() {
+         return endTime;
+      }
+
+      public String toString() {
+         return "count="+count+", mean="+(long)getMean()+"ns, p50="
+            +getP50()+"ns, p99="+getP99()+"ns, p999="+getP999()
+            +"ns, max="+max+"ns";
+      }
+
+   }
+
+}
@@ -0,0 +1,107 @@
+
+package org.aopalliance.intercept.metrics;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+import org.aopalliance.intercept.AsyncMethodInterceptor;
+import org.aopalliance.intercept.AsyncMethodInvocation;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Records the latencies of the intercepted methods, in a histogram per
+ * method.
+ *
+ * <p>The latency of a call is measured from the entry in the
+ * interceptor to the return of {@link MethodInvocation#proceed()}
+ * (normal or not), so it includes the next interceptors of the chain.
+ * Apart from the creation of the histogram of a method, on its first
+ * call, the interceptor does not lock nor allocate.
+ *
+ * <p>When used as an {@link AsyncMethodInterceptor}, the latency is
+ * measured until the completion of the stage of the call (the
+ * callback that records it is then allocated on each call).
+ *
+ * @see LatencyHistogram */
+
+public class LatencyInterceptor
+   implements MethodInterceptor, AsyncMethodInterceptor {
+
+   private final ConcurrentMap<Method,LatencyHistogram> histograms=
+      new ConcurrentHashMap<Method,LatencyHistogram>();
+
+   private LatencyHistogram histogramOf(Method method) {
+      LatencyHistogram histogram=histograms.get(method);
+      if(histogram==null) {
+         histogram=new LatencyHistogram();
+         LatencyHistogram previous=
+            histograms.putIfAbsent(method,histogram);
+         if(previous!=null) {
+            histogram=previous;
+         }
+      }
+      return histogram;
+   }
+
+   public Object invoke(MethodInvocation invocation) throws Throwable {
+      LatencyHistogram histogram=histogramOf(invocation.getMethod());
+      long start=System.nanoTime();
+      try {
+         return invocation.proceed();
+      } finally {
+         histogram.record(System.nanoTime()-start);
+      }
+   }
+
+   public CompletionStage<?> invokeAsync(AsyncMethodInvocation invocation) {
+      final LatencyHistogram histogram=
+         histogramOf(invocation.getMethod());
+      final long start=System.nanoTime();
+      return invocation.proceedAsync().whenComplete(
+         new BiConsumer<Object,Throwable>() {
+            public void accept(Object value, Throwable failure) {
+               histogram.record(System.nanoTime()-start);
+            }
+         });
+   }
+
+   /**
+    * Gets the histogram of a method.
+    *
+    * @return the histogram, or null if the method has not been called
+    * yet */
+   public LatencyHistogram getHistogram(Method method) {
+      return histograms.get(method);
+   }
+
+   /**
+    * Gets the histograms of all the called methods.
+    *
+    * @return an unmodifiable view of the histograms */
+   public Map<Method,LatencyHistogram> getHistograms() {
+      return Collections.unmodifiableMap(histograms);
+   }
+
+   /**
+    * Takes an interval snapshot of all the histograms (see {@link
+    * LatencyHistogram#snapshot()}).
+    *
+    * @return the snapshots, by method */
+   public Map<Method,LatencyHistogram.Snapshot> snapshot() {
+      Map<Method,LatencyHistogram.Snapshot> snapshots=
+         new LinkedHashMap<Method,LatencyHistogram.Snapshot>();
+      for(Map.Entry<Method,LatencyHistogram> entry
+             : histograms.entrySet()) {
+         snapshots.put(entry.getKey(),entry.getValue().snapshot());
+      }
+      return snapshots;
+   }
+
+}
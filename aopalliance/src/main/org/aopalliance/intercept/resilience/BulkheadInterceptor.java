@@ -0,0 +1,177 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Limits the number of concurrent executions of each method.
+ *
+ * <p>Each method has its own counter of executions, updated with
+ * compare-and-set operations only: a call that finds the bulkhead full
+ * does not write to the counter, so that the rejections do not
+ * contend. When the bulkhead is full, a call is either rejected at
+ * once (fail-fast mode), or waits for an execution to end, up to a
+ * maximum time (bounded-wait mode). The waiting threads are queued in
+ * a lock-free queue and parked; the end of an execution unparks the
+ * first waiting thread.
+ *
+ * <p>The rejected calls throw an {@link InvocationRejectedException};
+ * so does a waiting call whose thread is interrupted (the interrupt
+ * status of the thread is then kept).
+ *
+ * @see RateLimitingInterceptor */
+
+public class BulkheadInterceptor implements MethodInterceptor {
+
+   private final int maxConcurrentCalls;
+
+   private final long maxWait;
+
+   private final ConcurrentMap<Method,Bulkhead> bulkheads=
+      new ConcurrentHashMap<Method,Bulkhead>();
+
+   private final LongAdder rejected=new LongAdder();
+
+   /**
+    * Creates a fail-fast bulkhead.
+    *
+    * @param maxConcurrentCalls the maximum number of concurrent
+    * executions of each method */
+   public BulkheadInterceptor(int maxConcurrentCalls) {
+      this(maxConcurrentCalls,0,TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Creates a bulkhead whose calls wait when it is full.
+    *
+    * @param maxConcurrentCalls the maximum number of concurrent
+    * executions of each method
+    * @param maxWait the maximum time a call waits for an execution to
+    * end (0 for the fail-fast mode)
+    * @param unit the unit of <code>maxWait</code> */
+   public BulkheadInterceptor(int maxConcurrentCalls, long maxWait,
+                              TimeUnit unit) {
+      if(maxConcurrentCalls<1 || maxWait<0) {
+         throw new IllegalArgumentException(
+            "concurrent calls "+maxConcurrentCalls+", wait "+maxWait);
+      }
+      this.maxConcurrentCalls=maxConcurrentCalls;
+      this.maxWait=unit.toNanos(maxWait);
+   }
+
+   public Object invoke(MethodInvocation invocation) throws Throwable {
+      Bulkhead bulkhead=bulkheadOf(invocation.getMethod());
+      if(!bulkhead.tryAcquire() && !bulkhead.await()) {
+         rejected.increment();
+         throw new InvocationRejectedException(invocation.getMethod(),
+                                               "bulkhead full");
+      }
+      try {
+         return invocation.proceed();
+      } finally {
+         bulkhead.release();
+      }
+   }
+
+   private Bulkhead bulkheadOf(Method method) {
+      Bulkhead bulkhead=bulkheads.get(method);
+      if(bulkhead==null) {
+         bulkhead=new Bulkhead();
+         Bulkhead previous=bulkheads.putIfAbsent(method,bulkhead);
+         if(previous!=null) {
+            bulkhead=previous;
+         }
+      }
+      return bulkhead;
+   }
+
+   /**
+    * Gets the number of the current executions of a method. */
+   public int getConcurrentCalls(Method method) {
+      Bulkhead bulkhead=bulkheads.get(method);
+      return bulkhead==null?0:bulkhead.calls.get();
+   }
+
+   /**
+    * Gets the number of calls rejected so far. */
+   public long getRejectedCount() {
+      return rejected.sum();
+   }
+
+   /**
+    * The executions of a method. */
+   final class Bulkhead {
+
+      final AtomicInteger calls=new AtomicInteger();
+
+      private final ConcurrentLinkedQueue<Thread> waiters=
+         new ConcurrentLinkedQueue<Thread>();
+
+      boolean tryAcquire() {
+         while(true) {
+            int current=calls.get();
+            if(current>=maxConcurrentCalls) {
+               return false;
+            }
+            if(calls.compareAndSet(current,current+1)) {
+               return true;
+            }
+         }
+      }
+
+      /**
+       * Waits for an execution to end.
+       *
+       * @return true if an execution was acquired, false if the wait
+       * timed out or was interrupted */
+      boolean await() {
+         if(maxWait==0) {
+            return false;
+         }
+         long deadline=System.nanoTime()+maxWait;
+         Thread current=Thread.currentThread();
+         waiters.offer(current);
+         boolean acquired=false;
+         try {
+            while(!(acquired=tryAcquire())) {
+               long remaining=deadline-System.nanoTime();
+               if(remaining<=0 || current.isInterrupted()) {
+                  return false;
+               }
+               LockSupport.parkNanos(this,remaining);
+            }
+            return true;
+         } finally {
+            waiters.remove(current);
+            if(acquired || calls.get()<maxConcurrentCalls) {
+               // passes the wake-up on to the next waiter
+               signal();
+            }
+         }
+      }
+
+      void release() {
+         calls.decrementAndGet();
+         signal();
+      }
+
+      private void signal() {
+         Thread next=waiters.peek();
+         if(next!=null) {
+            LockSupport.unpark(next);
+         }
+      }
+
+   }
+
+}
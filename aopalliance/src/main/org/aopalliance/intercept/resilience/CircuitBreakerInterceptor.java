@@ -0,0 +1,380 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Stops calling the methods that fail too often (or are too slow),
+ * for a while.
+ *
+ * <p>Each method has its own circuit. A closed circuit records the
+ * outcomes of the last calls in a sliding window (a ring buffer of
+ * <code>windowSize</code> slots); when the window is full and the rate
+ * of failed calls (or of slow calls) reaches its threshold, the
+ * circuit opens. An open circuit rejects the calls with an {@link
+ * InvocationRejectedException} during the open duration, then lets a
+ * few trial calls through (half-open state): the circuit closes (with
+ * an empty window) if they all succeed, and opens again otherwise.
+ *
+ * <p>The whole state of a circuit is an immutable object held by a
+ * volatile field, and replaced with a compare-and-set: a call to an
+ * open circuit is rejected after a single volatile read (and a clock
+ * read), by throwing the stackless exception of the state, without
+ * allocating. The window is updated with an exchange of a slot, and,
+ * only when the outcome differs from the one it replaces, with the
+ * atomic updates of the counts of the window (one counter per kind
+ * of outcome, so that concurrent overwrites of a slot never corrupt
+ * another count).
+ *
+ * <p>The exceptions thrown by the joinpoint are classified by their
+ * class, as they are thrown (they are not unwrapped): the ignored
+ * exceptions (and their subclasses) count as successes, all the other
+ * ones as failures. The classification of each exception class is
+ * computed once.
+ *
+ * @see InvocationRejectedException */
+
+public class CircuitBreakerInterceptor implements MethodInterceptor {
+
+   /**
+    * The states of a circuit. */
+   public enum State {
+
+      /** The calls proceed, and their outcomes are recorded. */
+      CLOSED,
+
+      /** The calls are rejected. */
+      OPEN,
+
+      /** A few trial calls proceed, and the other ones are
+       * rejected. */
+      HALF_OPEN
+
+   }
+
+   /** the outcomes, as stored in the slots of a window (0 for an
+    * empty slot) */
+   private static final long CALL=1L;
+   private static final long FAILURE=2L;
+   private static final long SLOW=3L;
+
+   private final int windowSize;
+
+   private final float failureRateThreshold;
+
+   private final long slowCallDuration;
+
+   private final float slowCallRateThreshold;
+
+   private final long openDuration;
+
+   private final int trialCalls;
+
+   private final ClassValue<Boolean> failures;
+
+   private final ConcurrentMap<Method,Circuit> circuits=
+      new ConcurrentHashMap<Method,Circuit>();
+
+   private final LongAdder rejected=new LongAdder();
+
+   /**
+    * Creates a circuit breaker that only considers the failures.
+    *
+    * @param windowSize the number of calls of the sliding window
+    * @param failureRateThreshold the percentage of failed calls that
+    * opens the circuit
+    * @param openDuration how long an open circuit rejects the calls
+    * @param unit the unit of <code>openDuration</code> */
+   public CircuitBreakerInterceptor(int windowSize,
+                                    float failureRateThreshold,
+                                    long openDuration, TimeUnit unit) {
+      this(windowSize,failureRateThreshold,0,100,openDuration,unit);
+   }
+
+   /**
+    * Creates a circuit breaker.
+    *
+    * @param windowSize the number of calls of the sliding window
+    * @param failureRateThreshold the percentage of failed calls that
+    * opens the circuit
+    * @param slowCallDuration the duration from which a call is slow (0
+    * to ignore the durations)
+    * @param slowCallRateThreshold the percentage of slow calls that
+    * opens the circuit
+    * @param openDuration how long an open circuit rejects the calls
+    * @param unit the unit of the durations
+    * @param ignored the exceptions that are not failures */
+   @SafeVarargs
+   public CircuitBreakerInterceptor(
+      int windowSize, float failureRateThreshold, long slowCallDuration,
+      float slowCallRateThreshold, long openDuration, TimeUnit unit,
+      final Class<? extends Throwable>... ignored) {
+      if(windowSize<1
+         || !(failureRateThreshold>0) || !(slowCallRateThreshold>0)
+         || slowCallDuration<0 || openDuration<0) {
+         throw new IllegalArgumentException(
+            "window "+windowSize+", failure rate "+failureRateThreshold
+            +", slow call "+slowCallDuration+", slow call rate "
+            +slowCallRateThreshold+", open "+openDuration);
+      }
+      this.windowSize=windowSize;
+      this.failureRateThreshold=failureRateThreshold;
+      this.slowCallDuration=unit.toNanos(slowCallDuration);
+      this.slowCallRateThreshold=slowCallRateThreshold;
+      this.openDuration=unit.toNanos(openDuration);
+      this.trialCalls=Math.max(1,Math.min(10,windowSize/10));
+      final Class<?>[] classes=new Class<?>[ignored.length];
+      for(int i=0;i<classes.length;i++) {
+         classes[i]=ignored[i];
+      }
+      this.failures=new ClassValue<Boolean>() {
+            protected Boolean computeValue(Class<?> type) {
+               for(Class<?> ignoredClass : classes) {
+                  if(ignoredClass.isAssignableFrom(type)) {
+                     return Boolean.FALSE;
+                  }
+               }
+               return Boolean.TRUE;
+            }
+         };
+   }
+
+   public Object invoke(MethodInvocation invocation) throws Throwable {
+      Circuit circuit=circuitOf(invocation.getMethod());
+      Status status=circuit.status;
+      if(status.state!=State.CLOSED) {
+         Status permitted=circuit.permit(status);
+         if(permitted==null) {
+            rejected.increment();
+            throw status.rejection;
+         }
+         status=permitted;
+      }
+      long start=slowCallDuration>0?System.nanoTime():0;
+      Object result;
+      try {
+         result=invocation.proceed();
+      } catch(Throwable t) {
+         circuit.record(status,failures.get(t.getClass()).booleanValue()
+                        ?FAILURE:outcome(start));
+         throw t;
+      }
+      circuit.record(status,outcome(start));
+      return result;
+   }
+
+   private long outcome(long start) {
+      if(slowCallDuration>0 && System.nanoTime()-start>=slowCallDuration) {
+         return SLOW;
+      }
+      return CALL;
+   }
+
+   private Circuit circuitOf(Method method) {
+      Circuit circuit=circuits.get(method);
+      if(circuit==null) {
+         circuit=new Circuit(method);
+         Circuit previous=circuits.putIfAbsent(method,circuit);
+         if(previous!=null) {
+            circuit=previous;
+         }
+      }
+      return circuit;
+   }
+
+   /**
+    * Gets the state of the circuit of a method.
+    *
+    * <p>An open circuit whose open duration is over is reported as
+    * open until a call goes through it. */
+   public State getState(Method method) {
+      Circuit circuit=circuits.get(method);
+      return circuit==null?State.CLOSED:circuit.status.state;
+   }
+
+   /**
+    * Gets the number of calls rejected so far. */
+   public long getRejectedCount() {
+      return rejected.sum();
+   }
+
+   /**
+    * Closes the circuits of all the methods, with empty windows. */
+   public void reset() {
+      for(Circuit circuit : circuits.values()) {
+         circuit.status=circuit.closed();
+      }
+   }
+
+   /**
+    * The immutable state of a circuit. */
+   final class Status {
+
+      final State state;
+
+      /** the outcomes of the last calls (closed state) */
+      final Window window;
+
+      /** when the trial calls can start (open state) */
+      final long openUntil;
+
+      /** the trial calls that can still proceed, and the ones that
+       * succeeded (half-open state) */
+      final AtomicInteger trials;
+      final AtomicInteger successes;
+
+      /** the exception thrown by the rejected calls */
+      final InvocationRejectedException rejection;
+
+      Status(State state, Window window, long openUntil,
+             InvocationRejectedException rejection) {
+         this.state=state;
+         this.window=window;
+         this.openUntil=openUntil;
+         this.rejection=rejection;
+         if(state==State.HALF_OPEN) {
+            trials=new AtomicInteger(trialCalls);
+            successes=new AtomicInteger();
+         } else {
+            trials=successes=null;
+         }
+      }
+
+   }
+
+   /**
+    * A ring buffer of the outcomes of the last calls. */
+   final class Window {
+
+      private final AtomicLong cursor=new AtomicLong();
+
+      private final AtomicLongArray slots=new AtomicLongArray(windowSize);
+
+      /** the numbers of filled slots, failed calls and slow calls */
+      private final AtomicLong calls=new AtomicLong();
+      private final AtomicLong failed=new AtomicLong();
+      private final AtomicLong slow=new AtomicLong();
+
+      /**
+       * Records an outcome.
+       *
+       * <p>When a slot is overwritten concurrently, the updates of a
+       * count can be applied out of order: the count is then off by
+       * one for a moment (possibly below zero), but the other counts
+       * are not affected.
+       *
+       * @return true if the circuit must open */
+      boolean record(long outcome) {
+         int index=(int)((cursor.getAndIncrement()&Long.MAX_VALUE)
+                         %windowSize);
+         long previous=slots.getAndSet(index,outcome);
+         if(previous==outcome) {
+            return false;
+         }
+         if(previous==0) {
+            calls.incrementAndGet();
+         } else if(previous==FAILURE) {
+            failed.decrementAndGet();
+         } else if(previous==SLOW) {
+            slow.decrementAndGet();
+         }
+         if(outcome==FAILURE) {
+            failed.incrementAndGet();
+         } else if(outcome==SLOW) {
+            slow.incrementAndGet();
+         } else {
+            return false;
+         }
+         long total=calls.get();
+         if(total<windowSize) {
+            return false;
+         }
+         return failed.get()*100>=failureRateThreshold*total
+            || slow.get()*100>=slowCallRateThreshold*total;
+      }
+
+   }
+
+   /**
+    * The circuit of a method. */
+   final class Circuit {
+
+      private final Method method;
+
+      volatile Status status;
+
+      private final InvocationRejectedException rejection;
+
+      Circuit(Method method) {
+         this.method=method;
+         this.rejection=new InvocationRejectedException(method,"circuit open");
+         this.status=closed();
+      }
+
+      Status closed() {
+         return new Status(State.CLOSED,new Window(),0,null);
+      }
+
+      /**
+       * Decides whether a call can go through an open or half-open
+       * circuit.
+       *
+       * @return the status of the trial call, or null if the call is
+       * rejected */
+      Status permit(Status current) {
+         if(current.state==State.OPEN) {
+            if(System.nanoTime()-current.openUntil<0) {
+               return null;
+            }
+            Status trial=new Status(State.HALF_OPEN,null,0,rejection);
+            if(!STATUS.compareAndSet(this,current,trial)) {
+               return null;
+            }
+            current=trial;
+         }
+         return current.trials.getAndDecrement()>0?current:null;
+      }
+
+      void record(Status current, long outcome) {
+         if(current.state==State.CLOSED) {
+            if(current.window.record(outcome)) {
+               open(current);
+            }
+         } else if(current.state==State.HALF_OPEN) {
+            if(outcome!=CALL) {
+               open(current);
+            } else if(current.successes.incrementAndGet()==trialCalls) {
+               STATUS.compareAndSet(this,current,closed());
+            }
+         }
+      }
+
+      private void open(Status current) {
+         STATUS.compareAndSet(
+            this,current,new Status(State.OPEN,null,
+                                    System.nanoTime()+openDuration,
+                                    rejection));
+      }
+
+      public String toString() {
+         return method+": "+status.state;
+      }
+
+   }
+
+   private static final AtomicReferenceFieldUpdater<Circuit,Status> STATUS=
+      AtomicReferenceFieldUpdater.newUpdater(
+         Circuit.class,Status.class,"status");
+
+}
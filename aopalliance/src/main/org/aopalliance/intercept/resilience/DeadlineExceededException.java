@@ -0,0 +1,44 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.lang.reflect.Method;
+
+/**
+ * Thrown when a call does not complete before its deadline.
+ *
+ * <p>The cause, if any, is the exception that the joinpoint threw
+ * when it was interrupted (e.g. an <code>InterruptedException</code>
+ * or an <code>InterruptedIOException</code>). Like the rejections,
+ * timeouts come in storms: this exception does not fill its stack
+ * trace, and its message is only built when it is asked for.
+ *
+ * @see TimeoutInterceptor */
+
+public class DeadlineExceededException extends RuntimeException {
+
+   private static final long serialVersionUID=1L;
+
+   private final transient Method method;
+
+   /**
+    * Creates an exception.
+    *
+    * @param method the method whose call timed out
+    * @param cause the exception thrown by the interrupted joinpoint
+    * (can be null) */
+   public DeadlineExceededException(Method method, Throwable cause) {
+      super(null,cause,false,false);
+      this.method=method;
+   }
+
+   /**
+    * Gets the method whose call timed out. */
+   public Method getMethod() {
+      return method;
+   }
+
+   public String getMessage() {
+      return "deadline exceeded: "+method;
+   }
+
+}
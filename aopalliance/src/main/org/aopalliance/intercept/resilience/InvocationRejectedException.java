@@ -0,0 +1,49 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.lang.reflect.Method;
+
+/**
+ * Thrown when a call is rejected by a limiter, without reaching its
+ * joinpoint.
+ *
+ * <p>Rejections are frequent when a system is overloaded: this
+ * exception does not fill its stack trace, and its message is only
+ * built when it is asked for. */
+
+public class InvocationRejectedException extends RuntimeException {
+
+   private static final long serialVersionUID=1L;
+
+   private final transient Method method;
+
+   private final String reason;
+
+   /**
+    * Creates an exception.
+    *
+    * @param method the rejected method
+    * @param reason why the call was rejected (e.g. "bulkhead full") */
+   public InvocationRejectedException(Method method, String reason) {
+      super(null,null,false,false);
+      this.method=method;
+      this.reason=reason;
+   }
+
+   /**
+    * Gets the rejected method. */
+   public Method getMethod() {
+      return method;
+   }
+
+   /**
+    * Gets why the call was rejected. */
+   public String getReason() {
+      return reason;
+   }
+
+   public String getMessage() {
+      return reason+": "+method;
+   }
+
+}
@@ -0,0 +1,141 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Limits the rate of the calls of each method, with a token bucket.
+ *
+ * <p>The bucket is implemented with the generic cell rate algorithm
+ * (GCRA): the whole state of a method is its theoretical arrival time,
+ * i.e. the time at which the bucket would be full again, held in an
+ * atomic long. A call that conforms to the rate advances this time by
+ * the emission interval (one over the rate) with a single
+ * compare-and-set; a call that does not conform does not write the
+ * state, so that the rejections do not contend. Up to
+ * <code>burst</code> calls can be made at once after an idle period.
+ *
+ * <p>A call that does not conform is either rejected at once
+ * (fail-fast mode), or reserves the next conforming time and sleeps
+ * until it, when it is not later than the maximum wait (bounded-wait
+ * mode). The rejected calls throw an {@link
+ * InvocationRejectedException}. A reservation is never given back: a
+ * sleeping call whose thread is interrupted completes its sleep, then
+ * proceeds with the interrupt status set.
+ *
+ * @see BulkheadInterceptor */
+
+public class RateLimitingInterceptor implements MethodInterceptor {
+
+   /** the emission interval, in nanoseconds */
+   private final long interval;
+
+   /** the burst tolerance, in nanoseconds */
+   private final long tolerance;
+
+   private final long maxWait;
+
+   private final ConcurrentMap<Method,AtomicLong> arrivals=
+      new ConcurrentHashMap<Method,AtomicLong>();
+
+   private final LongAdder rejected=new LongAdder();
+
+   /**
+    * Creates a fail-fast rate limiter.
+    *
+    * @param callsPerSecond the sustained rate of the calls of each
+    * method
+    * @param burst the maximum number of calls that can be made at once
+    * after an idle period */
+   public RateLimitingInterceptor(double callsPerSecond, int burst) {
+      this(callsPerSecond,burst,0,TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Creates a rate limiter whose calls wait for their turn.
+    *
+    * @param callsPerSecond the sustained rate of the calls of each
+    * method
+    * @param burst the maximum number of calls that can be made at once
+    * after an idle period
+    * @param maxWait the maximum time a call waits for its turn (0 for
+    * the fail-fast mode)
+    * @param unit the unit of <code>maxWait</code> */
+   public RateLimitingInterceptor(double callsPerSecond, int burst,
+                                  long maxWait, TimeUnit unit) {
+      if(!(callsPerSecond>0) || burst<1 || maxWait<0) {
+         throw new IllegalArgumentException(
+            "rate "+callsPerSecond+", burst "+burst+", wait "+maxWait);
+      }
+      this.interval=Math.max(1,(long)(TimeUnit.SECONDS.toNanos(1)
+                                      /callsPerSecond));
+      this.tolerance=interval*(burst-1);
+      this.maxWait=unit.toNanos(maxWait);
+   }
+
+   public Object invoke(MethodInvocation invocation) throws Throwable {
+      AtomicLong arrival=arrivalOf(invocation.getMethod());
+      long wait;
+      while(true) {
+         long now=System.nanoTime();
+         long theoretical=arrival.get();
+         long start=theoretical-now>0?theoretical:now;
+         wait=start-tolerance-now;
+         if(wait>maxWait) {
+            rejected.increment();
+            throw new InvocationRejectedException(invocation.getMethod(),
+                                                  "rate exceeded");
+         }
+         if(arrival.compareAndSet(theoretical,start+interval)) {
+            break;
+         }
+      }
+      if(wait>0) {
+         sleep(wait);
+      }
+      return invocation.proceed();
+   }
+
+   private static void sleep(long nanos) {
+      long deadline=System.nanoTime()+nanos;
+      boolean interrupted=false;
+      long remaining;
+      while((remaining=deadline-System.nanoTime())>0) {
+         LockSupport.parkNanos(remaining);
+         if(Thread.interrupted()) {
+            interrupted=true;
+         }
+      }
+      if(interrupted) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private AtomicLong arrivalOf(Method method) {
+      AtomicLong arrival=arrivals.get(method);
+      if(arrival==null) {
+         arrival=new AtomicLong(System.nanoTime());
+         AtomicLong previous=arrivals.putIfAbsent(method,arrival);
+         if(previous!=null) {
+            arrival=previous;
+         }
+      }
+      return arrival;
+   }
+
+   /**
+    * Gets the number of calls rejected so far. */
+   public long getRejectedCount() {
+      return rejected.sum();
+   }
+
+}
@@ -0,0 +1,31 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives the maximum duration of the calls of a method, enforced by a
+ * {@link TimeoutInterceptor}.
+ *
+ * @see TimeoutInterceptor */
+
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Timeout {
+
+   /**
+    * The maximum duration of a call, or 0 to only enforce the deadline
+    * of the enclosing calls. */
+   long value();
+
+   /**
+    * The unit of the duration. */
+   TimeUnit unit() default TimeUnit.MILLISECONDS;
+
+}
@@ -0,0 +1,153 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Enforces a deadline on the calls of the methods.
+ *
+ * <p>The maximum duration of a call is given by the {@link Timeout}
+ * annotation of its method, or by the default timeout of the
+ * interceptor. When the call is not complete at its deadline, its
+ * thread is interrupted, and the call throws a {@link
+ * DeadlineExceededException} (whose cause is the exception thrown by
+ * the interrupted joinpoint, if any); the interrupt status of the
+ * thread is cleared. Joinpoints that do not respond to interrupts are
+ * only detected as late when they return.
+ *
+ * <p>The deadlines are enforced by a single hashed timing wheel with
+ * a tick of 10 milliseconds, shared by all the timeout interceptors,
+ * and not by a scheduled task per call: scheduling a call allocates
+ * one small node, and cancelling it when the call completes is a
+ * single compare-and-set.
+ *
+ * <p>The deadline of a call is passed down to the calls it makes on
+ * the same thread, through all the timeout interceptors: a nested
+ * call keeps the earlier of its own deadline and the inherited one
+ * (without scheduling anything when the inherited one is earlier), and
+ * a nested call whose inherited deadline is already passed throws a
+ * {@link DeadlineExceededException} without proceeding. The remaining
+ * time can be read with {@link #remainingNanos()} (e.g. to configure
+ * the timeout of a socket).
+ *
+ * @see Timeout */
+
+public class TimeoutInterceptor implements MethodInterceptor {
+
+   /** The value of {@link #remainingNanos()} when there is no
+    * deadline. */
+   public static final long NO_DEADLINE=Long.MAX_VALUE;
+
+   private static final ThreadLocal<Deadline> current=
+      new ThreadLocal<Deadline>() {
+         protected Deadline initialValue() {
+            return new Deadline();
+         }
+      };
+
+   /**
+    * The deadline of the current call of a thread. */
+   static final class Deadline {
+
+      boolean active;
+
+      long nanos;
+
+   }
+
+   private final long defaultTimeout;
+
+   private final ConcurrentMap<Method,Long> timeouts=
+      new ConcurrentHashMap<Method,Long>();
+
+   /**
+    * Creates an interceptor that only enforces the timeouts given by
+    * the {@link Timeout} annotations (and the inherited deadlines). */
+   public TimeoutInterceptor() {
+      this(0,TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Creates an interceptor.
+    *
+    * @param defaultTimeout the timeout of the methods that are not
+    * annotated (0 to only enforce the inherited deadlines)
+    * @param unit the unit of <code>defaultTimeout</code> */
+   public TimeoutInterceptor(long defaultTimeout, TimeUnit unit) {
+      if(defaultTimeout<0) {
+         throw new IllegalArgumentException("timeout: "+defaultTimeout);
+      }
+      this.defaultTimeout=unit.toNanos(defaultTimeout);
+   }
+
+   private long timeoutOf(Method method) {
+      Long timeout=timeouts.get(method);
+      if(timeout==null) {
+         Timeout annotation=method.getAnnotation(Timeout.class);
+         timeout=Long.valueOf(
+            annotation==null?defaultTimeout
+            :annotation.unit().toNanos(annotation.value()));
+         timeouts.putIfAbsent(method,timeout);
+      }
+      return timeout.longValue();
+   }
+
+   /**
+    * Gets the time left before the deadline of the current call of
+    * the current thread.
+    *
+    * @return the time left in nanoseconds (negative if the deadline
+    * is passed), or {@link #NO_DEADLINE} */
+   public static long remainingNanos() {
+      Deadline deadline=current.get();
+      return deadline.active?deadline.nanos-System.nanoTime():NO_DEADLINE;
+   }
+
+   public Object invoke(MethodInvocation invocation) throws Throwable {
+      Method method=invocation.getMethod();
+      long timeout=timeoutOf(method);
+      Deadline deadline=current.get();
+      if(timeout==0 && !deadline.active) {
+         return invocation.proceed();
+      }
+      long now=System.nanoTime();
+      if(deadline.active && deadline.nanos-now<=0) {
+         throw new DeadlineExceededException(method,null);
+      }
+      if(timeout==0 || deadline.active && deadline.nanos-(now+timeout)<=0) {
+         // enforced by the enclosing call
+         return invocation.proceed();
+      }
+      boolean wasActive=deadline.active;
+      long previous=deadline.nanos;
+      deadline.active=true;
+      deadline.nanos=now+timeout;
+      TimingWheel.Timeout scheduled=
+         TimingWheel.SHARED.schedule(deadline.nanos);
+      Object result;
+      try {
+         result=invocation.proceed();
+      } catch(Throwable t) {
+         if(!scheduled.cancel()) {
+            Thread.interrupted();
+            throw new DeadlineExceededException(method,t);
+         }
+         throw t;
+      } finally {
+         deadline.active=wasActive;
+         deadline.nanos=previous;
+      }
+      if(!scheduled.cancel()) {
+         Thread.interrupted();
+         throw new DeadlineExceededException(method,null);
+      }
+      return result;
+   }
+
+}
@@ -0,0 +1,196 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel that interrupts the threads whose deadline
+ * is passed.
+ *
+ * <p>The timeouts are pushed by the calling threads in lock-free
+ * inboxes (striped by thread), and moved by the thread of the wheel
+ * to the bucket of their tick, so that the buckets themselves are
+ * only accessed by this thread. At each tick, the thread expires the
+ * timeouts of the current bucket whose deadline is passed. A timeout
+ * is cancelled in constant time, by a compare-and-set of its state;
+ * the cancelled timeouts are dropped when their bucket is swept. */
+
+final class TimingWheel {
+
+   /** The wheel shared by all the timeout interceptors. */
+   static final TimingWheel SHARED=
+      new TimingWheel(TimeUnit.MILLISECONDS.toNanos(10),512);
+
+   private static final int PENDING=0;
+   private static final int CANCELLED=1;
+   private static final int EXPIRING=2;
+   private static final int EXPIRED=3;
+
+   /**
+    * A scheduled deadline. */
+   static final class Timeout {
+
+      private static final AtomicIntegerFieldUpdater<Timeout> STATE=
+         AtomicIntegerFieldUpdater.newUpdater(Timeout.class,"state");
+
+      final Thread thread;
+
+      final long deadline;
+
+      /** the next timeout in its inbox or bucket */
+      Timeout next;
+
+      private volatile int state;
+
+      Timeout(Thread thread, long deadline) {
+         this.thread=thread;
+         this.deadline=deadline;
+      }
+
+      /**
+       * Cancels the timeout.
+       *
+       * @return false if the timeout has expired (its thread has then
+       * been interrupted) */
+      boolean cancel() {
+         if(STATE.compareAndSet(this,PENDING,CANCELLED)) {
+            return true;
+         }
+         while(state==EXPIRING) {
+            Thread.onSpinWait();
+         }
+         return false;
+      }
+
+      boolean isCancelled() {
+         return state==CANCELLED;
+      }
+
+      void expire() {
+         if(STATE.compareAndSet(this,PENDING,EXPIRING)) {
+            try {
+               thread.interrupt();
+            } finally {
+               state=EXPIRED;
+            }
+         }
+      }
+
+   }
+
+   private final long tickDuration;
+
+   private final long start=System.nanoTime();
+
+   private final Timeout[] buckets;
+
+   private final AtomicReferenceArray<Timeout> inboxes;
+
+   /** the last processed tick (accessed by the thread of the wheel
+    * only) */
+   private long tick;
+
+   /**
+    * Creates a wheel and starts its thread.
+    *
+    * @param tickDuration the duration of a tick, in nanoseconds
+    * @param size the number of buckets (a power of 2) */
+   TimingWheel(long tickDuration, int size) {
+      this.tickDuration=tickDuration;
+      this.buckets=new Timeout[size];
+      int stripes=Integer.highestOneBit(
+         Math.max(1,Runtime.getRuntime().availableProcessors()-1)<<1);
+      this.inboxes=new AtomicReferenceArray<Timeout>(stripes);
+      Thread thread=new Thread(new Runnable() {
+            public void run() {
+               work();
+            }
+         },"timing-wheel");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Schedules the interruption of the current thread.
+    *
+    * @param deadline the deadline, in <code>System.nanoTime()</code>
+    * time */
+   Timeout schedule(long deadline) {
+      Thread current=Thread.currentThread();
+      Timeout timeout=new Timeout(current,deadline);
+      int stripe=(int)current.getId()&(inboxes.length()-1);
+      Timeout head;
+      do {
+         head=inboxes.get(stripe);
+         timeout.next=head;
+      } while(!inboxes.compareAndSet(stripe,head,timeout));
+      return timeout;
+   }
+
+   private void work() {
+      while(true) {
+         long next=start+(tick+1)*tickDuration;
+         long remaining;
+         while((remaining=next-System.nanoTime())>0) {
+            LockSupport.parkNanos(this,remaining);
+         }
+         tick++;
+         transferInboxes();
+         expire(tick);
+      }
+   }
+
+   private long tickOf(long deadline) {
+      long elapsed=deadline-start;
+      return elapsed<=0?0:(elapsed+tickDuration-1)/tickDuration;
+   }
+
+   private void transferInboxes() {
+      for(int i=0;i<inboxes.length();i++) {
+         if(inboxes.get(i)==null) {
+            continue;
+         }
+         Timeout timeout=inboxes.getAndSet(i,null);
+         while(timeout!=null) {
+            Timeout next=timeout.next;
+            if(!timeout.isCancelled()) {
+               if(tickOf(timeout.deadline)<=tick) {
+                  timeout.expire();
+               } else {
+                  add(timeout);
+               }
+            }
+            timeout=next;
+         }
+      }
+   }
+
+   private void add(Timeout timeout) {
+      int index=(int)tickOf(timeout.deadline)&(buckets.length-1);
+      timeout.next=buckets[index];
+      buckets[index]=timeout;
+   }
+
+   private void expire(long current) {
+      int index=(int)current&(buckets.length-1);
+      Timeout timeout=buckets[index];
+      buckets[index]=null;
+      while(timeout!=null) {
+         Timeout next=timeout.next;
+         if(!timeout.isCancelled()) {
+            if(tickOf(timeout.deadline)<=current) {
+               timeout.expire();
+            } else {
+               // due in a later round
+               timeout.next=buckets[index];
+               buckets[index]=timeout;
+            }
+         }
+         timeout=next;
+      }
+   }
+
+}
@@ -0,0 +1,111 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+
+import org.aopalliance.intercept.ConstructorInterceptor;
+import org.aopalliance.intercept.ConstructorInvocation;
+
+/**
+ * Base class for the constructor invocations that run a pre-built
+ * chain of interceptors.
+ *
+ * <p>As for {@link AbstractMethodInvocation}, the chain is an array
+ * built once per intercepted constructor and the invocation only
+ * holds a cursor in it. {@link #getThis()} returns null until the
+ * constructor has been called, and then the new object.
+ *
+ * <p>An interceptor may return another object than the result of
+ * {@link #proceed()}, or not proceed at all, in order to substitute
+ * the instance (the actual constructor is then never called).
+ *
+ * @see ConstructorInterceptor */
+
+public abstract class AbstractConstructorInvocation
+   implements ConstructorInvocation {
+
+   /** An empty chain of interceptors. */
+   public static final ConstructorInterceptor[] EMPTY_CHAIN =
+      new ConstructorInterceptor[0];
+
+   private final Constructor<?> constructor;
+
+   private final ConstructorInterceptor[] chain;
+
+   private int cursor;
+
+   private Object instance;
+
+   /**
+    * Sets the static part of the invocation.
+    *
+    * @param constructor the constructor being called
+    * @param chain the interceptors to run before the constructor,
+    * from the outermost to the innermost one (not copied) */
+   protected AbstractConstructorInvocation(Constructor<?> constructor,
+                                           ConstructorInterceptor[] chain) {
+      this.constructor=constructor;
+      this.chain=chain;
+   }
+
+   public Object proceed() throws Throwable {
+      int current=cursor;
+      if(current==chain.length) {
+         return instance=invokeJoinpoint();
+      }
+      cursor=current+1;
+      try {
+         return chain[current].construct(this);
+      } finally {
+         cursor=current;
+      }
+   }
+
+   /**
+    * Calls the constructor once all the interceptors have proceeded.
+    *
+    * <p>The exception thrown by the constructor must be rethrown as
+    * is.
+    *
+    * @return the new object */
+   protected abstract Object invokeJoinpoint() throws Throwable;
+
+   public final Constructor<?> getConstructor() {
+      return constructor;
+   }
+
+   public final AccessibleObject getStaticPart() {
+      return constructor;
+   }
+
+   /**
+    * Returns the new object, or null if the constructor has not been
+    * called yet. */
+   public Object getThis() {
+      return instance;
+   }
+
+   /**
+    * Forgets the new object (for recycled invocations). */
+   final void clearInstance() {
+      instance=null;
+   }
+
+   /**
+    * Gets the interceptors chain of this invocation. */
+   protected final ConstructorInterceptor[] getChain() {
+      return chain;
+   }
+
+   /**
+    * Gets the index of the next interceptor to proceed to. */
+   protected final int getCursor() {
+      return cursor;
+   }
+
+   public String toString() {
+      return "invocation of "+constructor+" ["+cursor+"/"+chain.length+"]";
+   }
+
+}
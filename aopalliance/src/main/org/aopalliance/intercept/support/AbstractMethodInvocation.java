@@ -0,0 +1,336 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.aopalliance.intercept.PrimitiveInvocation;
+
+/**
+ * Base class for the method invocations that run a pre-built chain of
+ * interceptors.
+ *
+ * <p>The chain is given as an array that is built once per
+ * intercepted method (it is never copied nor modified by the
+ * invocation), so that proceeding to the next interceptor is only an
+ * array load and an interface call. The invocation itself only holds
+ * a cursor in this chain.
+ *
+ * <p>{@link #proceed()} can be called several times by the same
+ * interceptor (for instance to retry the call): the cursor is
+ * restored when the rest of the chain returns.
+ *
+ * <p>Subclasses define how the arguments are stored and how the
+ * target method is called (see {@link #invokeJoinpoint()}). The
+ * typed accessors of {@link PrimitiveInvocation} are implemented by
+ * boxing: subclasses that store typed arguments should override them.
+ *
+ * @see MethodInterceptor */
+
+public abstract class AbstractMethodInvocation
+   implements MethodInvocation, PrimitiveInvocation {
+
+   /** An empty chain of interceptors. */
+   public static final MethodInterceptor[] EMPTY_CHAIN =
+      new MethodInterceptor[0];
+
+   /** the parameter types of the methods, shared by their invocations
+    * (Method.getParameterTypes() copies them) */
+   private static final MemberCache<Method,Class<?>[]> parameterTypes=
+      new MemberCache<Method,Class<?>[]>();
+
+   private final Method method;
+
+   private final MethodInterceptor[] chain;
+
+   private int cursor;
+
+   /** the parameter types of the method, looked up by the first
+    * check */
+   private Class<?>[] parameters;
+
+   /**
+    * Sets the static part of the invocation.
+    *
+    * @param method the method being called
+    * @param chain the interceptors to run before the target method,
+    * from the outermost to the innermost one (not copied) */
+   protected AbstractMethodInvocation(Method method,
+                                      MethodInterceptor[] chain) {
+      this.method=method;
+      this.chain=chain;
+   }
+
+   public Object proceed() throws Throwable {
+      int current=cursor;
+      if(current==chain.length) {
+         return invokeJoinpoint();
+      }
+      cursor=current+1;
+      try {
+         return chain[current].invoke(this);
+      } finally {
+         cursor=current;
+      }
+   }
+
+   /**
+    * Invokes the target method once all the interceptors have
+    * proceeded.
+    *
+    * <p>The exception thrown by the target method must be rethrown as
+    * is. */
+   protected abstract Object invokeJoinpoint() throws Throwable;
+
+   public boolean proceedBoolean() throws Throwable {
+      if(cursor==chain.length) {
+         return joinpointBoolean();
+      }
+      return ((Boolean)proceed()).booleanValue();
+   }
+
+   public byte proceedByte() throws Throwable {
+      if(cursor==chain.length) {
+         return joinpointByte();
+      }
+      return ((Byte)proceed()).byteValue();
+   }
+
+   public char proceedChar() throws Throwable {
+      if(cursor==chain.length) {
+         return joinpointChar();
+      }
+      return ((Character)proceed()).charValue();
+   }
+
+   public short proceedShort() throws Throwable {
+      if(cursor==chain.length) {
+         return joinpointShort();
+      }
+      return ((Short)proceed()).shortValue();
+   }
+
+   public int proceedInt() throws Throwable {
+      if(cursor==chain.length) {
+         return joinpointInt();
+      }
+      return ((Integer)proceed()).intValue();
+   }
+
+   public long proceedLong() throws Throwable {
+      if(cursor==chain.length) {
+         return joinpointLong();
+      }
+      return ((Long)proceed()).longValue();
+   }
+
+   public float proceedFloat() throws Throwable {
+      if(cursor==chain.length) {
+         return joinpointFloat();
+      }
+      return ((Float)proceed()).floatValue();
+   }
+
+   public double proceedDouble() throws Throwable {
+      if(cursor==chain.length) {
+         return joinpointDouble();
+      }
+      return ((Double)proceed()).doubleValue();
+   }
+
+   /**
+    * Invokes a target method that returns a primitive value, once all
+    * the interceptors have proceeded.
+    *
+    * <p>The <code>joinpoint<i>Type</i>()</code> methods unbox the
+    * result of {@link #invokeJoinpoint()}. Subclasses that can call
+    * the target method without boxing its result should override the
+    * one that matches the return type. */
+   protected boolean joinpointBoolean() throws Throwable {
+      return ((Boolean)invokeJoinpoint()).booleanValue();
+   }
+
+   protected byte joinpointByte() throws Throwable {
+      return ((Byte)invokeJoinpoint()).byteValue();
+   }
+
+   protected char joinpointChar() throws Throwable {
+      return ((Character)invokeJoinpoint()).charValue();
+   }
+
+   protected short joinpointShort() throws Throwable {
+      return ((Short)invokeJoinpoint()).shortValue();
+   }
+
+   protected int joinpointInt() throws Throwable {
+      return ((Integer)invokeJoinpoint()).intValue();
+   }
+
+   protected long joinpointLong() throws Throwable {
+      return ((Long)invokeJoinpoint()).longValue();
+   }
+
+   protected float joinpointFloat() throws Throwable {
+      return ((Float)invokeJoinpoint()).floatValue();
+   }
+
+   protected double joinpointDouble() throws Throwable {
+      return ((Double)invokeJoinpoint()).doubleValue();
+   }
+
+   public int getArgumentCount() {
+      return method.getParameterCount();
+   }
+
+   public Object getArgument(int index) {
+      return getArguments()[index];
+   }
+
+   public void setArgument(int index, Object value) {
+      checkArgument(index,value);
+      getArguments()[index]=value;
+   }
+
+   public boolean getBooleanArgument(int index) {
+      return ((Boolean)getArgument(index)).booleanValue();
+   }
+
+   public byte getByteArgument(int index) {
+      return ((Byte)getArgument(index)).byteValue();
+   }
+
+   public char getCharArgument(int index) {
+      return ((Character)getArgument(index)).charValue();
+   }
+
+   public short getShortArgument(int index) {
+      return ((Short)getArgument(index)).shortValue();
+   }
+
+   public int getIntArgument(int index) {
+      return ((Integer)getArgument(index)).intValue();
+   }
+
+   public long getLongArgument(int index) {
+      return ((Long)getArgument(index)).longValue();
+   }
+
+   public float getFloatArgument(int index) {
+      return ((Float)getArgument(index)).floatValue();
+   }
+
+   public double getDoubleArgument(int index) {
+      return ((Double)getArgument(index)).doubleValue();
+   }
+
+   public void setBooleanArgument(int index, boolean value) {
+      checkParameter(index,boolean.class);
+      getArguments()[index]=Boolean.valueOf(value);
+   }
+
+   public void setByteArgument(int index, byte value) {
+      checkParameter(index,byte.class);
+      getArguments()[index]=Byte.valueOf(value);
+   }
+
+   public void setCharArgument(int index, char value) {
+      checkParameter(index,char.class);
+      getArguments()[index]=Character.valueOf(value);
+   }
+
+   public void setShortArgument(int index, short value) {
+      checkParameter(index,short.class);
+      getArguments()[index]=Short.valueOf(value);
+   }
+
+   public void setIntArgument(int index, int value) {
+      checkParameter(index,int.class);
+      getArguments()[index]=Integer.valueOf(value);
+   }
+
+   public void setLongArgument(int index, long value) {
+      checkParameter(index,long.class);
+      getArguments()[index]=Long.valueOf(value);
+   }
+
+   public void setFloatArgument(int index, float value) {
+      checkParameter(index,float.class);
+      getArguments()[index]=Float.valueOf(value);
+   }
+
+   public void setDoubleArgument(int index, double value) {
+      checkParameter(index,double.class);
+      getArguments()[index]=Double.valueOf(value);
+   }
+
+   /**
+    * Checks that a value can be passed as an argument.
+    *
+    * @param value the value (boxed if the parameter is primitive)
+    * @throws IndexOutOfBoundsException if the index is out of range
+    * @throws ClassCastException if the value does not match the
+    * parameter type */
+   protected final void checkArgument(int index, Object value) {
+      Class<?> type=parameters()[index];
+      if(type.isPrimitive()
+         ?value==null || value.getClass()!=Types.wrapper(type)
+         :value!=null && !type.isInstance(value)) {
+         throw new ClassCastException(
+            (value==null?"null":value.getClass().getName())
+            +" is not a valid argument "+index+" of "+method);
+      }
+   }
+
+   /**
+    * Checks the type of a parameter.
+    *
+    * @param type the expected primitive type
+    * @throws IndexOutOfBoundsException if the index is out of range
+    * @throws ClassCastException if the parameter is not of this
+    * type */
+   protected final void checkParameter(int index, Class<?> type) {
+      if(parameters()[index]!=type) {
+         throw new ClassCastException(
+            "parameter "+index+" of "+method+" is not of type "+type);
+      }
+   }
+
+   private Class<?>[] parameters() {
+      Class<?>[] types=parameters;
+      if(types==null) {
+         types=parameterTypes.get(method);
+         if(types==null) {
+            types=parameterTypes.put(method,method.getParameterTypes());
+         }
+         parameters=types;
+      }
+      return types;
+   }
+
+   public final Method getMethod() {
+      return method;
+   }
+
+   public final AccessibleObject getStaticPart() {
+      return method;
+   }
+
+   /**
+    * Gets the interceptors chain of this invocation. */
+   protected final MethodInterceptor[] getChain() {
+      return chain;
+   }
+
+   /**
+    * Gets the index of the next interceptor to proceed to. */
+   protected final int getCursor() {
+      return cursor;
+   }
+
+   public String toString() {
+      return "invocation of "+method+" ["+cursor+"/"+chain.length+"]";
+   }
+
+}
@@ -0,0 +1,132 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.aopalliance.intercept.AsyncMethodInterceptor;
+import org.aopalliance.intercept.AsyncMethodInvocation;
+import org.aopalliance.intercept.Interceptor;
+import org.aopalliance.intercept.MethodInterceptor;
+
+/**
+ * An asynchronous method invocation that runs a pre-built chain of
+ * synchronous and asynchronous interceptors.
+ *
+ * <p>Each interceptor is given its own (immutable) view of the
+ * invocation, positioned after it in the chain, so that the
+ * invocation can be proceeded from any thread, several times, and
+ * after the interceptor has returned. All the views share the
+ * arguments array.
+ *
+ * <p>For the {@link MethodInterceptor}s of the chain, {@link
+ * #proceed()} returns the stage of the rest of the chain, and their
+ * result must be a stage (or the stage of the call fails with a
+ * <code>ClassCastException</code>).
+ *
+ * @see InterceptedAsyncMethod */
+
+public final class AsyncChainedMethodInvocation
+   implements AsyncMethodInvocation {
+
+   private final Object target;
+
+   private final Method method;
+
+   private final Object[] arguments;
+
+   private final Interceptor[] chain;
+
+   private final TargetInvoker invoker;
+
+   private final int position;
+
+   AsyncChainedMethodInvocation(Object target, Method method,
+                                Object[] arguments, Interceptor[] chain,
+                                TargetInvoker invoker) {
+      this.target=target;
+      this.method=method;
+      this.arguments=arguments;
+      this.chain=chain;
+      this.invoker=invoker;
+      this.position=0;
+   }
+
+   private AsyncChainedMethodInvocation(AsyncChainedMethodInvocation outer,
+                                        int position) {
+      this.target=outer.target;
+      this.method=outer.method;
+      this.arguments=outer.arguments;
+      this.chain=outer.chain;
+      this.invoker=outer.invoker;
+      this.position=position;
+   }
+
+   public CompletionStage<?> proceedAsync() {
+      try {
+         Object result;
+         if(position==chain.length) {
+            result=invoker.invoke(target,arguments);
+         } else {
+            Interceptor interceptor=chain[position];
+            AsyncChainedMethodInvocation next=
+               new AsyncChainedMethodInvocation(this,position+1);
+            if(interceptor instanceof AsyncMethodInterceptor) {
+               result=((AsyncMethodInterceptor)interceptor)
+                  .invokeAsync(next);
+            } else {
+               result=((MethodInterceptor)interceptor).invoke(next);
+            }
+         }
+         return toStage(result);
+      } catch(Throwable t) {
+         return CompletableFuture.failedFuture(t);
+      }
+   }
+
+   private CompletionStage<?> toStage(Object result) {
+      if(result instanceof CompletionStage) {
+         return (CompletionStage<?>)result;
+      }
+      if(result==null) {
+         return CompletableFuture.failedFuture(new NullPointerException(
+            "null stage returned by the chain of "+method));
+      }
+      return CompletableFuture.failedFuture(new ClassCastException(
+         result.getClass().getName()+" returned by the chain of "+method
+         +" is not a CompletionStage"));
+   }
+
+   /**
+    * Proceeds to the next interceptor in the chain.
+    *
+    * @return the stage of the rest of the chain (see {@link
+    * #proceedAsync()}) */
+   public Object proceed() {
+      return proceedAsync();
+   }
+
+   public Method getMethod() {
+      return method;
+   }
+
+   public AccessibleObject getStaticPart() {
+      return method;
+   }
+
+   public Object getThis() {
+      return target;
+   }
+
+   public Object[] getArguments() {
+      return arguments;
+   }
+
+   public String toString() {
+      return "asynchronous invocation of "+method+" ["+position+"/"
+         +chain.length+"]";
+   }
+
+}
@@ -0,0 +1,69 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Constructor;
+
+import org.aopalliance.intercept.ConstructorInterceptor;
+
+/**
+ * A constructor invocation that runs a pre-built chain of interceptors
+ * on an array of arguments.
+ *
+ * <p>Instances are not thread-safe: a constructor invocation is meant
+ * to be proceeded by the thread that creates the object.
+ *
+ * @see AbstractConstructorInvocation */
+
+public class ChainedConstructorInvocation
+   extends AbstractConstructorInvocation {
+
+   private static final Object[] NO_ARGUMENTS=new Object[0];
+
+   private final Object[] arguments;
+
+   private final ConstructorInvoker invoker;
+
+   /**
+    * Creates a new invocation.
+    *
+    * @param constructor the constructor being called
+    * @param arguments the arguments of the call (can be null if the
+    * constructor takes no arguments)
+    * @param chain the interceptors to run before the constructor,
+    * from the outermost to the innermost one (not copied)
+    * @see ConstructorInvoker#forConstructor(Constructor) */
+   public ChainedConstructorInvocation(Constructor<?> constructor,
+                                       Object[] arguments,
+                                       ConstructorInterceptor[] chain) {
+      this(constructor,arguments,chain,
+           ConstructorInvoker.forConstructor(constructor));
+   }
+
+   /**
+    * Creates a new invocation that calls the constructor through a
+    * pre-resolved invoker.
+    *
+    * @param constructor the constructor being called
+    * @param arguments the arguments of the call (can be null if the
+    * constructor takes no arguments)
+    * @param chain the interceptors to run before the constructor,
+    * from the outermost to the innermost one (not copied)
+    * @param invoker the invoker of <code>constructor</code> */
+   public ChainedConstructorInvocation(Constructor<?> constructor,
+                                       Object[] arguments,
+                                       ConstructorInterceptor[] chain,
+                                       ConstructorInvoker invoker) {
+      super(constructor,chain);
+      this.arguments=arguments==null?NO_ARGUMENTS:arguments;
+      this.invoker=invoker;
+   }
+
+   protected Object invokeJoinpoint() throws Throwable {
+      return invoker.newInstance(arguments);
+   }
+
+   public Object[] getArguments() {
+      return arguments;
+   }
+
+}
@@ -0,0 +1,337 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+
+import org.aopalliance.intercept.FieldAccess;
+import org.aopalliance.intercept.FieldInterceptor;
+import org.aopalliance.intercept.PrimitiveFieldAccess;
+
+/**
+ * A field access that runs a chain of field interceptors.
+ *
+ * <p>Field accesses are created by {@link InterceptedField} for each
+ * intercepted read or write. The value to set to a primitive field is
+ * held without boxing, and the field is accessed through the typed
+ * method handles of the intercepted field.
+ *
+ * <p>Like method invocations, field accesses can be proceeded several
+ * times (or from several points of the chain): each call to {@link
+ * #proceed()} runs the rest of the chain from the position of its
+ * caller.
+ *
+ * <p>For a write access, {@link #proceed()} returns the value that has
+ * been written to the field.
+ *
+ * @see InterceptedField */
+
+public final class ChainedFieldAccess implements PrimitiveFieldAccess {
+
+   private final InterceptedField field;
+
+   private final Object target;
+
+   private final int accessType;
+
+   /** the value to set, if the field is primitive */
+   private long bits;
+
+   /** the value to set, if the field is not primitive */
+   private Object value;
+
+   private int cursor;
+
+   /**
+    * Creates a read access. */
+   ChainedFieldAccess(InterceptedField field, Object target) {
+      this.field=field;
+      this.target=target;
+      this.accessType=READ;
+   }
+
+   /**
+    * Creates a write access.
+    *
+    * @throws ClassCastException if the value does not match the type
+    * of the field */
+   ChainedFieldAccess(InterceptedField field, Object target,
+                      Object value) {
+      this.field=field;
+      this.target=target;
+      this.accessType=WRITE;
+      setValueToSet(value);
+   }
+
+   /**
+    * Creates a write access to a primitive field.
+    *
+    * @param bits the value to set (see {@link
+    * InterceptedField#toBits(int)}) */
+   ChainedFieldAccess(InterceptedField field, Object target, long bits) {
+      this.field=field;
+      this.target=target;
+      this.accessType=WRITE;
+      this.bits=bits;
+   }
+
+   public Field getField() {
+      return field.getField();
+   }
+
+   public Object getThis() {
+      return target;
+   }
+
+   public AccessibleObject getStaticPart() {
+      return field.getField();
+   }
+
+   public int getAccessType() {
+      return accessType;
+   }
+
+   /**
+    * Gets the value that must be set to the field.
+    *
+    * @return the value (boxed if the field is primitive), or null for
+    * a read access */
+   public Object getValueToSet() {
+      if(accessType==READ) {
+         return null;
+      }
+      return field.type.isPrimitive()?field.box(bits):value;
+   }
+
+   public void setValueToSet(Object value) {
+      checkWrite();
+      if(field.type.isPrimitive()) {
+         bits=field.unbox(value);
+      } else {
+         this.value=field.type.cast(value);
+      }
+   }
+
+   private void checkWrite() {
+      if(accessType==READ) {
+         throw new IllegalStateException("read access to "+getField());
+      }
+   }
+
+   private long bitsToSet(Class<?> type) {
+      checkWrite();
+      field.check(type);
+      return bits;
+   }
+
+   public boolean getBooleanValueToSet() {
+      long bits=bitsToSet(boolean.class);
+      return bits!=0;
+   }
+
+   public void setBooleanValueToSet(boolean value) {
+      checkWrite();
+      field.check(boolean.class);
+      bits=InterceptedField.toBits(value);
+   }
+
+   public byte getByteValueToSet() {
+      long bits=bitsToSet(byte.class);
+      return (byte)bits;
+   }
+
+   public void setByteValueToSet(byte value) {
+      checkWrite();
+      field.check(byte.class);
+      bits=InterceptedField.toBits(value);
+   }
+
+   public char getCharValueToSet() {
+      long bits=bitsToSet(char.class);
+      return (char)bits;
+   }
+
+   public void setCharValueToSet(char value) {
+      checkWrite();
+      field.check(char.class);
+      bits=InterceptedField.toBits(value);
+   }
+
+   public short getShortValueToSet() {
+      long bits=bitsToSet(short.class);
+      return (short)bits;
+   }
+
+   public void setShortValueToSet(short value) {
+      checkWrite();
+      field.check(short.class);
+      bits=InterceptedField.toBits(value);
+   }
+
+   public int getIntValueToSet() {
+      long bits=bitsToSet(int.class);
+      return (int)bits;
+   }
+
+   public void setIntValueToSet(int value) {
+      checkWrite();
+      field.check(int.class);
+      bits=InterceptedField.toBits(value);
+   }
+
+   public long getLongValueToSet() {
+      long bits=bitsToSet(long.class);
+      return bits;
+   }
+
+   public void setLongValueToSet(long value) {
+      checkWrite();
+      field.check(long.class);
+      bits=InterceptedField.toBits(value);
+   }
+
+   public float getFloatValueToSet() {
+      long bits=bitsToSet(float.class);
+      return Float.intBitsToFloat((int)bits);
+   }
+
+   public void setFloatValueToSet(float value) {
+      checkWrite();
+      field.check(float.class);
+      bits=InterceptedField.toBits(value);
+   }
+
+   public double getDoubleValueToSet() {
+      long bits=bitsToSet(double.class);
+      return Double.longBitsToDouble(bits);
+   }
+
+   public void setDoubleValueToSet(double value) {
+      checkWrite();
+      field.check(double.class);
+      bits=InterceptedField.toBits(value);
+   }
+
+   public Object proceed() throws Throwable {
+      int current=cursor;
+      FieldInterceptor[] chain=field.chain;
+      if(current==chain.length) {
+         if(accessType==READ) {
+            return field.read(target);
+         }
+         Object written=getValueToSet();
+         field.write(target,written);
+         return written;
+      }
+      cursor=current+1;
+      try {
+         FieldInterceptor interceptor=chain[current];
+         return accessType==READ?interceptor.get(this)
+            :interceptor.set(this);
+      } finally {
+         cursor=current;
+      }
+   }
+
+   public boolean proceedBoolean() throws Throwable {
+      if(cursor<field.chain.length) {
+         return ((Boolean)proceed()).booleanValue();
+      }
+      if(accessType==READ) {
+         return field.readBoolean(target);
+      }
+      boolean written=getBooleanValueToSet();
+      field.writeBoolean(target,written);
+      return written;
+   }
+
+   public byte proceedByte() throws Throwable {
+      if(cursor<field.chain.length) {
+         return ((Byte)proceed()).byteValue();
+      }
+      if(accessType==READ) {
+         return field.readByte(target);
+      }
+      byte written=getByteValueToSet();
+      field.writeByte(target,written);
+      return written;
+   }
+
+   public char proceedChar() throws Throwable {
+      if(cursor<field.chain.length) {
+         return ((Character)proceed()).charValue();
+      }
+      if(accessType==READ) {
+         return field.readChar(target);
+      }
+      char written=getCharValueToSet();
+      field.writeChar(target,written);
+      return written;
+   }
+
+   public short proceedShort() throws Throwable {
+      if(cursor<field.chain.length) {
+         return ((Short)proceed()).shortValue();
+      }
+      if(accessType==READ) {
+         return field.readShort(target);
+      }
+      short written=getShortValueToSet();
+      field.writeShort(target,written);
+      return written;
+   }
+
+   public int proceedInt() throws Throwable {
+      if(cursor<field.chain.length) {
+         return ((Integer)proceed()).intValue();
+      }
+      if(accessType==READ) {
+         return field.readInt(target);
+      }
+      int written=getIntValueToSet();
+      field.writeInt(target,written);
+      return written;
+   }
+
+   public long proceedLong() throws Throwable {
+      if(cursor<field.chain.length) {
+         return ((Long)proceed()).longValue();
+      }
+      if(accessType==READ) {
+         return field.readLong(target);
+      }
+      long written=getLongValueToSet();
+      field.writeLong(target,written);
+      return written;
+   }
+
+   public float proceedFloat() throws Throwable {
+      if(cursor<field.chain.length) {
+         return ((Float)proceed()).floatValue();
+      }
+      if(accessType==READ) {
+         return field.readFloat(target);
+      }
+      float written=getFloatValueToSet();
+      field.writeFloat(target,written);
+      return written;
+   }
+
+   public double proceedDouble() throws Throwable {
+      if(cursor<field.chain.length) {
+         return ((Double)proceed()).doubleValue();
+      }
+      if(accessType==READ) {
+         return field.readDouble(target);
+      }
+      double written=getDoubleValueToSet();
+      field.writeDouble(target,written);
+      return written;
+   }
+
+   public String toString() {
+      return (accessType==READ?"read of ":"write of ")+getField()
+         +" ["+cursor+"/"+field.chain.length+"]";
+   }
+
+}
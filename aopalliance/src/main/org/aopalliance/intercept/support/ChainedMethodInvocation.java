@@ -0,0 +1,78 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Method;
+
+import org.aopalliance.intercept.MethodInterceptor;
+
+/**
+ * A method invocation that runs a pre-built chain of interceptors on
+ * an array of arguments.
+ *
+ * <p>Instances are not thread-safe: a method invocation is meant to
+ * be proceeded by the thread that calls the intercepted method.
+ *
+ * @see AbstractMethodInvocation
+ * @see MethodInterceptor */
+
+public class ChainedMethodInvocation extends AbstractMethodInvocation {
+
+   private static final Object[] NO_ARGUMENTS=new Object[0];
+
+   private final Object target;
+
+   private final Object[] arguments;
+
+   private final TargetInvoker invoker;
+
+   /**
+    * Creates a new invocation.
+    *
+    * @param target the target object (null if the method is static)
+    * @param method the method being called
+    * @param arguments the arguments of the call (can be null if the
+    * method takes no arguments)
+    * @param chain the interceptors to run before the target method,
+    * from the outermost to the innermost one (not copied)
+    * @see TargetInvoker#forMethod(Method) */
+   public ChainedMethodInvocation(Object target, Method method,
+                                  Object[] arguments,
+                                  MethodInterceptor[] chain) {
+      this(target,method,arguments,chain,
+           TargetInvoker.forMethod(method));
+   }
+
+   /**
+    * Creates a new invocation that calls the target method through a
+    * pre-resolved invoker.
+    *
+    * @param target the target object (null if the method is static)
+    * @param method the method being called
+    * @param arguments the arguments of the call (can be null if the
+    * method takes no arguments)
+    * @param chain the interceptors to run before the target method,
+    * from the outermost to the innermost one (not copied)
+    * @param invoker the invoker of <code>method</code> */
+   public ChainedMethodInvocation(Object target, Method method,
+                                  Object[] arguments,
+                                  MethodInterceptor[] chain,
+                                  TargetInvoker invoker) {
+      super(method,chain);
+      this.target=target;
+      this.arguments=arguments==null?NO_ARGUMENTS:arguments;
+      this.invoker=invoker;
+   }
+
+   protected Object invokeJoinpoint() throws Throwable {
+      return invoker.invoke(target,arguments);
+   }
+
+   public Object[] getArguments() {
+      return arguments;
+   }
+
+   public Object getThis() {
+      return target;
+   }
+
+}
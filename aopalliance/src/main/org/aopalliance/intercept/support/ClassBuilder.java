@@ -0,0 +1,210 @@
+
+package org.aopalliance.intercept.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal class file writer, used to spin the classes generated by
+ * this package.
+ *
+ * <p>It only supports what the generators need: a constant pool,
+ * fields, and methods whose code is written with a {@link
+ * CodeBuilder}. The maximum stack size and locals count are given by
+ * the generators. */
+
+final class ClassBuilder {
+
+   static final int ACC_PUBLIC=0x0001;
+   static final int ACC_PRIVATE=0x0002;
+   static final int ACC_PROTECTED=0x0004;
+   static final int ACC_FINAL=0x0010;
+   static final int ACC_SUPER=0x0020;
+   static final int ACC_SYNTHETIC=0x1000;
+
+   private static final int VERSION=55;
+
+   private static final int CONSTANT_UTF8=1;
+   private static final int CONSTANT_CLASS=7;
+   private static final int CONSTANT_FIELDREF=9;
+   private static final int CONSTANT_METHODREF=10;
+   private static final int CONSTANT_INTERFACE_METHODREF=11;
+   private static final int CONSTANT_NAME_AND_TYPE=12;
+
+   private final ByteArrayOutputStream pool=new ByteArrayOutputStream();
+   private final DataOutputStream poolOut=new DataOutputStream(pool);
+   private final Map<String,Integer> poolIndexes=
+      new HashMap<String,Integer>();
+   private int poolCount=1;
+
+   private final int access;
+   private final int thisClass;
+   private final int superClass;
+   private final List<byte[]> fields=new ArrayList<byte[]>();
+   private final List<byte[]> methods=new ArrayList<byte[]>();
+
+   /**
+    * Starts a new class.
+    *
+    * @param access the class access flags
+    * @param name the internal name of the class
+    * @param superName the internal name of the superclass */
+   ClassBuilder(int access, String name, String superName) {
+      this.access=access|ACC_SUPER;
+      this.thisClass=classRef(name);
+      this.superClass=classRef(superName);
+   }
+
+   int utf8(String value) {
+      String key="U"+value;
+      Integer index=poolIndexes.get(key);
+      if(index!=null) {
+         return index.intValue();
+      }
+      try {
+         poolOut.writeByte(CONSTANT_UTF8);
+         poolOut.writeUTF(value);
+      } catch(IOException e) {
+         throw new IllegalStateException(e);
+      }
+      return register(key);
+   }
+
+   int classRef(String internalName) {
+      return constant("C"+internalName,CONSTANT_CLASS,
+                      utf8(internalName),-1);
+   }
+
+   int fieldRef(String owner, String name, String descriptor) {
+      return memberRef(CONSTANT_FIELDREF,owner,name,descriptor);
+   }
+
+   int methodRef(String owner, String name, String descriptor,
+                 boolean isInterface) {
+      return memberRef(isInterface?CONSTANT_INTERFACE_METHODREF
+                       :CONSTANT_METHODREF,owner,name,descriptor);
+   }
+
+   private int memberRef(int tag, String owner, String name,
+                         String descriptor) {
+      int ownerIndex=classRef(owner);
+      int nameAndType=constant("N"+name+" "+descriptor,
+                               CONSTANT_NAME_AND_TYPE,
+                               utf8(name),utf8(descriptor));
+      return constant(tag+owner+"."+name+" "+descriptor,tag,
+                      ownerIndex,nameAndType);
+   }
+
+   private int constant(String key, int tag, int first, int second) {
+      Integer index=poolIndexes.get(key);
+      if(index!=null) {
+         return index.intValue();
+      }
+      try {
+         poolOut.writeByte(tag);
+         poolOut.writeShort(first);
+         if(second>=0) {
+            poolOut.writeShort(second);
+         }
+      } catch(IOException e) {
+         throw new IllegalStateException(e);
+      }
+      return register(key);
+   }
+
+   private int register(String key) {
+      int index=poolCount++;
+      poolIndexes.put(key,Integer.valueOf(index));
+      return index;
+   }
+
+   /**
+    * Adds a field. */
+   void addField(int access, String name, String descriptor) {
+      ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+      DataOutputStream out=new DataOutputStream(bytes);
+      try {
+         out.writeShort(access);
+         out.writeShort(utf8(name));
+         out.writeShort(utf8(descriptor));
+         out.writeShort(0);
+      } catch(IOException e) {
+         throw new IllegalStateException(e);
+      }
+      fields.add(bytes.toByteArray());
+   }
+
+   /**
+    * Adds a method.
+    *
+    * @param code the body of the method */
+   void addMethod(int access, String name, String descriptor,
+                  CodeBuilder code) {
+      ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+      DataOutputStream out=new DataOutputStream(bytes);
+      try {
+         out.writeShort(access);
+         out.writeShort(utf8(name));
+         out.writeShort(utf8(descriptor));
+         out.writeShort(1);
+         byte[] body=code.toByteArray();
+         byte[] frames=code.stackMapTable();
+         out.writeShort(utf8("Code"));
+         out.writeInt(12+body.length+(frames==null?0:6+frames.length));
+         out.writeShort(code.maxStack);
+         out.writeShort(code.maxLocals);
+         out.writeInt(body.length);
+         out.write(body);
+         out.writeShort(0);
+         if(frames==null) {
+            out.writeShort(0);
+         } else {
+            out.writeShort(1);
+            out.writeShort(utf8("StackMapTable"));
+            out.writeInt(frames.length);
+            out.write(frames);
+         }
+      } catch(IOException e) {
+         throw new IllegalStateException(e);
+      }
+      methods.add(bytes.toByteArray());
+   }
+
+   /**
+    * Returns the class file. */
+   byte[] toByteArray() {
+      ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+      DataOutputStream out=new DataOutputStream(bytes);
+      try {
+         out.writeInt(0xCAFEBABE);
+         out.writeShort(0);
+         out.writeShort(VERSION);
+         out.writeShort(poolCount);
+         out.write(pool.toByteArray());
+         out.writeShort(access);
+         out.writeShort(thisClass);
+         out.writeShort(superClass);
+         out.writeShort(0);
+         writeAll(out,fields);
+         writeAll(out,methods);
+         out.writeShort(0);
+      } catch(IOException e) {
+         throw new IllegalStateException(e);
+      }
+      return bytes.toByteArray();
+   }
+
+   private static void writeAll(DataOutputStream out, List<byte[]> items)
+      throws IOException {
+      out.writeShort(items.size());
+      for(byte[] item : items) {
+         out.write(item);
+      }
+   }
+
+}
@@ -0,0 +1,311 @@
+
+package org.aopalliance.intercept.support;
+
+import java.util.Arrays;
+
+/**
+ * Writes the bytecode of a method body for a {@link ClassBuilder}.
+ *
+ * <p>The only branches that are supported are switches whose targets
+ * all have the same frame as the method entry (same locals and an
+ * empty stack), which keeps the stack map frames trivial. */
+
+final class CodeBuilder {
+
+   static final int ACONST_NULL=0x01;
+   static final int ICONST_0=0x03;
+   static final int BIPUSH=0x10;
+   static final int SIPUSH=0x11;
+   static final int ILOAD=0x15;
+   static final int LLOAD=0x16;
+   static final int FLOAD=0x17;
+   static final int DLOAD=0x18;
+   static final int ALOAD=0x19;
+   static final int AALOAD=0x32;
+   static final int AASTORE=0x53;
+   static final int DUP=0x59;
+   static final int IRETURN=0xac;
+   static final int LRETURN=0xad;
+   static final int FRETURN=0xae;
+   static final int DRETURN=0xaf;
+   static final int ARETURN=0xb0;
+   static final int RETURN=0xb1;
+   static final int GETFIELD=0xb4;
+   static final int PUTFIELD=0xb5;
+   static final int INVOKEVIRTUAL=0xb6;
+   static final int INVOKESPECIAL=0xb7;
+   static final int INVOKESTATIC=0xb8;
+   static final int INVOKEINTERFACE=0xb9;
+   static final int ANEWARRAY=0xbd;
+   static final int CHECKCAST=0xc0;
+   static final int POP=0x57;
+   static final int LOOKUPSWITCH=0xab;
+
+   private static final int SAME_FRAME_EXTENDED=251;
+
+   private final ClassBuilder owner;
+
+   private byte[] code=new byte[64];
+   private int length;
+
+   private int[] frames=new int[0];
+
+   private Label[] labels=new Label[0];
+
+   int maxStack;
+   int maxLocals;
+
+   /**
+    * A branch target. */
+   static final class Label {
+      int position=-1;
+      int[] references=new int[0];
+   }
+
+   CodeBuilder(ClassBuilder owner, int maxStack, int maxLocals) {
+      this.owner=owner;
+      this.maxStack=maxStack;
+      this.maxLocals=maxLocals;
+   }
+
+   CodeBuilder op(int opcode) {
+      u1(opcode);
+      return this;
+   }
+
+   private void u1(int value) {
+      if(length==code.length) {
+         code=Arrays.copyOf(code,length*2);
+      }
+      code[length++]=(byte)value;
+   }
+
+   private void u2(int value) {
+      u1(value>>8);
+      u1(value);
+   }
+
+   private void u4(int value) {
+      u2(value>>16);
+      u2(value);
+   }
+
+   /**
+    * Creates a new label, resolved when the bytecode is returned. */
+   Label newLabel() {
+      Label label=new Label();
+      labels=Arrays.copyOf(labels,labels.length+1);
+      labels[labels.length-1]=label;
+      return label;
+   }
+
+   /**
+    * Binds a label to the current position, and records a frame that
+    * is the same as the method entry frame at this position. */
+   CodeBuilder mark(Label label) {
+      label.position=length;
+      if(frames.length==0 || frames[frames.length-1]!=length) {
+         frames=Arrays.copyOf(frames,frames.length+1);
+         frames[frames.length-1]=length;
+      }
+      return this;
+   }
+
+   /**
+    * Writes a lookup switch on the int on top of the stack.
+    *
+    * @param keys the sorted keys
+    * @param targets the targets of the keys */
+   CodeBuilder lookupswitch(Label otherwise, int[] keys, Label[] targets) {
+      int start=length;
+      u1(LOOKUPSWITCH);
+      while(length%4!=0) {
+         u1(0);
+      }
+      reference(otherwise,start);
+      u4(keys.length);
+      for(int i=0;i<keys.length;i++) {
+         u4(keys[i]);
+         reference(targets[i],start);
+      }
+      return this;
+   }
+
+   private void reference(Label label, int instruction) {
+      int[] references=label.references;
+      references=Arrays.copyOf(references,references.length+2);
+      references[references.length-2]=length;
+      references[references.length-1]=instruction;
+      label.references=references;
+      u4(0);
+   }
+
+   /**
+    * Pushes an int constant. */
+   CodeBuilder iconst(int value) {
+      if(value>=-1 && value<=5) {
+         return op(ICONST_0+value);
+      }
+      if(value>=Byte.MIN_VALUE && value<=Byte.MAX_VALUE) {
+         u1(BIPUSH);
+         u1(value);
+      } else {
+         u1(SIPUSH);
+         u2(value);
+      }
+      return this;
+   }
+
+   /**
+    * Loads a local variable of the given type. */
+   CodeBuilder load(Class<?> type, int slot) {
+      u1(loadOpcode(type));
+      u1(slot);
+      return this;
+   }
+
+   /**
+    * Returns a value of the given type (or void). */
+   CodeBuilder ret(Class<?> type) {
+      if(type==void.class) {
+         return op(RETURN);
+      }
+      if(!type.isPrimitive()) {
+         return op(ARETURN);
+      }
+      return op(IRETURN+(loadOpcode(type)-ILOAD));
+   }
+
+   CodeBuilder field(int opcode, String owner, String name,
+                     String descriptor) {
+      u1(opcode);
+      u2(this.owner.fieldRef(owner,name,descriptor));
+      return this;
+   }
+
+   CodeBuilder invoke(int opcode, String owner, String name,
+                      String descriptor, boolean isInterface) {
+      u1(opcode);
+      u2(this.owner.methodRef(owner,name,descriptor,isInterface));
+      if(opcode==INVOKEINTERFACE) {
+         u1(argumentSlots(descriptor)+1);
+         u1(0);
+      }
+      return this;
+   }
+
+   CodeBuilder type(int opcode, String internalName) {
+      u1(opcode);
+      u2(owner.classRef(internalName));
+      return this;
+   }
+
+   /**
+    * Boxes the value of the given type on top of the stack (no-op
+    * for references). */
+   CodeBuilder box(Class<?> type) {
+      if(type.isPrimitive()) {
+         Class<?> wrapper=Types.wrapper(type);
+         invoke(INVOKESTATIC,Types.internalName(wrapper),"valueOf",
+                "("+Types.descriptor(type)+")"
+                +Types.descriptor(wrapper),false);
+      }
+      return this;
+   }
+
+   /**
+    * Casts (and unboxes for primitives) the object reference on top
+    * of the stack to the given type. */
+   CodeBuilder unbox(Class<?> type) {
+      if(type==Object.class) {
+         return this;
+      }
+      if(!type.isPrimitive()) {
+         return type(CHECKCAST,Types.internalName(type));
+      }
+      String wrapper=Types.internalName(Types.wrapper(type));
+      type(CHECKCAST,wrapper);
+      return invoke(INVOKEVIRTUAL,wrapper,type.getName()+"Value",
+                    "()"+Types.descriptor(type),false);
+   }
+
+   /**
+    * Returns the bytecode, with the branches resolved. */
+   byte[] toByteArray() {
+      for(Label label : labels) {
+         int[] references=label.references;
+         for(int i=0;i<references.length;i+=2) {
+            int offset=label.position-references[i+1];
+            int at=references[i];
+            code[at]=(byte)(offset>>24);
+            code[at+1]=(byte)(offset>>16);
+            code[at+2]=(byte)(offset>>8);
+            code[at+3]=(byte)offset;
+         }
+      }
+      return Arrays.copyOf(code,length);
+   }
+
+   /**
+    * Returns the content of the StackMapTable attribute (without its
+    * name and length), or null if the code has no branch target. */
+   byte[] stackMapTable() {
+      if(frames.length==0) {
+         return null;
+      }
+      byte[] table=new byte[2+frames.length*3];
+      int size=2;
+      table[0]=(byte)(frames.length>>8);
+      table[1]=(byte)frames.length;
+      int previous=-1;
+      for(int position : frames) {
+         int delta=position-previous-1;
+         if(delta<64) {
+            table[size++]=(byte)delta;
+         } else {
+            table[size++]=(byte)SAME_FRAME_EXTENDED;
+            table[size++]=(byte)(delta>>8);
+            table[size++]=(byte)delta;
+         }
+         previous=position;
+      }
+      return Arrays.copyOf(table,size);
+   }
+
+   private static int loadOpcode(Class<?> type) {
+      if(!type.isPrimitive()) {
+         return ALOAD;
+      } else if(type==long.class) {
+         return LLOAD;
+      } else if(type==float.class) {
+         return FLOAD;
+      } else if(type==double.class) {
+         return DLOAD;
+      } else {
+         return ILOAD;
+      }
+   }
+
+   private static int argumentSlots(String descriptor) {
+      int slots=0;
+      int i=1;
+      while(descriptor.charAt(i)!=')') {
+         char c=descriptor.charAt(i);
+         if(c=='J' || c=='D') {
+            slots+=2;
+            i++;
+         } else {
+            slots++;
+            while(descriptor.charAt(i)=='[') {
+               i++;
+            }
+            if(descriptor.charAt(i)=='L') {
+               i=descriptor.indexOf(';',i);
+            }
+            i++;
+         }
+      }
+      return slots;
+   }
+
+}
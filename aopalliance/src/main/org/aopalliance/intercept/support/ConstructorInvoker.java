@@ -0,0 +1,159 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Performs the actual call to a constructor, at the end of a chain of
+ * interceptors.
+ *
+ * <p>This is the constructor counterpart of {@link TargetInvoker}:
+ * the constructor is resolved once (see {@link
+ * #forConstructor(Constructor)}) into a method handle adapted to a
+ * generic <code>(Object[])Object</code> type, so that creating an
+ * object does not go through {@link Constructor#newInstance(Object[])}
+ * and its access checks. When the constructor cannot be accessed
+ * through a method handle, the invoker falls back to reflection.
+ *
+ * <p>The exceptions thrown by the constructor are not wrapped.
+ *
+ * @see ChainedConstructorInvocation */
+
+public abstract class ConstructorInvoker {
+
+   private static final MethodType GENERIC_TYPE=
+      MethodType.methodType(Object.class,Object[].class);
+
+   private static final MemberCache<Constructor<?>,ConstructorInvoker>
+      invokers=new MemberCache<Constructor<?>,ConstructorInvoker>();
+
+   private final Constructor<?> constructor;
+
+   ConstructorInvoker(Constructor<?> constructor) {
+      this.constructor=constructor;
+   }
+
+   /**
+    * Gets the invoker of a given constructor.
+    *
+    * <p>The invoker is resolved on the first call and then cached,
+    * so callers that build their interceptors chains once should also
+    * keep the returned invoker.
+    *
+    * @param constructor the constructor
+    * @return the invoker (never null) */
+   public static ConstructorInvoker forConstructor(
+      Constructor<?> constructor) {
+      ConstructorInvoker invoker=invokers.get(constructor);
+      if(invoker==null) {
+         invoker=invokers.put(constructor,resolve(constructor));
+      }
+      return invoker;
+   }
+
+   private static ConstructorInvoker resolve(Constructor<?> constructor) {
+      MethodHandle handle=unreflect(constructor);
+      if(handle==null) {
+         return new ReflectiveInvoker(constructor);
+      }
+      MethodHandle generic=handle.asType(handle.type().generic());
+      generic=generic.asSpreader(Object[].class,
+                                 constructor.getParameterCount());
+      return new HandleInvoker(constructor,handle,
+                               generic.asType(GENERIC_TYPE));
+   }
+
+   private static MethodHandle unreflect(Constructor<?> constructor) {
+      MethodHandles.Lookup lookup=MethodHandles.lookup();
+      try {
+         return lookup.unreflectConstructor(constructor);
+      } catch(IllegalAccessException e) {
+         // try again below
+      }
+      try {
+         if(constructor.trySetAccessible()) {
+            return lookup.unreflectConstructor(constructor);
+         }
+      } catch(IllegalAccessException e) {
+         // not accessible
+      } catch(SecurityException e) {
+         // not accessible
+      }
+      return null;
+   }
+
+   /**
+    * Gets the constructor called by this invoker. */
+   public final Constructor<?> getConstructor() {
+      return constructor;
+   }
+
+   /**
+    * Returns a method handle that directly calls the constructor,
+    * with its exact type.
+    *
+    * @return the handle, or null if the constructor can only be
+    * called through reflection */
+   public abstract MethodHandle getHandle();
+
+   /**
+    * Calls the constructor.
+    *
+    * @param arguments the arguments of the call (can be null when the
+    * constructor takes no arguments)
+    * @return the new object
+    * @throws Throwable the exception thrown by the constructor */
+   public abstract Object newInstance(Object[] arguments) throws Throwable;
+
+   public String toString() {
+      return getClass().getSimpleName()+"["+constructor+"]";
+   }
+
+   static final class HandleInvoker extends ConstructorInvoker {
+
+      private final MethodHandle handle;
+
+      private final MethodHandle invoker;
+
+      HandleInvoker(Constructor<?> constructor, MethodHandle handle,
+                    MethodHandle invoker) {
+         super(constructor);
+         this.handle=handle;
+         this.invoker=invoker;
+      }
+
+      public MethodHandle getHandle() {
+         return handle;
+      }
+
+      public Object newInstance(Object[] arguments) throws Throwable {
+         return invoker.invokeExact(arguments);
+      }
+
+   }
+
+   static final class ReflectiveInvoker extends ConstructorInvoker {
+
+      ReflectiveInvoker(Constructor<?> constructor) {
+         super(constructor);
+      }
+
+      public MethodHandle getHandle() {
+         return null;
+      }
+
+      public Object newInstance(Object[] arguments) throws Throwable {
+         try {
+            return getConstructor().newInstance(arguments);
+         } catch(InvocationTargetException e) {
+            throw e.getTargetException();
+         }
+      }
+
+   }
+
+}
@@ -0,0 +1,354 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Method;
+
+import org.aopalliance.intercept.MethodInterceptor;
+
+/**
+ * Base class of the method invocations generated by {@link
+ * MethodInvocationFactory}.
+ *
+ * <p>A generated invocation is dedicated to a given method: it holds
+ * the arguments in typed fields and calls the target method directly,
+ * so that no argument is boxed unless an interceptor asks for the
+ * arguments array (see {@link #getArguments()}). Once materialized,
+ * the array is the reference for the arguments: the modifications of
+ * its elements are taken into account when the target method is
+ * called.
+ *
+ * <p>The typed accessors of {@link
+ * org.aopalliance.intercept.PrimitiveInvocation} read and write the
+ * typed fields directly (until the arguments array is materialized),
+ * and the typed <code>proceed</code> methods call the target without
+ * boxing its result.
+ *
+ * <p>This class is not meant to be subclassed by hand.
+ *
+ * @see MethodInvocationFactory */
+
+public abstract class GeneratedMethodInvocation
+   extends AbstractMethodInvocation {
+
+   private Object[] arguments;
+
+   /**
+    * Sets the static part of the invocation.
+    *
+    * @param method the method being called
+    * @param chain the interceptors to run before the target method,
+    * from the outermost to the innermost one (not copied) */
+   protected GeneratedMethodInvocation(Method method,
+                                       MethodInterceptor[] chain) {
+      super(method,chain);
+   }
+
+   protected final Object invokeJoinpoint() throws Throwable {
+      syncArguments();
+      return invokeTarget();
+   }
+
+   /**
+    * Copies the materialized arguments array (if any) back to the
+    * typed arguments, before the target method is called. */
+   protected final void syncArguments() {
+      Object[] array=arguments;
+      if(array!=null) {
+         writeBack(array);
+      }
+   }
+
+   /**
+    * Gets the arguments as an array object.
+    *
+    * <p>The array is created (and the primitive arguments boxed) on
+    * the first call. */
+   public final Object[] getArguments() {
+      Object[] array=arguments;
+      if(array==null) {
+         array=arguments=materialize();
+      }
+      return array;
+   }
+
+   public final Object getArgument(int index) {
+      Object[] array=arguments;
+      if(array!=null) {
+         return array[index];
+      }
+      return readArgument(index);
+   }
+
+   public final void setArgument(int index, Object value) {
+      checkArgument(index,value);
+      Object[] array=arguments;
+      if(array!=null) {
+         array[index]=value;
+      } else {
+         writeArgument(index,value);
+      }
+   }
+
+   public final boolean getBooleanArgument(int index) {
+      Object[] array=arguments;
+      if(array!=null) {
+         return ((Boolean)array[index]).booleanValue();
+      }
+      return readBoolean(index);
+   }
+
+   public final void setBooleanArgument(int index, boolean value) {
+      Object[] array=arguments;
+      if(array!=null) {
+         checkParameter(index,boolean.class);
+         array[index]=Boolean.valueOf(value);
+      } else {
+         writeBoolean(index,value);
+      }
+   }
+
+   public final byte getByteArgument(int index) {
+      Object[] array=arguments;
+      if(array!=null) {
+         return ((Byte)array[index]).byteValue();
+      }
+      return readByte(index);
+   }
+
+   public final void setByteArgument(int index, byte value) {
+      Object[] array=arguments;
+      if(array!=null) {
+         checkParameter(index,byte.class);
+         array[index]=Byte.valueOf(value);
+      } else {
+         writeByte(index,value);
+      }
+   }
+
+   public final char getCharArgument(int index) {
+      Object[] array=arguments;
+      if(array!=null) {
+         return ((Character)array[index]).charValue();
+      }
+      return readChar(index);
+   }
+
+   public final void setCharArgument(int index, char value) {
+      Object[] array=arguments;
+      if(array!=null) {
+         checkParameter(index,char.class);
+         array[index]=Character.valueOf(value);
+      } else {
+         writeChar(index,value);
+      }
+   }
+
+   public final short getShortArgument(int index) {
+      Object[] array=arguments;
+      if(array!=null) {
+         return ((Short)array[index]).shortValue();
+      }
+      return readShort(index);
+   }
+
+   public final void setShortArgument(int index, short value) {
+      Object[] array=arguments;
+      if(array!=null) {
+         checkParameter(index,short.class);
+         array[index]=Short.valueOf(value);
+      } else {
+         writeShort(index,value);
+      }
+   }
+
+   public final int getIntArgument(int index) {
+      Object[] array=arguments;
+      if(array!=null) {
+         return ((Integer)array[index]).intValue();
+      }
+      return readInt(index);
+   }
+
+   public final void setIntArgument(int index, int value) {
+      Object[] array=arguments;
+      if(array!=null) {
+         checkParameter(index,int.class);
+         array[index]=Integer.valueOf(value);
+      } else {
+         writeInt(index,value);
+      }
+   }
+
+   public final long getLongArgument(int index) {
+      Object[] array=arguments;
+      if(array!=null) {
+         return ((Long)array[index]).longValue();
+      }
+      return readLong(index);
+   }
+
+   public final void setLongArgument(int index, long value) {
+      Object[] array=arguments;
+      if(array!=null) {
+         checkParameter(index,long.class);
+         array[index]=Long.valueOf(value);
+      } else {
+         writeLong(index,value);
+      }
+   }
+
+   public final float getFloatArgument(int index) {
+      Object[] array=arguments;
+      if(array!=null) {
+         return ((Float)array[index]).floatValue();
+      }
+      return readFloat(index);
+   }
+
+   public final void setFloatArgument(int index, float value) {
+      Object[] array=arguments;
+      if(array!=null) {
+         checkParameter(index,float.class);
+         array[index]=Float.valueOf(value);
+      } else {
+         writeFloat(index,value);
+      }
+   }
+
+   public final double getDoubleArgument(int index) {
+      Object[] array=arguments;
+      if(array!=null) {
+         return ((Double)array[index]).doubleValue();
+      }
+      return readDouble(index);
+   }
+
+   public final void setDoubleArgument(int index, double value) {
+      Object[] array=arguments;
+      if(array!=null) {
+         checkParameter(index,double.class);
+         array[index]=Double.valueOf(value);
+      } else {
+         writeDouble(index,value);
+      }
+   }
+
+   /**
+    * Reads a typed argument (boxed if primitive). */
+   protected abstract Object readArgument(int index);
+
+   /**
+    * Writes a typed argument.
+    *
+    * @throws ClassCastException if the value does not match the type
+    * of the parameter */
+   protected abstract void writeArgument(int index, Object value);
+
+   /**
+    * Throws the exception for an argument index that is out of
+    * range. */
+   protected final Object noArgument(int index) {
+      throw new IndexOutOfBoundsException(
+         "argument "+index+" of "+getMethod());
+   }
+
+   /**
+    * Reads and writes the typed arguments of a given primitive type.
+    *
+    * <p>The <code>read<i>Type</i></code> and
+    * <code>write<i>Type</i></code> methods are overridden by the
+    * generated classes for the types of their parameters; the default
+    * implementations go through {@link #readArgument(int)} and {@link
+    * #writeArgument(int,Object)}. */
+   protected boolean readBoolean(int index) {
+      return ((Boolean)readArgument(index)).booleanValue();
+   }
+
+   protected void writeBoolean(int index, boolean value) {
+      checkParameter(index,boolean.class);
+      writeArgument(index,Boolean.valueOf(value));
+   }
+
+   protected byte readByte(int index) {
+      return ((Byte)readArgument(index)).byteValue();
+   }
+
+   protected void writeByte(int index, byte value) {
+      checkParameter(index,byte.class);
+      writeArgument(index,Byte.valueOf(value));
+   }
+
+   protected char readChar(int index) {
+      return ((Character)readArgument(index)).charValue();
+   }
+
+   protected void writeChar(int index, char value) {
+      checkParameter(index,char.class);
+      writeArgument(index,Character.valueOf(value));
+   }
+
+   protected short readShort(int index) {
+      return ((Short)readArgument(index)).shortValue();
+   }
+
+   protected void writeShort(int index, short value) {
+      checkParameter(index,short.class);
+      writeArgument(index,Short.valueOf(value));
+   }
+
+   protected int readInt(int index) {
+      return ((Integer)readArgument(index)).intValue();
+   }
+
+   protected void writeInt(int index, int value) {
+      checkParameter(index,int.class);
+      writeArgument(index,Integer.valueOf(value));
+   }
+
+   protected long readLong(int index) {
+      return ((Long)readArgument(index)).longValue();
+   }
+
+   protected void writeLong(int index, long value) {
+      checkParameter(index,long.class);
+      writeArgument(index,Long.valueOf(value));
+   }
+
+   protected float readFloat(int index) {
+      return ((Float)readArgument(index)).floatValue();
+   }
+
+   protected void writeFloat(int index, float value) {
+      checkParameter(index,float.class);
+      writeArgument(index,Float.valueOf(value));
+   }
+
+   protected double readDouble(int index) {
+      return ((Double)readArgument(index)).doubleValue();
+   }
+
+   protected void writeDouble(int index, double value) {
+      checkParameter(index,double.class);
+      writeArgument(index,Double.valueOf(value));
+   }
+
+   /**
+    * Calls the target method with the typed arguments.
+    *
+    * @return the result of the call (boxed if primitive, null if
+    * void) */
+   protected abstract Object invokeTarget() throws Throwable;
+
+   /**
+    * Creates an array with the typed arguments. */
+   protected abstract Object[] materialize();
+
+   /**
+    * Copies the elements of the arguments array back into the typed
+    * arguments.
+    *
+    * @throws ClassCastException if an element of the array does not
+    * match the type of the corresponding parameter */
+   protected abstract void writeBack(Object[] arguments);
+
+}
@@ -0,0 +1,94 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletionStage;
+
+import org.aopalliance.intercept.AsyncMethodInterceptor;
+import org.aopalliance.intercept.Interceptor;
+import org.aopalliance.intercept.MethodInterceptor;
+
+/**
+ * A method that returns a {@link CompletionStage}, with its chain of
+ * synchronous and asynchronous interceptors.
+ *
+ * <p>This is the asynchronous counterpart of {@link
+ * InterceptedMethod}: the chain can mix {@link MethodInterceptor}s
+ * and {@link AsyncMethodInterceptor}s, and the call returns the stage
+ * of the outermost interceptor without waiting for its completion.
+ * If the method returns a <code>CompletableFuture</code>, callers
+ * should convert the returned stage with
+ * <code>toCompletableFuture()</code>.
+ *
+ * @see AsyncChainedMethodInvocation */
+
+public final class InterceptedAsyncMethod {
+
+   private static final Object[] NO_ARGUMENTS=new Object[0];
+
+   private final Method method;
+
+   private final Interceptor[] chain;
+
+   private final TargetInvoker invoker;
+
+   private InterceptedAsyncMethod(Method method, Interceptor[] chain) {
+      this.method=method;
+      this.chain=chain;
+      this.invoker=TargetInvoker.forMethod(method);
+   }
+
+   /**
+    * Creates an intercepted asynchronous method.
+    *
+    * @param method the method to intercept
+    * @param chain the interceptors to run before the target method,
+    * from the outermost to the innermost one (not copied); each of
+    * them must be a {@link MethodInterceptor} or an {@link
+    * AsyncMethodInterceptor}
+    * @return the intercepted method
+    * @throws IllegalArgumentException if the method does not return a
+    * <code>CompletionStage</code>, or if the chain contains another
+    * kind of interceptor */
+   public static InterceptedAsyncMethod create(Method method,
+                                               Interceptor[] chain) {
+      if(!CompletionStage.class.isAssignableFrom(method.getReturnType())) {
+         throw new IllegalArgumentException(
+            method+" does not return a CompletionStage");
+      }
+      for(Interceptor interceptor : chain) {
+         if(!(interceptor instanceof AsyncMethodInterceptor)
+            && !(interceptor instanceof MethodInterceptor)) {
+            throw new IllegalArgumentException(
+               interceptor+" cannot intercept "+method);
+         }
+      }
+      return new InterceptedAsyncMethod(method,chain);
+   }
+
+   /**
+    * Gets the intercepted method. */
+   public Method getMethod() {
+      return method;
+   }
+
+   /**
+    * Calls the method through its interceptors.
+    *
+    * @param target the target object (null if the method is static)
+    * @param arguments the arguments of the call (can be null if the
+    * method takes no arguments)
+    * @return the stage of the call; the exceptions of the
+    * interceptors and of the target method are reported through
+    * it */
+   public CompletionStage<?> invoke(Object target, Object[] arguments) {
+      return new AsyncChainedMethodInvocation(
+         target,method,arguments==null?NO_ARGUMENTS:arguments,chain,
+         invoker).proceedAsync();
+   }
+
+   public String toString() {
+      return "InterceptedAsyncMethod["+method+"]";
+   }
+
+}
@@ -0,0 +1,175 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Constructor;
+
+import org.aopalliance.intercept.ConstructorInterceptor;
+
+/**
+ * A constructor with its chain of interceptors, ready to be called
+ * with an array of arguments.
+ *
+ * <p>This is the constructor counterpart of {@link
+ * InterceptedMethod}: the constructor is called through its cached
+ * {@link ConstructorInvoker} and the implementation is specialized
+ * on the length of the chain (with no interceptor, the object is
+ * created directly and no invocation is created).
+ *
+ * <p>An interceptor can substitute the instance by returning another
+ * object without proceeding: the constructor is then never called.
+ *
+ * @see ChainedConstructorInvocation */
+
+public abstract class InterceptedConstructor {
+
+   private final Constructor<?> constructor;
+
+   final ConstructorInvoker invoker;
+
+   InterceptedConstructor(Constructor<?> constructor) {
+      this.constructor=constructor;
+      this.invoker=ConstructorInvoker.forConstructor(constructor);
+   }
+
+   /**
+    * Creates an intercepted constructor.
+    *
+    * @param constructor the constructor to intercept
+    * @param chain the interceptors to run before the constructor,
+    * from the outermost to the innermost one (not copied)
+    * @return the intercepted constructor */
+   public static InterceptedConstructor create(
+      Constructor<?> constructor, ConstructorInterceptor[] chain) {
+      switch(chain.length) {
+         case 0:
+            return new Direct(constructor);
+         case 1:
+            return new Single(constructor,chain[0]);
+         default:
+            return new Chained(constructor,chain);
+      }
+   }
+
+   /**
+    * Creates an intercepted constructor whose invocations are
+    * recycled.
+    *
+    * <p>Each thread keeps a stack of {@link
+    * PooledConstructorInvocation}s for this constructor (one per
+    * nesting level). The arguments given to {@link
+    * #newInstance(Object[])} are copied into the arguments array of
+    * the invocation. Invocations that escape are not recycled (see
+    * {@link PooledJoinpoint}).
+    *
+    * @param constructor the constructor to intercept
+    * @param chain the interceptors to run before the constructor,
+    * from the outermost to the innermost one (not copied)
+    * @return the intercepted constructor */
+   public static InterceptedConstructor createPooled(
+      Constructor<?> constructor, ConstructorInterceptor[] chain) {
+      return new Pooled(constructor,chain);
+   }
+
+   /**
+    * Gets the intercepted constructor. */
+   public final Constructor<?> getConstructor() {
+      return constructor;
+   }
+
+   /**
+    * Creates a new object through the interceptors.
+    *
+    * @param arguments the arguments of the constructor (can be null
+    * if it takes no arguments)
+    * @return the new object, or the object substituted by the
+    * interceptors
+    * @throws Throwable the exception thrown by the interceptors or
+    * the constructor */
+   public abstract Object newInstance(Object[] arguments) throws Throwable;
+
+   public String toString() {
+      return getClass().getSimpleName()+"["+constructor+"]";
+   }
+
+   static final class Direct extends InterceptedConstructor {
+
+      Direct(Constructor<?> constructor) {
+         super(constructor);
+      }
+
+      public Object newInstance(Object[] arguments) throws Throwable {
+         return invoker.newInstance(arguments);
+      }
+
+   }
+
+   static final class Single extends InterceptedConstructor {
+
+      private final ConstructorInterceptor interceptor;
+
+      Single(Constructor<?> constructor, ConstructorInterceptor interceptor) {
+         super(constructor);
+         this.interceptor=interceptor;
+      }
+
+      public Object newInstance(Object[] arguments) throws Throwable {
+         return interceptor.construct(new ChainedConstructorInvocation(
+            getConstructor(),arguments,
+            AbstractConstructorInvocation.EMPTY_CHAIN,invoker));
+      }
+
+   }
+
+   static final class Chained extends InterceptedConstructor {
+
+      private final ConstructorInterceptor[] chain;
+
+      Chained(Constructor<?> constructor, ConstructorInterceptor[] chain) {
+         super(constructor);
+         this.chain=chain;
+      }
+
+      public Object newInstance(Object[] arguments) throws Throwable {
+         return new ChainedConstructorInvocation(
+            getConstructor(),arguments,chain,invoker).proceed();
+      }
+
+   }
+
+   static final class Pooled extends InterceptedConstructor {
+
+      private final ConstructorInterceptor[] chain;
+
+      private final InvocationPool pool=new InvocationPool();
+
+      Pooled(Constructor<?> constructor, ConstructorInterceptor[] chain) {
+         super(constructor);
+         this.chain=chain;
+      }
+
+      public Object newInstance(Object[] arguments) throws Throwable {
+         InvocationPool.Slots slots=pool.get();
+         PooledConstructorInvocation invocation=
+            (PooledConstructorInvocation)slots.enter();
+         if(invocation==null) {
+            invocation=new PooledConstructorInvocation(getConstructor(),
+                                                       chain,invoker);
+            slots.set(invocation);
+         }
+         boolean recycle=false;
+         try {
+            invocation.start(arguments);
+            Object result=invocation.proceed();
+            recycle=invocation.finish();
+            return result;
+         } catch(Throwable t) {
+            recycle=invocation.finish();
+            throw t;
+         } finally {
+            slots.exit(recycle);
+         }
+      }
+
+   }
+
+}
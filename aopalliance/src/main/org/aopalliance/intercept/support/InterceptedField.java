@@ -0,0 +1,719 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+import org.aopalliance.aop.AspectException;
+import org.aopalliance.intercept.FieldInterceptor;
+
+/**
+ * A field with its chain of interceptors, ready to be read and
+ * written.
+ *
+ * <p>This is the entry point of the field interception engine. The
+ * field is resolved once into a {@link VarHandle} (shared by all the
+ * intercepted fields on the same field), from which exactly-typed
+ * method handles are derived for the chosen access {@link Mode}, so
+ * that neither the access checks of {@link Field#get(Object)} nor the
+ * boxing of primitive values are paid on each access:
+ *
+ * <ul>
+ * <li>with no interceptor, the typed accessors (e.g. {@link
+ * #getInt(Object)} and {@link #setInt(Object,int)}) access the field
+ * directly and no joinpoint is created;
+ * <li>otherwise, a {@link ChainedFieldAccess} is proceeded. It
+ * implements {@link org.aopalliance.intercept.PrimitiveFieldAccess},
+ * so that interceptors of primitive fields can read and change the
+ * value to set, and proceed, without boxing it.
+ * </ul>
+ *
+ * <p>Fields that cannot be resolved into a variable handle (e.g. the
+ * fields of a module that is not open) are accessed through
+ * reflective method handles when they can be made accessible. Their
+ * accesses then follow the declaration of the field (volatile or not)
+ * whatever the chosen mode.
+ *
+ * @see ChainedFieldAccess */
+
+public final class InterceptedField {
+
+   /**
+    * The memory ordering of the accesses to a field (see {@link
+    * VarHandle}). */
+   public enum Mode {
+      /** Plain accesses, as if the field was not volatile. */
+      PLAIN,
+      /** Opaque accesses: coherent, but not ordered with the accesses
+       * to other variables. */
+      OPAQUE,
+      /** Volatile accesses, as if the field was volatile. */
+      VOLATILE
+   }
+
+   private static final Class<?>[] PRIMITIVES={
+      boolean.class,byte.class,char.class,short.class,
+      int.class,long.class,float.class,double.class
+   };
+
+   private static final MethodHandle UNSUPPORTED;
+
+   static {
+      try {
+         UNSUPPORTED=MethodHandles.lookup().findConstructor(
+            UnsupportedOperationException.class,
+            MethodType.methodType(void.class,String.class));
+      } catch(ReflectiveOperationException e) {
+         throw new ExceptionInInitializerError(e);
+      }
+   }
+
+   private static final MemberCache<Field,VarHandle> handles=
+      new MemberCache<Field,VarHandle>();
+
+   private final Field field;
+
+   final FieldInterceptor[] chain;
+
+   private final Mode mode;
+
+   final Class<?> type;
+
+   /** the index of the field type in PRIMITIVES, -1 if not primitive */
+   private final int sort;
+
+   /** (Object)T, T being the field type if primitive, Object
+    * otherwise */
+   private final MethodHandle getter;
+
+   /** (Object,T)void */
+   private final MethodHandle setter;
+
+   private InterceptedField(Field field, FieldInterceptor[] chain,
+                            Mode mode) {
+      this.field=field;
+      this.chain=chain;
+      this.mode=mode;
+      this.type=field.getType();
+      this.sort=Arrays.asList(PRIMITIVES).indexOf(type);
+      Class<?> valueType=type.isPrimitive()?type:Object.class;
+      MethodHandle get;
+      MethodHandle set;
+      VarHandle handle=varHandle(field);
+      if(handle!=null) {
+         VarHandle.AccessMode[] modes=accessModes(mode);
+         get=handle.toMethodHandle(modes[0]);
+         set=handle.toMethodHandle(modes[1]);
+      } else {
+         get=reflectiveGetter(field);
+         set=reflectiveSetter(field);
+      }
+      if(Modifier.isStatic(field.getModifiers())) {
+         get=MethodHandles.dropArguments(get,0,Object.class);
+         set=MethodHandles.dropArguments(set,0,Object.class);
+      }
+      this.getter=get.asType(
+         MethodType.methodType(valueType,Object.class));
+      this.setter=set.asType(
+         MethodType.methodType(void.class,Object.class,valueType));
+   }
+
+   /**
+    * Creates an intercepted field with plain accesses.
+    *
+    * @param field the field to intercept
+    * @param chain the interceptors to run around the accesses, from
+    * the outermost to the innermost one (not copied)
+    * @return the intercepted field
+    * @throws AspectException if the field cannot be accessed */
+   public static InterceptedField create(Field field,
+                                         FieldInterceptor[] chain) {
+      return create(field,chain,Mode.PLAIN);
+   }
+
+   /**
+    * Creates an intercepted field.
+    *
+    * @param field the field to intercept
+    * @param chain the interceptors to run around the accesses, from
+    * the outermost to the innermost one (not copied)
+    * @param mode the memory ordering of the accesses
+    * @return the intercepted field
+    * @throws AspectException if the field cannot be accessed */
+   public static InterceptedField create(Field field,
+                                         FieldInterceptor[] chain,
+                                         Mode mode) {
+      return new InterceptedField(field,chain,mode);
+   }
+
+   private static VarHandle varHandle(Field field) {
+      VarHandle handle=handles.get(field);
+      if(handle!=null) {
+         return handle;
+      }
+      try {
+         handle=MethodHandles.privateLookupIn(
+            field.getDeclaringClass(),MethodHandles.lookup())
+            .unreflectVarHandle(field);
+      } catch(IllegalAccessException e) {
+         return null;
+      } catch(SecurityException e) {
+         return null;
+      }
+      return handles.put(field,handle);
+   }
+
+   private static VarHandle.AccessMode[] accessModes(Mode mode) {
+      switch(mode) {
+         case OPAQUE:
+            return new VarHandle.AccessMode[] {
+               VarHandle.AccessMode.GET_OPAQUE,
+               VarHandle.AccessMode.SET_OPAQUE};
+         case VOLATILE:
+            return new VarHandle.AccessMode[] {
+               VarHandle.AccessMode.GET_VOLATILE,
+               VarHandle.AccessMode.SET_VOLATILE};
+         default:
+            return new VarHandle.AccessMode[] {
+               VarHandle.AccessMode.GET,VarHandle.AccessMode.SET};
+      }
+   }
+
+   private static MethodHandle reflectiveGetter(Field field) {
+      try {
+         if(field.trySetAccessible()) {
+            return MethodHandles.lookup().unreflectGetter(field);
+         }
+      } catch(IllegalAccessException e) {
+         // not accessible
+      } catch(SecurityException e) {
+         // not accessible
+      }
+      throw new AspectException("cannot access "+field);
+   }
+
+   private static MethodHandle reflectiveSetter(Field field) {
+      try {
+         return MethodHandles.lookup().unreflectSetter(field);
+      } catch(IllegalAccessException e) {
+         // final field: fail on write, like a read-only variable handle
+         MethodHandle fail=MethodHandles.throwException(
+            void.class,UnsupportedOperationException.class);
+         fail=MethodHandles.filterArguments(
+            fail,0,UNSUPPORTED.bindTo("cannot write "+field));
+         fail=MethodHandles.dropArguments(fail,0,field.getType());
+         if(!Modifier.isStatic(field.getModifiers())) {
+            fail=MethodHandles.dropArguments(
+               fail,0,field.getDeclaringClass());
+         }
+         return fail;
+      }
+   }
+
+   /**
+    * Gets the intercepted field. */
+   public Field getField() {
+      return field;
+   }
+
+   /**
+    * Gets the memory ordering of the accesses. */
+   public Mode getMode() {
+      return mode;
+   }
+
+   /**
+    * Reads the field through its interceptors.
+    *
+    * @param target the object that holds the field (ignored if the
+    * field is static)
+    * @return the value of the field (boxed if primitive), possibly
+    * changed by the interceptors
+    * @throws Throwable the exception thrown by the interceptors */
+   public Object get(Object target) throws Throwable {
+      if(chain.length==0) {
+         return read(target);
+      }
+      return new ChainedFieldAccess(this,target).proceed();
+   }
+
+   /**
+    * Writes the field through its interceptors.
+    *
+    * @param target the object that holds the field (ignored if the
+    * field is static)
+    * @param value the value to set (boxed if the field is primitive)
+    * @throws ClassCastException if the value does not match the type
+    * of the field
+    * @throws Throwable the exception thrown by the interceptors */
+   public void set(Object target, Object value) throws Throwable {
+      if(chain.length==0) {
+         write(target,value);
+      } else {
+         new ChainedFieldAccess(this,target,value).proceed();
+      }
+   }
+
+   /**
+    * Reads a <code>boolean</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a boolean field
+    * @see #get(Object) */
+   public boolean getBoolean(Object target) throws Throwable {
+      if(chain.length==0) {
+         return readBoolean(target);
+      }
+      return new ChainedFieldAccess(this,target).proceedBoolean();
+   }
+
+   /**
+    * Writes a <code>boolean</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a boolean field
+    * @see #set(Object,Object) */
+   public void setBoolean(Object target, boolean value) throws Throwable {
+      if(chain.length==0) {
+         writeBoolean(target,value);
+      } else {
+         check(boolean.class);
+         new ChainedFieldAccess(this,target,toBits(value)).proceed();
+      }
+   }
+
+   /**
+    * Reads a <code>byte</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a byte field
+    * @see #get(Object) */
+   public byte getByte(Object target) throws Throwable {
+      if(chain.length==0) {
+         return readByte(target);
+      }
+      return new ChainedFieldAccess(this,target).proceedByte();
+   }
+
+   /**
+    * Writes a <code>byte</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a byte field
+    * @see #set(Object,Object) */
+   public void setByte(Object target, byte value) throws Throwable {
+      if(chain.length==0) {
+         writeByte(target,value);
+      } else {
+         check(byte.class);
+         new ChainedFieldAccess(this,target,toBits(value)).proceed();
+      }
+   }
+
+   /**
+    * Reads a <code>char</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a char field
+    * @see #get(Object) */
+   public char getChar(Object target) throws Throwable {
+      if(chain.length==0) {
+         return readChar(target);
+      }
+      return new ChainedFieldAccess(this,target).proceedChar();
+   }
+
+   /**
+    * Writes a <code>char</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a char field
+    * @see #set(Object,Object) */
+   public void setChar(Object target, char value) throws Throwable {
+      if(chain.length==0) {
+         writeChar(target,value);
+      } else {
+         check(char.class);
+         new ChainedFieldAccess(this,target,toBits(value)).proceed();
+      }
+   }
+
+   /**
+    * Reads a <code>short</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a short field
+    * @see #get(Object) */
+   public short getShort(Object target) throws Throwable {
+      if(chain.length==0) {
+         return readShort(target);
+      }
+      return new ChainedFieldAccess(this,target).proceedShort();
+   }
+
+   /**
+    * Writes a <code>short</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a short field
+    * @see #set(Object,Object) */
+   public void setShort(Object target, short value) throws Throwable {
+      if(chain.length==0) {
+         writeShort(target,value);
+      } else {
+         check(short.class);
+         new ChainedFieldAccess(this,target,toBits(value)).proceed();
+      }
+   }
+
+   /**
+    * Reads an <code>int</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not an int field
+    * @see #get(Object) */
+   public int getInt(Object target) throws Throwable {
+      if(chain.length==0) {
+         return readInt(target);
+      }
+      return new ChainedFieldAccess(this,target).proceedInt();
+   }
+
+   /**
+    * Writes an <code>int</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not an int field
+    * @see #set(Object,Object) */
+   public void setInt(Object target, int value) throws Throwable {
+      if(chain.length==0) {
+         writeInt(target,value);
+      } else {
+         check(int.class);
+         new ChainedFieldAccess(this,target,toBits(value)).proceed();
+      }
+   }
+
+   /**
+    * Reads a <code>long</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a long field
+    * @see #get(Object) */
+   public long getLong(Object target) throws Throwable {
+      if(chain.length==0) {
+         return readLong(target);
+      }
+      return new ChainedFieldAccess(this,target).proceedLong();
+   }
+
+   /**
+    * Writes a <code>long</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a long field
+    * @see #set(Object,Object) */
+   public void setLong(Object target, long value) throws Throwable {
+      if(chain.length==0) {
+         writeLong(target,value);
+      } else {
+         check(long.class);
+         new ChainedFieldAccess(this,target,toBits(value)).proceed();
+      }
+   }
+
+   /**
+    * Reads a <code>float</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a float field
+    * @see #get(Object) */
+   public float getFloat(Object target) throws Throwable {
+      if(chain.length==0) {
+         return readFloat(target);
+      }
+      return new ChainedFieldAccess(this,target).proceedFloat();
+   }
+
+   /**
+    * Writes a <code>float</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a float field
+    * @see #set(Object,Object) */
+   public void setFloat(Object target, float value) throws Throwable {
+      if(chain.length==0) {
+         writeFloat(target,value);
+      } else {
+         check(float.class);
+         new ChainedFieldAccess(this,target,toBits(value)).proceed();
+      }
+   }
+
+   /**
+    * Reads a <code>double</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a double field
+    * @see #get(Object) */
+   public double getDouble(Object target) throws Throwable {
+      if(chain.length==0) {
+         return readDouble(target);
+      }
+      return new ChainedFieldAccess(this,target).proceedDouble();
+   }
+
+   /**
+    * Writes a <code>double</code> field through its interceptors.
+    *
+    * @throws ClassCastException if the field is not a double field
+    * @see #set(Object,Object) */
+   public void setDouble(Object target, double value) throws Throwable {
+      if(chain.length==0) {
+         writeDouble(target,value);
+      } else {
+         check(double.class);
+         new ChainedFieldAccess(this,target,toBits(value)).proceed();
+      }
+   }
+
+   /**
+    * Throws a <code>ClassCastException</code> if the field is not of
+    * the given type. */
+   void check(Class<?> expected) {
+      if(type!=expected) {
+         throw new ClassCastException(field+" is not of type "+expected);
+      }
+   }
+
+   Object read(Object target) throws Throwable {
+      return type.isPrimitive()?box(readBits(target))
+         :(Object)getter.invokeExact(target);
+   }
+
+   void write(Object target, Object value) throws Throwable {
+      if(type.isPrimitive()) {
+         writeBits(target,unbox(value));
+      } else {
+         setter.invokeExact(target,type.cast(value));
+      }
+   }
+
+   boolean readBoolean(Object target) throws Throwable {
+      check(boolean.class);
+      return (boolean)getter.invokeExact(target);
+   }
+
+   void writeBoolean(Object target, boolean value) throws Throwable {
+      check(boolean.class);
+      setter.invokeExact(target,value);
+   }
+
+   byte readByte(Object target) throws Throwable {
+      check(byte.class);
+      return (byte)getter.invokeExact(target);
+   }
+
+   void writeByte(Object target, byte value) throws Throwable {
+      check(byte.class);
+      setter.invokeExact(target,value);
+   }
+
+   char readChar(Object target) throws Throwable {
+      check(char.class);
+      return (char)getter.invokeExact(target);
+   }
+
+   void writeChar(Object target, char value) throws Throwable {
+      check(char.class);
+      setter.invokeExact(target,value);
+   }
+
+   short readShort(Object target) throws Throwable {
+      check(short.class);
+      return (short)getter.invokeExact(target);
+   }
+
+   void writeShort(Object target, short value) throws Throwable {
+      check(short.class);
+      setter.invokeExact(target,value);
+   }
+
+   int readInt(Object target) throws Throwable {
+      check(int.class);
+      return (int)getter.invokeExact(target);
+   }
+
+   void writeInt(Object target, int value) throws Throwable {
+      check(int.class);
+      setter.invokeExact(target,value);
+   }
+
+   long readLong(Object target) throws Throwable {
+      check(long.class);
+      return (long)getter.invokeExact(target);
+   }
+
+   void writeLong(Object target, long value) throws Throwable {
+      check(long.class);
+      setter.invokeExact(target,value);
+   }
+
+   float readFloat(Object target) throws Throwable {
+      check(float.class);
+      return (float)getter.invokeExact(target);
+   }
+
+   void writeFloat(Object target, float value) throws Throwable {
+      check(float.class);
+      setter.invokeExact(target,value);
+   }
+
+   double readDouble(Object target) throws Throwable {
+      check(double.class);
+      return (double)getter.invokeExact(target);
+   }
+
+   void writeDouble(Object target, double value) throws Throwable {
+      check(double.class);
+      setter.invokeExact(target,value);
+   }
+
+   /**
+    * Primitive values are held by the field accesses as the bits of a
+    * <code>long</code>, whatever their type. */
+
+   static long toBits(boolean value) {
+      return value?1L:0L;
+   }
+
+   static long toBits(byte value) {
+      return value;
+   }
+
+   static long toBits(char value) {
+      return value;
+   }
+
+   static long toBits(short value) {
+      return value;
+   }
+
+   static long toBits(int value) {
+      return value;
+   }
+
+   static long toBits(long value) {
+      return value;
+   }
+
+   static long toBits(float value) {
+      return Float.floatToRawIntBits(value);
+   }
+
+   static long toBits(double value) {
+      return Double.doubleToRawLongBits(value);
+   }
+
+   long readBits(Object target) throws Throwable {
+      switch(sort) {
+         case 0:
+            return toBits((boolean)getter.invokeExact(target));
+         case 1:
+            return toBits((byte)getter.invokeExact(target));
+         case 2:
+            return toBits((char)getter.invokeExact(target));
+         case 3:
+            return toBits((short)getter.invokeExact(target));
+         case 4:
+            return toBits((int)getter.invokeExact(target));
+         case 5:
+            return toBits((long)getter.invokeExact(target));
+         case 6:
+            return toBits((float)getter.invokeExact(target));
+         case 7:
+            return toBits((double)getter.invokeExact(target));
+         default:
+            throw new ClassCastException(field+" is not primitive");
+      }
+   }
+
+   void writeBits(Object target, long bits) throws Throwable {
+      switch(sort) {
+         case 0:
+            setter.invokeExact(target,bits!=0);
+            return;
+         case 1:
+            setter.invokeExact(target,(byte)bits);
+            return;
+         case 2:
+            setter.invokeExact(target,(char)bits);
+            return;
+         case 3:
+            setter.invokeExact(target,(short)bits);
+            return;
+         case 4:
+            setter.invokeExact(target,(int)bits);
+            return;
+         case 5:
+            setter.invokeExact(target,bits);
+            return;
+         case 6:
+            setter.invokeExact(target,Float.intBitsToFloat((int)bits));
+            return;
+         case 7:
+            setter.invokeExact(target,Double.longBitsToDouble(bits));
+            return;
+         default:
+            throw new ClassCastException(field+" is not primitive");
+      }
+   }
+
+   /**
+    * Boxes the bits of a primitive value of the field type. */
+   Object box(long bits) {
+      switch(sort) {
+         case 0:
+            return Boolean.valueOf(bits!=0);
+         case 1:
+            return Byte.valueOf((byte)bits);
+         case 2:
+            return Character.valueOf((char)bits);
+         case 3:
+            return Short.valueOf((short)bits);
+         case 4:
+            return Integer.valueOf((int)bits);
+         case 5:
+            return Long.valueOf(bits);
+         case 6:
+            return Float.valueOf(Float.intBitsToFloat((int)bits));
+         case 7:
+            return Double.valueOf(Double.longBitsToDouble(bits));
+         default:
+            throw new ClassCastException(field+" is not primitive");
+      }
+   }
+
+   /**
+    * Unboxes a value of the field type into bits.
+    *
+    * @throws ClassCastException if the value does not match the type
+    * of the field */
+   long unbox(Object value) {
+      switch(sort) {
+         case 0:
+            return toBits(((Boolean)value).booleanValue());
+         case 1:
+            return toBits(((Byte)value).byteValue());
+         case 2:
+            return toBits(((Character)value).charValue());
+         case 3:
+            return toBits(((Short)value).shortValue());
+         case 4:
+            return toBits(((Integer)value).intValue());
+         case 5:
+            return toBits(((Long)value).longValue());
+         case 6:
+            return toBits(((Float)value).floatValue());
+         case 7:
+            return toBits(((Double)value).doubleValue());
+         default:
+            throw new ClassCastException(field+" is not primitive");
+      }
+   }
+
+   public String toString() {
+      return "InterceptedField["+field+", "+mode+"]";
+   }
+
+}
@@ -0,0 +1,192 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Method;
+
+import org.aopalliance.intercept.MethodInterceptor;
+
+/**
+ * A method with its chain of interceptors, ready to be called with
+ * an array of arguments.
+ *
+ * <p>This is the generic (array-based) entry point of the
+ * interception engine, for callers that cannot use the typed method
+ * handles of {@link MethodInvocationFactory} (e.g. dynamic proxies
+ * and invocation handlers). Intercepted methods are created once,
+ * when the chain is known, and the implementation is specialized on
+ * the length of the chain:
+ *
+ * <ul>
+ * <li>with no interceptor, the target method is called directly and
+ * no invocation is created;
+ * <li>with one interceptor, the interceptor is invoked directly on an
+ * invocation whose <code>proceed()</code> calls the target method;
+ * <li>otherwise, a {@link ChainedMethodInvocation} is proceeded.
+ * </ul>
+ *
+ * <p>An opt-in pooled mode (see {@link #createPooled}) recycles the
+ * invocations and their arguments arrays, so that the steady-state
+ * interception path does not allocate.
+ *
+ * @see ChainedMethodInvocation
+ * @see TargetInvoker */
+
+public abstract class InterceptedMethod {
+
+   private final Method method;
+
+   final TargetInvoker invoker;
+
+   InterceptedMethod(Method method) {
+      this.method=method;
+      this.invoker=TargetInvoker.forMethod(method);
+   }
+
+   /**
+    * Creates an intercepted method.
+    *
+    * @param method the method to intercept
+    * @param chain the interceptors to run before the target method,
+    * from the outermost to the innermost one (not copied)
+    * @return the intercepted method */
+   public static InterceptedMethod create(Method method,
+                                          MethodInterceptor[] chain) {
+      switch(chain.length) {
+         case 0:
+            return new Direct(method);
+         case 1:
+            return new Single(method,chain[0]);
+         default:
+            return new Chained(method,chain);
+      }
+   }
+
+   /**
+    * Creates an intercepted method whose invocations are recycled.
+    *
+    * <p>Each thread keeps a stack of {@link PooledMethodInvocation}s
+    * for this method (one per nesting level, so that reentrant calls
+    * are supported). The arguments given to {@link
+    * #invoke(Object,Object[])} are copied into the arguments array of
+    * the invocation, so callers can reuse their own array from one
+    * call to another. Invocations that escape are not recycled (see
+    * {@link PooledJoinpoint}).
+    *
+    * @param method the method to intercept
+    * @param chain the interceptors to run before the target method,
+    * from the outermost to the innermost one (not copied)
+    * @return the intercepted method */
+   public static InterceptedMethod createPooled(Method method,
+                                                MethodInterceptor[] chain) {
+      return new Pooled(method,chain);
+   }
+
+   /**
+    * Gets the intercepted method. */
+   public final Method getMethod() {
+      return method;
+   }
+
+   /**
+    * Calls the method through its interceptors.
+    *
+    * @param target the target object (null if the method is static)
+    * @param arguments the arguments of the call (can be null if the
+    * method takes no arguments)
+    * @return the result of the call (boxed if primitive, null if
+    * void), possibly changed by the interceptors
+    * @throws Throwable the exception thrown by the interceptors or
+    * the target method */
+   public abstract Object invoke(Object target, Object[] arguments)
+      throws Throwable;
+
+   public String toString() {
+      return getClass().getSimpleName()+"["+method+"]";
+   }
+
+   static final class Direct extends InterceptedMethod {
+
+      Direct(Method method) {
+         super(method);
+      }
+
+      public Object invoke(Object target, Object[] arguments)
+         throws Throwable {
+         return invoker.invoke(target,arguments);
+      }
+
+   }
+
+   static final class Single extends InterceptedMethod {
+
+      private final MethodInterceptor interceptor;
+
+      Single(Method method, MethodInterceptor interceptor) {
+         super(method);
+         this.interceptor=interceptor;
+      }
+
+      public Object invoke(Object target, Object[] arguments)
+         throws Throwable {
+         return interceptor.invoke(new ChainedMethodInvocation(
+            target,getMethod(),arguments,
+            AbstractMethodInvocation.EMPTY_CHAIN,invoker));
+      }
+
+   }
+
+   static final class Pooled extends InterceptedMethod {
+
+      private final MethodInterceptor[] chain;
+
+      private final InvocationPool pool=new InvocationPool();
+
+      Pooled(Method method, MethodInterceptor[] chain) {
+         super(method);
+         this.chain=chain;
+      }
+
+      public Object invoke(Object target, Object[] arguments)
+         throws Throwable {
+         InvocationPool.Slots slots=pool.get();
+         PooledMethodInvocation invocation=
+            (PooledMethodInvocation)slots.enter();
+         if(invocation==null) {
+            invocation=new PooledMethodInvocation(getMethod(),chain,
+                                                  invoker);
+            slots.set(invocation);
+         }
+         boolean recycle=false;
+         try {
+            invocation.start(target,arguments);
+            Object result=invocation.proceed();
+            recycle=invocation.finish();
+            return result;
+         } catch(Throwable t) {
+            recycle=invocation.finish();
+            throw t;
+         } finally {
+            slots.exit(recycle);
+         }
+      }
+
+   }
+
+   static final class Chained extends InterceptedMethod {
+
+      private final MethodInterceptor[] chain;
+
+      Chained(Method method, MethodInterceptor[] chain) {
+         super(method);
+         this.chain=chain;
+      }
+
+      public Object invoke(Object target, Object[] arguments)
+         throws Throwable {
+         return new ChainedMethodInvocation(target,getMethod(),arguments,
+                                            chain,invoker).proceed();
+      }
+
+   }
+
+}
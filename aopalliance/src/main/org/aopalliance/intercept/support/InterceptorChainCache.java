@@ -0,0 +1,232 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+import org.aopalliance.intercept.MethodInterceptor;
+
+/**
+ * Caches the interceptors chains of methods, indexed by dense integer
+ * identifiers.
+ *
+ * <p>Each method is given an identifier when it is first registered
+ * (see {@link #idOf(Method)}), typically when a proxy class is
+ * built. The chains are then looked up with this identifier (see
+ * {@link #getChain(int)}) in an array-backed table, without hashing
+ * the method nor comparing it, and without any lock: a lookup is a
+ * volatile read of the table and an array load.
+ *
+ * <p>The chains are computed lazily by a {@link ChainResolver} (that
+ * usually evaluates the pointcuts of the AO system). When the
+ * installed interceptors change, the cached chains can be invalidated
+ * in bulk ({@link #invalidateAll()}) or selectively ({@link
+ * #invalidate(Predicate)}). A chain that is being resolved while
+ * the cache is invalidated is returned to its caller but not cached.
+ *
+ * @see MethodInterceptor */
+
+public final class InterceptorChainCache {
+
+   /**
+    * Computes the chain of interceptors of a method. */
+   public interface ChainResolver {
+
+      /**
+       * Returns the interceptors that apply to a method, from the
+       * outermost to the innermost one.
+       *
+       * @return the chain (never null, can be empty) */
+      MethodInterceptor[] resolve(Method method);
+
+   }
+
+   private final ChainResolver resolver;
+
+   private final ConcurrentMap<Method,Integer> ids=
+      new ConcurrentHashMap<Method,Integer>();
+
+   private volatile Method[] methods=new Method[16];
+
+   private int count;
+
+   private final AtomicReference<AtomicReferenceArray<MethodInterceptor[]>>
+      table=new AtomicReference<AtomicReferenceArray<MethodInterceptor[]>>(
+         new AtomicReferenceArray<MethodInterceptor[]>(16));
+
+   /**
+    * Creates an empty cache.
+    *
+    * @param resolver computes the chains that are not cached */
+   public InterceptorChainCache(ChainResolver resolver) {
+      this.resolver=resolver;
+   }
+
+   /**
+    * Returns the identifier of a method, registering it if needed.
+    *
+    * <p>The identifiers are dense (from 0 to {@link #size()}-1) and
+    * never change for a given cache. This method involves a hash
+    * lookup: callers should get the identifiers once and keep them.
+    *
+    * @param method the method
+    * @return the identifier of the method */
+   public int idOf(Method method) {
+      Integer id=ids.get(method);
+      if(id!=null) {
+         return id.intValue();
+      }
+      return register(method);
+   }
+
+   private synchronized int register(Method method) {
+      Integer id=ids.get(method);
+      if(id!=null) {
+         return id.intValue();
+      }
+      int next=count;
+      Method[] current=methods;
+      if(next==current.length) {
+         current=Arrays.copyOf(current,next*2);
+      }
+      current[next]=method;
+      methods=current;
+      count=next+1;
+      ids.put(method,Integer.valueOf(next));
+      return next;
+   }
+
+   /**
+    * Returns the number of registered methods. */
+   public synchronized int size() {
+      return count;
+   }
+
+   /**
+    * Gets a registered method.
+    *
+    * @param id the identifier of the method
+    * @throws IndexOutOfBoundsException if no method has this
+    * identifier */
+   public Method getMethod(int id) {
+      Method method=null;
+      Method[] current=methods;
+      if(id>=0 && id<current.length) {
+         method=current[id];
+      }
+      if(method==null) {
+         throw new IndexOutOfBoundsException("no method with id "+id);
+      }
+      return method;
+   }
+
+   /**
+    * Gets the chain of a registered method.
+    *
+    * @param id the identifier of the method
+    * @return the chain (never null, can be empty)
+    * @throws IndexOutOfBoundsException if no method has this
+    * identifier */
+   public MethodInterceptor[] getChain(int id) {
+      AtomicReferenceArray<MethodInterceptor[]> chains=table.get();
+      if(id<chains.length()) {
+         MethodInterceptor[] chain=chains.get(id);
+         if(chain!=null) {
+            return chain;
+         }
+      }
+      return resolve(id);
+   }
+
+   /**
+    * Gets the chain of a method, registering it if needed.
+    *
+    * <p>This is a convenience for {@link #getChain(int)
+    * getChain(idOf(method))}. */
+   public MethodInterceptor[] getChain(Method method) {
+      return getChain(idOf(method));
+   }
+
+   private MethodInterceptor[] resolve(int id) {
+      Method method=getMethod(id);
+      AtomicReferenceArray<MethodInterceptor[]> chains=table.get();
+      if(id>=chains.length()) {
+         chains=grow(id);
+      }
+      MethodInterceptor[] chain=resolver.resolve(method);
+      // stored in the table of the resolution: if the cache was
+      // invalidated meanwhile, the chain is not kept
+      if(!chains.compareAndSet(id,null,chain)) {
+         MethodInterceptor[] previous=chains.get(id);
+         if(previous!=null) {
+            chain=previous;
+         }
+      }
+      return chain;
+   }
+
+   private AtomicReferenceArray<MethodInterceptor[]> grow(int id) {
+      while(true) {
+         AtomicReferenceArray<MethodInterceptor[]> current=table.get();
+         if(id<current.length()) {
+            return current;
+         }
+         int length=current.length();
+         while(length<=id) {
+            length*=2;
+         }
+         AtomicReferenceArray<MethodInterceptor[]> grown=
+            new AtomicReferenceArray<MethodInterceptor[]>(length);
+         for(int i=0;i<current.length();i++) {
+            grown.lazySet(i,current.get(i));
+         }
+         if(table.compareAndSet(current,grown)) {
+            return grown;
+         }
+      }
+   }
+
+   /**
+    * Invalidates all the cached chains. They will be resolved again
+    * on their next lookup. */
+   public void invalidateAll() {
+      while(true) {
+         AtomicReferenceArray<MethodInterceptor[]> current=table.get();
+         if(table.compareAndSet(
+               current,new AtomicReferenceArray<MethodInterceptor[]>(
+                  current.length()))) {
+            return;
+         }
+      }
+   }
+
+   /**
+    * Invalidates the cached chains of the methods that match a
+    * predicate (for instance the methods of a given class).
+    *
+    * @param filter selects the methods to invalidate */
+   public void invalidate(Predicate<? super Method> filter) {
+      while(true) {
+         AtomicReferenceArray<MethodInterceptor[]> current=table.get();
+         Method[] registered=methods;
+         AtomicReferenceArray<MethodInterceptor[]> kept=
+            new AtomicReferenceArray<MethodInterceptor[]>(current.length());
+         for(int i=0;i<current.length();i++) {
+            MethodInterceptor[] chain=current.get(i);
+            if(chain!=null && i<registered.length
+               && !filter.test(registered[i])) {
+               kept.lazySet(i,chain);
+            }
+         }
+         if(table.compareAndSet(current,kept)) {
+            return;
+         }
+      }
+   }
+
+}
@@ -0,0 +1,57 @@
+
+package org.aopalliance.intercept.support;
+
+import java.util.Arrays;
+
+/**
+ * The per-thread stacks of pooled joinpoints of an intercepted
+ * member.
+ *
+ * <p>Each thread has one slot per nesting level, so that reentrant
+ * and recursive calls of the same member use distinct joinpoints. A
+ * joinpoint that escaped is dropped from its slot (and left to the
+ * garbage collector) instead of being released. */
+
+final class InvocationPool extends ThreadLocal<InvocationPool.Slots> {
+
+   /**
+    * The slots of a thread. */
+   static final class Slots {
+      Object[] items=new Object[4];
+      int depth;
+
+      /**
+       * Gets the joinpoint of the current depth (null if none) and
+       * enters the next depth. */
+      Object enter() {
+         int current=depth++;
+         if(current==items.length) {
+            items=Arrays.copyOf(items,current*2);
+         }
+         return items[current];
+      }
+
+      /**
+       * Sets the joinpoint of the current depth. */
+      void set(Object item) {
+         items[depth-1]=item;
+      }
+
+      /**
+       * Leaves the current depth.
+       *
+       * @param recycle false to drop the joinpoint of the current
+       * depth */
+      void exit(boolean recycle) {
+         int current=--depth;
+         if(!recycle) {
+            items[current]=null;
+         }
+      }
+   }
+
+   protected Slots initialValue() {
+      return new Slots();
+   }
+
+}
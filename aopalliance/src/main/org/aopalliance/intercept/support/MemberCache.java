@@ -0,0 +1,46 @@
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Member;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches values per class member.
+ *
+ * <p>The values are kept in a {@link ClassValue} of the class that
+ * declares the member, not in a static map: they are reclaimed with
+ * the class, so that the cache does not keep the application classes
+ * (and their class loaders) alive.
+ *
+ * @param <K> the type of the members
+ * @param <V> the type of the values */
+
+final class MemberCache<K extends Member,V> {
+
+   private final ClassValue<ConcurrentMap<K,V>> values=
+      new ClassValue<ConcurrentMap<K,V>>() {
+         protected ConcurrentMap<K,V> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<K,V>();
+         }
+      };
+
+   /**
+    * Gets the value of a member.
+    *
+    * @return the value, or null if it is not cached */
+   V get(K member) {
+      return values.get(member.getDeclaringClass()).get(member);
+   }
+
+   /**
+    * Caches the value of a member, unless another value was cached
+    * meanwhile.
+    *
+    * @return the cached value */
+   V put(K member, V value) {
+      V previous=values.get(member.getDeclaringClass())
+         .putIfAbsent(member,value);
+      return previous!=null?previous:value;
+   }
+
+}
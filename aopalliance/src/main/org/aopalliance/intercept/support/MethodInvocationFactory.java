@@ -0,0 +1,527 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Creates the entry points of intercepted methods, based on
+ * invocation classes that are generated for each method.
+ *
+ * <p>For each intercepted method, this factory spins a hidden
+ * subclass of {@link GeneratedMethodInvocation} that holds the
+ * arguments in typed fields and calls the target method with a
+ * direct invoke instruction. The returned method handles create
+ * such invocations and proceed them, so that the whole path from
+ * the caller to the target method can be inlined by the JIT (for
+ * instance when the handle is stored in a static final field of a
+ * proxy class).
+ *
+ * <p>The hidden class is defined in the package (and in the nest) of
+ * the class that declares the method, so that non-public methods can
+ * be intercepted. When it is not possible (e.g. for a method of a
+ * non-opened module, or when the declaring class cannot see this
+ * package), the factory falls back to {@link
+ * ChainedMethodInvocation}.
+ *
+ * @see GeneratedMethodInvocation */
+
+public final class MethodInvocationFactory {
+
+   private static final String SUPER_NAME=
+      Types.internalName(GeneratedMethodInvocation.class);
+
+   private static final MethodHandle PROCEED;
+
+   private static final MethodHandle INVOKE;
+
+   private static final MethodHandle NEW_CHAINED;
+
+   static {
+      MethodHandles.Lookup lookup=MethodHandles.lookup();
+      try {
+         PROCEED=lookup.findVirtual(
+            AbstractMethodInvocation.class,"proceed",
+            MethodType.methodType(Object.class));
+         INVOKE=lookup.findVirtual(
+            MethodInterceptor.class,"invoke",
+            MethodType.methodType(Object.class,MethodInvocation.class));
+         NEW_CHAINED=lookup.findStatic(
+            MethodInvocationFactory.class,"newChained",
+            MethodType.methodType(AbstractMethodInvocation.class,
+                                  Method.class,MethodInterceptor[].class,
+                                  TargetInvoker.class,Object.class,
+                                  Object[].class));
+      } catch(ReflectiveOperationException e) {
+         throw new ExceptionInInitializerError(e);
+      }
+   }
+
+   private static final Class<?>[] PRIMITIVES={
+      boolean.class,byte.class,char.class,short.class,
+      int.class,long.class,float.class,double.class
+   };
+
+   private static final MemberCache<Method,MethodHandle> constructors=
+      new MemberCache<Method,MethodHandle>();
+
+   private MethodInvocationFactory() {
+   }
+
+   /**
+    * Returns the entry point of an intercepted method.
+    *
+    * <p>The type of the returned handle is the type of the method,
+    * with the target object as a first parameter for instance
+    * methods. Each call of the handle creates an invocation for the
+    * given chain and proceeds it.
+    *
+    * <p>The entry point is specialized on the length of the chain:
+    * with no interceptor, it is a direct handle on the target method
+    * (no invocation is created); with one interceptor, it directly
+    * invokes the interceptor on an invocation whose
+    * <code>proceed()</code> calls the target method.
+    *
+    * @param method the intercepted method
+    * @param chain the interceptors to run before the target method,
+    * from the outermost to the innermost one (not copied)
+    * @return the entry point */
+   public static MethodHandle createInvoker(Method method,
+                                            MethodInterceptor[] chain) {
+      return createInvoker(method,method,chain);
+   }
+
+   /**
+    * Returns the entry point of an intercepted method whose body is
+    * held by another method (e.g. a method woven with around code,
+    * whose original body was moved).
+    *
+    * @param method the intercepted method, as returned by the {@link
+    * MethodInvocation#getMethod()} of the invocations
+    * @param target the method that is called at the end of the chain
+    * (with the same parameter and return types as <code>method</code>,
+    * and declared by the same class)
+    * @param chain the interceptors to run before the target method,
+    * from the outermost to the innermost one (not copied)
+    * @return the entry point
+    * @see #createInvoker(Method,MethodInterceptor[]) */
+   public static MethodHandle createInvoker(Method method, Method target,
+                                            MethodInterceptor[] chain) {
+      MethodType type=invokerType(target);
+      if(chain.length==0) {
+         MethodHandle direct=TargetInvoker.forMethod(target).getHandle();
+         if(direct!=null) {
+            return direct.asType(type);
+         }
+      }
+      MethodHandle constructor=constructors.get(target);
+      if(constructor==null) {
+         constructor=constructors.put(target,createConstructor(target));
+      }
+      MethodHandle start;
+      if(chain.length==1) {
+         constructor=MethodHandles.insertArguments(
+            constructor,0,method,AbstractMethodInvocation.EMPTY_CHAIN);
+         start=INVOKE.bindTo(chain[0]);
+      } else {
+         constructor=MethodHandles.insertArguments(
+            constructor,0,method,chain);
+         start=proceedHandle(type.returnType());
+      }
+      start=start.asType(MethodType.methodType(
+         type.returnType(),AbstractMethodInvocation.class));
+      return MethodHandles.filterReturnValue(constructor,start);
+   }
+
+   /**
+    * Returns the type of the entry point of a method. */
+   static MethodType invokerType(Method method) {
+      MethodType type=MethodType.methodType(method.getReturnType(),
+                                            method.getParameterTypes());
+      if(!Modifier.isStatic(method.getModifiers())) {
+         type=type.insertParameterTypes(0,method.getDeclaringClass());
+      }
+      return type;
+   }
+
+   /**
+    * Returns a handle of type <code>(Method,MethodInterceptor[],
+    * invokerType)AbstractMethodInvocation</code> that creates an
+    * invocation. */
+   private static MethodHandle createConstructor(Method method) {
+      MethodHandle constructor=null;
+      try {
+         constructor=generate(method);
+      } catch(ReflectiveOperationException e) {
+         // fall back to a chained invocation below
+      } catch(LinkageError e) {
+         // fall back to a chained invocation below
+      }
+      MethodType type=invokerType(method)
+         .changeReturnType(AbstractMethodInvocation.class)
+         .insertParameterTypes(0,Method.class,MethodInterceptor[].class);
+      if(constructor!=null) {
+         return constructor.asType(type);
+      }
+      MethodHandle handle=MethodHandles.insertArguments(
+         NEW_CHAINED,2,TargetInvoker.forMethod(method));
+      if(Modifier.isStatic(method.getModifiers())) {
+         handle=MethodHandles.insertArguments(handle,2,(Object)null);
+      }
+      handle=handle.asCollector(Object[].class,
+                                method.getParameterTypes().length);
+      return handle.asType(type);
+   }
+
+   /**
+    * Returns the proceed method that matches a return type (without
+    * boxing for primitive types). */
+   private static MethodHandle proceedHandle(Class<?> returnType) {
+      if(!returnType.isPrimitive() || returnType==void.class) {
+         return PROCEED;
+      }
+      try {
+         return MethodHandles.lookup().findVirtual(
+            AbstractMethodInvocation.class,
+            "proceed"+capitalize(returnType.getName()),
+            MethodType.methodType(returnType));
+      } catch(ReflectiveOperationException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static AbstractMethodInvocation newChained(
+      Method method, MethodInterceptor[] chain, TargetInvoker invoker,
+      Object target, Object[] arguments) {
+      return new ChainedMethodInvocation(target,method,arguments,chain,
+                                         invoker);
+   }
+
+   /**
+    * Spins the invocation class of a method.
+    *
+    * @return the constructor of the class, or null if the class
+    * cannot be defined for this method */
+   private static MethodHandle generate(Method method)
+      throws ReflectiveOperationException {
+      Class<?> declaring=method.getDeclaringClass();
+      MethodHandles.Lookup lookup=null;
+      if(isVisible(GeneratedMethodInvocation.class,
+                   declaring.getClassLoader())) {
+         try {
+            lookup=MethodHandles.privateLookupIn(
+               declaring,MethodHandles.lookup());
+         } catch(IllegalAccessException e) {
+            // try from this package below
+         }
+      }
+      String name;
+      if(lookup!=null) {
+         name=Types.internalName(declaring)+"$$Invocation$"
+            +method.getName();
+      } else if(isPublic(method)
+                && isVisible(declaring,
+                             MethodInvocationFactory.class
+                             .getClassLoader())) {
+         lookup=MethodHandles.lookup();
+         name=Types.internalName(MethodInvocationFactory.class)
+            +"$$Invocation$"+method.getName();
+      } else {
+         return null;
+      }
+      byte[] bytes=generateClass(name,method);
+      MethodHandles.Lookup hidden=lookup.defineHiddenClass(
+         bytes,true,MethodHandles.Lookup.ClassOption.NESTMATE);
+      MethodType type=invokerType(method)
+         .changeReturnType(void.class)
+         .insertParameterTypes(0,Method.class,MethodInterceptor[].class);
+      return hidden.findConstructor(hidden.lookupClass(),type);
+   }
+
+   private static boolean isPublic(Method method) {
+      return Modifier.isPublic(method.getModifiers())
+         && Modifier.isPublic(method.getDeclaringClass().getModifiers());
+   }
+
+   private static boolean isVisible(Class<?> type, ClassLoader loader) {
+      try {
+         return Class.forName(type.getName(),false,loader)==type;
+      } catch(ClassNotFoundException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Writes the invocation class of a method. */
+   static byte[] generateClass(String name, Method method) {
+      Class<?> declaring=method.getDeclaringClass();
+      String ownerDescriptor=Types.descriptor(declaring);
+      Class<?>[] parameters=method.getParameterTypes();
+      Class<?> returnType=method.getReturnType();
+      boolean isStatic=Modifier.isStatic(method.getModifiers());
+
+      ClassBuilder cb=new ClassBuilder(
+         ClassBuilder.ACC_FINAL|ClassBuilder.ACC_SYNTHETIC,name,SUPER_NAME);
+      if(!isStatic) {
+         cb.addField(ClassBuilder.ACC_PRIVATE|ClassBuilder.ACC_FINAL,
+                     "target",ownerDescriptor);
+      }
+      int argumentSlots=0;
+      for(int i=0;i<parameters.length;i++) {
+         cb.addField(ClassBuilder.ACC_PRIVATE,"a"+i,
+                     Types.descriptor(parameters[i]));
+         argumentSlots+=Types.slots(parameters[i]);
+      }
+      int targetSlots=isStatic?0:1;
+
+      // constructor
+      StringBuilder constructorDescriptor=new StringBuilder(
+         "(Ljava/lang/reflect/Method;[Lorg/aopalliance/intercept/"
+         +"MethodInterceptor;");
+      if(!isStatic) {
+         constructorDescriptor.append(ownerDescriptor);
+      }
+      for(Class<?> parameter : parameters) {
+         constructorDescriptor.append(Types.descriptor(parameter));
+      }
+      constructorDescriptor.append(")V");
+      CodeBuilder code=new CodeBuilder(
+         cb,3,3+targetSlots+argumentSlots);
+      code.load(Object.class,0).load(Object.class,1)
+         .load(Object.class,2)
+         .invoke(CodeBuilder.INVOKESPECIAL,SUPER_NAME,"<init>",
+                 "(Ljava/lang/reflect/Method;[Lorg/aopalliance/"
+                 +"intercept/MethodInterceptor;)V",false);
+      int slot=3;
+      if(!isStatic) {
+         code.load(Object.class,0).load(Object.class,slot++)
+            .field(CodeBuilder.PUTFIELD,name,"target",ownerDescriptor);
+      }
+      for(int i=0;i<parameters.length;i++) {
+         code.load(Object.class,0).load(parameters[i],slot)
+            .field(CodeBuilder.PUTFIELD,name,"a"+i,
+                   Types.descriptor(parameters[i]));
+         slot+=Types.slots(parameters[i]);
+      }
+      code.op(CodeBuilder.RETURN);
+      cb.addMethod(0,"<init>",constructorDescriptor.toString(),code);
+
+      // getThis()
+      code=new CodeBuilder(cb,1,1);
+      if(isStatic) {
+         code.op(CodeBuilder.ACONST_NULL);
+      } else {
+         code.load(Object.class,0)
+            .field(CodeBuilder.GETFIELD,name,"target",ownerDescriptor);
+      }
+      code.op(CodeBuilder.ARETURN);
+      cb.addMethod(ClassBuilder.ACC_PUBLIC,"getThis",
+                   "()Ljava/lang/Object;",code);
+
+      // invokeTarget()
+      int callStack=Math.max(2,targetSlots+argumentSlots+1);
+      code=new CodeBuilder(cb,callStack,1);
+      call(code,name,method);
+      if(returnType==void.class) {
+         code.op(CodeBuilder.ACONST_NULL);
+      } else {
+         code.box(returnType);
+      }
+      code.op(CodeBuilder.ARETURN);
+      cb.addMethod(ClassBuilder.ACC_PROTECTED,"invokeTarget",
+                   "()Ljava/lang/Object;",code);
+
+      // joinpointR() for a primitive result
+      if(returnType.isPrimitive() && returnType!=void.class) {
+         code=new CodeBuilder(cb,callStack,1);
+         code.load(Object.class,0)
+            .invoke(CodeBuilder.INVOKEVIRTUAL,SUPER_NAME,"syncArguments",
+                    "()V",false);
+         call(code,name,method);
+         code.ret(returnType);
+         cb.addMethod(ClassBuilder.ACC_PROTECTED,
+                      "joinpoint"+capitalize(returnType.getName()),
+                      "()"+Types.descriptor(returnType),code);
+      }
+
+      // materialize()
+      code=new CodeBuilder(cb,5,1);
+      code.iconst(parameters.length)
+         .type(CodeBuilder.ANEWARRAY,"java/lang/Object");
+      for(int i=0;i<parameters.length;i++) {
+         code.op(CodeBuilder.DUP).iconst(i).load(Object.class,0)
+            .field(CodeBuilder.GETFIELD,name,"a"+i,
+                   Types.descriptor(parameters[i]))
+            .box(parameters[i]).op(CodeBuilder.AASTORE);
+      }
+      code.op(CodeBuilder.ARETURN);
+      cb.addMethod(ClassBuilder.ACC_PROTECTED,"materialize",
+                   "()[Ljava/lang/Object;",code);
+
+      // writeBack(Object[])
+      code=new CodeBuilder(cb,3,2);
+      for(int i=0;i<parameters.length;i++) {
+         code.load(Object.class,0).load(Object.class,1).iconst(i)
+            .op(CodeBuilder.AALOAD).unbox(parameters[i])
+            .field(CodeBuilder.PUTFIELD,name,"a"+i,
+                   Types.descriptor(parameters[i]));
+      }
+      code.op(CodeBuilder.RETURN);
+      cb.addMethod(ClassBuilder.ACC_PROTECTED,"writeBack",
+                   "([Ljava/lang/Object;)V",code);
+
+      // readArgument(int)
+      int[] all=new int[parameters.length];
+      for(int i=0;i<all.length;i++) {
+         all[i]=i;
+      }
+      code=new CodeBuilder(cb,2,2);
+      CodeBuilder.Label otherwise=code.newLabel();
+      CodeBuilder.Label[] cases=indexSwitch(code,all,otherwise);
+      for(int i=0;i<parameters.length;i++) {
+         code.mark(cases[i]).load(Object.class,0)
+            .field(CodeBuilder.GETFIELD,name,"a"+i,
+                   Types.descriptor(parameters[i]))
+            .box(parameters[i]).op(CodeBuilder.ARETURN);
+      }
+      code.mark(otherwise).load(Object.class,0).load(int.class,1)
+         .invoke(CodeBuilder.INVOKEVIRTUAL,SUPER_NAME,"noArgument",
+                 "(I)Ljava/lang/Object;",false)
+         .op(CodeBuilder.ARETURN);
+      cb.addMethod(ClassBuilder.ACC_PROTECTED,"readArgument",
+                   "(I)Ljava/lang/Object;",code);
+
+      // writeArgument(int,Object)
+      code=new CodeBuilder(cb,3,3);
+      otherwise=code.newLabel();
+      cases=indexSwitch(code,all,otherwise);
+      for(int i=0;i<parameters.length;i++) {
+         code.mark(cases[i]).load(Object.class,0).load(Object.class,2)
+            .unbox(parameters[i])
+            .field(CodeBuilder.PUTFIELD,name,"a"+i,
+                   Types.descriptor(parameters[i]))
+            .op(CodeBuilder.RETURN);
+      }
+      code.mark(otherwise).load(Object.class,0).load(int.class,1)
+         .invoke(CodeBuilder.INVOKEVIRTUAL,SUPER_NAME,"noArgument",
+                 "(I)Ljava/lang/Object;",false)
+         .op(CodeBuilder.POP).op(CodeBuilder.RETURN);
+      cb.addMethod(ClassBuilder.ACC_PROTECTED,"writeArgument",
+                   "(ILjava/lang/Object;)V",code);
+
+      // readT(int) and writeT(int,T) for the primitive parameter types
+      for(Class<?> type : PRIMITIVES) {
+         int[] keys=indexesOf(parameters,type);
+         if(keys.length==0) {
+            continue;
+         }
+         String typeDescriptor=Types.descriptor(type);
+         String suffix=capitalize(type.getName());
+         code=new CodeBuilder(cb,2,2);
+         otherwise=code.newLabel();
+         cases=indexSwitch(code,keys,otherwise);
+         for(int i=0;i<keys.length;i++) {
+            code.mark(cases[i]).load(Object.class,0)
+               .field(CodeBuilder.GETFIELD,name,"a"+keys[i],typeDescriptor)
+               .ret(type);
+         }
+         code.mark(otherwise).load(Object.class,0).load(int.class,1)
+            .invoke(CodeBuilder.INVOKESPECIAL,SUPER_NAME,"read"+suffix,
+                    "(I)"+typeDescriptor,false)
+            .ret(type);
+         cb.addMethod(ClassBuilder.ACC_PROTECTED,"read"+suffix,
+                      "(I)"+typeDescriptor,code);
+
+         int slots=Types.slots(type);
+         code=new CodeBuilder(cb,2+slots,2+slots);
+         otherwise=code.newLabel();
+         cases=indexSwitch(code,keys,otherwise);
+         for(int i=0;i<keys.length;i++) {
+            code.mark(cases[i]).load(Object.class,0).load(type,2)
+               .field(CodeBuilder.PUTFIELD,name,"a"+keys[i],typeDescriptor)
+               .op(CodeBuilder.RETURN);
+         }
+         code.mark(otherwise).load(Object.class,0).load(int.class,1)
+            .load(type,2)
+            .invoke(CodeBuilder.INVOKESPECIAL,SUPER_NAME,"write"+suffix,
+                    "(I"+typeDescriptor+")V",false)
+            .op(CodeBuilder.RETURN);
+         cb.addMethod(ClassBuilder.ACC_PROTECTED,"write"+suffix,
+                      "(I"+typeDescriptor+")V",code);
+      }
+
+      return cb.toByteArray();
+   }
+
+   /**
+    * Pushes the target and the typed arguments, and calls the target
+    * method. */
+   private static void call(CodeBuilder code, String name, Method method) {
+      Class<?> declaring=method.getDeclaringClass();
+      Class<?>[] parameters=method.getParameterTypes();
+      boolean isStatic=Modifier.isStatic(method.getModifiers());
+      boolean isInterface=declaring.isInterface();
+      if(!isStatic) {
+         code.load(Object.class,0)
+            .field(CodeBuilder.GETFIELD,name,"target",
+                   Types.descriptor(declaring));
+      }
+      for(int i=0;i<parameters.length;i++) {
+         code.load(Object.class,0)
+            .field(CodeBuilder.GETFIELD,name,"a"+i,
+                   Types.descriptor(parameters[i]));
+      }
+      int opcode;
+      if(isStatic) {
+         opcode=CodeBuilder.INVOKESTATIC;
+      } else if(isInterface) {
+         opcode=CodeBuilder.INVOKEINTERFACE;
+      } else {
+         opcode=CodeBuilder.INVOKEVIRTUAL;
+      }
+      code.invoke(opcode,Types.internalName(declaring),method.getName(),
+                  Types.descriptor(method),isInterface);
+   }
+
+   /**
+    * Switches on the argument index (the first parameter).
+    *
+    * @return the labels of the given indexes */
+   private static CodeBuilder.Label[] indexSwitch(
+      CodeBuilder code, int[] indexes, CodeBuilder.Label otherwise) {
+      CodeBuilder.Label[] labels=new CodeBuilder.Label[indexes.length];
+      for(int i=0;i<labels.length;i++) {
+         labels[i]=code.newLabel();
+      }
+      code.load(int.class,1).lookupswitch(otherwise,indexes,labels);
+      return labels;
+   }
+
+   private static int[] indexesOf(Class<?>[] parameters, Class<?> type) {
+      int count=0;
+      for(Class<?> parameter : parameters) {
+         if(parameter==type) {
+            count++;
+         }
+      }
+      int[] indexes=new int[count];
+      count=0;
+      for(int i=0;i<parameters.length;i++) {
+         if(parameters[i]==type) {
+            indexes[count++]=i;
+         }
+      }
+      return indexes;
+   }
+
+   static String capitalize(String name) {
+      return Character.toUpperCase(name.charAt(0))+name.substring(1);
+   }
+
+}
@@ -0,0 +1,105 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+
+import org.aopalliance.intercept.ConstructorInterceptor;
+
+/**
+ * A constructor invocation that is recycled by its owner thread.
+ *
+ * <p>Instances are created and recycled by the intercepted
+ * constructors created with {@link
+ * InterceptedConstructor#createPooled}. The arguments array is
+ * allocated once and reused.
+ *
+ * @see PooledJoinpoint */
+
+public final class PooledConstructorInvocation
+   extends AbstractConstructorInvocation implements PooledJoinpoint {
+
+   private final ConstructorInvoker invoker;
+
+   private final Thread owner;
+
+   private final Object[] arguments;
+
+   /** set by retain(), or by a proceed() from another thread */
+   private volatile boolean escaped;
+
+   /** true from start() to finish(), and afterwards if the invocation
+    * escaped */
+   private volatile boolean active;
+
+   PooledConstructorInvocation(Constructor<?> constructor,
+                               ConstructorInterceptor[] chain,
+                               ConstructorInvoker invoker) {
+      super(constructor,chain);
+      this.invoker=invoker;
+      this.owner=Thread.currentThread();
+      this.arguments=new Object[constructor.getParameterCount()];
+   }
+
+   /**
+    * Prepares the invocation for a new call. */
+   void start(Object[] arguments) {
+      if(arguments!=null) {
+         System.arraycopy(arguments,0,this.arguments,0,
+                          this.arguments.length);
+      }
+      active=true;
+   }
+
+   /**
+    * Ends a call.
+    *
+    * @return true if the invocation can be recycled */
+   boolean finish() {
+      if(escaped) {
+         return false;
+      }
+      active=false;
+      // a proceed() from another thread may have started meanwhile
+      if(escaped) {
+         active=true;
+         return false;
+      }
+      clearInstance();
+      Arrays.fill(arguments,null);
+      return true;
+   }
+
+   public Object proceed() throws Throwable {
+      checkActive();
+      return super.proceed();
+   }
+
+   protected Object invokeJoinpoint() throws Throwable {
+      return invoker.newInstance(arguments);
+   }
+
+   /**
+    * Detects the proceeds from other threads, and rejects the ones
+    * that come after the end of the call (from an interceptor that
+    * kept the invocation without retaining it).
+    *
+    * @throws IllegalStateException if the call ended */
+   private void checkActive() {
+      if(Thread.currentThread()!=owner) {
+         escaped=true;
+      }
+      if(!active) {
+         throw new IllegalStateException("call ended: "+this);
+      }
+   }
+
+   public void retain() {
+      escaped=true;
+   }
+
+   public Object[] getArguments() {
+      return arguments;
+   }
+
+}
@@ -0,0 +1,36 @@
+
+package org.aopalliance.intercept.support;
+
+import org.aopalliance.intercept.Joinpoint;
+
+/**
+ * A joinpoint that is recycled once its interceptors chain returns.
+ *
+ * <p>Pooled joinpoints (and their arguments arrays) are reused by the
+ * thread that created them for the next calls of the same
+ * member. An interceptor that keeps a reference to a joinpoint (or to
+ * its arguments array) after its <code>invoke</code> method returns,
+ * for instance to proceed it later from another thread, must call
+ * {@link #retain()} before returning.
+ *
+ * <p>A joinpoint whose chain returns without reaching the actual
+ * joinpoint (e.g. an interceptor returned a cached result, or
+ * rejected the call) is recycled as usual. The only escape that is
+ * detected without calling {@link #retain()} is a joinpoint that has
+ * been proceeded by another thread than its owner before its chain
+ * returned. A joinpoint that is proceeded after its chain returned
+ * without being retained throws an {@link IllegalStateException}
+ * while it is idle in the pool; once it is reused by a later call of
+ * the owner thread, such a late proceed can no longer be told apart
+ * from a proceed of this call, and runs with its arguments.
+ *
+ * @see InterceptedMethod#createPooled
+ * @see InterceptedConstructor#createPooled */
+
+public interface PooledJoinpoint extends Joinpoint {
+
+   /**
+    * Prevents this joinpoint from being recycled. */
+   void retain();
+
+}
@@ -0,0 +1,175 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Performs the actual call to a target method, at the end of a chain
+ * of interceptors.
+ *
+ * <p>Target invokers are resolved once per method (see {@link
+ * #forMethod(Method)}) into a method handle that is adapted to a
+ * generic <code>(Object,Object[])Object</code> type, so that calling
+ * the target does not go through {@link Method#invoke(Object,
+ * Object[])} and its access checks. When the method cannot be
+ * accessed through a method handle, the invoker falls back to
+ * reflection.
+ *
+ * <p>The exceptions thrown by the target method are not wrapped.
+ *
+ * @see ChainedMethodInvocation */
+
+public abstract class TargetInvoker {
+
+   private static final MethodType GENERIC_TYPE=
+      MethodType.methodType(Object.class,Object.class,Object[].class);
+
+   private static final MemberCache<Method,TargetInvoker> invokers=
+      new MemberCache<Method,TargetInvoker>();
+
+   private final Method method;
+
+   TargetInvoker(Method method) {
+      this.method=method;
+   }
+
+   /**
+    * Gets the invoker of a given method.
+    *
+    * <p>The invoker is resolved on the first call and then cached,
+    * so callers that build their interceptors chains once should also
+    * keep the returned invoker.
+    *
+    * @param method the target method
+    * @return the invoker (never null) */
+   public static TargetInvoker forMethod(Method method) {
+      TargetInvoker invoker=invokers.get(method);
+      if(invoker==null) {
+         invoker=invokers.put(method,resolve(method));
+      }
+      return invoker;
+   }
+
+   private static TargetInvoker resolve(Method method) {
+      MethodHandle handle=unreflect(method);
+      if(handle==null) {
+         return new ReflectiveInvoker(method);
+      }
+      MethodHandle generic=handle.asType(handle.type().generic());
+      generic=generic.asSpreader(Object[].class,
+                                 method.getParameterTypes().length);
+      if(Modifier.isStatic(method.getModifiers())) {
+         generic=MethodHandles.dropArguments(generic,0,Object.class);
+      }
+      return new HandleInvoker(method,handle,
+                               generic.asType(GENERIC_TYPE));
+   }
+
+   /**
+    * Returns a direct method handle on the given method, or null if
+    * it is not accessible. */
+   static MethodHandle unreflect(Method method) {
+      MethodHandles.Lookup lookup=MethodHandles.lookup();
+      try {
+         return lookup.unreflect(method);
+      } catch(IllegalAccessException e) {
+         // try again below
+      }
+      try {
+         if(method.trySetAccessible()) {
+            return lookup.unreflect(method);
+         }
+      } catch(IllegalAccessException e) {
+         // not accessible
+      } catch(SecurityException e) {
+         // not accessible
+      }
+      return null;
+   }
+
+   /**
+    * Gets the method called by this invoker. */
+   public final Method getMethod() {
+      return method;
+   }
+
+   /**
+    * Returns a method handle that directly calls the target method,
+    * with its exact type.
+    *
+    * <p>For instance methods, the first parameter is the target
+    * object. This handle is best stored in a static final field of
+    * generated code, where the JIT can inline it.
+    *
+    * @return the handle, or null if the target method can only be
+    * called through reflection */
+   public abstract MethodHandle getHandle();
+
+   /**
+    * Calls the target method.
+    *
+    * @param target the target object (ignored if the method is
+    * static)
+    * @param arguments the arguments of the call (can be null when the
+    * method takes no arguments)
+    * @return the result of the call (boxed if primitive, null if
+    * void)
+    * @throws Throwable the exception thrown by the target method */
+   public abstract Object invoke(Object target, Object[] arguments)
+      throws Throwable;
+
+   public String toString() {
+      return getClass().getSimpleName()+"["+method+"]";
+   }
+
+   static final class HandleInvoker extends TargetInvoker {
+
+      private final MethodHandle handle;
+
+      private final MethodHandle invoker;
+
+      HandleInvoker(Method method, MethodHandle handle,
+                    MethodHandle invoker) {
+         super(method);
+         this.handle=handle;
+         this.invoker=invoker;
+      }
+
+      public MethodHandle getHandle() {
+         return handle;
+      }
+
+      public Object invoke(Object target, Object[] arguments)
+         throws Throwable {
+         return invoker.invokeExact(target,arguments);
+      }
+
+   }
+
+   static final class ReflectiveInvoker extends TargetInvoker {
+
+      ReflectiveInvoker(Method method) {
+         super(method);
+      }
+
+      public MethodHandle getHandle() {
+         return null;
+      }
+
+      public Object invoke(Object target, Object[] arguments)
+         throws Throwable {
+         try {
+            return getMethod().invoke(target,arguments);
+         } catch(InvocationTargetException e) {
+            throw e.getTargetException();
+         }
+      }
+
+   }
+
+}
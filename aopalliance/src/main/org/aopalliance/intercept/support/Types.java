@@ -0,0 +1,91 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Method;
+
+/**
+ * Type helpers for the generated classes. */
+
+final class Types {
+
+   private Types() {
+   }
+
+   /**
+    * Gets the wrapper class of a primitive type. */
+   static Class<?> wrapper(Class<?> type) {
+      if(type==int.class) {
+         return Integer.class;
+      } else if(type==long.class) {
+         return Long.class;
+      } else if(type==boolean.class) {
+         return Boolean.class;
+      } else if(type==double.class) {
+         return Double.class;
+      } else if(type==float.class) {
+         return Float.class;
+      } else if(type==char.class) {
+         return Character.class;
+      } else if(type==byte.class) {
+         return Byte.class;
+      } else if(type==short.class) {
+         return Short.class;
+      } else if(type==void.class) {
+         return Void.class;
+      }
+      return type;
+   }
+
+   /**
+    * Gets the number of local variable slots used by a value of the
+    * given type. */
+   static int slots(Class<?> type) {
+      return type==long.class || type==double.class?2:1;
+   }
+
+   static String internalName(Class<?> type) {
+      return type.getName().replace('.','/');
+   }
+
+   static String descriptor(Class<?> type) {
+      if(type.isArray()) {
+         return type.getName().replace('.','/');
+      }
+      if(type.isPrimitive()) {
+         if(type==int.class) {
+            return "I";
+         } else if(type==long.class) {
+            return "J";
+         } else if(type==boolean.class) {
+            return "Z";
+         } else if(type==double.class) {
+            return "D";
+         } else if(type==float.class) {
+            return "F";
+         } else if(type==char.class) {
+            return "C";
+         } else if(type==byte.class) {
+            return "B";
+         } else if(type==short.class) {
+            return "S";
+         } else {
+            return "V";
+         }
+      }
+      return "L"+internalName(type)+";";
+   }
+
+   static String descriptor(Class<?> returnType, Class<?>... parameters) {
+      StringBuilder buffer=new StringBuilder("(");
+      for(Class<?> parameter : parameters) {
+         buffer.append(descriptor(parameter));
+      }
+      return buffer.append(')').append(descriptor(returnType)).toString();
+   }
+
+   static String descriptor(Method method) {
+      return descriptor(method.getReturnType(),
+                        method.getParameterTypes());
+   }
+
+}
@@ -0,0 +1,63 @@
+
+package org.aopalliance.aop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Renders the messages and the traces of aspect exceptions. */
+
+public class AspectExceptionTest {
+
+   private static String printed(AspectException exception) {
+      ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+      PrintStream out=new PrintStream(bytes,true);
+      exception.printStackTrace(out);
+      out.close();
+      return bytes.toString();
+   }
+
+   public void testMessages() {
+      assertEquals("failed",new AspectException("failed").getMessage());
+      IOException cause=new IOException("no file");
+      AspectException exception=new AspectException("failed",cause);
+      assertSame(cause,exception.getCause());
+      assertEquals("failed; nested exception is no file",
+                   exception.getMessage());
+      assertEquals(exception.getMessage(),exception.toString());
+   }
+
+   public void testStacklessExceptions() {
+      AspectException stackless=new AspectException(
+         "failed",new IOException("no file"),true);
+      assertEquals(0,stackless.getStackTrace().length);
+      assertEquals("failed; nested exception is no file",
+                   stackless.getMessage());
+      AspectException traced=new AspectException("failed",null,false);
+      assertTrue("traced",traced.getStackTrace().length>0);
+      assertEquals("testStacklessExceptions",
+                   traced.getStackTrace()[0].getMethodName());
+   }
+
+   public void testTracesIncludeTheCause() {
+      AspectException exception=new AspectException(
+         "failed",new IOException("no file"),false);
+      String trace=printed(exception);
+      assertTrue(trace,trace.startsWith(
+                    "failed; nested exception is no file"));
+      assertTrue(trace,trace.contains(
+                    "Caused by: java.io.IOException: no file"));
+      assertTrue(trace,trace.contains("testTracesIncludeTheCause"));
+
+      StringWriter writer=new StringWriter();
+      exception.printStackTrace(new PrintWriter(writer,true));
+      assertEquals(trace,writer.toString());
+      assertEquals(trace,printed(exception));
+   }
+
+}
@@ -0,0 +1,228 @@
+
+package org.aopalliance.instrument.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntUnaryOperator;
+
+import org.aopalliance.instrument.Instrumentation;
+import org.aopalliance.instrument.InstrumentationError;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Weaves, retransforms and undoes instrumentations of the fixture
+ * classes below. The fixtures are only loaded by name (each test
+ * weaves its own), so that they are not loaded before they are
+ * instrumented. */
+
+public class BytecodeInstrumentorTest {
+
+   static final String PACKAGE="org.aopalliance.instrument.support.";
+
+   /**
+    * Marks the methods of the fixtures. */
+   @Retention(RetentionPolicy.RUNTIME)
+   @Target(ElementType.METHOD)
+   public @interface Marked {
+   }
+
+   /**
+    * The advice of the tests. */
+   public static final class Advice {
+
+      static final AtomicInteger before=new AtomicInteger();
+      static final AtomicInteger after=new AtomicInteger();
+
+      public static void before(Object target) {
+         before.incrementAndGet();
+      }
+
+      public static void after(Object target) {
+         after.incrementAndGet();
+      }
+
+      static void reset() {
+         before.set(0);
+         after.set(0);
+      }
+
+   }
+
+   static BytecodeInstrumentor newInstrumentor() {
+      return new BytecodeInstrumentor(Agent.getInstrumentation());
+   }
+
+   static IntUnaryOperator newOperator(String simpleName) throws Exception {
+      return (IntUnaryOperator)Class.forName(PACKAGE+simpleName)
+         .getDeclaredConstructor().newInstance();
+   }
+
+   /**
+    * Reads the class file of a class, without loading it. */
+   static byte[] classFile(String className) throws IOException {
+      InputStream in=BytecodeInstrumentorTest.class.getClassLoader()
+         .getResourceAsStream(className.replace('.','/')+".class");
+      try {
+         return in.readAllBytes();
+      } finally {
+         in.close();
+      }
+   }
+
+   static CallCode adviceOf(String name) throws Exception {
+      return new CallCode(Advice.class.getMethod(name,Object.class));
+   }
+
+   static MethodBodyLocator applyOf(String simpleName) {
+      return new MethodBodyLocator(PACKAGE+simpleName,"applyAsInt",null);
+   }
+
+   /**
+    * Multiplies the result of the methods by ten, and records the
+    * method of the last invocation. */
+   static final class Recorder implements MethodInterceptor {
+
+      final AtomicReference<Method> method=new AtomicReference<Method>();
+
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         method.set(invocation.getMethod());
+         return Integer.valueOf(
+            ((Integer)invocation.proceed()).intValue()*10);
+      }
+
+   }
+
+   public void testBeforeAndAfterCodeAreWovenAtLoading() throws Exception {
+      Advice.reset();
+      BytecodeInstrumentor instrumentor=newInstrumentor();
+      try {
+         instrumentor.addBeforeCode(applyOf("LoadWovenOperator"),
+                                    adviceOf("before"),null,null);
+         instrumentor.addAfterCode(applyOf("LoadWovenOperator"),
+                                   adviceOf("after"),null,null);
+         IntUnaryOperator operator=newOperator("LoadWovenOperator");
+         assertNull(instrumentor.getError(PACKAGE+"LoadWovenOperator"));
+         assertEquals(4,operator.applyAsInt(3));
+         assertEquals(1,Advice.before.get());
+         assertEquals(1,Advice.after.get());
+      } finally {
+         instrumentor.uninstall();
+      }
+   }
+
+   public void testAroundCodeSeesTheWovenMethod() throws Exception {
+      BytecodeInstrumentor instrumentor=newInstrumentor();
+      try {
+         Recorder recorder=new Recorder();
+         instrumentor.addAroundCode(
+            applyOf("AroundOperator"),
+            new InterceptorCode(new MethodInterceptor[] {recorder}),
+            null,null,null);
+         IntUnaryOperator operator=newOperator("AroundOperator");
+         assertEquals(40,operator.applyAsInt(3));
+         Method method=recorder.method.get();
+         assertEquals("applyAsInt",method.getName());
+         assertSame(operator.getClass(),method.getDeclaringClass());
+         assertNotNull(method.getAnnotation(Marked.class));
+      } finally {
+         instrumentor.uninstall();
+      }
+   }
+
+   public void testAroundChainsAreOnlyRegisteredWhileApplied()
+      throws Exception {
+      BytecodeInstrumentor instrumentor=newInstrumentor();
+      try {
+         final InterceptorCode code=new InterceptorCode(
+            new MethodInterceptor[] {new Recorder()});
+         int registered=AroundLinker.chainCount();
+         InstrumentationTransaction transaction=instrumentor.begin();
+         transaction.addAroundCode(applyOf("UndoneAroundOperator"),code,
+                                   null,null,null);
+         assertEquals(registered,AroundLinker.chainCount());
+         transaction.rollback();
+         assertEquals(registered,AroundLinker.chainCount());
+
+         Instrumentation around=instrumentor.addAroundCode(
+            applyOf("UndoneAroundOperator"),code,null,null,null);
+         assertEquals(registered+1,AroundLinker.chainCount());
+         instrumentor.undo(around);
+         assertEquals(registered,AroundLinker.chainCount());
+         assertEquals(4,newOperator("UndoneAroundOperator").applyAsInt(3));
+
+         newOperator("LoadedAroundOperator");
+         final BytecodeInstrumentor target=instrumentor;
+         assertThrows(InstrumentationError.class,new Callable<Object>() {
+               public Object call() {
+                  return target.addAroundCode(
+                     applyOf("LoadedAroundOperator"),code,null,null,null);
+               }
+            });
+         assertEquals(registered,AroundLinker.chainCount());
+      } finally {
+         instrumentor.uninstall();
+      }
+   }
+
+   public void testRetransformAndUndo() throws Exception {
+      Advice.reset();
+      BytecodeInstrumentor instrumentor=newInstrumentor();
+      try {
+         IntUnaryOperator operator=newOperator("RetransformedOperator");
+         assertEquals(4,operator.applyAsInt(3));
+         assertEquals(0,Advice.before.get());
+         Instrumentation before=instrumentor.addBeforeCode(
+            applyOf("RetransformedOperator"),adviceOf("before"),null,null);
+         assertEquals(4,operator.applyAsInt(3));
+         assertEquals(1,Advice.before.get());
+         instrumentor.undo(before);
+         assertEquals(4,operator.applyAsInt(3));
+         assertEquals(1,Advice.before.get());
+      } finally {
+         instrumentor.uninstall();
+      }
+   }
+
+}
+
+class LoadWovenOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class RetransformedOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class AroundOperator implements IntUnaryOperator {
+   @BytecodeInstrumentorTest.Marked
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class UndoneAroundOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class LoadedAroundOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
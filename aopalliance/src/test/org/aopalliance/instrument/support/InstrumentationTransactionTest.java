@@ -0,0 +1,235 @@
+
+package org.aopalliance.instrument.support;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+import org.aopalliance.instrument.Instrumentation;
+import org.aopalliance.instrument.InstrumentationError;
+import org.aopalliance.intercept.MethodInterceptor;
+
+import static org.aopalliance.instrument.support.BytecodeInstrumentorTest.*;
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Commits, rolls back and reverts transactions on loaded classes,
+ * counting the retransformations. The fixtures are the ones of {@link
+ * BytecodeInstrumentorTest}. */
+
+public class InstrumentationTransactionTest {
+
+   /** the calls of <code>retransformClasses</code> */
+   private final AtomicInteger retransforms=new AtomicInteger();
+
+   private final BytecodeInstrumentor instrumentor;
+
+   public InstrumentationTransactionTest() {
+      final java.lang.instrument.Instrumentation jvm=
+         Agent.getInstrumentation();
+      java.lang.instrument.Instrumentation counting=
+         (java.lang.instrument.Instrumentation)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {java.lang.instrument.Instrumentation.class},
+            new InvocationHandler() {
+               public Object invoke(Object proxy, Method method,
+                                    Object[] arguments)
+                  throws Throwable {
+                  if(method.getName().equals("retransformClasses")) {
+                     retransforms.incrementAndGet();
+                  }
+                  try {
+                     return method.invoke(jvm,arguments);
+                  } catch(InvocationTargetException e) {
+                     throw e.getTargetException();
+                  }
+               }
+            });
+      instrumentor=new BytecodeInstrumentor(counting);
+   }
+
+   /**
+    * Loads two fixtures, and checks that they are not woven. */
+   private IntUnaryOperator[] load(String first, String second)
+      throws Exception {
+      IntUnaryOperator[] operators={newOperator(first),
+                                    newOperator(second)};
+      Advice.reset();
+      for(IntUnaryOperator operator : operators) {
+         assertEquals(4,operator.applyAsInt(3));
+      }
+      assertEquals(0,Advice.before.get());
+      return operators;
+   }
+
+   private static void apply(IntUnaryOperator[] operators) {
+      for(IntUnaryOperator operator : operators) {
+         assertEquals(4,operator.applyAsInt(3));
+      }
+   }
+
+   public void testCommitRetransformsOnce() throws Exception {
+      try {
+         IntUnaryOperator[] operators=load("CommittedOperator",
+                                           "OtherCommittedOperator");
+         InstrumentationTransaction transaction=instrumentor.begin();
+         transaction.addBeforeCode(applyOf("CommittedOperator"),
+                                   adviceOf("before"),null,null);
+         transaction.addBeforeCode(applyOf("OtherCommittedOperator"),
+                                   adviceOf("before"),null,null);
+         transaction.addAfterCode(applyOf("OtherCommittedOperator"),
+                                  adviceOf("after"),null,null);
+         assertEquals(3,transaction.size());
+         apply(operators);
+         assertEquals(0,Advice.before.get());
+
+         transaction.commit();
+         assertEquals(1,retransforms.get());
+         apply(operators);
+         assertEquals(2,Advice.before.get());
+         assertEquals(1,Advice.after.get());
+
+         transaction.revert();
+         assertEquals(2,retransforms.get());
+         apply(operators);
+         assertEquals(2,Advice.before.get());
+      } finally {
+         instrumentor.uninstall();
+      }
+   }
+
+   public void testRollbackAppliesNothing() throws Exception {
+      try {
+         IntUnaryOperator[] operators=load("RolledBackOperator",
+                                           "OtherRolledBackOperator");
+         final InstrumentationTransaction transaction=instrumentor.begin();
+         transaction.addBeforeCode(applyOf("RolledBackOperator"),
+                                   adviceOf("before"),null,null);
+         transaction.rollback();
+         assertEquals(0,transaction.size());
+         assertThrows(IllegalStateException.class,new Callable<Object>() {
+               public Object call() throws Exception {
+                  return transaction.addBeforeCode(
+                     applyOf("OtherRolledBackOperator"),
+                     adviceOf("before"),null,null);
+               }
+            });
+         assertThrows(IllegalStateException.class,new Callable<Object>() {
+               public Object call() {
+                  transaction.commit();
+                  return null;
+               }
+            });
+         apply(operators);
+         assertEquals(0,Advice.before.get());
+         assertEquals(0,retransforms.get());
+      } finally {
+         instrumentor.uninstall();
+      }
+   }
+
+   public void testUndoBeforeAndAfterCommit() throws Exception {
+      try {
+         IntUnaryOperator[] operators=load("UndoneOperator",
+                                           "OtherUndoneOperator");
+         InstrumentationTransaction transaction=instrumentor.begin();
+         Instrumentation dropped=transaction.addBeforeCode(
+            applyOf("UndoneOperator"),adviceOf("before"),null,null);
+         Instrumentation undone=transaction.addBeforeCode(
+            applyOf("OtherUndoneOperator"),adviceOf("before"),null,null);
+         transaction.addAfterCode(applyOf("OtherUndoneOperator"),
+                                  adviceOf("after"),null,null);
+         transaction.undo(dropped);
+         assertEquals(2,transaction.size());
+         transaction.commit();
+         apply(operators);
+         assertEquals(1,Advice.before.get());
+         assertEquals(1,Advice.after.get());
+
+         transaction.undo(undone);
+         apply(operators);
+         assertEquals(1,Advice.before.get());
+         assertEquals(2,Advice.after.get());
+      } finally {
+         instrumentor.uninstall();
+      }
+   }
+
+   public void testFailedCommitsApplyNothing() throws Exception {
+      try {
+         IntUnaryOperator[] operators=load("AtomicOperator",
+                                           "FailingOperator");
+         final InstrumentationTransaction transaction=instrumentor.begin();
+         transaction.addBeforeCode(applyOf("AtomicOperator"),
+                                   adviceOf("before"),null,null);
+         // around code changes the members of the loaded class
+         transaction.addAroundCode(
+            applyOf("FailingOperator"),
+            new InterceptorCode(new MethodInterceptor[] {new Recorder()}),
+            null,null,null);
+         assertThrows(InstrumentationError.class,new Callable<Object>() {
+               public Object call() {
+                  transaction.commit();
+                  return null;
+               }
+            });
+         apply(operators);
+         assertEquals(0,Advice.before.get());
+      } finally {
+         instrumentor.uninstall();
+      }
+   }
+
+}
+
+class CommittedOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class OtherCommittedOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class RolledBackOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class OtherRolledBackOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class UndoneOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class OtherUndoneOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class AtomicOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class FailingOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
@@ -0,0 +1,557 @@
+
+package org.aopalliance.instrument.support;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aopalliance.instrument.InstrumentationError;
+import org.aopalliance.reflect.ClassLocator;
+
+import static org.aopalliance.instrument.support.BytecodeInstrumentorTest.*;
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Weaves the structural edits, and before and after code in methods
+ * with switches, exception handlers and loops, into the fixture
+ * classes below. The woven class files are defined by a loader of
+ * their own, which makes the JVM verify them (the fixtures are never
+ * loaded by the loader of the tests). */
+
+public class WeaverTest {
+
+   /**
+    * The methods called by the woven code. */
+   public static final class Hooks {
+
+      static final AtomicInteger entries=new AtomicInteger();
+      static final AtomicInteger exits=new AtomicInteger();
+      static final AtomicInteger initializations=new AtomicInteger();
+
+      static volatile Object target;
+
+      public static void enter(Object target) {
+         entries.incrementAndGet();
+         Hooks.target=target;
+      }
+
+      /** a before code without the target, whose call is one byte
+       * shorter (so that the switches are padded again) */
+      public static void tick() {
+         entries.incrementAndGet();
+      }
+
+      public static void exit(Object target) {
+         exits.incrementAndGet();
+      }
+
+      public static String label() {
+         initializations.incrementAndGet();
+         return "initial";
+      }
+
+      public static int seven() {
+         initializations.incrementAndGet();
+         return 7;
+      }
+
+      public static int twice(Object target, int n) {
+         Hooks.target=target;
+         return 2*n;
+      }
+
+      public static String name(Object target) {
+         return "created";
+      }
+
+      static void reset() {
+         entries.set(0);
+         exits.set(0);
+         initializations.set(0);
+         target=null;
+      }
+
+   }
+
+   public interface Named {
+      String name();
+   }
+
+   public interface Counter {
+      int increment();
+   }
+
+   /**
+    * Records the value of the <code>label</code> field of the object
+    * when it is constructed. */
+   public static class Base {
+
+      public final Object seen;
+
+      public Base() {
+         Object value;
+         try {
+            value=field(this,"label");
+         } catch(ReflectiveOperationException e) {
+            value="none";
+         }
+         seen=value;
+      }
+
+   }
+
+   public static class CountingBase extends Base {
+
+      static final AtomicInteger created=new AtomicInteger();
+
+      public CountingBase() {
+         created.incrementAndGet();
+      }
+
+   }
+
+   /**
+    * Defines woven class files, and delegates the other classes to
+    * the loader of the tests. */
+   static final class Loader extends ClassLoader {
+
+      private final Map<String,byte[]> classes=new HashMap<String,byte[]>();
+
+      Loader(String name, byte[] bytes) {
+         super(WeaverTest.class.getClassLoader());
+         classes.put(name,bytes);
+      }
+
+      protected Class<?> loadClass(String name, boolean resolve)
+         throws ClassNotFoundException {
+         byte[] bytes=classes.get(name);
+         if(bytes==null) {
+            return super.loadClass(name,resolve);
+         }
+         synchronized(getClassLoadingLock(name)) {
+            Class<?> type=findLoadedClass(name);
+            return type!=null?type:defineClass(name,bytes,0,bytes.length);
+         }
+      }
+
+   }
+
+   private final BytecodeInstrumentor instrumentor=
+      new BytecodeInstrumentor(null);
+
+   public WeaverTest() {
+      Hooks.reset();
+   }
+
+   /**
+    * Gets the value of a public field of a fixture (whose class is not
+    * accessible from the loader of the tests). */
+   static Object field(Object target, String name)
+      throws ReflectiveOperationException {
+      Field field=target.getClass().getField(name);
+      field.setAccessible(true);
+      return field.get(target);
+   }
+
+   private static ClassLocator classOf(String simpleName) {
+      return new NamedClassLocator(PACKAGE+simpleName);
+   }
+
+   private static MethodBodyLocator methodOf(String simpleName,
+                                             String methodName) {
+      return new MethodBodyLocator(PACKAGE+simpleName,methodName,null);
+   }
+
+   private static CallCode hook(String name, Class<?>... parameters)
+      throws Exception {
+      return new CallCode(Hooks.class.getMethod(name,parameters));
+   }
+
+   /**
+    * Defines and initializes a class file in a new loader, so that it
+    * is verified. */
+   private static Class<?> define(String name, byte[] bytes)
+      throws Exception {
+      return Class.forName(name,true,new Loader(name,bytes));
+   }
+
+   /**
+    * Weaves a fixture, and defines it. */
+   private Class<?> weave(String simpleName) throws Exception {
+      String name=PACKAGE+simpleName;
+      return define(name,instrumentor.transform(
+                       name,classFile(name),
+                       WeaverTest.class.getClassLoader()));
+   }
+
+   private static Object create(Class<?> type, Object... arguments)
+      throws Throwable {
+      for(Constructor<?> constructor : type.getDeclaredConstructors()) {
+         if(constructor.getParameterCount()==arguments.length) {
+            constructor.setAccessible(true);
+            try {
+               return constructor.newInstance(arguments);
+            } catch(InvocationTargetException e) {
+               throw e.getTargetException();
+            }
+         }
+      }
+      throw new NoSuchMethodException(type.getName());
+   }
+
+   /**
+    * Calls the method of the given name of an object. */
+   private static Object call(Object target, String name,
+                              Object... arguments) throws Throwable {
+      for(Method method : target.getClass().getDeclaredMethods()) {
+         if(method.getName().equals(name)) {
+            method.setAccessible(true);
+            try {
+               return method.invoke(target,arguments);
+            } catch(InvocationTargetException e) {
+               throw e.getTargetException();
+            }
+         }
+      }
+      throw new NoSuchMethodException(name);
+   }
+
+   /**
+    * Adds two before codes (7 bytes) and an after code to the methods
+    * of a fixture. */
+   private void advise(String simpleName, String... methods)
+      throws Exception {
+      for(String method : methods) {
+         instrumentor.addBeforeCode(methodOf(simpleName,method),
+                                    hook("enter",Object.class),null,null);
+         instrumentor.addBeforeCode(methodOf(simpleName,method),
+                                    hook("tick"),null,null);
+         instrumentor.addAfterCode(methodOf(simpleName,method),
+                                   hook("exit",Object.class),null,null);
+      }
+   }
+
+   public void testCodeIsWovenAroundSwitches() throws Throwable {
+      advise("BranchingFixture","tableSwitch","lookupSwitch",
+             "stringSwitch");
+      Object fixture=create(weave("BranchingFixture"));
+      int[] table={-1,10,11,12,13,-1};
+      for(int n=-1;n<=4;n++) {
+         assertEquals(table[n+1],
+                      call(fixture,"tableSwitch",Integer.valueOf(n)));
+      }
+      assertEquals(Integer.valueOf(2),
+                   call(fixture,"lookupSwitch",Integer.valueOf(100)));
+      assertEquals(Integer.valueOf(3),
+                   call(fixture,"lookupSwitch",Integer.valueOf(10000)));
+      assertEquals(Integer.valueOf(0),
+                   call(fixture,"lookupSwitch",Integer.valueOf(7)));
+      assertEquals("B",call(fixture,"stringSwitch","b"));
+      assertEquals("?",call(fixture,"stringSwitch","c"));
+      assertEquals(2*11,Hooks.entries.get());
+      assertEquals(11,Hooks.exits.get());
+      assertSame(fixture,Hooks.target);
+   }
+
+   public void testCodeIsWovenAroundHandlersAndLoops() throws Throwable {
+      advise("BranchingFixture","parse","loop","search","fail");
+      Object fixture=create(weave("BranchingFixture"));
+      assertEquals(Integer.valueOf(12),call(fixture,"parse","12"));
+      assertEquals(Integer.valueOf(-1),call(fixture,"parse","x"));
+      assertEquals(Integer.valueOf(25),
+                   call(fixture,"loop",Integer.valueOf(10)));
+      assertEquals(Integer.valueOf(100),
+                   call(fixture,"loop",Integer.valueOf(21)));
+      assertEquals(Integer.valueOf(2),call(fixture,"search","1 x 3 4"));
+      assertEquals(Integer.valueOf(-1),call(fixture,"search","1 2"));
+      assertEquals(2*6,Hooks.entries.get());
+      assertEquals(6,Hooks.exits.get());
+      try {
+         call(fixture,"fail");
+         fail("no exception");
+      } catch(IllegalStateException e) {
+         // the after code only runs when the method returns
+         assertEquals(2*7,Hooks.entries.get());
+         assertEquals(6,Hooks.exits.get());
+      }
+      // the finally blocks of parse()
+      assertEquals(Integer.valueOf(2),call(fixture,"parsed"));
+   }
+
+   public void testBeforeCodeOfConstructorsHasNoTarget() throws Throwable {
+      advise("BranchingFixture","<init>");
+      Class<?> type=weave("BranchingFixture");
+      // the constructor without parameter calls this(0)
+      create(type);
+      create(type,Integer.valueOf(3));
+      assertEquals(2*3,Hooks.entries.get());
+      assertEquals(3,Hooks.exits.get());
+      assertNull(Hooks.target);
+   }
+
+   public void testFieldsAreInitializedBeforeTheSuperclass()
+      throws Throwable {
+      instrumentor.addField(classOf("FieldFixture"),"label",
+                            "java.lang.String",hook("label"));
+      instrumentor.addField(classOf("FieldFixture"),"seven","int",
+                            hook("seven"));
+      instrumentor.addField(classOf("FieldFixture"),"plain","long[]",
+                            null);
+      Class<?> type=weave("FieldFixture");
+      // the constructor that calls this(1) does not initialize them
+      Base fixture=(Base)create(type);
+      assertEquals("initial",fixture.seen);
+      assertEquals(2,Hooks.initializations.get());
+      assertEquals("initial",field(fixture,"label"));
+      assertEquals(Integer.valueOf(7),field(fixture,"seven"));
+      assertNull(field(fixture,"plain"));
+      assertEquals(long[].class,type.getField("plain").getType());
+      assertEquals(Integer.valueOf(1),call(fixture,"number"));
+      create(type,Integer.valueOf(5));
+      assertEquals(4,Hooks.initializations.get());
+   }
+
+   public void testAddedMethodsCallTheirBody() throws Throwable {
+      instrumentor.addMethod(classOf("MethodFixture"),"twice",
+                             new String[] {"int"},new String[] {"n"},
+                             hook("twice",Object.class,int.class));
+      instrumentor.addMethod(classOf("MethodFixture"),"name",
+                             new String[0],null,
+                             hook("name",Object.class));
+      Class<?> type=weave("MethodFixture");
+      Object fixture=create(type);
+      assertEquals(Integer.valueOf(6),
+                   call(fixture,"twice",Integer.valueOf(3)));
+      assertSame(fixture,Hooks.target);
+      assertEquals("created",call(fixture,"name"));
+      Method twice=type.getMethod("twice",int.class);
+      assertEquals("n",twice.getParameters()[0].getName());
+   }
+
+   public void testAddedInterfacesAreImplemented() throws Throwable {
+      instrumentor.addInterface(classOf("InterfaceFixture"),
+                                Named.class.getName());
+      Class<?> type=weave("InterfaceFixture");
+      assertTrue("interfaces "+Arrays.toString(type.getInterfaces()),
+                 Arrays.asList(type.getInterfaces()).contains(Named.class));
+      assertEquals("fixture",((Named)create(type)).name());
+   }
+
+   public void testSuperclassConstructorsAreRedirected() throws Throwable {
+      instrumentor.setSuperClass(classOf("SuperFixture"),
+                                 CountingBase.class.getName());
+      Class<?> type=weave("SuperFixture");
+      assertSame(CountingBase.class,type.getSuperclass());
+      int created=CountingBase.created.get();
+      Object fixture=create(type);
+      assertEquals(created+1,CountingBase.created.get());
+      // the other objects of the previous superclass are kept
+      assertSame(Base.class,call(fixture,"other").getClass());
+   }
+
+   public void testMixinsAreIntroduced() throws Throwable {
+      instrumentor.addClass(classOf("MixinFixture"),PACKAGE+"CounterMixin");
+      Class<?> type=weave("MixinFixture");
+      Counter fixture=(Counter)create(type);
+      assertEquals(1,fixture.increment());
+      assertEquals(2,fixture.increment());
+      assertEquals(int.class,type.getDeclaredField("counted").getType());
+      assertEquals("mixed",call(fixture,"name"));
+   }
+
+   public void testCreatedClassesAreDefined() throws Throwable {
+      final String name=PACKAGE+"CreatedClass";
+      ClassLocator created=instrumentor.createClass(name);
+      instrumentor.addInterface(created,Named.class.getName());
+      instrumentor.addMethod(created,"name",new String[0],null,
+                             hook("name",Object.class));
+      instrumentor.addField(created,"label","java.lang.String",
+                            hook("label"));
+      Class<?> type=define(name,instrumentor.getClassBytes(name));
+      Named instance=(Named)create(type);
+      assertEquals("created",instance.name());
+      assertEquals("initial",field(instance,"label"));
+      assertThrows(InstrumentationError.class,new Callable<Object>() {
+            public Object call() {
+               return instrumentor.createClass(name);
+            }
+         });
+      assertThrows(IllegalArgumentException.class,new Callable<Object>() {
+            public Object call() {
+               return instrumentor.getClassBytes(PACKAGE+"NotCreated");
+            }
+         });
+   }
+
+}
+
+class BranchingFixture {
+
+   private int parsed;
+
+   BranchingFixture() {
+      this(0);
+   }
+
+   BranchingFixture(int parsed) {
+      this.parsed=parsed;
+   }
+
+   int tableSwitch(int n) {
+      switch(n) {
+         case 0:
+            return 10;
+         case 1:
+            return 11;
+         case 2:
+            return 12;
+         case 3:
+            return 13;
+         default:
+            return -1;
+      }
+   }
+
+   int lookupSwitch(int n) {
+      switch(n) {
+         case 1:
+            return 1;
+         case 100:
+            return 2;
+         case 10000:
+            return 3;
+         default:
+            return 0;
+      }
+   }
+
+   String stringSwitch(String value) {
+      switch(value) {
+         case "a":
+            return "A";
+         case "b":
+            return "B";
+         default:
+            return "?";
+      }
+   }
+
+   int parse(String value) {
+      try {
+         return Integer.parseInt(value);
+      } catch(NumberFormatException e) {
+         return -1;
+      } finally {
+         parsed++;
+      }
+   }
+
+   int parsed() {
+      return parsed;
+   }
+
+   /** sums the odd numbers below n, modulo 100 (but 100) */
+   int loop(int n) {
+      int sum=0;
+      for(int i=0;i<n;i++) {
+         if(i%2==0) {
+            continue;
+         }
+         sum+=i;
+      }
+      while(sum>100) {
+         sum-=100;
+      }
+      return sum;
+   }
+
+   /** finds the first word that is not a number */
+   int search(String words) {
+      String[] split=words.split(" ");
+      for(int i=0;i<split.length;i++) {
+         try {
+            Integer.parseInt(split[i]);
+         } catch(NumberFormatException e) {
+            return i+1;
+         }
+      }
+      return -1;
+   }
+
+   void fail() {
+      throw new IllegalStateException("failed");
+   }
+
+}
+
+class FieldFixture extends WeaverTest.Base {
+
+   private final int number;
+
+   FieldFixture() {
+      this(1);
+   }
+
+   FieldFixture(int number) {
+      super();
+      this.number=number;
+   }
+
+   int number() {
+      return number;
+   }
+
+}
+
+class MethodFixture {
+}
+
+class InterfaceFixture {
+
+   public String name() {
+      return "fixture";
+   }
+
+}
+
+class SuperFixture extends WeaverTest.Base {
+
+   private final Object other;
+
+   SuperFixture() {
+      this(new WeaverTest.Base());
+   }
+
+   SuperFixture(Object other) {
+      super();
+      this.other=other;
+   }
+
+   Object other() {
+      return other;
+   }
+
+}
+
+class MixinFixture {
+}
+
+class CounterMixin implements WeaverTest.Counter {
+
+   private int counted;
+
+   public int increment() {
+      return ++counted;
+   }
+
+   public String name() {
+      return "mixed";
+   }
+
+}
@@ -0,0 +1,61 @@
+
+package org.aopalliance.instrument.support;
+
+import java.io.File;
+import java.util.function.IntUnaryOperator;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Prescans the test classes with a pipeline, and loads some of
+ * them. */
+
+public class WeavingPipelineTest {
+
+   public void testWovenClassesAreTakenOnceAndReleased() throws Exception {
+      BytecodeInstrumentorTest.Advice.reset();
+      BytecodeInstrumentor instrumentor=
+         BytecodeInstrumentorTest.newInstrumentor();
+      WeavingPipeline pipeline=new WeavingPipeline(instrumentor);
+      try {
+         for(String name : new String[] {"PipelinedOperator",
+                                         "UnloadedPipelinedOperator"}) {
+            instrumentor.addBeforeCode(
+               BytecodeInstrumentorTest.applyOf(name),
+               BytecodeInstrumentorTest.adviceOf("before"),null,null);
+         }
+         File classes=new File(WeavingPipelineTest.class
+                               .getProtectionDomain().getCodeSource()
+                               .getLocation().toURI());
+         assertEquals(2,pipeline.prescan(classes,null).join().intValue());
+         assertEquals(2,pipeline.getPendingCount());
+
+         IntUnaryOperator operator=
+            BytecodeInstrumentorTest.newOperator("PipelinedOperator");
+         assertEquals(1,pipeline.getHitCount());
+         assertEquals(0,pipeline.getMissCount());
+         assertEquals(1,pipeline.getPendingCount());
+         assertEquals(4,operator.applyAsInt(3));
+         assertEquals(1,BytecodeInstrumentorTest.Advice.before.get());
+
+         pipeline.release(null);
+         assertEquals(0,pipeline.getPendingCount());
+      } finally {
+         pipeline.close();
+         instrumentor.uninstall();
+      }
+   }
+
+}
+
+class PipelinedOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
+
+class UnloadedPipelinedOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
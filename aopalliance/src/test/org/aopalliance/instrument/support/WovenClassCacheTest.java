@@ -0,0 +1,266 @@
+
+package org.aopalliance.instrument.support;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntUnaryOperator;
+
+import org.aopalliance.instrument.Instrumentation;
+
+import static org.aopalliance.instrument.support.BytecodeInstrumentorTest.*;
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Stores woven class files, and finds them again after a restart and
+ * from other caches on the same file. The woven fixture is never
+ * loaded by the class loader of the tests. */
+
+public class WovenClassCacheTest {
+
+   private static final String CACHED=PACKAGE+"CachedOperator";
+
+   private final File path;
+
+   public WovenClassCacheTest() throws IOException {
+      path=File.createTempFile("woven",".cache");
+      path.delete();
+      path.deleteOnExit();
+   }
+
+   private static byte[] key(int seed) {
+      byte[] key=new byte[32];
+      Arrays.fill(key,(byte)seed);
+      return key;
+   }
+
+   /**
+    * Weaves the fixture with a before code, and possibly an after code,
+    * using the given cache. */
+   private static byte[] weave(WovenClassCache cache, boolean after)
+      throws Exception {
+      BytecodeInstrumentor instrumentor=newInstrumentor();
+      try {
+         instrumentor.setCache(cache);
+         instrumentor.addBeforeCode(applyOf("CachedOperator"),
+                                    adviceOf("before"),null,null);
+         if(after) {
+            instrumentor.addAfterCode(applyOf("CachedOperator"),
+                                      adviceOf("after"),null,null);
+         }
+         return instrumentor.transform(CACHED,classFile(CACHED),null);
+      } finally {
+         instrumentor.uninstall();
+      }
+   }
+
+   /**
+    * Weaves the fixture with two before codes, the second one running
+    * first if it is constrained. */
+   private static byte[] weaveOrdered(WovenClassCache cache,
+                                      boolean constrained)
+      throws Exception {
+      BytecodeInstrumentor instrumentor=newInstrumentor();
+      try {
+         instrumentor.setCache(cache);
+         Instrumentation first=instrumentor.addBeforeCode(
+            applyOf("CachedOperator"),adviceOf("before"),null,null);
+         instrumentor.addBeforeCode(applyOf("CachedOperator"),
+                                    adviceOf("after"),null,
+                                    constrained?first:null);
+         return instrumentor.transform(CACHED,classFile(CACHED),null);
+      } finally {
+         instrumentor.uninstall();
+      }
+   }
+
+   public void testWovenClassesAreFoundAfterARestart() throws Exception {
+      WovenClassCache cache=new WovenClassCache(path,1<<20);
+      byte[] woven;
+      try {
+         woven=weave(cache,false);
+         assertEquals(0,cache.getHitCount());
+         assertEquals(1,cache.getMissCount());
+         assertTrue("used "+cache.getUsedSize(),
+                    cache.getUsedSize()>woven.length);
+         assertTrue("cached",Arrays.equals(woven,weave(cache,false)));
+         assertEquals(1,cache.getHitCount());
+      } finally {
+         cache.close();
+      }
+
+      WovenClassCache restarted=new WovenClassCache(path);
+      try {
+         assertEquals(1<<20,path.length());
+         assertTrue("cached",Arrays.equals(woven,weave(restarted,false)));
+         assertEquals(1,restarted.getHitCount());
+         assertEquals(0,restarted.getMissCount());
+         // another plan is woven again
+         assertFalse("same class file",
+                     Arrays.equals(woven,weave(restarted,true)));
+         assertEquals(1,restarted.getMissCount());
+      } finally {
+         restarted.close();
+      }
+
+      // the cached class file is woven
+      Constructor<?> constructor=new ClassLoader() {
+            Class<?> define() {
+               return defineClass(CACHED,woven,0,woven.length);
+            }
+         }.define().getDeclaredConstructor();
+      constructor.setAccessible(true);
+      IntUnaryOperator operator=(IntUnaryOperator)constructor.newInstance();
+      Advice.reset();
+      assertEquals(4,operator.applyAsInt(3));
+      assertEquals(1,Advice.before.get());
+   }
+
+   public void testEntriesAreSharedThroughTheFile() throws Exception {
+      WovenClassCache first=new WovenClassCache(path,4096);
+      WovenClassCache second=new WovenClassCache(path,4096);
+      try {
+         assertNull(second.get(key(1)));
+         first.put(key(1),new byte[] {1,2,3});
+         assertTrue("shared",Arrays.equals(new byte[] {1,2,3},
+                                           second.get(key(1))));
+         // the first entry is kept
+         second.put(key(1),new byte[] {4});
+         first.put(key(2),new byte[] {5});
+         assertTrue("kept",Arrays.equals(new byte[] {1,2,3},
+                                         first.get(key(1))));
+         assertTrue("shared",Arrays.equals(new byte[] {5},
+                                           second.get(key(2))));
+         assertEquals(first.getUsedSize(),second.getUsedSize());
+      } finally {
+         first.close();
+         second.close();
+      }
+   }
+
+   public void testConstraintChangesAreWovenAgain() throws Exception {
+      byte[] unconstrained=weaveOrdered(null,false);
+      byte[] constrained=weaveOrdered(null,true);
+      assertFalse("same class file",
+                  Arrays.equals(unconstrained,constrained));
+      WovenClassCache cache=new WovenClassCache(path,1<<20);
+      try {
+         assertTrue("unconstrained",Arrays.equals(
+                       unconstrained,weaveOrdered(cache,false)));
+         assertTrue("constrained",Arrays.equals(
+                       constrained,weaveOrdered(cache,true)));
+         assertEquals(0,cache.getHitCount());
+         assertEquals(2,cache.getMissCount());
+      } finally {
+         cache.close();
+      }
+   }
+
+   public void testEntriesAreSharedBetweenThreads() throws Exception {
+      final WovenClassCache[] caches={new WovenClassCache(path,1<<20),
+                                      new WovenClassCache(path,1<<20)};
+      ExecutorService executor=Executors.newFixedThreadPool(2);
+      try {
+         Future<?>[] puts=new Future<?>[2];
+         for(int i=0;i<2;i++) {
+            final int first=i*100;
+            puts[i]=executor.submit(new Callable<Object>() {
+                  public Object call() {
+                     for(int j=first;j<first+100;j++) {
+                        caches[first/100].put(key(j),new byte[] {(byte)j});
+                     }
+                     return null;
+                  }
+               });
+         }
+         for(Future<?> put : puts) {
+            put.get();
+         }
+         for(WovenClassCache cache : caches) {
+            for(int j=0;j<200;j++) {
+               assertEquals(j,cache.get(key(j))[0]&0xff);
+            }
+            assertEquals(16+200*41,cache.getUsedSize());
+         }
+      } finally {
+         executor.shutdown();
+         caches[0].close();
+         caches[1].close();
+      }
+   }
+
+   public void testCorruptedEntriesAreWovenAgain() throws Exception {
+      WovenClassCache cache=new WovenClassCache(path,4096);
+      try {
+         cache.put(key(1),new byte[] {1,2,3});
+      } finally {
+         cache.close();
+      }
+      // the class file of the entry did not reach the disk
+      RandomAccessFile file=new RandomAccessFile(path,"rw");
+      try {
+         file.seek(16+40);
+         file.write(new byte[3]);
+      } finally {
+         file.close();
+      }
+      WovenClassCache restarted=new WovenClassCache(path);
+      try {
+         assertNull(restarted.get(key(1)));
+         assertEquals(1,restarted.getMissCount());
+         restarted.put(key(1),new byte[] {1,2,3});
+         assertTrue("cached again",Arrays.equals(new byte[] {1,2,3},
+                                                 restarted.get(key(1))));
+      } finally {
+         restarted.close();
+      }
+   }
+
+   public void testFullFilesAreNotUpdated() throws Exception {
+      WovenClassCache cache=new WovenClassCache(path,64);
+      try {
+         cache.put(key(1),new byte[100]);
+         assertNull(cache.get(key(1)));
+         assertEquals(16,cache.getUsedSize());
+         // a key, a length, a checksum and 8 bytes fill the file
+         cache.put(key(2),new byte[8]);
+         assertEquals(64,cache.getUsedSize());
+         assertEquals(8,cache.get(key(2)).length);
+      } finally {
+         cache.close();
+      }
+   }
+
+   public void testOtherFilesAreRejected() throws Exception {
+      FileOutputStream out=new FileOutputStream(path);
+      try {
+         out.write(new byte[64]);
+      } finally {
+         out.close();
+      }
+      assertThrows(IOException.class,new Callable<Object>() {
+            public Object call() throws IOException {
+               return new WovenClassCache(path);
+            }
+         });
+      assertThrows(IllegalArgumentException.class,new Callable<Object>() {
+            public Object call() throws IOException {
+               return new WovenClassCache(path,16);
+            }
+         });
+   }
+
+}
+
+class CachedOperator implements IntUnaryOperator {
+   public int applyAsInt(int n) {
+      return n+1;
+   }
+}
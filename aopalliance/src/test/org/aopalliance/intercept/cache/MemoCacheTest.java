@@ -0,0 +1,181 @@
+
+package org.aopalliance.intercept.cache;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.support.InterceptedMethod;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Memoizes the results of a service in bounded caches: eviction,
+ * expiration, invalidation and coalesced loads. */
+
+public class MemoCacheTest {
+
+   public static final class Service {
+
+      final AtomicInteger computed=new AtomicInteger();
+
+      volatile CountDownLatch gate;
+
+      public int square(int value) throws InterruptedException {
+         computed.incrementAndGet();
+         CountDownLatch current=gate;
+         if(current!=null) {
+            current.await();
+         }
+         return value*value;
+      }
+
+      public String nothing(int value) {
+         computed.incrementAndGet();
+         return null;
+      }
+
+      public int fail(int value) {
+         computed.incrementAndGet();
+         throw new IllegalStateException("failed "+value);
+      }
+
+   }
+
+   private final Service service=new Service();
+
+   private InterceptedMethod memoized(MemoizingInterceptor memoizer,
+                                      String name) throws Exception {
+      Method method=Service.class.getMethod(name,int.class);
+      return InterceptedMethod.create(
+         method,new MethodInterceptor[] {memoizer});
+   }
+
+   private Object call(InterceptedMethod method, int value)
+      throws Throwable {
+      return method.invoke(service,new Object[] {Integer.valueOf(value)});
+   }
+
+   public void testResultsAreMemoizedPerArguments() throws Throwable {
+      MemoizingInterceptor memoizer=new MemoizingInterceptor(100);
+      InterceptedMethod square=memoized(memoizer,"square");
+      assertEquals(Integer.valueOf(9),call(square,3));
+      assertEquals(Integer.valueOf(9),call(square,3));
+      assertEquals(Integer.valueOf(16),call(square,4));
+      assertEquals(2,service.computed.get());
+      assertEquals(1,memoizer.hitCount());
+      assertEquals(2,memoizer.missCount());
+      assertEquals(2,memoizer.size());
+
+      InterceptedMethod nothing=memoized(memoizer,"nothing");
+      assertNull(call(nothing,3));
+      assertNull(call(nothing,3));
+      assertEquals(3,service.computed.get());
+   }
+
+   public void testExceptionsAreNotMemoized() throws Throwable {
+      MemoizingInterceptor memoizer=new MemoizingInterceptor(100);
+      InterceptedMethod fail=memoized(memoizer,"fail");
+      for(int i=0;i<2;i++) {
+         try {
+            call(fail,1);
+            fail("no exception");
+         } catch(IllegalStateException e) {
+            assertEquals("failed 1",e.getMessage());
+         }
+      }
+      assertEquals(2,service.computed.get());
+      assertEquals(0,memoizer.size());
+   }
+
+   public void testSizeIsBounded() throws Throwable {
+      MemoizingInterceptor memoizer=new MemoizingInterceptor(10);
+      InterceptedMethod square=memoized(memoizer,"square");
+      for(int i=0;i<1000;i++) {
+         assertEquals(Integer.valueOf(i*i),call(square,i));
+         assertTrue("size "+memoizer.size(),memoizer.size()<=10);
+      }
+   }
+
+   public void testFrequentResultsSurviveAScan() throws Throwable {
+      MemoizingInterceptor memoizer=new MemoizingInterceptor(20);
+      InterceptedMethod square=memoized(memoizer,"square");
+      for(int round=0;round<8;round++) {
+         for(int hot=0;hot<5;hot++) {
+            call(square,hot);
+         }
+         memoizer.cleanUp();
+      }
+      for(int scanned=1000;scanned<1200;scanned++) {
+         call(square,scanned);
+      }
+      int computed=service.computed.get();
+      for(int hot=0;hot<5;hot++) {
+         call(square,hot);
+      }
+      assertEquals(computed,service.computed.get());
+   }
+
+   public void testResultsExpire() throws Throwable {
+      MemoizingInterceptor memoizer=
+         new MemoizingInterceptor(100,50,TimeUnit.MILLISECONDS);
+      InterceptedMethod square=memoized(memoizer,"square");
+      call(square,3);
+      call(square,3);
+      assertEquals(1,service.computed.get());
+      Thread.sleep(100);
+      memoizer.cleanUp();
+      assertEquals(0,memoizer.size());
+      call(square,3);
+      assertEquals(2,service.computed.get());
+   }
+
+   public void testInvalidation() throws Throwable {
+      MemoizingInterceptor memoizer=new MemoizingInterceptor(100);
+      InterceptedMethod square=memoized(memoizer,"square");
+      InterceptedMethod nothing=memoized(memoizer,"nothing");
+      call(square,3);
+      call(nothing,3);
+      memoizer.invalidate(square.getMethod());
+      assertEquals(1,memoizer.size());
+      call(square,3);
+      call(nothing,3);
+      assertEquals(3,service.computed.get());
+      memoizer.invalidateAll();
+      assertEquals(0,memoizer.size());
+   }
+
+   public void testConcurrentMissesAreCoalesced() throws Throwable {
+      MemoizingInterceptor memoizer=new MemoizingInterceptor(100);
+      final InterceptedMethod square=memoized(memoizer,"square");
+      service.gate=new CountDownLatch(1);
+      final AtomicReference<Object> waited=new AtomicReference<Object>();
+      Runnable caller=new Runnable() {
+            public void run() {
+               try {
+                  waited.set(call(square,3));
+               } catch(Throwable t) {
+                  waited.set(t);
+               }
+            }
+         };
+      Thread first=new Thread(caller);
+      first.start();
+      while(service.computed.get()==0) {
+         Thread.sleep(1);
+      }
+      Thread second=new Thread(caller);
+      second.start();
+      Thread.sleep(50);
+      service.gate.countDown();
+      first.join(5000);
+      second.join(5000);
+      assertEquals(Integer.valueOf(9),waited.get());
+      assertEquals(1,service.computed.get());
+      assertEquals(2,memoizer.missCount());
+   }
+
+}
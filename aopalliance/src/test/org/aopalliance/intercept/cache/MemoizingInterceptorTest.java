@@ -0,0 +1,137 @@
+
+package org.aopalliance.intercept.cache;
+
+import java.lang.reflect.Method;
+
+import org.aopalliance.intercept.FieldInterceptor;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.support.InterceptedField;
+import org.aopalliance.intercept.support.InterceptedMethod;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Memoizes the methods of a price list, and invalidates their results
+ * by writing the field they read. */
+
+public class MemoizingInterceptorTest {
+
+   public static final class Prices {
+
+      public int rate=2;
+
+      public static int discount;
+
+      InterceptedField rateField;
+
+      InterceptedField discountField;
+
+      InterceptedMethod priceMethod;
+
+      int computed;
+
+      public int price(int quantity) throws Throwable {
+         computed++;
+         return quantity*rateField.getInt(this);
+      }
+
+      public int discounted(int quantity) throws Throwable {
+         computed++;
+         return quantity*rate-discountField.getInt(this);
+      }
+
+      /** calls {@link #price(int)} through its memoizing interceptor */
+      public int total(int quantity) throws Throwable {
+         computed++;
+         return ((Integer)priceMethod.invoke(
+                    this,new Object[] {Integer.valueOf(quantity)}))
+            .intValue()+1;
+      }
+
+   }
+
+   private final MemoizingInterceptor memoizer=new MemoizingInterceptor(100);
+
+   private final InvalidatingFieldInterceptor invalidator=
+      new InvalidatingFieldInterceptor();
+
+   private final Prices prices=new Prices();
+
+   private final InterceptedMethod total;
+
+   public MemoizingInterceptorTest() throws Exception {
+      prices.rateField=InterceptedField.create(
+         Prices.class.getField("rate"),
+         new FieldInterceptor[] {invalidator});
+      prices.discountField=InterceptedField.create(
+         Prices.class.getField("discount"),
+         new FieldInterceptor[] {invalidator});
+      Prices.discount=0;
+      prices.priceMethod=memoized(
+         Prices.class.getMethod("price",int.class));
+      total=memoized(Prices.class.getMethod("total",int.class));
+   }
+
+   private InterceptedMethod memoized(Method method) {
+      return InterceptedMethod.create(
+         method,new MethodInterceptor[] {memoizer});
+   }
+
+   private int price(int quantity) throws Throwable {
+      return ((Integer)prices.priceMethod.invoke(
+                 prices,new Object[] {Integer.valueOf(quantity)}))
+         .intValue();
+   }
+
+   private int total(int quantity) throws Throwable {
+      return ((Integer)total.invoke(
+                 prices,new Object[] {Integer.valueOf(quantity)}))
+         .intValue();
+   }
+
+   public void testResultsAreMemoized() throws Throwable {
+      assertEquals(6,price(3));
+      assertEquals(6,price(3));
+      assertEquals(1,prices.computed);
+      assertEquals(1,memoizer.hitCount());
+   }
+
+   public void testFieldWriteInvalidatesTheResult() throws Throwable {
+      assertEquals(6,price(3));
+      prices.rateField.setInt(prices,5);
+      assertEquals(15,price(3));
+      assertEquals(2,prices.computed);
+   }
+
+   public void testNestedHitPassesItsDependencies() throws Throwable {
+      // price(3) is memoized first, and is a hit inside total(3)
+      assertEquals(6,price(3));
+      assertEquals(7,total(3));
+      assertEquals(7,total(3));
+      assertEquals(2,prices.computed);
+      prices.rateField.setInt(prices,5);
+      assertEquals(16,total(3));
+   }
+
+   public void testNestedMissRecordsDependencies() throws Throwable {
+      assertEquals(7,total(3));
+      prices.rateField.setInt(prices,5);
+      assertEquals(16,total(3));
+      assertEquals(15,price(3));
+   }
+
+   public void testStaticFieldWritesInvalidateTheResult() throws Throwable {
+      InterceptedMethod discounted=memoized(
+         Prices.class.getMethod("discounted",int.class));
+      Object[] three={Integer.valueOf(3)};
+      assertEquals(6,discounted.invoke(prices,three));
+      // the object given to the write of a static field is ignored
+      prices.discountField.setInt(null,1);
+      assertEquals(5,discounted.invoke(prices,three));
+      prices.discountField.setInt(new Prices(),2);
+      assertEquals(4,discounted.invoke(prices,three));
+      assertEquals(3,prices.computed);
+      assertEquals(1,invalidator.dependencyCount());
+   }
+
+}
@@ -0,0 +1,165 @@
+
+package org.aopalliance.intercept.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.aopalliance.aop.AspectException;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.support.InterceptedMethod;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Coalesces the concurrent calls of a single-key method into bulk
+ * calls. */
+
+public class BatchingInterceptorTest {
+
+   public static final class Service {
+
+      final CountDownLatch gate=new CountDownLatch(1);
+
+      final List<String> loaded=
+         Collections.synchronizedList(new ArrayList<String>());
+
+      final List<List<String>> batches=
+         Collections.synchronizedList(new ArrayList<List<String>>());
+
+      public String load(String id) throws InterruptedException {
+         if(id.equals("slow")) {
+            gate.await();
+         }
+         loaded.add(id);
+         return "value of "+id;
+      }
+
+      public Map<String,String> loadAll(List<String> ids) {
+         batches.add(new ArrayList<String>(ids));
+         Map<String,String> values=new HashMap<String,String>();
+         for(String id : ids) {
+            if(id.equals("fail")) {
+               throw new IllegalStateException("cannot load "+ids);
+            }
+            if(!id.equals("missing")) {
+               values.put(id,"bulk value of "+id);
+            }
+         }
+         return values;
+      }
+
+      public String join(String first, String second) {
+         return first+second;
+      }
+
+      public String notBulk(String id) {
+         return id;
+      }
+
+   }
+
+   private final Service service=new Service();
+
+   private final InterceptedMethod load;
+
+   public BatchingInterceptorTest() throws Exception {
+      BulkLoader loader=BulkLoader.forMethod(
+         Service.class.getMethod("loadAll",List.class));
+      load=InterceptedMethod.create(
+         Service.class.getMethod("load",String.class),
+         new MethodInterceptor[] {new BatchingInterceptor(loader,10)});
+   }
+
+   private Object load(String id) throws Throwable {
+      return load.invoke(service,new Object[] {id});
+   }
+
+   /**
+    * Starts concurrent calls, and returns their results (as strings)
+    * or exceptions by key. */
+   private Map<String,Object> loadConcurrently(String... ids)
+      throws Exception {
+      final Map<String,Object> results=
+         new ConcurrentHashMap<String,Object>();
+      List<Thread> threads=new ArrayList<Thread>();
+      for(final String id : ids) {
+         Thread thread=new Thread(new Runnable() {
+               public void run() {
+                  try {
+                     results.put(id,String.valueOf(load(id)));
+                  } catch(Throwable t) {
+                     results.put(id,t);
+                  }
+               }
+            });
+         thread.start();
+         threads.add(thread);
+         if(id.equals("slow")) {
+            // let it become the dispatcher
+            while(thread.getState()!=Thread.State.WAITING) {
+               Thread.sleep(1);
+            }
+         }
+      }
+      Thread.sleep(100);
+      service.gate.countDown();
+      for(Thread thread : threads) {
+         thread.join(5000);
+      }
+      return results;
+   }
+
+   public void testSingleCallsProceed() throws Throwable {
+      assertEquals("value of a",load("a"));
+      assertEquals("[a]",service.loaded.toString());
+      assertEquals(0,service.batches.size());
+   }
+
+   public void testConcurrentCallsAreLoadedInBulk() throws Exception {
+      Map<String,Object> results=
+         loadConcurrently("slow","a","b","c","missing");
+      assertEquals("value of slow",results.get("slow"));
+      assertEquals("bulk value of a",results.get("a"));
+      assertEquals("bulk value of c",results.get("c"));
+      assertEquals("null",results.get("missing"));
+      assertEquals("[slow]",service.loaded.toString());
+      assertEquals(1,service.batches.size());
+      assertEquals(4,service.batches.get(0).size());
+   }
+
+   public void testBulkFailuresAreThrownByAllTheCalls() throws Exception {
+      Map<String,Object> results=loadConcurrently("slow","a","fail");
+      assertEquals("value of slow",results.get("slow"));
+      assertTrue("failed",results.get("a") instanceof IllegalStateException);
+      assertSame(results.get("a"),results.get("fail"));
+   }
+
+   public void testOtherMethodsProceed() throws Throwable {
+      InterceptedMethod join=InterceptedMethod.create(
+         Service.class.getMethod("join",String.class,String.class),
+         new MethodInterceptor[] {new BatchingInterceptor(
+               new BulkLoader() {
+                  public Object loadAll(Object target, List<Object> keys) {
+                     throw new AssertionError("loaded "+keys);
+                  }
+               },10)});
+      assertEquals("ab",join.invoke(service,new Object[] {"a","b"}));
+   }
+
+   public void testBulkMethodsAreChecked() throws Exception {
+      final Method notBulk=Service.class.getMethod("notBulk",String.class);
+      assertThrows(AspectException.class,new Callable<Object>() {
+            public Object call() {
+               return BulkLoader.forMethod(notBulk);
+            }
+         });
+   }
+
+}
@@ -0,0 +1,142 @@
+
+package org.aopalliance.intercept.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aopalliance.intercept.Interceptor;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.support.InterceptedAsyncMethod;
+import org.aopalliance.intercept.support.InterceptedMethod;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Checks that the permits of the blocking methods bound the submitted
+ * tasks, and are held until the asynchronous calls complete. */
+
+public class OffloadingInterceptorTest {
+
+   public static final class Service {
+
+      final List<CompletableFuture<String>> pending=
+         new ArrayList<CompletableFuture<String>>();
+
+      @Blocking(permits=1)
+      public CompletionStage<String> fetch() {
+         CompletableFuture<String> result=new CompletableFuture<String>();
+         pending.add(result);
+         return result;
+      }
+
+      @Blocking(permits=2)
+      public void run() {
+      }
+
+   }
+
+   /**
+    * Queues the tasks, and runs them on demand. */
+   static final class QueueExecutor implements Executor {
+
+      final List<Runnable> tasks=new ArrayList<Runnable>();
+
+      public synchronized void execute(Runnable task) {
+         tasks.add(task);
+      }
+
+      synchronized int size() {
+         return tasks.size();
+      }
+
+      void runAll() {
+         List<Runnable> queued;
+         synchronized(this) {
+            queued=new ArrayList<Runnable>(tasks);
+            tasks.clear();
+         }
+         for(Runnable task : queued) {
+            task.run();
+         }
+      }
+
+   }
+
+   private final Service service=new Service();
+
+   public void testAsyncPermitIsHeldUntilCompletion() throws Exception {
+      QueueExecutor executor=new QueueExecutor();
+      InterceptedAsyncMethod fetch=InterceptedAsyncMethod.create(
+         Service.class.getMethod("fetch"),
+         new Interceptor[] {new OffloadingInterceptor(executor,8)});
+
+      CompletableFuture<?> first=fetch.invoke(service,null)
+         .toCompletableFuture();
+      // rejected before it is submitted
+      CompletableFuture<?> second=fetch.invoke(service,null)
+         .toCompletableFuture();
+      assertEquals(1,executor.tasks.size());
+      assertRejected(second);
+
+      executor.runAll();
+      assertEquals(1,service.pending.size());
+      assertFalse("completed too early",first.isDone());
+      // the call runs, but its stage is not complete yet
+      assertRejected(fetch.invoke(service,null).toCompletableFuture());
+
+      service.pending.get(0).complete("done");
+      assertEquals("done",first.get());
+      fetch.invoke(service,null);
+      assertEquals(1,executor.tasks.size());
+   }
+
+   public void testSyncPermitBoundsTheSubmittedTasks() throws Exception {
+      QueueExecutor executor=new QueueExecutor();
+      final InterceptedMethod run=InterceptedMethod.create(
+         Service.class.getMethod("run"),new MethodInterceptor[] {
+            new OffloadingInterceptor(executor,8)});
+      final CountDownLatch done=new CountDownLatch(6);
+      final AtomicInteger failures=new AtomicInteger();
+      for(int i=0;i<6;i++) {
+         new Thread(new Runnable() {
+               public void run() {
+                  try {
+                     run.invoke(service,null);
+                  } catch(Throwable t) {
+                     failures.incrementAndGet();
+                  } finally {
+                     done.countDown();
+                  }
+               }
+            }).start();
+      }
+      // the other callers wait for a permit, without submitting
+      Thread.sleep(100);
+      assertEquals(2,executor.size());
+      while(!done.await(10,TimeUnit.MILLISECONDS)) {
+         assertTrue("too many tasks",executor.size()<=2);
+         executor.runAll();
+      }
+      assertEquals(0,failures.get());
+   }
+
+   private static void assertRejected(CompletableFuture<?> stage)
+      throws InterruptedException {
+      assertTrue("not rejected",stage.isCompletedExceptionally());
+      try {
+         stage.get();
+      } catch(ExecutionException e) {
+         assertTrue("rejected with "+e.getCause(),
+                    e.getCause() instanceof RejectedExecutionException);
+      }
+   }
+
+}
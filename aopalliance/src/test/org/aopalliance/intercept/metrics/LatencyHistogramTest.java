@@ -0,0 +1,78 @@
+
+package org.aopalliance.intercept.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Records latencies, and checks the snapshots. */
+
+public class LatencyHistogramTest {
+
+   private final LatencyHistogram histogram=new LatencyHistogram();
+
+   public void testSmallValuesAreExact() {
+      for(int i=1;i<=100;i++) {
+         histogram.record(i);
+      }
+      LatencyHistogram.Snapshot snapshot=histogram.snapshot();
+      assertEquals(100,snapshot.getCount());
+      assertEquals(50,snapshot.getP50());
+      assertEquals(100,snapshot.getMax());
+      assertEquals(50.5,snapshot.getMean());
+   }
+
+   public void testRelativeErrorIsBounded() {
+      long value=TimeUnit.MILLISECONDS.toNanos(37)+12345;
+      histogram.record(value);
+      long reported=histogram.snapshot().getValueAtPercentile(0);
+      assertTrue("reported "+reported+" for "+value,
+                 reported>=value && reported<=value*1.032);
+   }
+
+   public void testLatenciesAboveAnHourAreCappedButTheMaxIsExact() {
+      long twoHours=TimeUnit.HOURS.toNanos(2);
+      histogram.record(10);
+      histogram.record(twoHours);
+      LatencyHistogram.Snapshot snapshot=histogram.snapshot();
+      assertEquals(2,snapshot.getCount());
+      assertEquals(10,snapshot.getP50());
+      assertEquals(twoHours,snapshot.getValueAtPercentile(100));
+      assertEquals(twoHours,snapshot.getMax());
+      assertTrue("too many buckets: "+LatencyHistogram.BUCKETS,
+                 LatencyHistogram.BUCKETS<1300);
+   }
+
+   public void testSnapshotsCoverDisjointIntervals() {
+      histogram.record(5);
+      assertEquals(1,histogram.snapshot().getCount());
+      LatencyHistogram.Snapshot empty=histogram.snapshot();
+      assertEquals(0,empty.getCount());
+      assertEquals(0,empty.getP99());
+      histogram.record(7);
+      histogram.record(9);
+      assertEquals(2,histogram.snapshot().getCount());
+   }
+
+   public void testConcurrentRecordsAreAllCounted() throws Exception {
+      Thread[] threads=new Thread[4];
+      for(int i=0;i<threads.length;i++) {
+         threads[i]=new Thread(new Runnable() {
+               public void run() {
+                  for(int j=0;j<100000;j++) {
+                     histogram.record(j&1023);
+                  }
+               }
+            });
+         threads[i].start();
+      }
+      for(Thread thread : threads) {
+         thread.join();
+      }
+      LatencyHistogram.Snapshot snapshot=histogram.snapshot();
+      assertEquals(400000,snapshot.getCount());
+      assertEquals(1023,snapshot.getMax());
+   }
+
+}
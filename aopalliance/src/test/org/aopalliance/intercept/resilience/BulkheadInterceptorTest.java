@@ -0,0 +1,152 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.support.InterceptedMethod;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Limits the concurrent executions of a method that blocks until it
+ * is released. */
+
+public class BulkheadInterceptorTest {
+
+   public static final class Service {
+
+      final CountDownLatch started=new CountDownLatch(1);
+
+      public String work(CountDownLatch release) throws Exception {
+         started.countDown();
+         if(release!=null) {
+            release.await();
+         }
+         return "done";
+      }
+
+      public String fail() {
+         throw new IllegalStateException("failed");
+      }
+
+   }
+
+   private final Service service=new Service();
+
+   private final Method work;
+
+   public BulkheadInterceptorTest() throws Exception {
+      work=Service.class.getMethod("work",CountDownLatch.class);
+   }
+
+   private InterceptedMethod guarded(BulkheadInterceptor bulkhead,
+                                     Method method) {
+      return InterceptedMethod.create(
+         method,new MethodInterceptor[] {bulkhead});
+   }
+
+   /**
+    * Starts a call in another thread, and returns the holder of its
+    * result (or exception). */
+   private AtomicReference<Object> start(final InterceptedMethod method,
+                                         final CountDownLatch release) {
+      final AtomicReference<Object> result=new AtomicReference<Object>();
+      Thread thread=new Thread(new Runnable() {
+            public void run() {
+               try {
+                  result.set(method.invoke(service,
+                                           new Object[] {release}));
+               } catch(Throwable t) {
+                  result.set(t);
+               }
+            }
+         });
+      thread.start();
+      return result;
+   }
+
+   private static Object await(AtomicReference<Object> result)
+      throws InterruptedException {
+      long deadline=System.nanoTime()+TimeUnit.SECONDS.toNanos(5);
+      while(result.get()==null && System.nanoTime()<deadline) {
+         Thread.sleep(1);
+      }
+      return result.get();
+   }
+
+   public void testFullBulkheadsRejectAtOnce() throws Throwable {
+      BulkheadInterceptor bulkhead=new BulkheadInterceptor(1);
+      InterceptedMethod method=guarded(bulkhead,work);
+      CountDownLatch release=new CountDownLatch(1);
+      AtomicReference<Object> running=start(method,release);
+      service.started.await();
+      assertEquals(1,bulkhead.getConcurrentCalls(work));
+      try {
+         method.invoke(service,new Object[] {null});
+         fail("not rejected");
+      } catch(InvocationRejectedException e) {
+         assertSame(work,e.getMethod());
+      }
+      assertEquals(1,bulkhead.getRejectedCount());
+      release.countDown();
+      assertEquals("done",await(running));
+      assertEquals("done",method.invoke(service,new Object[] {null}));
+      assertEquals(0,bulkhead.getConcurrentCalls(work));
+   }
+
+   public void testWaitingCallsRunWhenAnExecutionEnds() throws Throwable {
+      BulkheadInterceptor bulkhead=
+         new BulkheadInterceptor(1,5,TimeUnit.SECONDS);
+      InterceptedMethod method=guarded(bulkhead,work);
+      CountDownLatch release=new CountDownLatch(1);
+      AtomicReference<Object> running=start(method,release);
+      service.started.await();
+      AtomicReference<Object> waiting=start(method,null);
+      Thread.sleep(50);
+      assertNull(waiting.get());
+      release.countDown();
+      assertEquals("done",await(running));
+      assertEquals("done",await(waiting));
+      assertEquals(0,bulkhead.getRejectedCount());
+   }
+
+   public void testWaitsAreBounded() throws Throwable {
+      BulkheadInterceptor bulkhead=
+         new BulkheadInterceptor(1,50,TimeUnit.MILLISECONDS);
+      InterceptedMethod method=guarded(bulkhead,work);
+      CountDownLatch release=new CountDownLatch(1);
+      start(method,release);
+      service.started.await();
+      long start=System.nanoTime();
+      try {
+         method.invoke(service,new Object[] {null});
+         fail("not rejected");
+      } catch(InvocationRejectedException e) {
+         assertTrue("waited",System.nanoTime()-start
+                    >=TimeUnit.MILLISECONDS.toNanos(50));
+      } finally {
+         release.countDown();
+      }
+   }
+
+   public void testFailedExecutionsAreReleased() throws Throwable {
+      BulkheadInterceptor bulkhead=new BulkheadInterceptor(1);
+      Method fail=Service.class.getMethod("fail");
+      InterceptedMethod method=guarded(bulkhead,fail);
+      for(int i=0;i<2;i++) {
+         try {
+            method.invoke(service,null);
+            fail("no exception");
+         } catch(IllegalStateException e) {
+            assertEquals("failed",e.getMessage());
+         }
+      }
+      assertEquals(0,bulkhead.getConcurrentCalls(fail));
+      assertEquals(0,bulkhead.getRejectedCount());
+   }
+
+}
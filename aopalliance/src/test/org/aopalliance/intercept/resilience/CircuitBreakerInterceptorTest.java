@@ -0,0 +1,132 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.support.InterceptedMethod;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Drives a circuit through its states with failing and succeeding
+ * calls. */
+
+public class CircuitBreakerInterceptorTest {
+
+   public static final class Service {
+      public int call(boolean fail) {
+         if(fail) {
+            throw new IllegalStateException("failed");
+         }
+         return 1;
+      }
+   }
+
+   private final Service service=new Service();
+
+   private final Method method;
+
+   private final CircuitBreakerInterceptor breaker=
+      new CircuitBreakerInterceptor(4,50,50,TimeUnit.MILLISECONDS);
+
+   private final InterceptedMethod intercepted;
+
+   public CircuitBreakerInterceptorTest() throws Exception {
+      method=Service.class.getMethod("call",boolean.class);
+      intercepted=InterceptedMethod.create(
+         method,new MethodInterceptor[] {breaker});
+   }
+
+   private Object call(boolean fail) throws Throwable {
+      return intercepted.invoke(service,new Object[] {Boolean.valueOf(fail)});
+   }
+
+   private void fail() {
+      assertThrows(IllegalStateException.class,new Callable<Object>() {
+            public Object call() throws Exception {
+               try {
+                  return CircuitBreakerInterceptorTest.this.call(true);
+               } catch(Exception e) {
+                  throw e;
+               } catch(Throwable t) {
+                  throw new AssertionError(t);
+               }
+            }
+         });
+   }
+
+   private void reject() {
+      assertThrows(InvocationRejectedException.class,new Callable<Object>() {
+            public Object call() throws Exception {
+               try {
+                  return CircuitBreakerInterceptorTest.this.call(false);
+               } catch(Exception e) {
+                  throw e;
+               } catch(Throwable t) {
+                  throw new AssertionError(t);
+               }
+            }
+         });
+   }
+
+   public void testOpensOnlyWhenTheWindowIsFull() throws Throwable {
+      call(false);
+      fail();
+      fail();
+      assertEquals(CircuitBreakerInterceptor.State.CLOSED,
+                   breaker.getState(method));
+      fail();
+      assertEquals(CircuitBreakerInterceptor.State.OPEN,
+                   breaker.getState(method));
+      reject();
+      assertEquals(1,breaker.getRejectedCount());
+   }
+
+   public void testOverwrittenOutcomesAreCounted() throws Throwable {
+      for(int i=0;i<4;i++) {
+         call(false);
+      }
+      // one failure in the last four calls
+      fail();
+      assertEquals(CircuitBreakerInterceptor.State.CLOSED,
+                   breaker.getState(method));
+      // the failure is overwritten by a success
+      for(int i=0;i<4;i++) {
+         call(false);
+      }
+      fail();
+      assertEquals(CircuitBreakerInterceptor.State.CLOSED,
+                   breaker.getState(method));
+      // two failures in the last four calls
+      fail();
+      assertEquals(CircuitBreakerInterceptor.State.OPEN,
+                   breaker.getState(method));
+   }
+
+   public void testTrialCallsCloseOrReopenTheCircuit() throws Throwable {
+      for(int i=0;i<4;i++) {
+         fail();
+      }
+      assertEquals(CircuitBreakerInterceptor.State.OPEN,
+                   breaker.getState(method));
+      Thread.sleep(60);
+      fail();
+      assertEquals(CircuitBreakerInterceptor.State.OPEN,
+                   breaker.getState(method));
+      reject();
+      Thread.sleep(60);
+      assertEquals(1,((Integer)call(false)).intValue());
+      assertEquals(CircuitBreakerInterceptor.State.CLOSED,
+                   breaker.getState(method));
+      // the window starts empty again
+      fail();
+      fail();
+      fail();
+      assertEquals(CircuitBreakerInterceptor.State.CLOSED,
+                   breaker.getState(method));
+   }
+
+}
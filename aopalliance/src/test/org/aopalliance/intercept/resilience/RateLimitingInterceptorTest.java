@@ -0,0 +1,82 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.support.InterceptedMethod;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Limits the rate of the calls of two methods. */
+
+public class RateLimitingInterceptorTest {
+
+   public static final class Service {
+
+      public String first() {
+         return "first";
+      }
+
+      public String second() {
+         return "second";
+      }
+
+   }
+
+   private final Service service=new Service();
+
+   private InterceptedMethod limited(RateLimitingInterceptor limiter,
+                                     String name) throws Exception {
+      return InterceptedMethod.create(
+         Service.class.getMethod(name),
+         new MethodInterceptor[] {limiter});
+   }
+
+   public void testBurstsAreLimited() throws Throwable {
+      RateLimitingInterceptor limiter=new RateLimitingInterceptor(1,3);
+      InterceptedMethod first=limited(limiter,"first");
+      for(int i=0;i<3;i++) {
+         assertEquals("first",first.invoke(service,null));
+      }
+      try {
+         first.invoke(service,null);
+         fail("not rejected");
+      } catch(InvocationRejectedException e) {
+         assertEquals("first",e.getMethod().getName());
+      }
+      assertEquals(1,limiter.getRejectedCount());
+      // each method has its own bucket
+      assertEquals("second",limited(limiter,"second").invoke(service,null));
+   }
+
+   public void testWaitingCallsAreSpacedByTheRate() throws Throwable {
+      RateLimitingInterceptor limiter=
+         new RateLimitingInterceptor(20,1,1,TimeUnit.SECONDS);
+      InterceptedMethod first=limited(limiter,"first");
+      long start=System.nanoTime();
+      for(int i=0;i<4;i++) {
+         assertEquals("first",first.invoke(service,null));
+      }
+      // 3 intervals of 50 ms after the first call
+      long elapsed=System.nanoTime()-start;
+      assertTrue("elapsed "+elapsed,
+                 elapsed>=TimeUnit.MILLISECONDS.toNanos(140));
+      assertEquals(0,limiter.getRejectedCount());
+   }
+
+   public void testWaitsAreBounded() throws Throwable {
+      RateLimitingInterceptor limiter=
+         new RateLimitingInterceptor(1,1,100,TimeUnit.MILLISECONDS);
+      InterceptedMethod first=limited(limiter,"first");
+      assertEquals("first",first.invoke(service,null));
+      try {
+         first.invoke(service,null);
+         fail("not rejected");
+      } catch(InvocationRejectedException e) {
+         assertEquals(1,limiter.getRejectedCount());
+      }
+   }
+
+}
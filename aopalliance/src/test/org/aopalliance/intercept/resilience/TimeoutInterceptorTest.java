@@ -0,0 +1,139 @@
+
+package org.aopalliance.intercept.resilience;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.support.InterceptedMethod;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Enforces the deadlines of interruptible, busy and nested calls. */
+
+public class TimeoutInterceptorTest {
+
+   public static final class Service {
+
+      final AtomicInteger innerCalls=new AtomicInteger();
+
+      InterceptedMethod inner;
+
+      long innerRemaining;
+
+      @Timeout(50)
+      public String sleep() throws InterruptedException {
+         Thread.sleep(5000);
+         return "slept";
+      }
+
+      @Timeout(1000)
+      public String quick() {
+         return "quick";
+      }
+
+      /** ignores the interrupts */
+      @Timeout(20)
+      public String spin() {
+         spin(60);
+         return "spun";
+      }
+
+      /** calls {@link #inner()} after the given time */
+      @Timeout(500)
+      public Object outer(long delayMillis) throws Throwable {
+         spin(delayMillis);
+         return inner.invoke(this,null);
+      }
+
+      public String inner() {
+         innerCalls.incrementAndGet();
+         innerRemaining=TimeoutInterceptor.remainingNanos();
+         return "inner";
+      }
+
+      static void spin(long millis) {
+         long end=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(millis);
+         while(System.nanoTime()-end<0) {
+            Thread.onSpinWait();
+         }
+      }
+
+   }
+
+   private final TimeoutInterceptor interceptor=new TimeoutInterceptor();
+
+   private final Service service=new Service();
+
+   public TimeoutInterceptorTest() throws Exception {
+      service.inner=intercepted("inner");
+   }
+
+   private InterceptedMethod intercepted(String name,
+                                         Class<?>... parameters)
+      throws Exception {
+      return InterceptedMethod.create(
+         Service.class.getMethod(name,parameters),
+         new MethodInterceptor[] {interceptor});
+   }
+
+   public void testLateCallsAreInterrupted() throws Throwable {
+      long start=System.nanoTime();
+      try {
+         intercepted("sleep").invoke(service,null);
+         fail("no timeout");
+      } catch(DeadlineExceededException e) {
+         assertEquals("sleep",e.getMethod().getName());
+         assertTrue("cause "+e.getCause(),
+                    e.getCause() instanceof InterruptedException);
+      }
+      assertTrue("interrupted late",System.nanoTime()-start
+                 <TimeUnit.SECONDS.toNanos(2));
+      assertFalse("interrupt status kept",Thread.interrupted());
+   }
+
+   public void testTimelyCallsAreNotInterrupted() throws Throwable {
+      assertEquals("quick",intercepted("quick").invoke(service,null));
+      Thread.sleep(100);
+      assertFalse("interrupted",Thread.interrupted());
+      assertEquals(TimeoutInterceptor.NO_DEADLINE,
+                   TimeoutInterceptor.remainingNanos());
+   }
+
+   public void testLateCallsAreDetectedWhenTheyReturn() throws Throwable {
+      try {
+         intercepted("spin").invoke(service,null);
+         fail("no timeout");
+      } catch(DeadlineExceededException e) {
+         assertNull(e.getCause());
+      }
+      assertFalse("interrupt status kept",Thread.interrupted());
+   }
+
+   public void testNestedCallsInheritTheDeadline() throws Throwable {
+      InterceptedMethod outer=intercepted("outer",long.class);
+      assertEquals("inner",outer.invoke(service,
+                                        new Object[] {Long.valueOf(0)}));
+      assertTrue("remaining "+service.innerRemaining,
+                 service.innerRemaining>0
+                 && service.innerRemaining
+                 <=TimeUnit.MILLISECONDS.toNanos(500));
+      assertEquals(TimeoutInterceptor.NO_DEADLINE,
+                   TimeoutInterceptor.remainingNanos());
+   }
+
+   public void testNestedCallsFailOnceTheDeadlineIsPassed()
+      throws Throwable {
+      InterceptedMethod outer=intercepted("outer",long.class);
+      try {
+         outer.invoke(service,new Object[] {Long.valueOf(600)});
+         fail("no timeout");
+      } catch(DeadlineExceededException e) {
+         assertEquals("outer",e.getMethod().getName());
+      }
+      assertEquals(0,service.innerCalls.get());
+      assertFalse("interrupt status kept",Thread.interrupted());
+   }
+
+}
@@ -0,0 +1,144 @@
+
+package org.aopalliance.intercept.support;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Proceeds chains of interceptors on arrays of arguments. */
+
+public class ChainedMethodInvocationTest {
+
+   public static final class Service {
+
+      public String concat(String first, String second) {
+         return first+second;
+      }
+
+      public static String now() {
+         return "now";
+      }
+
+      public void fail() throws IOException {
+         throw new IOException("failed");
+      }
+
+   }
+
+   /**
+    * Logs its name around the rest of the chain. */
+   static final class Logger implements MethodInterceptor {
+
+      final String name;
+
+      final List<String> log;
+
+      Logger(String name, List<String> log) {
+         this.name=name;
+         this.log=log;
+      }
+
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         log.add("before "+name);
+         try {
+            return invocation.proceed();
+         } finally {
+            log.add("after "+name);
+         }
+      }
+
+   }
+
+   private final List<String> log=new ArrayList<String>();
+
+   private final Service service=new Service();
+
+   private Object proceed(String name, Object target, Object[] arguments,
+                          MethodInterceptor... chain) throws Throwable {
+      Method method=null;
+      for(Method candidate : Service.class.getMethods()) {
+         if(candidate.getName().equals(name)) {
+            method=candidate;
+         }
+      }
+      return new ChainedMethodInvocation(target,method,arguments,chain)
+         .proceed();
+   }
+
+   public void testInterceptorsRunFromTheOutermost() throws Throwable {
+      Object result=proceed("concat",service,new Object[] {"a","b"},
+                            new Logger("outer",log),
+                            new Logger("inner",log));
+      assertEquals("ab",result);
+      assertEquals(Arrays.asList("before outer","before inner",
+                                 "after inner","after outer"),log);
+   }
+
+   public void testInterceptorsSeeAndChangeTheArguments()
+      throws Throwable {
+      MethodInterceptor swap=new MethodInterceptor() {
+            public Object invoke(MethodInvocation invocation)
+               throws Throwable {
+               Object[] arguments=invocation.getArguments();
+               Object first=arguments[0];
+               arguments[0]=arguments[1];
+               arguments[1]=first;
+               assertSame(service,invocation.getThis());
+               assertEquals("concat",invocation.getMethod().getName());
+               return invocation.proceed();
+            }
+         };
+      assertEquals("ba",proceed("concat",service,new Object[] {"a","b"},
+                                swap));
+   }
+
+   public void testAnInterceptorCanProceedSeveralTimes()
+      throws Throwable {
+      MethodInterceptor twice=new MethodInterceptor() {
+            public Object invoke(MethodInvocation invocation)
+               throws Throwable {
+               return (String)invocation.proceed()
+                  +invocation.proceed();
+            }
+         };
+      assertEquals("abab",proceed("concat",service,
+                                  new Object[] {"a","b"},
+                                  twice,new Logger("inner",log)));
+      assertEquals(Arrays.asList("before inner","after inner",
+                                 "before inner","after inner"),log);
+   }
+
+   public void testStaticMethodsTakeNoTarget() throws Throwable {
+      assertEquals("now",proceed("now",null,null,
+                                 new Logger("only",log)));
+      assertEquals("now",proceed("now",null,null));
+   }
+
+   public void testTargetExceptionsAreRethrownAsIs() throws Throwable {
+      IOException exception=assertThrows(
+         IOException.class,new Callable<Object>() {
+            public Object call() throws Exception {
+               try {
+                  return proceed("fail",service,null,
+                                 new Logger("only",log));
+               } catch(Exception e) {
+                  throw e;
+               } catch(Throwable t) {
+                  throw new AssertionError(t);
+               }
+            }
+         });
+      assertEquals("failed",exception.getMessage());
+      assertEquals(Arrays.asList("before only","after only"),log);
+   }
+
+}
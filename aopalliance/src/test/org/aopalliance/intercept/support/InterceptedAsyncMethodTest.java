@@ -0,0 +1,186 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.aopalliance.intercept.AsyncMethodInterceptor;
+import org.aopalliance.intercept.AsyncMethodInvocation;
+import org.aopalliance.intercept.Interceptor;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Calls asynchronous methods through chains of synchronous and
+ * asynchronous interceptors. */
+
+public class InterceptedAsyncMethodTest {
+
+   /**
+    * Returns the pending futures of its calls, or fails when asked
+    * to. */
+   public static final class Service {
+
+      final List<CompletableFuture<String>> calls=
+         new ArrayList<CompletableFuture<String>>();
+
+      public CompletableFuture<String> fetch(String key) {
+         if(key.equals("throw")) {
+            throw new IllegalStateException("thrown");
+         }
+         CompletableFuture<String> call=new CompletableFuture<String>();
+         calls.add(call);
+         return call;
+      }
+
+      public String name() {
+         return "service";
+      }
+
+   }
+
+   /**
+    * Logs the start and the completion of the calls. */
+   static final class Tracer implements AsyncMethodInterceptor {
+
+      final List<String> log=new ArrayList<String>();
+
+      public CompletionStage<?> invokeAsync(
+         final AsyncMethodInvocation invocation) {
+         log.add("start "+invocation.getArguments()[0]);
+         return invocation.proceedAsync().whenComplete(
+            new BiConsumer<Object,Throwable>() {
+               public void accept(Object result, Throwable failure) {
+                  log.add("end "+(failure==null?result
+                                  :failure.getClass().getSimpleName()));
+               }
+            });
+      }
+
+   }
+
+   /**
+    * Proceeds again, once, when the call fails. */
+   static final class Retrier implements AsyncMethodInterceptor {
+
+      public CompletionStage<?> invokeAsync(
+         final AsyncMethodInvocation invocation) {
+         return invocation.proceedAsync().handle(
+            new BiFunction<Object,Throwable,CompletionStage<?>>() {
+               public CompletionStage<?> apply(Object result,
+                                               Throwable failure) {
+                  if(failure==null) {
+                     return CompletableFuture.completedFuture(result);
+                  }
+                  return invocation.proceedAsync();
+               }
+            }).thenCompose(
+               new Function<CompletionStage<?>,CompletionStage<Object>>() {
+                  @SuppressWarnings("unchecked")
+                  public CompletionStage<Object> apply(
+                     CompletionStage<?> stage) {
+                     return (CompletionStage<Object>)stage;
+                  }
+               });
+      }
+
+   }
+
+   private final Service service=new Service();
+
+   private final Method fetch;
+
+   public InterceptedAsyncMethodTest() throws Exception {
+      fetch=Service.class.getMethod("fetch",String.class);
+   }
+
+   private CompletionStage<?> fetch(String key, Interceptor... chain) {
+      return InterceptedAsyncMethod.create(fetch,chain)
+         .invoke(service,new Object[] {key});
+   }
+
+   private static Throwable failureOf(CompletionStage<?> stage)
+      throws InterruptedException {
+      try {
+         stage.toCompletableFuture().get();
+      } catch(ExecutionException e) {
+         return e.getCause();
+      }
+      throw new AssertionError("the stage did not fail");
+   }
+
+   public void testInterceptorsRunAtCompletion() throws Exception {
+      Tracer tracer=new Tracer();
+      CompletionStage<?> stage=fetch("key",tracer);
+      assertEquals(1,tracer.log.size());
+      assertFalse("completed",stage.toCompletableFuture().isDone());
+      service.calls.get(0).complete("value");
+      assertEquals("value",stage.toCompletableFuture().get());
+      assertEquals("[start key, end value]",tracer.log.toString());
+   }
+
+   public void testSynchronousInterceptorsGetTheStage() throws Exception {
+      final List<Object> results=new ArrayList<Object>();
+      MethodInterceptor sync=new MethodInterceptor() {
+            public Object invoke(MethodInvocation invocation)
+               throws Throwable {
+               Object stage=invocation.proceed();
+               results.add(stage);
+               return stage;
+            }
+         };
+      CompletionStage<?> stage=fetch("key",sync,new Tracer());
+      assertEquals(1,results.size());
+      assertTrue("stage",results.get(0) instanceof CompletionStage);
+      service.calls.get(0).complete("value");
+      assertEquals("value",stage.toCompletableFuture().get());
+   }
+
+   public void testInvocationsCanBeProceededFromCallbacks()
+      throws Exception {
+      Tracer tracer=new Tracer();
+      CompletionStage<?> stage=fetch("key",new Retrier(),tracer);
+      service.calls.get(0).completeExceptionally(
+         new IllegalStateException("first"));
+      assertEquals(2,service.calls.size());
+      service.calls.get(1).complete("second");
+      assertEquals("second",stage.toCompletableFuture().get());
+      assertEquals("[start key, end IllegalStateException, start key, "
+                   +"end second]",tracer.log.toString());
+   }
+
+   public void testFailuresAreReportedByTheStage() throws Exception {
+      Throwable failure=failureOf(fetch("throw",new Tracer()));
+      assertEquals("thrown",failure.getMessage());
+
+      MethodInterceptor wrong=new MethodInterceptor() {
+            public Object invoke(MethodInvocation invocation) {
+               return "not a stage";
+            }
+         };
+      assertTrue("ClassCastException",
+                 failureOf(fetch("key",wrong))
+                 instanceof ClassCastException);
+   }
+
+   public void testOnlyAsynchronousMethodsAreAccepted() throws Exception {
+      final Method name=Service.class.getMethod("name");
+      assertThrows(IllegalArgumentException.class,new Callable<Object>() {
+            public Object call() {
+               return InterceptedAsyncMethod.create(
+                  name,new Interceptor[0]);
+            }
+         });
+   }
+
+}
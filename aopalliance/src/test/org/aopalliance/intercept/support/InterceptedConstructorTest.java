@@ -0,0 +1,160 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.aopalliance.intercept.ConstructorInterceptor;
+import org.aopalliance.intercept.ConstructorInvocation;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Creates objects through the constructor interception engines. */
+
+public class InterceptedConstructorTest {
+
+   public static final class Point {
+
+      final int x;
+      final String label;
+
+      public Point(int x, String label) {
+         this.x=x;
+         this.label=label;
+      }
+
+   }
+
+   /**
+    * Upper-cases the label, and records the invocations. */
+   static final class Upper implements ConstructorInterceptor {
+
+      final List<ConstructorInvocation> invocations=
+         new ArrayList<ConstructorInvocation>();
+
+      public Object construct(ConstructorInvocation invocation)
+         throws Throwable {
+         invocations.add(invocation);
+         Object[] arguments=invocation.getArguments();
+         arguments[1]=((String)arguments[1]).toUpperCase();
+         return invocation.proceed();
+      }
+
+   }
+
+   /**
+    * Returns a shared instance for the empty labels, without calling
+    * the constructor, and records the invocations. */
+   static final class Substitute implements ConstructorInterceptor {
+
+      final Point empty=new Point(0,"");
+
+      final List<ConstructorInvocation> invocations=
+         new ArrayList<ConstructorInvocation>();
+
+      public Object construct(ConstructorInvocation invocation)
+         throws Throwable {
+         invocations.add(invocation);
+         if(((String)invocation.getArguments()[1]).isEmpty()) {
+            return empty;
+         }
+         return invocation.proceed();
+      }
+
+   }
+
+   private final Constructor<?> constructor;
+
+   private final Upper upper=new Upper();
+
+   public InterceptedConstructorTest() throws Exception {
+      constructor=Point.class.getConstructor(int.class,String.class);
+   }
+
+   private static Point create(InterceptedConstructor intercepted,
+                               int x, String label) throws Throwable {
+      return (Point)intercepted.newInstance(
+         new Object[] {Integer.valueOf(x),label});
+   }
+
+   public void testDirectConstruction() throws Throwable {
+      Point point=create(InterceptedConstructor.create(
+                            constructor,new ConstructorInterceptor[0]),
+                         1,"a");
+      assertEquals(1,point.x);
+      assertEquals("a",point.label);
+   }
+
+   public void testInterceptorsSeeAndChangeTheArguments() throws Throwable {
+      for(ConstructorInterceptor[] chain : new ConstructorInterceptor[][] {
+            {upper},{upper,upper}}) {
+         Point point=create(InterceptedConstructor.create(constructor,chain),
+                            2,"b");
+         assertEquals(2,point.x);
+         assertEquals("B",point.label);
+      }
+      assertSame(constructor,upper.invocations.get(0).getStaticPart());
+   }
+
+   public void testPooledInvocationsAreRecycled() throws Throwable {
+      InterceptedConstructor pooled=InterceptedConstructor.createPooled(
+         constructor,new ConstructorInterceptor[] {upper});
+      Point first=create(pooled,1,"x");
+      Point second=create(pooled,2,"y");
+      assertNotSame(first,second);
+      assertEquals("Y",second.label);
+      assertSame(upper.invocations.get(0),upper.invocations.get(1));
+   }
+
+   public void testInterceptorsCanSubstituteTheInstance()
+      throws Throwable {
+      Substitute substitute=new Substitute();
+      InterceptedConstructor intercepted=InterceptedConstructor.create(
+         constructor,new ConstructorInterceptor[] {substitute,upper});
+      assertSame(substitute.empty,create(intercepted,1,""));
+      assertSame(substitute.empty,create(intercepted,2,""));
+      // the rest of the chain is skipped
+      assertEquals(0,upper.invocations.size());
+      assertEquals("A",create(intercepted,3,"a").label);
+   }
+
+   public void testShortCircuitedPooledInvocationsAreRecycled()
+      throws Throwable {
+      Substitute substitute=new Substitute();
+      InterceptedConstructor pooled=InterceptedConstructor.createPooled(
+         constructor,new ConstructorInterceptor[] {substitute,upper});
+      assertSame(substitute.empty,create(pooled,1,""));
+      List<ConstructorInvocation> invocations=substitute.invocations;
+      assertNull(invocations.get(0).getThis());
+      Point point=create(pooled,2,"b");
+      assertNotSame(substitute.empty,point);
+      assertEquals("B",point.label);
+      assertSame(invocations.get(0),invocations.get(1));
+      // the instance and the arguments are not kept by the pool
+      assertNull(invocations.get(1).getThis());
+      assertNull(invocations.get(1).getArguments()[1]);
+   }
+
+   public void testLatePooledProceedsFail() throws Throwable {
+      InterceptedConstructor pooled=InterceptedConstructor.createPooled(
+         constructor,new ConstructorInterceptor[] {upper});
+      create(pooled,1,"x");
+      final ConstructorInvocation late=upper.invocations.get(0);
+      assertThrows(IllegalStateException.class,new Callable<Object>() {
+            public Object call() throws Exception {
+               try {
+                  return late.proceed();
+               } catch(Exception e) {
+                  throw e;
+               } catch(Throwable t) {
+                  throw new AssertionError(t);
+               }
+            }
+         });
+      assertEquals("Y",create(pooled,2,"y").label);
+   }
+
+}
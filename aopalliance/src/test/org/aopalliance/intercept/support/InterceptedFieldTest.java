@@ -0,0 +1,172 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.Callable;
+
+import org.aopalliance.intercept.FieldAccess;
+import org.aopalliance.intercept.FieldInterceptor;
+import org.aopalliance.intercept.PrimitiveFieldAccess;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Reads and writes fields through their variable handles, with and
+ * without interceptors. */
+
+public class InterceptedFieldTest {
+
+   static final class Counter {
+      int count;
+      static long total;
+      final String name="counter";
+      String label;
+   }
+
+   /**
+    * Doubles the values of int fields, when they are read and when
+    * they are written. */
+   static final class Doubler implements FieldInterceptor {
+
+      int reads;
+
+      int writes;
+
+      public Object get(FieldAccess access) throws Throwable {
+         reads++;
+         assertEquals(FieldAccess.READ,access.getAccessType());
+         int value=((PrimitiveFieldAccess)access).proceedInt();
+         return Integer.valueOf(value*2);
+      }
+
+      public Object set(FieldAccess access) throws Throwable {
+         writes++;
+         PrimitiveFieldAccess typed=(PrimitiveFieldAccess)access;
+         assertEquals(FieldAccess.WRITE,access.getAccessType());
+         typed.setIntValueToSet(typed.getIntValueToSet()*2);
+         return access.proceed();
+      }
+
+   }
+
+   private final Counter counter=new Counter();
+
+   private static Field field(String name) throws Exception {
+      return Counter.class.getDeclaredField(name);
+   }
+
+   private static InterceptedField create(String name,
+                                          FieldInterceptor... chain)
+      throws Exception {
+      return InterceptedField.create(field(name),chain);
+   }
+
+   public void testDirectAccesses() throws Throwable {
+      InterceptedField count=create("count");
+      count.setInt(counter,3);
+      assertEquals(3,counter.count);
+      assertEquals(3,count.getInt(counter));
+      count.set(counter,Integer.valueOf(4));
+      assertEquals(Integer.valueOf(4),count.get(counter));
+
+      InterceptedField label=create("label");
+      label.set(counter,"first");
+      assertEquals("first",counter.label);
+      assertEquals("first",label.get(counter));
+   }
+
+   public void testStaticFieldsIgnoreTheTarget() throws Throwable {
+      InterceptedField total=InterceptedField.create(
+         field("total"),new FieldInterceptor[0],
+         InterceptedField.Mode.VOLATILE);
+      assertSame(InterceptedField.Mode.VOLATILE,total.getMode());
+      total.setLong(null,42L);
+      assertEquals(42L,Counter.total);
+      assertEquals(42L,total.getLong(counter));
+   }
+
+   public void testInterceptorsChangeTheValues() throws Throwable {
+      Doubler doubler=new Doubler();
+      for(InterceptedField.Mode mode : InterceptedField.Mode.values()) {
+         InterceptedField count=InterceptedField.create(
+            field("count"),new FieldInterceptor[] {doubler},mode);
+         count.setInt(counter,3);
+         assertEquals(6,counter.count);
+         assertEquals(12,count.getInt(counter));
+         count.set(counter,Integer.valueOf(1));
+         assertEquals(2,counter.count);
+         assertEquals(Integer.valueOf(4),count.get(counter));
+      }
+      assertEquals(6,doubler.reads);
+      assertEquals(6,doubler.writes);
+   }
+
+   public void testMistypedAccessesFail() throws Throwable {
+      final InterceptedField count=create("count");
+      assertThrows(ClassCastException.class,new Callable<Object>() {
+            public Object call() throws Exception {
+               try {
+                  return Long.valueOf(count.getLong(counter));
+               } catch(Exception e) {
+                  throw e;
+               } catch(Throwable t) {
+                  throw new AssertionError(t);
+               }
+            }
+         });
+      assertThrows(ClassCastException.class,new Callable<Object>() {
+            public Object call() throws Exception {
+               try {
+                  count.set(counter,"three");
+                  return null;
+               } catch(Exception e) {
+                  throw e;
+               } catch(Throwable t) {
+                  throw new AssertionError(t);
+               }
+            }
+         });
+   }
+
+   public void testFinalFieldsAreReadOnly() throws Throwable {
+      final InterceptedField name=create("name");
+      assertEquals("counter",name.get(counter));
+      assertThrows(UnsupportedOperationException.class,
+                   new Callable<Object>() {
+            public Object call() throws Exception {
+               try {
+                  name.set(counter,"other");
+                  return null;
+               } catch(Exception e) {
+                  throw e;
+               } catch(Throwable t) {
+                  throw new AssertionError(t);
+               }
+            }
+         });
+   }
+
+   public void testReadAccessesHaveNoValueToSet() throws Throwable {
+      InterceptedField label=create("label",new FieldInterceptor() {
+            public Object get(final FieldAccess access) throws Throwable {
+               assertNull(access.getValueToSet());
+               assertThrows(IllegalStateException.class,
+                            new Callable<Object>() {
+                     public Object call() {
+                        ((PrimitiveFieldAccess)access)
+                           .setValueToSet("changed");
+                        return null;
+                     }
+                  });
+               return access.proceed();
+            }
+
+            public Object set(FieldAccess access) throws Throwable {
+               return access.proceed();
+            }
+         });
+      counter.label="label";
+      assertEquals("label",label.get(counter));
+   }
+
+}
@@ -0,0 +1,104 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Calls methods through the entry points specialized on the length
+ * of their chain (none, one or several interceptors). */
+
+public class InterceptedMethodTest {
+
+   public static final class Service {
+      public int add(int first, int second) {
+         return first+second;
+      }
+   }
+
+   /**
+    * Records the invocations, and adds one to the first argument. */
+   static final class Incrementer implements MethodInterceptor {
+
+      final List<MethodInvocation> invocations=
+         new ArrayList<MethodInvocation>();
+
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         invocations.add(invocation);
+         Object[] arguments=invocation.getArguments();
+         arguments[0]=Integer.valueOf(((Integer)arguments[0]).intValue()+1);
+         return invocation.proceed();
+      }
+
+   }
+
+   private final Service service=new Service();
+
+   private final Method add;
+
+   public InterceptedMethodTest() throws Exception {
+      add=Service.class.getMethod("add",int.class,int.class);
+   }
+
+   private Object add(InterceptedMethod method) throws Throwable {
+      return method.invoke(service,
+                           new Object[] {Integer.valueOf(2),
+                                         Integer.valueOf(3)});
+   }
+
+   public void testEmptyChainCallsTheTarget() throws Throwable {
+      InterceptedMethod direct=InterceptedMethod.create(
+         add,AbstractMethodInvocation.EMPTY_CHAIN);
+      assertTrue("direct dispatcher",
+                 direct instanceof InterceptedMethod.Direct);
+      assertEquals(Integer.valueOf(5),add(direct));
+
+      MethodHandle invoker=MethodInvocationFactory.createInvoker(
+         add,AbstractMethodInvocation.EMPTY_CHAIN);
+      assertEquals(MethodType.methodType(int.class,Service.class,
+                                         int.class,int.class),
+                   invoker.type());
+      assertEquals(5,(int)invoker.invokeExact(service,2,3));
+   }
+
+   public void testSingleInterceptorProceedsToTheTarget()
+      throws Throwable {
+      Incrementer incrementer=new Incrementer();
+      MethodInterceptor[] chain={incrementer};
+      InterceptedMethod single=InterceptedMethod.create(add,chain);
+      assertTrue("single dispatcher",
+                 single instanceof InterceptedMethod.Single);
+      assertEquals(Integer.valueOf(6),add(single));
+
+      MethodHandle invoker=MethodInvocationFactory.createInvoker(
+         add,chain);
+      assertEquals(6,(int)invoker.invokeExact(service,2,3));
+      assertEquals(2,incrementer.invocations.size());
+      for(MethodInvocation invocation : incrementer.invocations) {
+         assertSame(add,invocation.getMethod());
+         assertSame(service,invocation.getThis());
+      }
+   }
+
+   public void testChainedInterceptorsRunInOrder() throws Throwable {
+      Incrementer outer=new Incrementer();
+      Incrementer inner=new Incrementer();
+      MethodInterceptor[] chain={outer,inner};
+      assertEquals(Integer.valueOf(7),
+                   add(InterceptedMethod.create(add,chain)));
+      MethodHandle invoker=MethodInvocationFactory.createInvoker(
+         add,chain);
+      assertEquals(7,(int)invoker.invokeExact(service,2,3));
+      assertEquals(2,outer.invocations.size());
+      assertEquals(2,inner.invocations.size());
+   }
+
+}
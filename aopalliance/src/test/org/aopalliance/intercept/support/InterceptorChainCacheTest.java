@@ -0,0 +1,118 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Registers methods in a chain cache, and resolves and invalidates
+ * their chains. */
+
+public class InterceptorChainCacheTest {
+
+   /**
+    * Resolves a new single-interceptor chain on each call, and counts
+    * the calls. */
+   static class CountingResolver
+      implements InterceptorChainCache.ChainResolver {
+
+      final AtomicInteger resolved=new AtomicInteger();
+
+      public MethodInterceptor[] resolve(Method method) {
+         resolved.incrementAndGet();
+         return new MethodInterceptor[] {new MethodInterceptor() {
+               public Object invoke(MethodInvocation invocation)
+                  throws Throwable {
+                  return invocation.proceed();
+               }
+            }};
+      }
+
+   }
+
+   private final CountingResolver resolver=new CountingResolver();
+
+   private final InterceptorChainCache cache=
+      new InterceptorChainCache(resolver);
+
+   public void testIdsAreDenseAndStable() throws Exception {
+      Method[] methods=String.class.getMethods();
+      assertTrue("enough methods to grow the table",methods.length>32);
+      for(int i=0;i<methods.length;i++) {
+         assertEquals(i,cache.idOf(methods[i]));
+      }
+      assertEquals(methods.length,cache.size());
+      for(int i=0;i<methods.length;i++) {
+         assertEquals(i,cache.idOf(methods[i]));
+         assertSame(methods[i],cache.getMethod(i));
+         assertNotNull(cache.getChain(i));
+      }
+      assertEquals(methods.length,cache.size());
+      assertThrows(IndexOutOfBoundsException.class,new Callable<Object>() {
+            public Object call() {
+               return cache.getChain(cache.size());
+            }
+         });
+   }
+
+   public void testChainsAreResolvedOnce() throws Exception {
+      int id=cache.idOf(Object.class.getMethod("hashCode"));
+      MethodInterceptor[] chain=cache.getChain(id);
+      assertSame(chain,cache.getChain(id));
+      assertSame(chain,cache.getChain(Object.class.getMethod("hashCode")));
+      assertEquals(1,resolver.resolved.get());
+   }
+
+   public void testInvalidateAll() throws Exception {
+      int id=cache.idOf(Object.class.getMethod("hashCode"));
+      MethodInterceptor[] chain=cache.getChain(id);
+      cache.invalidateAll();
+      assertNotSame(chain,cache.getChain(id));
+      assertEquals(2,resolver.resolved.get());
+      assertEquals(id,cache.idOf(Object.class.getMethod("hashCode")));
+   }
+
+   public void testInvalidateSelectedMethods() throws Exception {
+      int hashCode=cache.idOf(Object.class.getMethod("hashCode"));
+      int length=cache.idOf(String.class.getMethod("length"));
+      MethodInterceptor[] objectChain=cache.getChain(hashCode);
+      MethodInterceptor[] stringChain=cache.getChain(length);
+      cache.invalidate(new Predicate<Method>() {
+            public boolean test(Method method) {
+               return method.getDeclaringClass()==String.class;
+            }
+         });
+      assertSame(objectChain,cache.getChain(hashCode));
+      assertNotSame(stringChain,cache.getChain(length));
+      assertEquals(3,resolver.resolved.get());
+   }
+
+   public void testChainsResolvedDuringAnInvalidationAreNotKept()
+      throws Exception {
+      final InterceptorChainCache[] target=new InterceptorChainCache[1];
+      CountingResolver invalidating=new CountingResolver() {
+            public MethodInterceptor[] resolve(Method method) {
+               MethodInterceptor[] chain=super.resolve(method);
+               if(resolved.get()==1) {
+                  target[0].invalidateAll();
+               }
+               return chain;
+            }
+         };
+      target[0]=new InterceptorChainCache(invalidating);
+      int id=target[0].idOf(Object.class.getMethod("hashCode"));
+      MethodInterceptor[] stale=target[0].getChain(id);
+      MethodInterceptor[] chain=target[0].getChain(id);
+      assertNotSame(stale,chain);
+      assertSame(chain,target[0].getChain(id));
+      assertEquals(2,invalidating.resolved.get());
+   }
+
+}
@@ -0,0 +1,115 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Calls methods through the invocation classes generated by {@link
+ * MethodInvocationFactory}. */
+
+public class MethodInvocationFactoryTest {
+
+   public static final class Service {
+
+      public String describe(long first, int second, String third,
+                             double fourth) {
+         return first+" "+second+" "+third+" "+fourth;
+      }
+
+      public static int twice(int value) {
+         return value*2;
+      }
+
+   }
+
+   /**
+    * Records the last invocation, and proceeds it. */
+   static final class Recorder implements MethodInterceptor {
+
+      MethodInvocation invocation;
+
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         this.invocation=invocation;
+         return invocation.proceed();
+      }
+
+   }
+
+   /**
+    * Replaces the third argument, through the arguments array. */
+   static final class Replacer implements MethodInterceptor {
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         invocation.getArguments()[2]="replaced";
+         return invocation.proceed();
+      }
+   }
+
+   private final Recorder recorder=new Recorder();
+
+   private final Service service=new Service();
+
+   public void testInstanceMethodsGetAGeneratedInvocation()
+      throws Throwable {
+      Method describe=Service.class.getMethod(
+         "describe",long.class,int.class,String.class,double.class);
+      MethodHandle invoker=MethodInvocationFactory.createInvoker(
+         describe,new MethodInterceptor[] {recorder,new Replacer()});
+      String result=(String)invoker.invokeExact(service,1L,2,"three",4.5);
+      assertEquals("1 2 replaced 4.5",result);
+
+      MethodInvocation invocation=recorder.invocation;
+      assertTrue("generated invocation",
+                 invocation instanceof GeneratedMethodInvocation);
+      assertTrue("hidden class",invocation.getClass().isHidden());
+      assertSame(service,invocation.getThis());
+      assertSame(describe,invocation.getMethod());
+      assertEquals(Long.valueOf(1),invocation.getArguments()[0]);
+      assertEquals("replaced",invocation.getArguments()[2]);
+   }
+
+   public void testStaticMethodsGetAGeneratedInvocation()
+      throws Throwable {
+      Method twice=Service.class.getMethod("twice",int.class);
+      MethodHandle invoker=MethodInvocationFactory.createInvoker(
+         twice,new MethodInterceptor[] {recorder,new Recorder()});
+      assertEquals(42,(int)invoker.invokeExact(21));
+      assertTrue("generated invocation",
+                 recorder.invocation instanceof GeneratedMethodInvocation);
+      assertNull(recorder.invocation.getThis());
+   }
+
+   public void testNonPublicClassesAreSupported() throws Throwable {
+      Method apply=InternalService.class.getDeclaredMethod(
+         "apply",String.class);
+      MethodHandle invoker=MethodInvocationFactory.createInvoker(
+         apply,new MethodInterceptor[] {recorder,new Recorder()});
+      String result=(String)invoker.invoke(new InternalService(),"value");
+      assertEquals("<value>",result);
+      assertTrue("generated invocation",
+                 recorder.invocation instanceof GeneratedMethodInvocation);
+   }
+
+   public void testInvocationsAreNotShared() throws Throwable {
+      Method twice=Service.class.getMethod("twice",int.class);
+      MethodHandle invoker=MethodInvocationFactory.createInvoker(
+         twice,new MethodInterceptor[] {recorder,new Recorder()});
+      assertEquals(2,(int)invoker.invokeExact(1));
+      MethodInvocation first=recorder.invocation;
+      assertEquals(4,(int)invoker.invokeExact(2));
+      assertNotSame(first,recorder.invocation);
+      assertEquals(Integer.valueOf(1),first.getArguments()[0]);
+   }
+
+}
+
+class InternalService {
+   String apply(String value) {
+      return "<"+value+">";
+   }
+}
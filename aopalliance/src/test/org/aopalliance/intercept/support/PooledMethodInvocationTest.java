@@ -0,0 +1,213 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Checks when the invocations of a pooled method are recycled. */
+
+public class PooledMethodInvocationTest {
+
+   public static final class Service {
+
+      InterceptedMethod countdown;
+
+      public String echo(String value) {
+         return value;
+      }
+
+      /** calls itself through its pooled intercepted method */
+      public String countdown(int n) throws Throwable {
+         if(n==0) {
+            return "0";
+         }
+         return n+(String)countdown.invoke(
+            this,new Object[] {Integer.valueOf(n-1)});
+      }
+
+   }
+
+   /**
+    * Checks that the arguments of the invocations are not changed by
+    * the nested calls. */
+   static final class ArgumentChecker implements MethodInterceptor {
+
+      int calls;
+
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         calls++;
+         Object argument=invocation.getArguments()[0];
+         Object result=invocation.proceed();
+         assertSame(argument,invocation.getArguments()[0]);
+         return result;
+      }
+
+   }
+
+   /**
+    * Records the invocations, and proceeds them (or returns a constant
+    * result, or retains them). */
+   static final class Recorder implements MethodInterceptor {
+
+      final List<MethodInvocation> invocations=
+         new ArrayList<MethodInvocation>();
+
+      boolean proceed=true;
+
+      boolean retain;
+
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         invocations.add(invocation);
+         if(retain) {
+            ((PooledJoinpoint)invocation).retain();
+         }
+         return proceed?invocation.proceed():"cached";
+      }
+
+   }
+
+   private final Service service=new Service();
+
+   private final Recorder recorder=new Recorder();
+
+   private final InterceptedMethod pooled;
+
+   public PooledMethodInvocationTest() throws Exception {
+      Method echo=Service.class.getMethod("echo",String.class);
+      pooled=InterceptedMethod.createPooled(
+         echo,new MethodInterceptor[] {recorder});
+   }
+
+   private Object echo(String value) throws Throwable {
+      return pooled.invoke(service,new Object[] {value});
+   }
+
+   public void testProceededInvocationsAreRecycled() throws Throwable {
+      assertEquals("a",echo("a"));
+      assertEquals("b",echo("b"));
+      assertSame(recorder.invocations.get(0),recorder.invocations.get(1));
+      // the arguments are not kept by the pool
+      assertNull(recorder.invocations.get(0).getArguments()[0]);
+   }
+
+   public void testShortCircuitedInvocationsAreRecycled() throws Throwable {
+      recorder.proceed=false;
+      assertEquals("cached",echo("a"));
+      assertEquals("cached",echo("b"));
+      assertSame(recorder.invocations.get(0),recorder.invocations.get(1));
+   }
+
+   public void testRetainedInvocationsAreNotRecycled() throws Throwable {
+      recorder.retain=true;
+      assertEquals("a",echo("a"));
+      assertEquals("b",echo("b"));
+      assertNotSame(recorder.invocations.get(0),
+                    recorder.invocations.get(1));
+      assertEquals("a",recorder.invocations.get(0).getArguments()[0]);
+   }
+
+   /**
+    * Proceeds an invocation.
+    *
+    * @return the result, or the exception thrown by the invocation */
+   private static Object outcome(MethodInvocation invocation) {
+      try {
+         return invocation.proceed();
+      } catch(Throwable t) {
+         return t;
+      }
+   }
+
+   /**
+    * Proceeds an invocation from another thread.
+    *
+    * @return the result, or the exception thrown by the invocation */
+   private static Object proceedLater(final MethodInvocation invocation)
+      throws Exception {
+      ExecutorService executor=Executors.newSingleThreadExecutor();
+      try {
+         return executor.submit(new Callable<Object>() {
+               public Object call() {
+                  return outcome(invocation);
+               }
+            }).get();
+      } finally {
+         executor.shutdown();
+      }
+   }
+
+   public void testLateProceedsFail() throws Throwable {
+      recorder.proceed=false;
+      assertEquals("cached",echo("a"));
+      MethodInvocation late=recorder.invocations.get(0);
+      Object outcome=outcome(late);
+      assertTrue("outcome "+outcome,
+                 outcome instanceof IllegalStateException);
+      outcome=proceedLater(late);
+      assertTrue("outcome "+outcome,
+                 outcome instanceof IllegalStateException);
+      recorder.proceed=true;
+      assertEquals("b",echo("b"));
+   }
+
+   public void testRetainedInvocationsProceedLater() throws Throwable {
+      recorder.proceed=false;
+      recorder.retain=true;
+      assertEquals("cached",echo("a"));
+      assertEquals("cached",echo("b"));
+      // a late proceed runs the whole chain again
+      recorder.proceed=true;
+      assertEquals("a",proceedLater(recorder.invocations.get(0)));
+      assertEquals("b",recorder.invocations.get(1).proceed());
+   }
+
+   public void testReentrantCallsUseDistinctInvocations() throws Throwable {
+      Method echo=Service.class.getMethod("echo",String.class);
+      final InterceptedMethod[] reentrant=new InterceptedMethod[1];
+      final List<MethodInvocation> invocations=
+         new ArrayList<MethodInvocation>();
+      reentrant[0]=InterceptedMethod.createPooled(
+         echo,new MethodInterceptor[] {new MethodInterceptor() {
+               public Object invoke(MethodInvocation invocation)
+                  throws Throwable {
+                  invocations.add(invocation);
+                  Object argument=invocation.getArguments()[0];
+                  if("outer".equals(argument)) {
+                     assertEquals("inner",reentrant[0].invoke(
+                                     service,new Object[] {"inner"}));
+                  }
+                  return invocation.proceed();
+               }
+            }});
+      for(int i=0;i<2;i++) {
+         assertEquals("outer",reentrant[0].invoke(
+                         service,new Object[] {"outer"}));
+      }
+      assertNotSame(invocations.get(0),invocations.get(1));
+      assertSame(invocations.get(0),invocations.get(2));
+      assertSame(invocations.get(1),invocations.get(3));
+   }
+
+   public void testRecursiveCallsKeepTheirArguments() throws Throwable {
+      ArgumentChecker checker=new ArgumentChecker();
+      service.countdown=InterceptedMethod.createPooled(
+         Service.class.getMethod("countdown",int.class),
+         new MethodInterceptor[] {checker});
+      for(int i=0;i<2;i++) {
+         assertEquals("43210",service.countdown.invoke(
+                         service,new Object[] {Integer.valueOf(4)}));
+      }
+      assertEquals(10,checker.calls);
+   }
+
+}
@@ -0,0 +1,131 @@
+
+package org.aopalliance.intercept.support;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.aopalliance.intercept.PrimitiveInvocation;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Reads and writes the arguments of array-based and generated
+ * invocations through the typed accessors. */
+
+public class PrimitiveInvocationTest {
+
+   public static final class Service {
+      public long combine(int count, long total, double ratio,
+                          String label) {
+         return count+total+(long)ratio+label.length();
+      }
+   }
+
+   /**
+    * Changes the typed arguments, checks the type errors, and proceeds
+    * without boxing the result. */
+   static final class Changer implements MethodInterceptor {
+
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         final PrimitiveInvocation typed=(PrimitiveInvocation)invocation;
+         assertEquals(4,typed.getArgumentCount());
+         assertEquals(1,typed.getIntArgument(0));
+         assertEquals(20L,typed.getLongArgument(1));
+         typed.setIntArgument(0,typed.getIntArgument(0)+2);
+         typed.setLongArgument(1,100L);
+         typed.setDoubleArgument(2,typed.getDoubleArgument(2)*2);
+         typed.setArgument(3,"abcd");
+         assertThrows(ClassCastException.class,new Callable<Object>() {
+               public Object call() {
+                  typed.setIntArgument(1,5);
+                  return null;
+               }
+            });
+         assertThrows(ClassCastException.class,new Callable<Object>() {
+               public Object call() {
+                  typed.setArgument(0,"one");
+                  return null;
+               }
+            });
+         assertThrows(ClassCastException.class,new Callable<Object>() {
+               public Object call() {
+                  typed.setArgument(1,Integer.valueOf(1));
+                  return null;
+               }
+            });
+         assertThrows(ClassCastException.class,new Callable<Object>() {
+               public Object call() {
+                  typed.setArgument(2,null);
+                  return null;
+               }
+            });
+         return Long.valueOf(typed.proceedLong());
+      }
+
+   }
+
+   /**
+    * Checks that the typed accessors see the arguments array once it
+    * is materialized. */
+   static final class ArrayReader implements MethodInterceptor {
+
+      public Object invoke(MethodInvocation invocation) throws Throwable {
+         PrimitiveInvocation typed=(PrimitiveInvocation)invocation;
+         Object[] arguments=invocation.getArguments();
+         assertEquals(Integer.valueOf(3),arguments[0]);
+         arguments[0]=Integer.valueOf(4);
+         assertEquals(4,typed.getIntArgument(0));
+         typed.setIntArgument(0,5);
+         assertEquals(Integer.valueOf(5),arguments[0]);
+         return invocation.proceed();
+      }
+
+   }
+
+   private final Service service=new Service();
+
+   private final Method combine;
+
+   public PrimitiveInvocationTest() throws Exception {
+      combine=Service.class.getMethod(
+         "combine",int.class,long.class,double.class,String.class);
+   }
+
+   private static Object[] arguments() {
+      return new Object[] {Integer.valueOf(1),Long.valueOf(20),
+                           Double.valueOf(2.5),"ab"};
+   }
+
+   public void testChainedInvocationArguments() throws Throwable {
+      Object result=new ChainedMethodInvocation(
+         service,combine,arguments(),
+         new MethodInterceptor[] {new Changer(),new ArrayReader()})
+         .proceed();
+      // 5 (3, then 4 and 5 by the reader) + 100 + 5 + 4
+      assertEquals(Long.valueOf(114),result);
+   }
+
+   public void testGeneratedInvocationArguments() throws Throwable {
+      MethodHandle invoker=MethodInvocationFactory.createInvoker(
+         combine,new MethodInterceptor[] {new Changer(),new ArrayReader()});
+      assertEquals(114L,(long)invoker.invokeExact(service,1,20L,2.5,"ab"));
+   }
+
+   public void testGeneratedInvocationWithoutArray() throws Throwable {
+      Changer changer=new Changer();
+      MethodInterceptor proceed=new MethodInterceptor() {
+            public Object invoke(MethodInvocation invocation)
+               throws Throwable {
+               return invocation.proceed();
+            }
+         };
+      MethodHandle invoker=MethodInvocationFactory.createInvoker(
+         combine,new MethodInterceptor[] {proceed,changer});
+      // 3 + 100 + 5 + 4, the typed fields are never boxed
+      assertEquals(112L,(long)invoker.invokeExact(service,1,20L,2.5,"ab"));
+   }
+
+}
@@ -0,0 +1,90 @@
+
+package org.aopalliance.intercept.support;
+
+import java.io.IOException;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
+import static org.aopalliance.test.Assert.*;
+
+/**
+ * Calls target methods through their cached invokers. */
+
+public class TargetInvokerTest {
+
+   public static final class Service {
+
+      public long scale(int value, long factor) {
+         return value*factor;
+      }
+
+      public static String name() {
+         return "service";
+      }
+
+      public void fail() throws IOException {
+         throw new IOException("failed");
+      }
+
+   }
+
+   private final Service service=new Service();
+
+   private static TargetInvoker invoker(String name, Class<?>... types)
+      throws NoSuchMethodException {
+      return TargetInvoker.forMethod(Service.class.getMethod(name,types));
+   }
+
+   public void testInvokersAreCachedPerMethod() throws Exception {
+      TargetInvoker scale=invoker("scale",int.class,long.class);
+      assertSame(scale,invoker("scale",int.class,long.class));
+      assertNotSame(scale,invoker("name"));
+      assertEquals("scale",scale.getMethod().getName());
+   }
+
+   public void testInvokeBoxesTheArgumentsAndResult() throws Throwable {
+      TargetInvoker scale=invoker("scale",int.class,long.class);
+      assertEquals(Long.valueOf(12),
+                   scale.invoke(service,new Object[] {Integer.valueOf(3),
+                                                      Long.valueOf(4)}));
+      assertEquals("service",invoker("name").invoke(null,null));
+      assertEquals("service",invoker("name").invoke(service,
+                                                    new Object[0]));
+   }
+
+   public void testTheHandleHasTheExactType() throws Throwable {
+      TargetInvoker scale=invoker("scale",int.class,long.class);
+      assertEquals(MethodType.methodType(long.class,Service.class,
+                                         int.class,long.class),
+                   scale.getHandle().type());
+      assertEquals(12L,(long)scale.getHandle().invokeExact(service,3,4L));
+   }
+
+   public void testTargetExceptionsAreNotWrapped() throws Throwable {
+      final TargetInvoker fail=invoker("fail");
+      IOException exception=assertThrows(
+         IOException.class,new Callable<Object>() {
+            public Object call() throws Exception {
+               try {
+                  return fail.invoke(service,null);
+               } catch(Exception e) {
+                  throw e;
+               } catch(Throwable t) {
+                  throw new AssertionError(t);
+               }
+            }
+         });
+      assertEquals("failed",exception.getMessage());
+   }
+
+   public void testMemberCacheKeepsTheFirstValue() throws Exception {
+      MemberCache<Method,String> cache=new MemberCache<Method,String>();
+      Method name=Service.class.getMethod("name");
+      assertNull(cache.get(name));
+      assertEquals("first",cache.put(name,"first"));
+      assertEquals("first",cache.put(name,"second"));
+      assertEquals("first",cache.get(name));
+   }
+
+}
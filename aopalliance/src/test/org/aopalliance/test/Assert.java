@@ -0,0 +1,87 @@
+
+package org.aopalliance.test;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The assertions of the tests (see {@link TestRunner}). A failed
+ * assertion throws an {@link AssertionError}. */
+
+public final class Assert {
+
+   private Assert() {
+   }
+
+   public static void fail(String message) {
+      throw new AssertionError(message);
+   }
+
+   public static void assertTrue(String message, boolean condition) {
+      if(!condition) {
+         fail(message);
+      }
+   }
+
+   public static void assertFalse(String message, boolean condition) {
+      assertTrue(message,!condition);
+   }
+
+   public static void assertEquals(Object expected, Object actual) {
+      if(expected==null?actual!=null:!expected.equals(actual)) {
+         fail("expected <"+expected+"> but was <"+actual+">");
+      }
+   }
+
+   public static void assertEquals(long expected, long actual) {
+      if(expected!=actual) {
+         fail("expected <"+expected+"> but was <"+actual+">");
+      }
+   }
+
+   public static void assertSame(Object expected, Object actual) {
+      if(expected!=actual) {
+         fail("expected the same object as <"+expected+"> but was <"
+              +actual+">");
+      }
+   }
+
+   public static void assertNotSame(Object unexpected, Object actual) {
+      if(unexpected==actual) {
+         fail("unexpected <"+actual+">");
+      }
+   }
+
+   public static void assertNull(Object actual) {
+      if(actual!=null) {
+         fail("expected null but was <"+actual+">");
+      }
+   }
+
+   public static void assertNotNull(Object actual) {
+      if(actual==null) {
+         fail("expected a value but was null");
+      }
+   }
+
+   /**
+    * Checks that a call throws an exception of a given type.
+    *
+    * @return the exception */
+   public static <T extends Throwable> T assertThrows(
+      Class<T> expected, Callable<?> call) {
+      try {
+         call.call();
+      } catch(Throwable t) {
+         if(expected.isInstance(t)) {
+            return expected.cast(t);
+         }
+         AssertionError error=new AssertionError(
+            "expected "+expected.getName()+" but got "+t);
+         error.initCause(t);
+         throw error;
+      }
+      throw new AssertionError(
+         "expected "+expected.getName()+" but nothing was thrown");
+   }
+
+}
@@ -0,0 +1,112 @@
+
+package org.aopalliance.test;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the tests of a class directory.
+ *
+ * <p>A test class is a class whose name ends with <code>Test</code>
+ * and that has a public no-argument constructor; its tests are its
+ * public no-argument methods whose name starts with <code>test</code>.
+ * Each test runs on a new instance of its class, and fails if it
+ * throws an exception (see {@link Assert}).
+ *
+ * <p>The arguments are the class directory, optionally followed by
+ * the simple names of the test classes to run (all by default). The
+ * exit status is 1 if a test failed. */
+
+public final class TestRunner {
+
+   private int run;
+
+   private final List<String> failures=new ArrayList<String>();
+
+   private TestRunner() {
+   }
+
+   public static void main(String[] args) throws Exception {
+      if(args.length==0) {
+         System.err.println("usage: TestRunner <class directory> [test...]");
+         System.exit(2);
+      }
+      List<String> selected=
+         Arrays.asList(args).subList(1,args.length);
+      List<String> names=new ArrayList<String>();
+      list(new File(args[0]),"",names);
+      Collections.sort(names);
+      TestRunner runner=new TestRunner();
+      for(String name : names) {
+         String simpleName=name.substring(name.lastIndexOf('.')+1);
+         if(selected.isEmpty() || selected.contains(simpleName)) {
+            runner.runClass(Class.forName(name));
+         }
+      }
+      System.out.println("Tests run: "+runner.run+", failures: "
+                         +runner.failures.size());
+      for(String failure : runner.failures) {
+         System.out.println("  FAILED "+failure);
+      }
+      System.exit(runner.failures.isEmpty()?0:1);
+   }
+
+   private static void list(File directory, String prefix,
+                            List<String> names) {
+      File[] files=directory.listFiles();
+      if(files==null) {
+         return;
+      }
+      for(File file : files) {
+         String name=file.getName();
+         if(file.isDirectory()) {
+            list(file,prefix+name+".",names);
+         } else if(name.endsWith("Test.class") && name.indexOf('$')<0) {
+            names.add(prefix+name.substring(0,name.length()-6));
+         }
+      }
+   }
+
+   private void runClass(Class<?> type) throws Exception {
+      if(!Modifier.isPublic(type.getModifiers())
+         || Modifier.isAbstract(type.getModifiers())) {
+         return;
+      }
+      Method[] methods=type.getMethods();
+      Arrays.sort(methods,new Comparator<Method>() {
+            public int compare(Method first, Method second) {
+               return first.getName().compareTo(second.getName());
+            }
+         });
+      for(Method method : methods) {
+         if(method.getName().startsWith("test")
+            && method.getParameterTypes().length==0
+            && !Modifier.isStatic(method.getModifiers())) {
+            runTest(type,method);
+         }
+      }
+   }
+
+   private void runTest(Class<?> type, Method method) throws Exception {
+      String name=type.getSimpleName()+"."+method.getName();
+      run++;
+      long start=System.nanoTime();
+      try {
+         method.invoke(type.getConstructor().newInstance());
+         System.out.println("ok     "+name+" ("
+                            +(System.nanoTime()-start)/1000000+" ms)");
+      } catch(InvocationTargetException e) {
+         failures.add(name);
+         System.out.println("FAILED "+name);
+         e.getCause().printStackTrace(System.out);
+      }
+   }
+
+}